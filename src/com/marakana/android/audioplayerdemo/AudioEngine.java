@@ -0,0 +1,73 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * What the service needs from something that plays one item. The life cycle follows
+ * {@link android.media.MediaPlayer}: set a data source, prepare, then start, pause and seek, and
+ * reset to reuse the engine for another item. Listener methods are called on the looper of the
+ * thread the engine was created on.
+ */
+public interface AudioEngine {
+
+    public interface Listener {
+        public void onPrepared(AudioEngine engine);
+
+        public void onCompletion(AudioEngine engine);
+
+        public void onSeekComplete(AudioEngine engine);
+
+        public void onBufferingUpdate(AudioEngine engine, int percent);
+
+        /**
+         * Called when playback has to wait for data to arrive.
+         */
+        public void onStall(AudioEngine engine);
+
+        public void onError(AudioEngine engine, int what, int extra);
+    }
+
+    public interface Factory {
+        public AudioEngine create();
+    }
+
+    public void setListener(Listener listener);
+
+    public void setDataSource(Context context, Uri uri) throws IOException;
+
+    /**
+     * Prepares in the background and calls {@link Listener#onPrepared(AudioEngine)} when done.
+     */
+    public void prepareAsync();
+
+    public void start();
+
+    public void pause();
+
+    public void seekTo(int position);
+
+    public int getCurrentPosition();
+
+    public int getDuration();
+
+    /**
+     * Sets the volume from 0 to 1. Engines that can do so ramp to it instead of jumping.
+     */
+    public void setVolume(float volume);
+
+    /**
+     * Asks this engine to start the given prepared engine by itself once it completes, or to stop
+     * doing so if it is null.
+     *
+     * @return whether this engine will start the next one by itself
+     */
+    public boolean setNext(AudioEngine next);
+
+    public void reset();
+
+    public void release();
+}
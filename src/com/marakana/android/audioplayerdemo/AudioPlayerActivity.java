@@ -5,10 +5,14 @@ import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.graphics.drawable.Drawable;
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageButton;
@@ -16,12 +20,37 @@ import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
 
+/**
+ * Shows and controls the playback of {@link AudioPlayerService}. The position is not polled: the
+ * last {@link PlaybackState} received serves as an anchor, extrapolated with
+ * {@link PlaybackState#getPositionAt(long)} on every display frame while playing. The activity
+ * follows the service through a session, which sends only the fields that changed, the position
+ * only once it drifts from the extrapolated one. Each update is acknowledged once shown, so a busy
+ * UI thread is sent nothing more until it catches up. Views are only touched when what they show
+ * changes, and the time is formatted into a reused buffer.
+ */
 public class AudioPlayerActivity extends Activity implements ServiceConnection,
         OnSeekBarChangeListener, Runnable {
     private static final String TAG = "AudioPlayerActivity";
 
     private static final int JUMP_OFFSET = 3000;
 
+    // how often at most the session is sent an update
+    private static final int SESSION_INTERVAL = 250;
+
+    private static final int SESSION_FIELDS = PlaybackState.FIELD_STATE
+            | PlaybackState.FIELD_POSITION | PlaybackState.FIELD_DURATION
+            | PlaybackState.FIELD_MUTED;
+
+    // the events after which the waveform is fetched again
+    private static final int WAVEFORM_EVENTS = 1 << PlaybackState.EVENT_WAVEFORM_UPDATED
+            | 1 << PlaybackState.EVENT_TRACK_CHANGED;
+
+    // the frame interval where the display cannot schedule frames for us
+    private static final int FRAME_INTERVAL = 16;
+
+    private static final int SEEK_DEBOUNCE_DELAY = 100;
+
     private Handler handler;
 
     private IAudioPlayerService service;
@@ -30,6 +59,8 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
 
     private SeekBar seekBar;
 
+    private WaveformDrawable waveform;
+
     private ImageButton goToBeginningButton;
 
     private ImageButton reverseButton;
@@ -48,6 +79,71 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
 
     private ImageButton unmuteButton;
 
+    private boolean tracking = false;
+
+    // the latest state received from the service, or null if none
+    private PlaybackState anchor;
+
+    // the state as brought up to date by the session, or null before its first update
+    private PlaybackState received;
+
+    // what the views show, so they are only updated on change
+    private final char[] timeText = new char[8];
+
+    private int shownSeconds = -1;
+
+    private int shownDuration = -1;
+
+    private int shownProgress = -1;
+
+    private boolean framePending = false;
+
+    private final Runnable frameTicker = new Runnable() {
+        public void run() {
+            framePending = false;
+            PlaybackState anchor = AudioPlayerActivity.this.anchor;
+            if (anchor != null && anchor.isPlaying()) {
+                renderPosition(anchor.getPositionAt(SystemClock.elapsedRealtime()));
+                scheduleFrame();
+            }
+        }
+    };
+
+    private final Runnable seekToProgress = new Runnable() {
+        public void run() {
+            try {
+                if (service != null) {
+                    service.seek(seekBar.getProgress());
+                }
+            } catch (RemoteException e) {
+                Log.wtf(TAG, "Failed to talk to the service", e);
+            }
+        }
+    };
+
+    // fetches the waveform at about one bin per pixel of the seek bar
+    private final Runnable waveformUpdate = new Runnable() {
+        public void run() {
+            try {
+                if (service != null) {
+                    int width = seekBar.getWidth();
+                    if (width == 0) {
+                        width = getResources().getDisplayMetrics().widthPixels;
+                    }
+                    waveform.setPeaks(service.getWaveform(width));
+                }
+            } catch (RemoteException e) {
+                Log.wtf(TAG, "Failed to talk to the service", e);
+            }
+        }
+    };
+
+    private final IPlaybackSessionCallback session = new IPlaybackSessionCallback.Stub() {
+        public void onPlaybackUpdate(int sequence, int events, PlaybackDelta delta) {
+            handler.post(new SessionUpdate(sequence, events, delta));
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -55,6 +151,12 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
         this.status = (TextView)super.findViewById(R.id.status);
         this.seekBar = (SeekBar)super.findViewById(R.id.seekBar);
         this.seekBar.setOnSeekBarChangeListener(this);
+        this.waveform = new WaveformDrawable(super.getResources().getColor(R.color.waveform));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            this.setBackground(this.waveform);
+        } else {
+            this.setBackgroundDrawable(this.waveform);
+        }
         this.goToBeginningButton = (ImageButton)super.findViewById(R.id.goToBeginningButton);
         this.reverseButton = (ImageButton)super.findViewById(R.id.reverseButton);
         this.playButton = (ImageButton)super.findViewById(R.id.playButton);
@@ -87,7 +189,10 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
     protected void onStart() {
         super.onStart();
         Log.d(TAG, "Binding to service...");
-        if (super.bindService(new Intent(this, AudioPlayerService.class), this, BIND_AUTO_CREATE)) {
+        Intent intent = new Intent(this, AudioPlayerService.class)
+                .putExtra(AudioPlayerService.EXTRA_PREWARM, true)
+                .putExtra(AudioPlayerService.EXTRA_BIND_TIME, SystemClock.elapsedRealtime());
+        if (super.bindService(intent, this, BIND_AUTO_CREATE)) {
             Log.d(TAG, " done");
         } else {
             Log.e(TAG, " failed");
@@ -97,6 +202,18 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
     @Override
     protected void onStop() {
         super.onStop();
+        if (this.service != null) {
+            try {
+                this.service.unregisterSession(this.session);
+            } catch (RemoteException e) {
+                Log.wtf(TAG, "Failed to unregister session", e);
+            }
+        }
+        this.handler.removeCallbacksAndMessages(null);
+        this.seekBar.removeCallbacks(this.frameTicker);
+        this.framePending = false;
+        this.anchor = null;
+        this.received = null;
         Log.d(TAG, "Unbinding from service...");
         this.unbindService(this);
     }
@@ -105,12 +222,9 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
         Log.d(TAG, "Connected to service " + name);
         this.service = IAudioPlayerService.Stub.asInterface(service);
         try {
-            this.toggleButtons(true, !this.service.isStopped());
-            boolean playing = this.service.isPlaying();
-            this.togglePlayPauseButtons(playing);
-            if (playing) {
-                this.handler.post(this);
-            }
+            this.service.registerSession(this.session, SESSION_INTERVAL, SESSION_FIELDS);
+            this.run();
+            this.waveformUpdate.run();
         } catch (RemoteException e) {
             Log.wtf(TAG, "Failed", e);
         }
@@ -129,7 +243,7 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
 
     public void reverse(View v) throws RemoteException {
         Log.d(TAG, "reverse()");
-        this.service.seek(Math.max(0, this.service.position() - JUMP_OFFSET));
+        this.service.seekRelative(-JUMP_OFFSET);
     }
 
     public void play(View v) throws RemoteException {
@@ -137,7 +251,6 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
         this.service.play();
         this.toggleButtons(true, true);
         this.togglePlayPauseButtons(true);
-        this.handler.postDelayed(this, 100);
     }
 
     public void pause(View v) throws RemoteException {
@@ -151,14 +264,14 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
         this.service.stop();
         this.toggleButtons(true, false);
         this.togglePlayPauseButtons(false);
-        this.handler.removeCallbacks(this);
         this.seekBar.setEnabled(false);
         this.seekBar.setProgress(0);
+        this.shownProgress = 0;
     }
 
     public void fastForward(View v) throws RemoteException {
         Log.d(TAG, "fastForward()");
-        this.service.seek(Math.min(this.service.duration(), this.service.position() + JUMP_OFFSET));
+        this.service.seekRelative(JUMP_OFFSET);
     }
 
     public void goToEnd(View v) throws RemoteException {
@@ -191,65 +304,180 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
     }
 
     public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-        // ignored
+        if (fromUser && this.service != null) {
+            // only seek once the user pauses dragging for a moment
+            this.handler.removeCallbacks(this.seekToProgress);
+            this.handler.postDelayed(this.seekToProgress, SEEK_DEBOUNCE_DELAY);
+        }
     }
 
     private boolean wasPlayingBeforeSeeking = false;
 
     public void onStartTrackingTouch(SeekBar seekBar) {
         try {
-            this.wasPlayingBeforeSeeking = this.service.isPlaying();
+            this.wasPlayingBeforeSeeking = this.service.getPlaybackState().isPlaying();
             if (this.wasPlayingBeforeSeeking) {
                 this.service.pause();
             }
-            this.handler.removeCallbacks(this);
+            this.tracking = true;
         } catch (RemoteException e) {
             Log.wtf(TAG, "Failed to talk to the service", e);
         }
     }
 
     public void onStopTrackingTouch(SeekBar seekBar) {
+        this.tracking = false;
+        this.shownProgress = -1;
+        this.handler.removeCallbacks(this.seekToProgress);
         try {
             this.service.seek(seekBar.getProgress());
             if (this.wasPlayingBeforeSeeking) {
                 this.service.play();
             }
-            this.handler.post(this);
         } catch (RemoteException e) {
             Log.wtf(TAG, "Failed to talk to the service", e);
         }
     }
 
-    private static String formatAsTime(int milliseconds) {
-        int seconds = milliseconds / 1000;
-        return String.format("%02d:%02d", seconds / 60, seconds % 60);
+    // writes the time as mm:ss to the end of the given buffer, and returns where it starts
+    private static int formatAsTime(int milliseconds, char[] text) {
+        int seconds = Math.max(0, milliseconds / 1000);
+        int minutes = seconds / 60;
+        int start = text.length;
+        text[--start] = (char)('0' + seconds % 10);
+        text[--start] = (char)('0' + seconds % 60 / 10);
+        text[--start] = ':';
+        do {
+            text[--start] = (char)('0' + minutes % 10);
+            minutes /= 10;
+        } while (minutes > 0 && start > 0);
+        if (start == text.length - 4) {
+            text[--start] = '0';
+        }
+        return start;
     }
 
+    // Refreshes the views from a freshly sampled state
     public void run() {
         try {
-            if (this.service == null || this.service.isStopped()) {
-                this.seekBar.setProgress(0);
-                this.seekBar.setEnabled(false);
-                this.toggleButtons(true, false);
-                this.togglePlayPauseButtons(false);
-                this.status.setText(R.string.init_time);
-            } else {
-                int position = this.service.position();
-                // update the status
-                this.status.setText(formatAsTime(position));
-
-                // update the seekbar
-                this.seekBar.setMax(this.service.duration());
-                this.seekBar.setProgress(position);
-                this.seekBar.setEnabled(true);
-
-                if (this.service.isPlaying()) {
-                    // schedule a callback of this method in 500 ms
-                    this.handler.postDelayed(this, 500);
-                }
-            }
+            this.updateViews(this.service == null ? null : this.service.getPlaybackState(), true);
         } catch (RemoteException e) {
             Log.wtf(TAG, "Failed to talk to the service", e);
         }
     }
+
+    private void updateViews(PlaybackState state, boolean stateChanged) {
+        this.anchor = state;
+        if (state == null || state.isStopped()) {
+            this.seekBar.setProgress(0);
+            this.seekBar.setEnabled(false);
+            this.toggleButtons(this.service != null, false);
+            this.togglePlayPauseButtons(false);
+            this.status.setText(R.string.init_time);
+            this.shownSeconds = 0;
+            this.shownProgress = 0;
+        } else {
+            if (stateChanged) {
+                this.toggleButtons(true, true);
+                this.togglePlayPauseButtons(state.isPlaying() || state.isPreparing());
+                this.toggleMuteUnmuteButtons(state.isMuted());
+            }
+            if (!this.tracking) {
+                int duration = state.getDuration();
+                if (duration != this.shownDuration) {
+                    this.shownDuration = duration;
+                    this.seekBar.setMax(duration);
+                }
+                boolean enabled = !state.isPreparing();
+                if (enabled != this.seekBar.isEnabled()) {
+                    this.seekBar.setEnabled(enabled);
+                }
+            }
+            this.renderPosition(state.getPositionAt(SystemClock.elapsedRealtime()));
+            if (state.isPlaying()) {
+                this.scheduleFrame();
+            }
+        }
+    }
+
+    private void renderPosition(int position) {
+        int seconds = position / 1000;
+        if (seconds != this.shownSeconds) {
+            this.shownSeconds = seconds;
+            int start = formatAsTime(position, this.timeText);
+            this.status.setText(this.timeText, start, this.timeText.length - start);
+        }
+        // leave the seekbar alone while the user is dragging it
+        if (!this.tracking) {
+            // only move it by whole pixels
+            int width = this.seekBar.getWidth();
+            int step = width > 0 ? Math.max(1, this.shownDuration / width) : 1;
+            int progress = position - position % step;
+            if (progress != this.shownProgress) {
+                this.shownProgress = progress;
+                this.seekBar.setProgress(progress);
+            }
+        }
+    }
+
+    private void scheduleFrame() {
+        if (this.framePending) {
+            return;
+        }
+        this.framePending = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            this.postOnAnimation(this.frameTicker);
+        } else {
+            this.seekBar.postDelayed(this.frameTicker, FRAME_INTERVAL);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void setBackground(Drawable background) {
+        this.seekBar.setBackground(background);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void setBackgroundDrawable(Drawable background) {
+        this.seekBar.setBackgroundDrawable(background);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postOnAnimation(Runnable runnable) {
+        this.seekBar.postOnAnimation(runnable);
+    }
+
+    private class SessionUpdate implements Runnable {
+        private final int sequence;
+
+        private final int events;
+
+        private final PlaybackDelta delta;
+
+        SessionUpdate(int sequence, int events, PlaybackDelta delta) {
+            this.sequence = sequence;
+            this.events = events;
+            this.delta = delta;
+        }
+
+        public void run() {
+            if (service == null) {
+                return;
+            }
+            received = this.delta.applyTo(received);
+            if ((this.events & WAVEFORM_EVENTS) != 0) {
+                handler.removeCallbacks(waveformUpdate);
+                handler.post(waveformUpdate);
+            }
+            boolean stateChanged = this.events != 0
+                    || (this.delta.getFields() & (PlaybackState.FIELD_STATE
+                            | PlaybackState.FIELD_MUTED)) != 0;
+            updateViews(received, stateChanged);
+            try {
+                service.acknowledgeSessionUpdate(session, this.sequence);
+            } catch (RemoteException e) {
+                Log.wtf(TAG, "Failed to talk to the service", e);
+            }
+        }
+    }
 }
@@ -1,39 +1,109 @@
 
 package com.marakana.android.audioplayerdemo;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import android.app.Service;
 import android.content.Intent;
+import android.os.Build;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
+import android.view.KeyEvent;
 
 public class AudioPlayerService extends Service {
 
     public static final String ACTION_PLAY_PAUSE = "com.marakana.android.audioplayerdemo.AudioPlayerService.ACTION_PLAY_PAUSE";
 
-    public static final String ACTION_STOP = "com.marakana.android.audioplayerdemo.AudioPlayerService.ACTION_PLAY_PAUSE";
+    public static final String ACTION_STOP = "com.marakana.android.audioplayerdemo.AudioPlayerService.ACTION_STOP";
+
+    public static final String ACTION_NEXT = "com.marakana.android.audioplayerdemo.AudioPlayerService.ACTION_NEXT";
+
+    public static final String ACTION_PREVIOUS = "com.marakana.android.audioplayerdemo.AudioPlayerService.ACTION_PREVIOUS";
+
+    /**
+     * Optional boolean extra for the bind intent: prepare the next item while still stopped.
+     */
+    public static final String EXTRA_PREWARM = "com.marakana.android.audioplayerdemo.AudioPlayerService.EXTRA_PREWARM";
+
+    /**
+     * Optional long extra for the bind intent: the {@link android.os.SystemClock#elapsedRealtime()}
+     * at which the client asked to bind, for the startup trace.
+     */
+    public static final String EXTRA_BIND_TIME = "com.marakana.android.audioplayerdemo.AudioPlayerService.EXTRA_BIND_TIME";
 
     private static final String TAG = "AudioPlayerService";
 
+    private HandlerThread commandThread;
+
+    private ExecutorService background;
+
+    private ExecutorService analysis;
+
     private IAudioPlayerServiceImpl service;
 
+    private MediaButtonHandler mediaButtons;
+
+    // the media button handler of the running instance, if any; touched on the main thread only
+    private static MediaButtonHandler runningMediaButtons;
+
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "onCreate()");
-        this.service = new IAudioPlayerServiceImpl(this);
+        this.commandThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+        this.commandThread.start();
+        this.background = Executors.newSingleThreadExecutor(new BackgroundThreadFactory());
+        this.analysis = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new BackgroundThreadFactory());
+        MetricsRegistry metrics = new MetricsRegistry();
+        AudioEngine.Factory engines;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && this.getResources().getBoolean(R.bool.use_pcm_engine)) {
+            engines = new PcmEngine.Factory(this.getResources().getInteger(
+                    R.integer.pcm_buffer_millis), metrics);
+        } else {
+            engines = new MediaPlayerEngine.Factory();
+        }
+        this.service = new IAudioPlayerServiceImpl(this, this.commandThread.getLooper(),
+                this.background, this.analysis, engines, metrics);
+        this.mediaButtons = new MediaButtonHandler(this.service, metrics, this.getResources()
+                .getInteger(R.integer.media_button_click_window));
+        runningMediaButtons = this.mediaButtons;
+    }
+
+    /**
+     * Hands a media button straight to the running service, without going through
+     * {@link #onStartCommand(Intent, int, int)}. Call on the main thread.
+     *
+     * @return false if the service is not running
+     */
+    public static boolean dispatchMediaButton(KeyEvent event) {
+        if (runningMediaButtons == null) {
+            return false;
+        }
+        runningMediaButtons.handle(event);
+        return true;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand(" + intent + "," + flags + "," + startId + ")");
-        if (ACTION_PLAY_PAUSE.equals(intent.getAction())) {
-            if (this.service.isPlaying()) {
-                this.service.pause();
-            } else {
-                this.service.play();
-            }
-        } else if (ACTION_STOP.equals(intent.getAction())) {
+        // null when restarted after the process was killed
+        String action = intent == null ? null : intent.getAction();
+        if (ACTION_PLAY_PAUSE.equals(action)) {
+            this.service.playPause();
+        } else if (ACTION_STOP.equals(action)) {
             this.service.stop();
+        } else if (ACTION_NEXT.equals(action)) {
+            this.service.next();
+        } else if (ACTION_PREVIOUS.equals(action)) {
+            this.service.previous();
+        } else if (Intent.ACTION_MEDIA_BUTTON.equals(action)) {
+            this.mediaButtons.handle((KeyEvent)intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT));
         }
         return START_STICKY;
     }
@@ -42,11 +112,37 @@ public class AudioPlayerService extends Service {
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "onDestroy()");
+        if (runningMediaButtons == this.mediaButtons) {
+            runningMediaButtons = null;
+        }
+        this.mediaButtons.cancel();
+        this.service.shutdown();
+        this.commandThread.quit();
+        this.background.shutdownNow();
+        this.analysis.shutdownNow();
     }
 
     @Override
     public IBinder onBind(Intent intent) {
         Log.d(TAG, "onBind(" + intent + ")");
+        if (intent.hasExtra(EXTRA_BIND_TIME)) {
+            this.service.getStartupTrace().markBound(intent.getLongExtra(EXTRA_BIND_TIME, 0));
+        }
+        if (intent.getBooleanExtra(EXTRA_PREWARM, false)) {
+            this.service.prewarm();
+        }
         return this.service;
     }
+
+    // Runs work that must never compete with playback at background priority
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG + "-background");
+        }
+    }
 }
@@ -0,0 +1,68 @@
+
+package com.marakana.android.audioplayerdemo;
+
+/**
+ * Applies a gain to interleaved 16-bit PCM in place, moving linearly to a new target over a given
+ * number of frames instead of jumping, which would click. Used by one thread only.
+ */
+public class GainRamp {
+    private float gain;
+
+    private float target;
+
+    private float step = 0;
+
+    public GainRamp(float gain) {
+        this.gain = gain;
+        this.target = gain;
+    }
+
+    public float getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Starts moving to the given gain, reaching it after the given number of frames.
+     */
+    public void rampTo(float target, int frames) {
+        this.target = target;
+        this.step = frames <= 0 ? target - this.gain : (target - this.gain) / frames;
+    }
+
+    /**
+     * Jumps to the given gain, for when nothing is playing.
+     */
+    public void jumpTo(float gain) {
+        this.gain = gain;
+        this.target = gain;
+        this.step = 0;
+    }
+
+    public void apply(short[] samples, int offset, int length, int channels) {
+        int end = offset + length;
+        int i = offset;
+        // ramp frame by frame until the target is reached
+        while (this.step != 0 && i < end) {
+            this.gain += this.step;
+            if ((this.step > 0 && this.gain >= this.target)
+                    || (this.step < 0 && this.gain <= this.target)) {
+                this.gain = this.target;
+                this.step = 0;
+            }
+            for (int c = 0; c < channels && i < end; c++, i++) {
+                samples[i] = scale(samples[i], this.gain);
+            }
+        }
+        if (i < end && this.gain != 1.0f) {
+            for (; i < end; i++) {
+                samples[i] = scale(samples[i], this.gain);
+            }
+        }
+    }
+
+    private static short scale(short sample, float gain) {
+        int scaled = (int)(sample * gain);
+        return (short)(scaled > Short.MAX_VALUE ? Short.MAX_VALUE
+                : scaled < Short.MIN_VALUE ? Short.MIN_VALUE : scaled);
+    }
+}
@@ -0,0 +1,369 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A remote resource read in fixed-size segments with HTTP range requests. Segments are kept in a
+ * {@link SegmentCache} keyed by the URL and ETag, and the segments after each one read are fetched
+ * ahead in the background. The size, type and ETag are remembered too, so replaying or seeking
+ * into a region that was already fetched does not touch the network.
+ */
+public class HttpStream {
+    private static final String TAG = "HttpStream";
+
+    public static final int SEGMENT_SIZE = 256 * 1024;
+
+    private static final int READ_AHEAD = 4;
+
+    private static final int TIMEOUT = 15000;
+
+    private final URL url;
+
+    private final SegmentCache cache;
+
+    private final File metadataDir;
+
+    private final Executor prefetcher;
+
+    private final AtomicLong hits;
+
+    private final AtomicLong misses;
+
+    // guarded by this
+    private final HashSet<Integer> inFlight = new HashSet<Integer>();
+
+    // guarded by this; whether a thread is probing the resource for open()
+    private boolean probing = false;
+
+    private volatile String key;
+
+    private volatile String etag;
+
+    private volatile String contentType;
+
+    private volatile long length = -1;
+
+    public HttpStream(URL url, SegmentCache cache, File metadataDir, Executor prefetcher,
+            AtomicLong hits, AtomicLong misses) {
+        this.url = url;
+        this.cache = cache;
+        this.metadataDir = metadataDir;
+        this.prefetcher = prefetcher;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * Learns the size, type and ETag of the resource, from the metadata remembered for it if any
+     * and otherwise from the first segment, which is then cached as well. The first segment is
+     * fetched without holding the lock, so fetches and resets do not wait on it; other threads
+     * opening the resource meanwhile wait for it.
+     */
+    public void open() throws IOException {
+        synchronized (this) {
+            while (this.probing) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (this.length >= 0 || this.readMetadata()) {
+                return;
+            }
+            this.probing = true;
+        }
+        try {
+            HttpURLConnection connection = this.connect(0, SEGMENT_SIZE - 1, null);
+            try {
+                String etag = connection.getHeaderField("ETag");
+                String contentType = connection.getContentType();
+                long length = totalLength(connection);
+                if (length < 0) {
+                    throw new IOException("Unknown length of " + this.url);
+                }
+                String key = hash(this.url + "\n" + etag);
+                byte[] data = readFully(connection, 0, (int)Math.min(SEGMENT_SIZE, length));
+                this.cache.put(key, 0, data, data.length);
+                synchronized (this) {
+                    this.etag = etag;
+                    this.contentType = contentType;
+                    this.key = key;
+                    this.length = length;
+                    this.writeMetadata();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } finally {
+            synchronized (this) {
+                this.probing = false;
+                this.notifyAll();
+            }
+        }
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    public int getSegmentCount() {
+        return (int)((this.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    /**
+     * @return the given segment, open for reading, after fetching it if it was not cached; also
+     *         schedules the segments after it to be fetched ahead
+     */
+    public RandomAccessFile openSegment(int segment) throws IOException {
+        this.open();
+        String key = this.key;
+        RandomAccessFile file = key == null ? null : this.cache.open(key, segment);
+        if (file != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+            file = this.fetch(segment, true);
+        }
+        for (int i = segment + 1; i <= segment + READ_AHEAD && i < this.getSegmentCount(); i++) {
+            this.prefetch(i);
+        }
+        return file;
+    }
+
+    private void prefetch(final int segment) {
+        String key = this.key;
+        if (key == null || this.cache.get(key, segment) != null) {
+            return;
+        }
+        synchronized (this) {
+            if (this.inFlight.contains(segment)) {
+                return;
+            }
+        }
+        this.prefetcher.execute(new Runnable() {
+            public void run() {
+                try {
+                    fetch(segment, false);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to prefetch segment " + segment + " of " + url, e);
+                }
+            }
+        });
+    }
+
+    // fetches the segment unless it is cached already, waiting for a fetch of it in progress;
+    // returns it open if asked to, which fetches it again if it was evicted after that other fetch
+    private RandomAccessFile fetch(int segment, boolean open) throws IOException {
+        String key;
+        String etag;
+        long length;
+        synchronized (this) {
+            while (this.inFlight.contains(segment)) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            key = this.key;
+            etag = this.etag;
+            length = this.length;
+            if (key == null) {
+                throw new IOException(this.url + " changed on the server");
+            }
+            if (open) {
+                RandomAccessFile file = this.cache.open(key, segment);
+                if (file != null) {
+                    return file;
+                }
+            } else if (this.cache.get(key, segment) != null) {
+                return null;
+            }
+            this.inFlight.add(segment);
+        }
+        try {
+            long start = (long)segment * SEGMENT_SIZE;
+            int size = (int)Math.min(SEGMENT_SIZE, length - start);
+            HttpURLConnection connection = this.connect(start, start + size - 1, etag);
+            try {
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK && etag != null
+                        && !etag.equals(connection.getHeaderField("ETag"))) {
+                    // If-Range failed: the resource changed, so everything we have of it is stale
+                    this.reset(key);
+                    throw new IOException(this.url + " changed on the server");
+                }
+                byte[] data = readFully(connection, start, size);
+                if (open) {
+                    return this.cache.putAndOpen(key, segment, data, size);
+                }
+                this.cache.put(key, segment, data, size);
+                return null;
+            } finally {
+                connection.disconnect();
+            }
+        } finally {
+            synchronized (this) {
+                this.inFlight.remove(segment);
+                this.notifyAll();
+            }
+        }
+    }
+
+    // forgets the given version of the resource, so that the next open() probes it again
+    private synchronized void reset(String key) {
+        this.cache.invalidate(key);
+        if (!key.equals(this.key)) {
+            return; // already forgotten, and maybe probed again since
+        }
+        new File(this.metadataDir, hash(this.url.toString())).delete();
+        this.key = null;
+        this.etag = null;
+        this.contentType = null;
+        this.length = -1;
+    }
+
+    private HttpURLConnection connect(long first, long last, String ifRange) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)this.url.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+        if (ifRange != null) {
+            connection.setRequestProperty("If-Range", ifRange);
+        }
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_PARTIAL && code != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Got " + code + " for " + this.url);
+        }
+        return connection;
+    }
+
+    // reads the given range, skipping up to it if the server ignored the range request
+    private static byte[] readFully(HttpURLConnection connection, long start, int size)
+            throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                for (long skipped = 0; skipped < start;) {
+                    long n = in.skip(start - skipped);
+                    if (n <= 0) {
+                        throw new IOException("Unexpected end of stream");
+                    }
+                    skipped += n;
+                }
+            }
+            byte[] data = new byte[size];
+            new DataInputStream(in).readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long totalLength(HttpURLConnection connection) {
+        String range = connection.getHeaderField("Content-Range"); // bytes 0-262143/1234567
+        if (range != null) {
+            int slash = range.lastIndexOf('/');
+            if (slash >= 0 && !range.endsWith("*")) {
+                try {
+                    return Long.parseLong(range.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+        // the server ignored the range and sent it all
+        String length = connection.getHeaderField("Content-Length");
+        try {
+            return length == null ? -1 : Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private boolean readMetadata() {
+        File file = new File(this.metadataDir, hash(this.url.toString()));
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                this.length = in.readLong();
+                String etag = in.readUTF();
+                this.etag = etag.length() == 0 ? null : etag;
+                String contentType = in.readUTF();
+                this.contentType = contentType.length() == 0 ? null : contentType;
+                this.key = hash(this.url + "\n" + this.etag);
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable metadata " + file, e);
+            this.length = -1;
+            file.delete();
+            return false;
+        }
+    }
+
+    private void writeMetadata() {
+        File file = new File(this.metadataDir, hash(this.url.toString()));
+        try {
+            if (!this.metadataDir.isDirectory() && !this.metadataDir.mkdirs()) {
+                throw new IOException("Cannot create " + this.metadataDir);
+            }
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.writeLong(this.length);
+                out.writeUTF(this.etag == null ? "" : this.etag);
+                out.writeUTF(this.contentType == null ? "" : this.contentType);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to remember metadata of " + this.url, e);
+        }
+    }
+
+    private static String hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+                        Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,7 +1,12 @@
 
 package com.marakana.android.audioplayerdemo;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
 
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -10,20 +15,97 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.res.AssetFileDescriptor;
 import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnCompletionListener;
-import android.media.MediaPlayer.OnErrorListener;
-import android.media.MediaPlayer.OnPreparedListener;
-import android.os.PowerManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.marakana.android.audioplayerdemo.PlaybackState.State;
+
+/**
+ * Playback is modeled as an explicit state machine (see {@link State}). Every transition runs while
+ * holding this object's monitor and ends by publishing a new immutable {@link PlaybackState}
+ * through a volatile field. All queries are answered from that snapshot and never take the lock,
+ * so they cannot stall behind a slow transition such as {@link #onPrepared(AudioEngine)}.
+ * <p>
+ * Items are played by an {@link AudioEngine} from the factory given to the constructor, either
+ * {@link MediaPlayerEngine} or {@link PcmEngine}. Control methods never touch the player on the
+ * calling thread. They are queued as commands and executed one at a time on the command looper
+ * owned by {@link AudioPlayerService}, which is also the looper the player delivers its own
+ * callbacks on. Redundant commands are collapsed while queued: a play directly followed by a pause
+ * (or vice versa) leaves only the later one, and only the latest of several pending seeks is kept.
+ * <p>
+ * Seeks are additionally coalesced against the player: at most one {@link AudioEngine#seekTo(int)}
+ * is in flight at a time, and while it runs only the latest requested target is remembered and
+ * issued from {@link #onSeekComplete(AudioEngine)}. The published position follows the latest
+ * target so clients do not see the old position while the seek is pending.
+ * <p>
+ * While an item plays, the player for the next item in the {@link Playlist} is prepared in the
+ * background and chained with {@link AudioEngine#setNext(AudioEngine)} where the engine supports it,
+ * so track transitions need no prepare and leave audio focus, receivers and the foreground
+ * notification untouched. Shuffling or removing items releases that player first, since the next
+ * item may change with them.
+ * <p>
+ * Players are not released on every stop. A {@link PlayerPool} keeps players that are still
+ * prepared for recently played items, so stopping and playing again takes the warm path, and
+ * recycles the rest through {@link AudioEngine#reset()}. When asked to {@link #prewarm()}, the
+ * service prepares the item it would play next while still stopped, without taking audio focus, and
+ * parks it in the pool so the first play also takes the warm path.
+ * <p>
+ * For local MPEG audio, by MIME type or {@code .mp3} extension, an {@link Mp3FrameIndex} is loaded
+ * or built on the background executor once an item is prepared. From then on the reported duration
+ * is the exact one from the index rather than the player's estimate, which is poor for VBR files,
+ * and seeks are snapped to frame starts.
+ * <p>
+ * For local items, a {@link WaveformGenerator} then builds a {@link PeakPyramid} of the current
+ * item on the analysis executor. Clients are told with {@link PlaybackState#EVENT_WAVEFORM_UPDATED}
+ * as it fills in, and fetch the level that suits them through {@link #getWaveform(int)}.
+ * <p>
+ * A {@link LoudnessAnalyzer} works out a gain for the current item and the few after it on the
+ * analysis executor, once per content, and players are set to it when prepared, or when it becomes
+ * known if that is later but before they start, so tracks play at about the same loudness without
+ * any analysis at play time.
+ * <p>
+ * Remote items are played through a {@link StreamingProxy}, which reads them ahead in segments with
+ * range requests and keeps those segments in a bounded on-disk cache, so replays and seeks back
+ * into fetched regions are served locally. The cache hit ratio and the number of times playback
+ * stalled waiting for data are available to clients.
+ * <p>
+ * The queue, the current item, its position and whether it is muted are recorded in a
+ * {@link ResumeJournal}, written behind on the background executor. When the service is created
+ * again, for example restarted after its process was killed, the journal is replayed: the queue is
+ * restored and the current item prewarmed and seeked to where it was, so a play picks up there.
+ * <p>
+ * The MP3 files under the configured library directories are indexed in a {@link MediaLibrary},
+ * loaded from where it was persisted when the service is created and then brought up to date by a
+ * {@link LibraryScanner} on the analysis executor, which only reads the tags of new or changed
+ * files. Clients page through it with {@link #getLibraryPage(int, int)} and are told of rescans
+ * with {@link PlaybackState#EVENT_LIBRARY_CHANGED}.
+ * <p>
+ * Clients follow the state by registering a session with
+ * {@link #registerSession(IPlaybackSessionCallback, int, int)}, giving the fields they want and how
+ * often at most. A {@link SessionFanout} sends each of them only the changes, on a thread of its
+ * own, so no client waits on another and the command thread waits on none. Clients acknowledge
+ * each update with {@link #acknowledgeSessionUpdate(IPlaybackSessionCallback, int)}, and one that
+ * falls behind is sent nothing more until it does.
+ * <p>
+ * Counters and latency histograms for startup, seeks, audio focus and every call into the service
+ * are kept in a {@link MetricsRegistry} and available to clients as {@link PlaybackMetrics}.
+ */
 public class IAudioPlayerServiceImpl extends IAudioPlayerService.Stub implements
-        OnPreparedListener, OnErrorListener, OnAudioFocusChangeListener, OnCompletionListener {
+        AudioEngine.Listener, OnAudioFocusChangeListener, WaveformGenerator.Listener,
+        LibraryScanner.Listener, LoudnessAnalyzer.Listener, SessionFanout.Source {
     private static final String TAG = "IAudioPlayerServiceImpl";
 
+    // checked once, so that debug messages are not even built unless enabled
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
     private final IntentFilter AUDIO_BECOMING_NOISY_INTENT_FILTER = new IntentFilter(
             AudioManager.ACTION_AUDIO_BECOMING_NOISY);
 
@@ -31,7 +113,95 @@ public class IAudioPlayerServiceImpl extends IAudioPlayerService.Stub implements
 
     private final Context context;
 
-    private MediaPlayer mediaPlayer;
+    private AudioEngine player;
+
+    private final Uri defaultUri;
+
+    // guarded by this
+    private final Playlist playlist = new Playlist();
+
+    // guarded by this
+    private final PlayerPool players;
+
+    // guarded by this; the item the current player is for
+    private Uri currentUri;
+
+    // guarded by this; a player being prepared ahead of the first play, and its item
+    private AudioEngine warmingPlayer;
+
+    private Uri warmingUri;
+
+    private final StartupTrace startupTrace = new StartupTrace();
+
+    private final Executor background;
+
+    // guarded by this; the frame index of the item it was built for, if any
+    private Mp3FrameIndex frameIndex;
+
+    private Uri frameIndexUri;
+
+    private final Executor analysis;
+
+    private final ResumeJournal journal;
+
+    // guarded by this; where to pick up the item restored from the journal when it is prepared,
+    // and the player already seeked there ahead of time, if any
+    private Uri resumeUri;
+
+    private int resumePosition;
+
+    private boolean resumeMuted;
+
+    private AudioEngine resumeSeeked;
+
+    // written only while holding the lock, read without it; for the current item, if local
+    private volatile WaveformGenerator waveform;
+
+    // written only while holding the lock, read without it
+    private volatile MediaLibrary library = MediaLibrary.empty();
+
+    // guarded by this; the scan in progress, if any
+    private LibraryScanner libraryScanner;
+
+    private final File libraryFile;
+
+    private final String[] libraryRoots;
+
+    // pages handed out by getLibraryPage() hold at most this many tracks
+    private static final int MAX_LIBRARY_PAGE = 200;
+
+    private final LoudnessAnalyzer loudness;
+
+    // how many items after the current one to analyze the loudness of ahead of time
+    private static final int LOUDNESS_LOOKAHEAD = 3;
+
+    // guarded by this; the loudness gains of the current and next players
+    private float currentGain = 1;
+
+    private float nextGain = 1;
+
+    private static final long STREAM_CACHE_SIZE = 32 * 1024 * 1024;
+
+    // written only while holding the lock, read without it; created for the first remote item
+    private volatile StreamingProxy streamingProxy;
+
+    private final MetricsRegistry metrics;
+
+    // guarded by this; System.nanoTime() when the latencies being measured started, or -1
+    private long playRequestedNanos = -1;
+
+    private long preparedNanos = -1;
+
+    private long seekRequestedNanos = -1;
+
+    // guarded by this; the player for the item after the current one, prepared ahead of time
+    private AudioEngine nextPlayer;
+
+    // guarded by this
+    private boolean nextPrepared = false;
+
+    // guarded by this; whether the current player will start the next one by itself
+    private boolean nextChained = false;
 
     private AudioManager audioManager;
 
@@ -39,210 +209,1625 @@ public class IAudioPlayerServiceImpl extends IAudioPlayerService.Stub implements
 
     private ComponentName remoteControlReceiverName;
 
+    private final Handler handler = new Handler();
+
+    // re-anchors the published position on the command looper, where the lock is only ever held
+    // as long as a transition takes; the main thread and the fan-out thread only post this
+    private final Runnable sampler = new Runnable() {
+        public void run() {
+            sample();
+        }
+    };
+
+    private final SessionFanout sessions;
+
+    private static final int COMMAND_PLAY = 1;
+
+    private static final int COMMAND_PAUSE = 2;
+
+    private static final int COMMAND_PLAY_PAUSE = 3;
+
+    private static final int COMMAND_STOP = 4;
+
+    private static final int COMMAND_SEEK = 5;
+
+    private static final int COMMAND_MUTE = 6;
+
+    private static final int COMMAND_UNMUTE = 7;
+
+    private static final int COMMAND_DUCK = 8;
+
+    private static final int COMMAND_SEEK_RELATIVE = 9;
+
+    private static final int COMMAND_ENQUEUE = 10;
+
+    private static final int COMMAND_NEXT = 11;
+
+    private static final int COMMAND_PREVIOUS = 12;
+
+    private static final int COMMAND_PREWARM = 13;
+
+    private static final int COMMAND_RESTORE = 14;
+
+    private static final int COMMAND_ENQUEUE_LIBRARY = 15;
+
+    private static final int COMMAND_REMOVE = 16;
+
+    private static final int COMMAND_SHUFFLE = 17;
+
+    private static final int COMMAND_GAIN_KNOWN = 18;
+
+    // the histogram timing the call that submits each command
+    private static final String[] COMMAND_CALLS = { null, "call.play", "call.pause",
+            "call.playPause", "call.stop", "call.seek", "call.mute", "call.unmute", "call.duck",
+            "call.seekRelative", "call.enqueue", "call.next", "call.previous", "call.prewarm",
+            null, "call.enqueueLibrary", "call.removeFromQueue", "call.setShuffle", null };
+
+    // how often to check whether a started player is producing audio yet, while tracing startup
+    private static final int FIRST_AUDIO_PROBE_INTERVAL = 10;
+
+    private static final int FIRST_AUDIO_PROBE_TIMEOUT = 2000;
+
+    // "previous" restarts the current item instead if we are further into it than this
+    private static final int PREVIOUS_RESTART_THRESHOLD = 3000;
+
+    private final Handler commands;
+
+    // guarded by itself
+    private final LinkedList<Command> pendingCommands = new LinkedList<Command>();
+
+    // guarded by pendingCommands; whether the command handler will still look at the queue
+    private boolean draining = false;
+
+    // guarded by this
+    private State state = State.STOPPED;
+
+    // guarded by this; once set, commands still queued or in flight are ignored
+    private boolean shutDown = false;
+
+    // guarded by this; true while we hold audio focus, the receivers and the foreground status
+    private boolean active = false;
+
+    // guarded by this; whether to start playing as soon as the player is prepared
+    private boolean playWhenPrepared = false;
+
+    // guarded by this
     private boolean muted = false;
 
-    public IAudioPlayerServiceImpl(AudioPlayerService audioPlayerService) {
+    // guarded by this
+    private int bufferedPercent = 0;
+
+    // guarded by this; the target of the seek in flight, or -1 if none
+    private int seekTarget = -1;
+
+    // guarded by this; the target to seek to once the seek in flight completes, or -1 if none
+    private int pendingSeekTarget = -1;
+
+    // written only while holding the lock, read without it
+    private volatile PlaybackState snapshot = new PlaybackState(State.STOPPED, 0, 0, false, 0,
+            SystemClock.elapsedRealtime());
+
+    // written only while holding the lock, read without it
+    private volatile Playlist.Snapshot queue = this.playlist.snapshot();
+
+    public IAudioPlayerServiceImpl(AudioPlayerService audioPlayerService, Looper commandLooper,
+            Executor background, Executor analysis, AudioEngine.Factory engines,
+            MetricsRegistry metrics) {
         this.context = audioPlayerService.getApplicationContext();
         this.audioPlayerService = new WeakReference<AudioPlayerService>(audioPlayerService);
         this.audioManager = (AudioManager)context.getSystemService(Context.AUDIO_SERVICE);
         this.noisyAudioReceiver = new NoisyAudioReceiver();
         this.remoteControlReceiverName = new ComponentName(context, RemoteControlReceiver.class);
+        this.commands = new CommandHandler(commandLooper);
+        this.background = background;
+        this.analysis = analysis;
+        this.players = new PlayerPool(engines, 2, 2);
+        this.metrics = metrics;
+        this.sessions = new SessionFanout(this, this.snapshot, metrics);
+        this.defaultUri = Uri.parse("android.resource://" + context.getPackageName() + "/"
+                + R.raw.test_cbr);
+        this.journal = new ResumeJournal(new File(this.context.getFilesDir(), "journal"),
+                background, this.handler);
+        background.execute(new Runnable() {
+            public void run() {
+                ResumeJournal.Resume resume = journal.load();
+                if (resume != null) {
+                    queue(COMMAND_RESTORE, 0, resume);
+                }
+            }
+        });
+        // leaves a core for playback
+        this.loudness = new LoudnessAnalyzer(this.context, new File(this.context.getCacheDir(),
+                "loudness"), analysis, Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                this);
+        this.libraryFile = new File(this.context.getFilesDir(), "library.idx");
+        this.libraryRoots = this.context.getResources().getStringArray(R.array.library_roots);
+        background.execute(new Runnable() {
+            public void run() {
+                loadLibrary();
+                startLibraryScan();
+            }
+        });
     }
 
-    public synchronized void play() {
-        if (this.mediaPlayer == null) {
-            Log.d(TAG, "Initializing playback");
-            this.mediaPlayer = new MediaPlayer();
-            this.mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            try {
-                AssetFileDescriptor afd = context.getResources().openRawResourceFd(R.raw.test_cbr);
-                try {
-                    this.mediaPlayer.setDataSource(afd.getFileDescriptor());
-                    Log.d(TAG, "Successfully set the data source");
-                } finally {
-                    afd.close();
+    public void play() {
+        if (this.snapshot.isStopped()) {
+            this.startupTrace.markPlayRequested();
+        }
+        this.submit(COMMAND_PLAY, 0);
+    }
+
+    /**
+     * Prepares the item that would play next in the background while stopped, without taking
+     * audio focus or going to the foreground.
+     */
+    public void prewarm() {
+        this.submit(COMMAND_PREWARM, 0);
+    }
+
+    public StartupTrace getStartupTrace() {
+        return this.startupTrace;
+    }
+
+    public void pause() {
+        this.submit(COMMAND_PAUSE, 0);
+    }
+
+    public void playPause() {
+        this.submit(COMMAND_PLAY_PAUSE, 0);
+    }
+
+    public void stop() {
+        this.submit(COMMAND_STOP, 0);
+    }
+
+    public void seek(int position) {
+        this.submit(COMMAND_SEEK, position);
+    }
+
+    public void seekRelative(int delta) {
+        this.submit(COMMAND_SEEK_RELATIVE, delta);
+    }
+
+    public void enqueue(Uri uri) {
+        if (uri != null) {
+            this.submit(COMMAND_ENQUEUE, 0, uri);
+        }
+    }
+
+    public void next() {
+        this.submit(COMMAND_NEXT, 0);
+    }
+
+    public void previous() {
+        this.submit(COMMAND_PREVIOUS, 0);
+    }
+
+    /**
+     * Adds the given tracks of the library, as paged through {@link #getLibraryPage(int, int)}, to
+     * the end of the queue.
+     */
+    public void enqueueLibrary(int offset, int count) {
+        this.submit(COMMAND_ENQUEUE_LIBRARY, offset, count);
+    }
+
+    /**
+     * Removes the item at the given position in the queue. If it is playing, the next one plays
+     * instead.
+     */
+    public void removeFromQueue(int index) {
+        this.submit(COMMAND_REMOVE, index);
+    }
+
+    public void setShuffle(boolean shuffle) {
+        this.submit(COMMAND_SHUFFLE, shuffle ? 1 : 0);
+    }
+
+    public boolean isShuffled() {
+        long start = System.nanoTime();
+        boolean shuffled = this.queue.isShuffled();
+        this.metrics.recordSince("call.isShuffled", start);
+        return shuffled;
+    }
+
+    public int getQueueSize() {
+        long start = System.nanoTime();
+        int size = this.queue.size();
+        this.metrics.recordSince("call.getQueueSize", start);
+        return size;
+    }
+
+    /**
+     * @return the position of the current item in the queue
+     */
+    public int getQueueIndex() {
+        long start = System.nanoTime();
+        int index = this.queue.getCurrentIndex();
+        this.metrics.recordSince("call.getQueueIndex", start);
+        return index;
+    }
+
+    public LibraryPage getQueuePage(int offset, int count) {
+        long start = System.nanoTime();
+        LibraryPage page = this.queue.getPage(offset, Math.min(count, MAX_LIBRARY_PAGE));
+        this.metrics.recordSince("call.getQueuePage", start);
+        return page;
+    }
+
+    public void mute() {
+        this.submit(COMMAND_MUTE, 0);
+    }
+
+    public void unmute() {
+        this.submit(COMMAND_UNMUTE, 0);
+    }
+
+    private synchronized void doPlay() {
+        switch (this.state) {
+            case STOPPED:
+                if (DEBUG) {
+                    Log.d(TAG, "Initializing playback");
                 }
-            } catch (Exception e) {
-                Log.wtf(TAG, "Failed to initialize audio stream", e);
-                this.stop();
-            }
-            this.mediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
-            this.mediaPlayer.setOnErrorListener(this);
-            this.mediaPlayer.setOnPreparedListener(this);
-            this.mediaPlayer.prepareAsync(); // calls onPrepared when finished
-            Log.d(TAG, "Waiting for prepare to finish");
-        } else if (!this.mediaPlayer.isPlaying()) {
-            Log.d(TAG, "Resuming playback.");
-            this.mediaPlayer.start();
-        } else {
-            Log.d(TAG, "Going back to full volume.");
-            this.mediaPlayer.setVolume(1.0f, 1.0f);
+                this.playRequestedNanos = System.nanoTime();
+                this.playWhenPrepared = true;
+                this.prepare();
+                break;
+            case PREPARING:
+                if (DEBUG) {
+                    Log.d(TAG, "Still preparing. Will start when prepared.");
+                }
+                this.playWhenPrepared = true;
+                break;
+            case PAUSED:
+                if (DEBUG) {
+                    Log.d(TAG, "Resuming playback.");
+                }
+                this.start();
+                break;
+            case PLAYING:
+                if (DEBUG) {
+                    Log.d(TAG, "Going back to full volume.");
+                }
+                this.applyVolume(1.0f);
+                break;
         }
     }
 
-    public synchronized boolean pause() {
-        if (this.mediaPlayer != null && this.mediaPlayer.isPlaying()) {
-            Log.d(TAG, "Pausing playback.");
-            this.mediaPlayer.pause();
-            return true;
-        } else {
-            Log.d(TAG, "Not playing. Nothing to pause.");
-            return false;
+    private synchronized boolean doPause() {
+        switch (this.state) {
+            case PLAYING:
+                if (DEBUG) {
+                    Log.d(TAG, "Pausing playback.");
+                }
+                this.player.pause();
+                this.transition(State.PAUSED, PlaybackState.EVENT_PAUSED);
+                return true;
+            case PREPARING:
+                if (DEBUG) {
+                    Log.d(TAG, "Still preparing. Will not start when prepared.");
+                }
+                this.playWhenPrepared = false;
+                return true;
+            default:
+                if (DEBUG) {
+                    Log.d(TAG, "Not playing. Nothing to pause.");
+                }
+                return false;
         }
     }
 
-    public synchronized void stop() {
-        if (this.mediaPlayer == null) {
-            Log.d(TAG, "No media player. Nothing to release");
-        } else {
-            if (this.mediaPlayer.isPlaying()) {
-                Log.d(TAG, "Stopping playback.");
-                this.mediaPlayer.stop();
+    private synchronized void doStop() {
+        if (this.state == State.STOPPED) {
+            if (DEBUG) {
+                Log.d(TAG, "No media player. Nothing to release");
+            }
+            return;
+        }
+        if (this.player != null) {
+            if (DEBUG) {
+                Log.d(TAG, "Retiring audio player.");
             }
-            Log.d(TAG, "Releasing audio player.");
-            this.mediaPlayer.release();
-            this.mediaPlayer = null;
+            this.retire(this.player, this.currentUri);
+            this.player = null;
+        }
+        this.releaseNext();
+        this.playWhenPrepared = false;
+        this.seekTarget = -1;
+        this.pendingSeekTarget = -1;
+        this.playRequestedNanos = -1;
+        this.preparedNanos = -1;
+        this.seekRequestedNanos = -1;
 
-            Log.d(TAG, "Abandoning audio focus.");
+        if (this.active) {
+            this.active = false;
+
+            if (DEBUG) {
+                Log.d(TAG, "Abandoning audio focus.");
+            }
             this.audioManager.abandonAudioFocus(this);
 
-            Log.d(TAG, "Unregistering noisy audio receiver.");
+            if (DEBUG) {
+                Log.d(TAG, "Unregistering noisy audio receiver.");
+            }
             context.unregisterReceiver(this.noisyAudioReceiver);
 
-            Log.d(TAG, "Unregistering remote audio control receiver.");
+            if (DEBUG) {
+                Log.d(TAG, "Unregistering remote audio control receiver.");
+            }
             this.audioManager.unregisterMediaButtonEventReceiver(this.remoteControlReceiverName);
+        }
 
-            Log.d(TAG, "Stopping service.");
-            this.audioPlayerService.get().stopForeground(true);
-            this.audioPlayerService.get().stopSelf();
+        AudioPlayerService audioPlayerService = this.audioPlayerService.get();
+        if (audioPlayerService != null) {
+            if (DEBUG) {
+                Log.d(TAG, "Stopping service.");
+            }
+            audioPlayerService.stopForeground(true);
+            audioPlayerService.stopSelf();
         }
+
+        this.transition(State.STOPPED, PlaybackState.EVENT_STOPPED);
     }
 
-    public synchronized int duration() {
-        return this.isStopped() ? 0 : this.mediaPlayer.getDuration();
+    public int duration() {
+        long start = System.nanoTime();
+        int duration = this.snapshot.getDuration();
+        this.metrics.recordSince("call.duration", start);
+        return duration;
     }
 
-    public synchronized int position() {
-        return this.isStopped() ? 0 : this.mediaPlayer.getCurrentPosition();
+    public int position() {
+        long start = System.nanoTime();
+        int position = this.snapshot.getPositionAt(SystemClock.elapsedRealtime());
+        this.metrics.recordSince("call.position", start);
+        return position;
     }
 
-    public synchronized int seek(int position) {
-        if (this.isStopped()) {
-            return 0;
-        } else {
-            this.mediaPlayer.seekTo(position);
-            return this.mediaPlayer.getCurrentPosition();
+    private synchronized void doSeek(int position) {
+        if (this.state == State.PAUSED || this.state == State.PLAYING) {
+            position = Math.max(0, Math.min(position, this.getDuration()));
+            if (this.frameIndex != null) {
+                position = this.frameIndex.snapToFrame(position);
+            }
+            if (this.seekRequestedNanos < 0) {
+                this.seekRequestedNanos = System.nanoTime();
+            }
+            if (this.seekTarget >= 0) {
+                if (DEBUG) {
+                    Log.d(TAG, "Seek in flight. Will seek to " + position + " next.");
+                }
+                this.pendingSeekTarget = position;
+            } else {
+                this.seekTarget = position;
+                this.player.seekTo(position);
+            }
+            this.publish();
+        }
+    }
+
+    private synchronized void doSeekRelative(int delta) {
+        if (this.state == State.PAUSED || this.state == State.PLAYING) {
+            long base;
+            if (this.pendingSeekTarget >= 0) {
+                base = this.pendingSeekTarget;
+            } else if (this.seekTarget >= 0) {
+                base = this.seekTarget;
+            } else {
+                base = this.player.getCurrentPosition();
+            }
+            this.doSeek((int)Math.max(0, Math.min(Integer.MAX_VALUE, base + delta)));
         }
     }
 
-    public synchronized boolean isPlaying() {
-        return this.mediaPlayer != null && this.mediaPlayer.isPlaying();
+    public boolean isPlaying() {
+        long start = System.nanoTime();
+        boolean playing = this.snapshot.isPlaying();
+        this.metrics.recordSince("call.isPlaying", start);
+        return playing;
     }
 
-    public synchronized boolean isPaused() {
-        return this.mediaPlayer != null && !this.mediaPlayer.isPlaying();
+    public boolean isPaused() {
+        long start = System.nanoTime();
+        State state = this.snapshot.getState();
+        boolean paused = state == State.PAUSED || state == State.PREPARING;
+        this.metrics.recordSince("call.isPaused", start);
+        return paused;
     }
 
-    public synchronized boolean isStopped() {
-        return this.mediaPlayer == null;
+    public boolean isStopped() {
+        long start = System.nanoTime();
+        boolean stopped = this.snapshot.isStopped();
+        this.metrics.recordSince("call.isStopped", start);
+        return stopped;
     }
 
-    public synchronized void mute() {
-        if (this.mediaPlayer != null) {
-            this.mediaPlayer.setVolume(0.05f, 0.05f);
+    private synchronized void doMute() {
+        if (this.state != State.STOPPED) {
             this.muted = true;
+            if (this.state != State.PREPARING) {
+                this.applyVolume(1.0f);
+            }
+            this.publish();
         }
     }
 
-    public synchronized void unmute() {
-        if (this.mediaPlayer != null) {
-            this.mediaPlayer.setVolume(1.0f, 1.0f);
+    private synchronized void doUnmute() {
+        if (this.state != State.STOPPED) {
             this.muted = false;
+            if (this.state != State.PREPARING) {
+                this.applyVolume(1.0f);
+            }
+            this.publish();
         }
     }
 
-    public synchronized boolean isMuted() {
-        return this.mediaPlayer != null && this.muted;
+    public boolean isMuted() {
+        long start = System.nanoTime();
+        boolean muted = this.snapshot.isMuted();
+        this.metrics.recordSince("call.isMuted", start);
+        return muted;
     }
 
-    public synchronized void onPrepared(MediaPlayer mp) {
-        Log.d(TAG, "Media player is ready (prepared). Requesting audio focus.");
-        if (this.audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC,
-                AudioManager.AUDIOFOCUS_GAIN) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
-            Log.d(TAG, "Starting as foreground service");
-            this.context.startService(new Intent(this.context, AudioPlayerService.class));
-            PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, new Intent(context,
-                    AudioPlayerActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
-            Notification notification = new Notification(android.R.drawable.ic_media_play,
-                    context.getText(R.string.foreground_service_notificaton_ticker_text),
-                    System.currentTimeMillis());
-            notification.setLatestEventInfo(context,
-                    context.getText(R.string.foreground_service_notification_title),
-                    context.getText(R.string.foreground_service_notification_message),
-                    pendingIntent);
-            notification.flags |= Notification.FLAG_ONGOING_EVENT;
-            this.audioPlayerService.get().startForeground(1, notification);
+    public PlaybackState getPlaybackState() {
+        long start = System.nanoTime();
+        PlaybackState state = this.snapshot.at(SystemClock.elapsedRealtime());
+        this.metrics.recordSince("call.getPlaybackState", start);
+        return state;
+    }
+
+    public float getCacheHitRatio() {
+        long start = System.nanoTime();
+        StreamingProxy streamingProxy = this.streamingProxy;
+        float hitRatio = streamingProxy == null ? 0 : streamingProxy.getHitRatio();
+        this.metrics.recordSince("call.getCacheHitRatio", start);
+        return hitRatio;
+    }
+
+    public int getStallCount() {
+        long start = System.nanoTime();
+        int stalls = (int)this.metrics.getCount(PlaybackMetrics.STALLS);
+        this.metrics.recordSince("call.getStallCount", start);
+        return stalls;
+    }
+
+    public WaveformPeaks getWaveform(int maxBins) {
+        long start = System.nanoTime();
+        WaveformGenerator waveform = this.waveform;
+        PeakPyramid pyramid = waveform == null ? null : waveform.getPyramid();
+        WaveformPeaks peaks = pyramid == null ? null : pyramid.getPeaks(maxBins);
+        this.metrics.recordSince("call.getWaveform", start);
+        return peaks;
+    }
+
+    /**
+     * Rescans the library directories, after the persisted library is loaded, unless a scan is
+     * already in progress.
+     */
+    public void scanLibrary() {
+        long start = System.nanoTime();
+        // on the background executor, so it is queued behind loading the persisted library
+        this.background.execute(new Runnable() {
+            public void run() {
+                startLibraryScan();
+            }
+        });
+        this.metrics.recordSince("call.scanLibrary", start);
+    }
+
+    public int getLibrarySize() {
+        long start = System.nanoTime();
+        int size = this.library.size();
+        this.metrics.recordSince("call.getLibrarySize", start);
+        return size;
+    }
+
+    public LibraryPage getLibraryPage(int offset, int count) {
+        long start = System.nanoTime();
+        LibraryPage page = this.library.getPage(offset, Math.min(count, MAX_LIBRARY_PAGE));
+        this.metrics.recordSince("call.getLibraryPage", start);
+        return page;
+    }
+
+    public PlaybackMetrics getMetrics() {
+        long start = System.nanoTime();
+        PlaybackMetrics metrics = this.metrics.sample();
+        this.metrics.recordSince("call.getMetrics", start);
+        return metrics;
+    }
+
+    public void registerSession(IPlaybackSessionCallback callback, int interval, int fields) {
+        long start = System.nanoTime();
+        if (callback != null) {
+            this.sessions.register(callback, interval, fields);
+        }
+        this.metrics.recordSince("call.registerSession", start);
+    }
+
+    public void unregisterSession(IPlaybackSessionCallback callback) {
+        long start = System.nanoTime();
+        if (callback != null) {
+            this.sessions.unregister(callback);
+        }
+        this.metrics.recordSince("call.unregisterSession", start);
+    }
+
+    public void acknowledgeSessionUpdate(IPlaybackSessionCallback callback, int sequence) {
+        long start = System.nanoTime();
+        if (callback != null) {
+            this.sessions.acknowledge(callback, sequence);
+        }
+        this.metrics.recordSince("call.acknowledgeSessionUpdate", start);
+    }
+
+    public void shutdown() {
+        if (DEBUG) {
+            Log.d(TAG, "Shutting down sessions, commands and players");
+        }
+        synchronized (this) {
+            this.shutDown = true;
+            // releases the current player and any receivers, if the service is destroyed playing
+            this.doStop();
+            if (this.warmingPlayer != null) {
+                this.warmingPlayer.release();
+                this.warmingPlayer = null;
+            }
+            this.players.clear();
+            if (this.waveform != null) {
+                this.waveform.cancel();
+                this.waveform = null;
+            }
+            if (this.libraryScanner != null) {
+                this.libraryScanner.cancel();
+                this.libraryScanner = null;
+            }
+            this.loudness.cancel();
+            if (this.streamingProxy != null) {
+                this.streamingProxy.close();
+                this.streamingProxy = null;
+            }
+        }
+        // writes the final state on this thread, since the background executor is shut down next
+        this.journal.close();
+        this.commands.removeCallbacks(this.sampler);
+        this.sessions.close();
+        synchronized (this.pendingCommands) {
+            this.pendingCommands.clear();
+        }
+    }
+
+    private void submit(int command, int arg) {
+        this.submit(command, arg, null);
+    }
+
+    private void submit(int command, int arg, Object obj) {
+        long start = System.nanoTime();
+        this.queue(command, arg, obj);
+        this.metrics.recordSince(COMMAND_CALLS[command], start);
+    }
+
+    private void queue(int command, int arg, Object obj) {
+        synchronized (this.pendingCommands) {
+            if (command == COMMAND_SEEK) {
+                // by iterator, since a linked list is walked again on every get(i)
+                Iterator<Command> i = this.pendingCommands.iterator();
+                while (i.hasNext()) {
+                    int pending = i.next().command;
+                    if (pending == COMMAND_SEEK || pending == COMMAND_SEEK_RELATIVE) {
+                        if (DEBUG) {
+                            Log.d(TAG, "Dropping superseded seek");
+                        }
+                        i.remove();
+                        this.metrics.increment(PlaybackMetrics.COMMANDS_COLLAPSED);
+                    }
+                }
+            } else if (command == COMMAND_SEEK_RELATIVE && !this.pendingCommands.isEmpty()) {
+                Command last = this.pendingCommands.getLast();
+                if (last.command == COMMAND_SEEK || last.command == COMMAND_SEEK_RELATIVE) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Folding relative seek into the queued seek");
+                    }
+                    this.pendingCommands.removeLast();
+                    this.pendingCommands.add(new Command(last.command, last.arg + arg, null));
+                    this.metrics.increment(PlaybackMetrics.COMMANDS_COLLAPSED);
+                    return;
+                }
+            } else if ((command == COMMAND_PLAY || command == COMMAND_PAUSE)
+                    && !this.pendingCommands.isEmpty()) {
+                int last = this.pendingCommands.getLast().command;
+                if (last == COMMAND_PLAY || last == COMMAND_PAUSE) {
+                    // the last one wins; dropping both would leave whatever came before them
+                    if (DEBUG) {
+                        Log.d(TAG, "Replacing queued play/pause");
+                    }
+                    this.pendingCommands.removeLast();
+                    this.metrics.increment(PlaybackMetrics.COMMANDS_COLLAPSED);
+                }
+            }
+            this.pendingCommands.add(new Command(command, arg, obj));
+            if (!this.draining) {
+                this.draining = true;
+                this.commands.sendEmptyMessage(0);
+            }
+        }
+    }
+
+    // runs on the command looper
+    private synchronized void execute(Command command) {
+        if (this.shutDown) {
+            if (DEBUG) {
+                Log.d(TAG, "Shut down. Ignoring command " + command.command);
+            }
+            return;
+        }
+        switch (command.command) {
+            case COMMAND_PLAY:
+                this.doPlay();
+                break;
+            case COMMAND_PAUSE:
+                this.doPause();
+                break;
+            case COMMAND_PLAY_PAUSE:
+                if (!this.doPause()) {
+                    this.doPlay();
+                }
+                break;
+            case COMMAND_STOP:
+                this.doStop();
+                break;
+            case COMMAND_SEEK:
+                this.doSeek(command.arg);
+                break;
+            case COMMAND_SEEK_RELATIVE:
+                this.doSeekRelative(command.arg);
+                break;
+            case COMMAND_MUTE:
+                this.doMute();
+                break;
+            case COMMAND_UNMUTE:
+                this.doUnmute();
+                break;
+            case COMMAND_DUCK:
+                this.doDuck();
+                break;
+            case COMMAND_ENQUEUE:
+                this.doEnqueue((Uri)command.obj);
+                break;
+            case COMMAND_NEXT:
+                this.doNext();
+                break;
+            case COMMAND_PREVIOUS:
+                this.doPrevious();
+                break;
+            case COMMAND_PREWARM:
+                this.doPrewarm();
+                break;
+            case COMMAND_RESTORE:
+                this.doRestore((ResumeJournal.Resume)command.obj);
+                break;
+            case COMMAND_ENQUEUE_LIBRARY:
+                this.doEnqueueLibrary(command.arg, (Integer)command.obj);
+                break;
+            case COMMAND_REMOVE:
+                this.doRemove(command.arg);
+                break;
+            case COMMAND_SHUFFLE:
+                this.doShuffle(command.arg != 0);
+                break;
+            case COMMAND_GAIN_KNOWN:
+                this.doGainKnown((Uri)command.obj);
+                break;
+        }
+    }
+
+    // must hold the lock
+    private void prepare() {
+        Uri uri = this.playlist.isEmpty() ? this.defaultUri : this.playlist.getCurrent();
+        this.seekTarget = -1;
+        this.pendingSeekTarget = -1;
+        this.seekRequestedNanos = -1;
+        this.currentUri = uri;
+        this.bufferedPercent = isLocal(uri) ? 100 : 0;
+        if (this.warmingPlayer != null) {
+            AudioEngine warming = this.warmingPlayer;
+            this.warmingPlayer = null;
+            if (uri.equals(this.warmingUri)) {
+                if (DEBUG) {
+                    Log.d(TAG, "Adopting the player being prewarmed for " + uri);
+                }
+                this.player = warming;
+                this.metrics.increment(PlaybackMetrics.WARM_PREPARES);
+                this.transition(State.PREPARING, 0);
+                return;
+            }
+            this.players.recycle(warming);
+        }
+        AudioEngine warm = this.players.takePrepared(uri);
+        if (warm != null) {
+            if (DEBUG) {
+                Log.d(TAG, "Reusing the player still prepared for " + uri);
+            }
+            this.player = warm;
+            this.metrics.increment(PlaybackMetrics.WARM_PREPARES);
+            this.startupTrace.markPrepared(true);
+            this.onCurrentPrepared();
+            return;
+        }
+        this.player = this.createPlayer(uri);
+        if (this.player == null) {
+            this.playWhenPrepared = false;
+            return;
+        }
+        this.metrics.increment(PlaybackMetrics.COLD_PREPARES);
+        this.transition(State.PREPARING, 0);
+        if (DEBUG) {
+            Log.d(TAG, "Waiting for prepare to finish");
+        }
+    }
 
+    // returns a player preparing the given item, or null if it could not be opened
+    private AudioEngine createPlayer(Uri uri) {
+        AudioEngine player = this.players.acquire();
+        try {
+            if (isLocal(uri)) {
+                player.setDataSource(this.context, uri);
+            } else {
+                player.setDataSource(this.context, this.getStreamingProxy().register(uri));
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Successfully set the data source to " + uri);
+            }
+        } catch (Exception e) {
+            Log.wtf(TAG, "Failed to initialize audio stream", e);
+            this.players.recycle(player);
+            return null;
+        }
+        player.setListener(this);
+        player.prepareAsync(); // calls onPrepared when finished
+        return player;
+    }
+
+    // must hold the lock
+    private StreamingProxy getStreamingProxy() throws IOException {
+        if (this.streamingProxy == null) {
+            this.streamingProxy = new StreamingProxy(new File(this.context.getCacheDir(), "http"),
+                    STREAM_CACHE_SIZE);
+        }
+        return this.streamingProxy;
+    }
+
+    private static boolean isLocal(Uri uri) {
+        String scheme = uri.getScheme();
+        return !"http".equals(scheme) && !"https".equals(scheme);
+    }
+
+    // must hold the lock; starts preparing the next item in the background, if there is one
+    private void prepareNext() {
+        if (this.nextPlayer == null && this.playlist.hasNext()
+                && (this.state == State.PLAYING || this.state == State.PAUSED)) {
+            Uri uri = this.playlist.getNext();
+            AudioEngine warm = this.players.takePrepared(uri);
+            if (warm != null) {
+                if (DEBUG) {
+                    Log.d(TAG, "Reusing the player still prepared for the next item");
+                }
+                this.nextPlayer = warm;
+                this.onNextPrepared();
+            } else {
+                if (DEBUG) {
+                    Log.d(TAG, "Preparing the next item");
+                }
+                this.nextPrepared = false;
+                this.nextPlayer = this.createPlayer(uri);
+            }
+        }
+    }
+
+    // must hold the lock; keeps a prepared player for its item, or recycles one still preparing
+    private void retire(AudioEngine player, Uri uri, boolean prepared, boolean playing) {
+        if (prepared) {
+            if (playing) {
+                player.pause();
+            }
+            player.seekTo(0);
+            this.players.park(uri, player);
+        } else {
+            this.players.recycle(player);
+        }
+    }
+
+    // must hold the lock; retires the current player, according to the current state
+    private void retire(AudioEngine player, Uri uri) {
+        this.retire(player, uri, this.state == State.PLAYING || this.state == State.PAUSED,
+                this.state == State.PLAYING);
+    }
+
+    // must hold the lock
+    private void releaseNext() {
+        if (this.nextPlayer != null) {
+            if (DEBUG) {
+                Log.d(TAG, "Releasing the next player.");
+            }
+            if (this.player != null && this.nextChained) {
+                this.player.setNext(null);
+                this.nextChained = false;
+            }
+            this.retire(this.nextPlayer, this.playlist.getNext(), this.nextPrepared, false);
+            this.nextPlayer = null;
+            this.nextPrepared = false;
+        }
+    }
+
+    private synchronized void doPrewarm() {
+        if (this.state != State.STOPPED || this.warmingPlayer != null) {
+            return;
+        }
+        Uri uri = this.playlist.isEmpty() ? this.defaultUri : this.playlist.getCurrent();
+        AudioEngine warm = this.players.takePrepared(uri);
+        if (warm != null) {
+            this.seekToResume(uri, warm);
+            this.players.park(uri, warm);
+        } else {
+            if (DEBUG) {
+                Log.d(TAG, "Prewarming " + uri);
+            }
+            this.warmingPlayer = this.createPlayer(uri);
+            this.warmingUri = uri;
+        }
+    }
+
+    private synchronized void doRestore(ResumeJournal.Resume resume) {
+        if (this.state != State.STOPPED || !this.playlist.isEmpty()) {
+            if (DEBUG) {
+                Log.d(TAG, "Already in use. Not resuming " + resume);
+            }
+            this.journal.discard();
+            return;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Resuming " + resume);
+        }
+        for (Uri uri : resume.items) {
+            this.playlist.add(uri);
+        }
+        this.playlist.moveTo(resume.index);
+        this.publishQueue();
+        this.journal.recordRestored(this.queue);
+        Uri uri = this.playlist.isEmpty() ? this.defaultUri : this.playlist.getCurrent();
+        this.resumeUri = uri;
+        this.resumePosition = resume.position;
+        this.resumeMuted = resume.muted;
+        this.resumeSeeked = null;
+        if (this.warmingPlayer != null && !uri.equals(this.warmingUri)) {
+            this.players.recycle(this.warmingPlayer);
+            this.warmingPlayer = null;
+        }
+        this.doPrewarm();
+    }
+
+    // must hold the lock; seeks a prepared player ahead of time to where its item is resumed
+    private void seekToResume(Uri uri, AudioEngine player) {
+        if (uri.equals(this.resumeUri) && this.resumePosition > 0) {
+            player.seekTo(this.resumePosition);
+            this.resumeSeeked = player;
+        }
+    }
+
+    // must hold the lock; picks up the first item prepared where the journal left it, if it is the
+    // restored one
+    private void resume() {
+        if (this.resumeUri == null) {
+            return;
+        }
+        if (this.resumeUri.equals(this.currentUri)) {
+            this.muted = this.resumeMuted;
+            if (this.player != this.resumeSeeked && this.resumePosition > 0) {
+                this.doSeek(this.resumePosition);
+            }
+            this.publish();
+        }
+        this.resumeUri = null;
+        this.resumeSeeked = null;
+    }
+
+    private synchronized void doEnqueue(Uri uri) {
+        if (DEBUG) {
+            Log.d(TAG, "Enqueuing " + uri);
+        }
+        this.playlist.add(uri);
+        this.publishQueue();
+        this.journal.recordItems(this.queue, this.queue.size() - 1);
+        this.prepareNext();
+    }
+
+    private synchronized void doEnqueueLibrary(int offset, int count) {
+        int size = this.playlist.size();
+        this.playlist.addLibraryTracks(offset, count);
+        this.publishQueue();
+        if (DEBUG) {
+            Log.d(TAG, "Enqueued " + (this.playlist.size() - size) + " library tracks");
+        }
+        this.journal.recordItems(this.queue, size);
+        this.prepareNext();
+    }
+
+    private synchronized void doRemove(int index) {
+        if (index < 0 || index >= this.playlist.size()) {
+            return;
+        }
+        boolean current = index == this.playlist.getCurrentIndex();
+        boolean last = !this.playlist.hasNext();
+        // the next item may be the one removed, or change with it
+        this.releaseNext();
+        this.playlist.remove(index);
+        this.publishQueue();
+        this.journal.recordRemoval(this.queue, index);
+        // removing an item before the current one moves it
+        this.recordCursor();
+        if (current && this.state != State.STOPPED) {
+            if (last) {
+                this.doStop();
+            } else {
+                this.switchToCurrent(this.state == State.PLAYING || this.playWhenPrepared);
+            }
+        }
+        this.prepareNext();
+    }
+
+    private synchronized void doShuffle(boolean shuffle) {
+        if (shuffle != this.playlist.isShuffled()) {
+            this.releaseNext();
+            this.playlist.setShuffle(shuffle);
+            this.publishQueue();
+            this.prepareNext();
+        }
+    }
+
+    private synchronized void doNext() {
+        if (this.state == State.STOPPED) {
+            this.playlist.moveToNext();
+            this.publishQueue();
+            this.recordCursor();
+        } else if (this.playlist.hasNext()) {
+            this.advance(true);
+        } else {
+            if (DEBUG) {
+                Log.d(TAG, "No next item");
+            }
+        }
+    }
+
+    private synchronized void doPrevious() {
+        if (this.state == State.STOPPED) {
+            this.playlist.moveToPrevious();
+            this.publishQueue();
+            this.recordCursor();
+        } else if (!this.playlist.hasPrevious()
+                || (this.state != State.PREPARING
+                        && this.player.getCurrentPosition() > PREVIOUS_RESTART_THRESHOLD)) {
+            this.doSeek(0);
+        } else {
+            boolean play = this.state == State.PLAYING || this.playWhenPrepared;
+            this.releaseNext();
+            this.playlist.moveToPrevious();
+            this.switchToCurrent(play);
+        }
+    }
+
+    // must hold the lock; makes the next item current, reusing its player if it was prepared
+    private void advance(boolean skipping) {
+        boolean play = this.state == State.PLAYING || this.playWhenPrepared;
+        this.playlist.moveToNext();
+        if (this.nextPlayer == null) {
+            this.switchToCurrent(play);
+            return;
+        }
+        AudioEngine previous = this.player;
+        if (previous != null) {
+            if (this.nextChained) {
+                previous.setNext(null);
+            }
+            this.retire(previous, this.currentUri, this.state == State.PLAYING
+                    || this.state == State.PAUSED, skipping && this.state == State.PLAYING);
+        }
+        boolean chained = this.nextChained;
+        this.player = this.nextPlayer;
+        this.currentGain = this.nextGain;
+        this.nextPlayer = null;
+        this.nextChained = false;
+        this.currentUri = this.playlist.getCurrent();
+        this.seekTarget = -1;
+        this.pendingSeekTarget = -1;
+        this.seekRequestedNanos = -1;
+        this.bufferedPercent = isLocal(this.currentUri) ? 100 : 0;
+        this.requestFrameIndex();
+        this.requestLoudness();
+        if (!this.nextPrepared) {
+            // still preparing; onPrepared() takes it from here
+            this.playWhenPrepared = play;
+            this.transition(State.PREPARING, PlaybackState.EVENT_TRACK_CHANGED);
+            return;
+        }
+        this.nextPrepared = false;
+        if (!skipping && chained) {
+            // the previous player has already started this one
+            this.applyVolume(1.0f);
+            this.transition(State.PLAYING, PlaybackState.EVENT_TRACK_CHANGED);
+        } else {
+            this.transition(State.PAUSED, PlaybackState.EVENT_TRACK_CHANGED);
+            if (play) {
+                this.start();
+            }
+        }
+        this.prepareNext();
+    }
+
+    // must hold the lock; replaces the current player with a new one for the current item
+    private void switchToCurrent(boolean play) {
+        if (this.player != null) {
+            this.retire(this.player, this.currentUri);
+            this.player = null;
+        }
+        this.playWhenPrepared = play;
+        this.prepare();
+        if (this.player == null) {
+            this.doStopAfterFailure();
+            return;
+        }
+        this.dispatchEvent(PlaybackState.EVENT_TRACK_CHANGED);
+    }
+
+    // must hold the lock
+    private void start() {
+        if (!this.active && !this.activate()) {
+            Log.w(TAG, "Failed to get audio focus");
+            this.doStop();
+            return;
+        }
+        if (DEBUG) {
             Log.d(TAG, "Starting playback");
-            this.mediaPlayer.setOnCompletionListener(this);
-            this.mediaPlayer.start();
+        }
+        this.applyVolume(1.0f);
+        this.player.start();
+        this.metrics.recordSince(PlaybackMetrics.PREPARED_TO_STARTED, this.preparedNanos);
+        this.preparedNanos = -1;
+        this.startupTrace.markStarted();
+        if (this.startupTrace.isAwaitingFirstAudio()) {
+            this.commands.post(new FirstAudioProbe(this.player));
+        }
+        this.transition(State.PLAYING, PlaybackState.EVENT_STARTED);
+    }
+
+    // must hold the lock; acquires audio focus, the receivers and the foreground status
+    private boolean activate() {
+        if (DEBUG) {
+            Log.d(TAG, "Requesting audio focus.");
+        }
+        long start = System.nanoTime();
+        int result = this.audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC,
+                AudioManager.AUDIOFOCUS_GAIN);
+        this.metrics.recordSince(PlaybackMetrics.AUDIO_FOCUS_REQUEST, start);
+        if (result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+            return false;
+        }
+        AudioPlayerService audioPlayerService = this.audioPlayerService.get();
+        if (audioPlayerService == null) {
+            this.audioManager.abandonAudioFocus(this);
+            return false;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Starting as foreground service");
+        }
+        this.context.startService(new Intent(this.context, AudioPlayerService.class));
+        PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, new Intent(context,
+                AudioPlayerActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        Notification notification = new Notification(android.R.drawable.ic_media_play,
+                context.getText(R.string.foreground_service_notificaton_ticker_text),
+                System.currentTimeMillis());
+        notification.setLatestEventInfo(context,
+                context.getText(R.string.foreground_service_notification_title),
+                context.getText(R.string.foreground_service_notification_message),
+                pendingIntent);
+        notification.flags |= Notification.FLAG_ONGOING_EVENT;
+        audioPlayerService.startForeground(1, notification);
 
+        if (DEBUG) {
             Log.d(TAG, "Registering for noisy audio events");
-            context.registerReceiver(this.noisyAudioReceiver, AUDIO_BECOMING_NOISY_INTENT_FILTER);
+        }
+        context.registerReceiver(this.noisyAudioReceiver, AUDIO_BECOMING_NOISY_INTENT_FILTER);
 
+        if (DEBUG) {
             Log.d(TAG, "Registering for audio remote control");
-            this.audioManager.registerMediaButtonEventReceiver(this.remoteControlReceiverName);
+        }
+        this.audioManager.registerMediaButtonEventReceiver(this.remoteControlReceiverName);
+
+        this.active = true;
+        return true;
+    }
+
+    // must hold the lock
+    private void doStopAfterFailure() {
+        // the player may be in its error state, so it is released rather than retired
+        if (this.player != null) {
+            this.player.release();
+            this.player = null;
+        }
+        this.doStop();
+    }
+
+    // must hold the lock; volume is the requested level before muting is applied
+    private void applyVolume(float volume) {
+        this.applyVolume(this.player, volume);
+    }
+
+    // must hold the lock
+    private void applyVolume(AudioEngine player, float volume) {
+        volume *= player == this.nextPlayer ? this.nextGain : this.currentGain;
+        if (this.muted) {
+            volume = Math.min(volume, 0.05f);
+        }
+        player.setVolume(volume);
+    }
 
+    // must hold the lock
+    private void transition(State state, int event) {
+        if (DEBUG) {
+            Log.d(TAG, "Transition " + this.state + " -> " + state);
+        }
+        this.state = state;
+        if (state == State.STOPPED) {
             this.muted = false;
+        }
+        this.publish();
+        if (state == State.PAUSED || state == State.STOPPED) {
+            this.journal.flushSoon();
+        }
+        if (event != 0) {
+            this.dispatchEvent(event);
+        }
+    }
+
+    // must hold the lock
+    private void publish() {
+        int position = 0;
+        int duration = 0;
+        if (this.state == State.PLAYING || this.state == State.PAUSED) {
+            if (this.pendingSeekTarget >= 0) {
+                position = this.pendingSeekTarget;
+            } else if (this.seekTarget >= 0) {
+                position = this.seekTarget;
+            } else {
+                position = this.player.getCurrentPosition();
+            }
+            duration = this.getDuration();
+        }
+        this.snapshot = new PlaybackState(this.state, position, duration, this.muted,
+                this.state == State.STOPPED ? 0 : this.bufferedPercent,
+                SystemClock.elapsedRealtime());
+        this.sessions.publish(this.snapshot, 0);
+        this.publishQueue();
+        this.recordCursor();
+    }
+
+    // must hold the lock; for the queue reads, which do not take it
+    private void publishQueue() {
+        this.queue = this.playlist.snapshot();
+    }
+
+    // must hold the lock
+    private void recordCursor() {
+        this.journal.recordState(this.playlist.getCurrentIndex(), this.snapshot);
+    }
+
+    // must hold the lock
+    private int getDuration() {
+        return this.frameIndex != null ? this.frameIndex.getDuration() : this.player
+                .getDuration();
+    }
+
+    // must hold the lock; has the loudness of the current item and those after it worked out
+    private void requestLoudness() {
+        // the analyzer starts on the latest requests first, so the current item goes last
+        for (int i = LOUDNESS_LOOKAHEAD; i > 0; i--) {
+            this.loudness.request(this.playlist.getUpcoming(i));
+        }
+        this.loudness.request(this.currentUri);
+    }
+
+    // must hold the lock; loads the frame index for the current item in the background
+    private void requestFrameIndex() {
+        final Uri uri = this.currentUri;
+        if (uri.equals(this.frameIndexUri)) {
+            return;
+        }
+        this.frameIndex = null;
+        this.frameIndexUri = null;
+        if (!isLocal(uri)) {
+            this.requestWaveform(uri, null);
+            return;
+        }
+        this.background.execute(new Runnable() {
+            public void run() {
+                Mp3FrameIndex frameIndex = null;
+                try {
+                    if (Mp3FrameIndex.isMpeg(context, uri)) {
+                        frameIndex = Mp3FrameIndex.load(context, uri);
+                    }
+                } catch (IOException e) {
+                    if (DEBUG) {
+                        Log.d(TAG, "No frame index for " + uri + ": " + e.getMessage());
+                    }
+                }
+                onFrameIndexLoaded(uri, frameIndex);
+            }
+        });
+    }
+
+    private synchronized void onFrameIndexLoaded(Uri uri, Mp3FrameIndex frameIndex) {
+        if (!uri.equals(this.currentUri)) {
+            return;
+        }
+        if (frameIndex != null && frameIndex.getFrameCount() > 0) {
+            this.frameIndex = frameIndex;
+            this.frameIndexUri = uri;
+            if (this.state == State.PLAYING || this.state == State.PAUSED) {
+                this.publish();
+            }
         } else {
-            Log.w(TAG, "Failed to get audio focus");
-            this.stop();
+            frameIndex = null;
+        }
+        this.requestWaveform(uri, frameIndex);
+    }
+
+    // must hold the lock; starts building the waveform of the given item, unless already started
+    private void requestWaveform(Uri uri, Mp3FrameIndex frameIndex) {
+        if (this.waveform != null) {
+            if (this.waveform.getUri().equals(uri)) {
+                return;
+            }
+            this.waveform.cancel();
+            this.waveform = null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && isLocal(uri)
+                && !this.shutDown) {
+            this.waveform = new WaveformGenerator(this.context, uri, frameIndex, this.analysis,
+                    this);
+            this.waveform.start();
+        }
+    }
+
+    public void onGainKnown(LoudnessAnalyzer analyzer, Uri uri) {
+        this.queue(COMMAND_GAIN_KNOWN, 0, uri);
+    }
+
+    // must hold the lock; sets a player to the gain of its item if it was prepared before that was
+    // known, unless it is playing, where a jump in level would be heard
+    private void doGainKnown(Uri uri) {
+        if (this.nextPlayer != null && this.nextPrepared && uri.equals(this.playlist.getNext())) {
+            this.nextGain = this.loudness.getGain(uri);
+            this.applyVolume(this.nextPlayer, 1.0f);
+        }
+        if (this.state == State.PAUSED && uri.equals(this.currentUri)) {
+            this.currentGain = this.loudness.getGain(uri);
+            this.applyVolume(1.0f);
+        }
+    }
+
+    public synchronized void onWaveformUpdated(WaveformGenerator generator) {
+        if (generator == this.waveform) {
+            this.dispatchEvent(PlaybackState.EVENT_WAVEFORM_UPDATED);
+        }
+    }
+
+    private void loadLibrary() {
+        if (!this.libraryFile.exists()) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            MediaLibrary library = MediaLibrary.read(this.libraryFile);
+            synchronized (this) {
+                this.library = library;
+                this.playlist.setLibrary(library);
+                this.publishQueue();
+                this.dispatchEvent(PlaybackState.EVENT_LIBRARY_CHANGED);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Loaded " + library.size() + " library tracks in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable library " + this.libraryFile, e);
+            this.libraryFile.delete();
+        }
+    }
+
+    private synchronized void startLibraryScan() {
+        if (this.shutDown || this.libraryScanner != null) {
+            return;
+        }
+        String storage = Environment.getExternalStorageState();
+        if (!Environment.MEDIA_MOUNTED.equals(storage)
+                && !Environment.MEDIA_MOUNTED_READ_ONLY.equals(storage)) {
+            Log.w(TAG, "Not scanning the library, external storage is " + storage);
+            return;
+        }
+        File[] roots = new File[this.libraryRoots.length];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = new File(Environment.getExternalStorageDirectory(), this.libraryRoots[i]);
+        }
+        this.libraryScanner = new LibraryScanner(roots, this.library, this.libraryFile,
+                this.analysis, this);
+        this.libraryScanner.start();
+    }
+
+    public synchronized void onLibraryScanned(LibraryScanner scanner, MediaLibrary library) {
+        if (scanner == this.libraryScanner) {
+            this.libraryScanner = null;
+            this.library = library;
+            this.playlist.setLibrary(library);
+            this.publishQueue();
+            this.dispatchEvent(PlaybackState.EVENT_LIBRARY_CHANGED);
+        }
+    }
+
+    // re-anchors the published position on the player's actual position
+    private synchronized void sample() {
+        if (this.state == State.PLAYING) {
+            this.publish();
+        }
+    }
+
+    // has the position re-anchored on the command looper; the new snapshot comes back through
+    // publish()
+    private void requestSample() {
+        this.commands.removeCallbacks(this.sampler);
+        this.commands.post(this.sampler);
+    }
+
+    public void resample() {
+        this.requestSample();
+    }
+
+    // Hands the event and the current snapshot to the sessions; must hold the lock, or an event
+    // could be published with a snapshot older than that of the one before it
+    private void dispatchEvent(int event) {
+        this.sessions.publish(this.snapshot, event);
+    }
+
+    public synchronized void onPrepared(AudioEngine player) {
+        if (player == this.nextPlayer) {
+            if (DEBUG) {
+                Log.d(TAG, "Next media player is ready (prepared).");
+            }
+            this.onNextPrepared();
+        } else if (player == this.player) {
+            if (DEBUG) {
+                Log.d(TAG, "Media player is ready (prepared).");
+            }
+            this.startupTrace.markPrepared(false);
+            this.onCurrentPrepared();
+        } else if (player == this.warmingPlayer) {
+            if (DEBUG) {
+                Log.d(TAG, "Prewarmed media player is ready (prepared).");
+            }
+            this.seekToResume(this.warmingUri, player);
+            this.players.park(this.warmingUri, player);
+            this.warmingPlayer = null;
+        }
+    }
+
+    // must hold the lock
+    private void onCurrentPrepared() {
+        this.metrics.recordSince(PlaybackMetrics.PLAY_TO_PREPARED, this.playRequestedNanos);
+        this.playRequestedNanos = -1;
+        this.currentGain = this.loudness.getGain(this.currentUri);
+        this.requestFrameIndex();
+        this.requestLoudness();
+        this.transition(State.PAUSED, PlaybackState.EVENT_PREPARED);
+        this.resume();
+        if (this.playWhenPrepared) {
+            this.playWhenPrepared = false;
+            this.preparedNanos = System.nanoTime();
+            this.start();
+        }
+        this.prepareNext();
+    }
+
+    // must hold the lock
+    private void onNextPrepared() {
+        this.nextPrepared = true;
+        this.nextGain = this.loudness.getGain(this.playlist.getNext());
+        this.applyVolume(this.nextPlayer, 1.0f);
+        this.nextChained = this.player.setNext(this.nextPlayer);
+    }
+
+    public synchronized void onBufferingUpdate(AudioEngine player, int percent) {
+        if (player == this.player && this.bufferedPercent != percent) {
+            this.bufferedPercent = percent;
+            this.publish();
+        }
+    }
+
+    public synchronized void onStall(AudioEngine player) {
+        if (player == this.player) {
+            this.metrics.increment(PlaybackMetrics.STALLS);
+            if (DEBUG) {
+                Log.d(TAG, "Playback stalled waiting for data");
+            }
         }
     }
 
-    public void onCompletion(MediaPlayer mp) {
-        Log.d(TAG, "Completed playback");
-        this.stop();
+    public synchronized void onSeekComplete(AudioEngine player) {
+        if (player == this.player) {
+            if (this.pendingSeekTarget >= 0) {
+                if (DEBUG) {
+                    Log.d(TAG, "Seek completed. Seeking to latest target "
+                            + this.pendingSeekTarget);
+                }
+                this.seekTarget = this.pendingSeekTarget;
+                this.pendingSeekTarget = -1;
+                this.player.seekTo(this.seekTarget);
+                return;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Seek completed");
+            }
+            this.metrics.recordSince(PlaybackMetrics.SEEK_TO_COMPLETE, this.seekRequestedNanos);
+            this.seekRequestedNanos = -1;
+            this.seekTarget = -1;
+            this.publish();
+            this.dispatchEvent(PlaybackState.EVENT_SEEK_COMPLETE);
+        }
     }
 
-    // Called when MediaPlayer has encountered a problem from an async operation
-    public boolean onError(MediaPlayer mp, int what, int extra) {
+    public synchronized void onCompletion(AudioEngine player) {
+        if (player == this.player) {
+            if (this.playlist.hasNext()) {
+                if (DEBUG) {
+                    Log.d(TAG, "Completed item. Moving on to the next one.");
+                }
+                this.advance(false);
+            } else {
+                if (DEBUG) {
+                    Log.d(TAG, "Completed playback");
+                }
+                this.dispatchEvent(PlaybackState.EVENT_COMPLETED);
+                this.doStop();
+            }
+        }
+    }
+
+    // Called when the player has encountered a problem from an async operation
+    public synchronized void onError(AudioEngine player, int what, int extra) {
         Log.e(TAG,
                 String.format("Music player encountered an error: what=%d, extra=%d", what, extra));
-        this.stop();
-        return true;
+        this.metrics.increment(PlaybackMetrics.ERRORS);
+        this.metrics.increment("error(" + what + "," + extra + ")");
+        if (player == this.nextPlayer) {
+            Log.w(TAG, "Failed to prepare the next item. It will be prepared again when reached.");
+            if (this.nextChained) {
+                this.player.setNext(null);
+                this.nextChained = false;
+            }
+            this.nextPlayer.release();
+            this.nextPlayer = null;
+            this.nextPrepared = false;
+        } else if (player == this.player) {
+            this.doStopAfterFailure();
+            this.dispatchEvent(PlaybackState.EVENT_ERROR);
+        } else if (player == this.warmingPlayer) {
+            this.warmingPlayer.release();
+            this.warmingPlayer = null;
+        } else {
+            this.players.discard(player);
+        }
+    }
+
+    private synchronized void doDuck() {
+        if (this.state == State.PLAYING) {
+            this.applyVolume(0.1f);
+            this.dispatchEvent(PlaybackState.EVENT_FOCUS_DUCK);
+        }
     }
 
-    public synchronized void onAudioFocusChange(int focusChange) {
+    public void onAudioFocusChange(int focusChange) {
         switch (focusChange) {
             case AudioManager.AUDIOFOCUS_GAIN:
-                Log.d(TAG, "Re/gained focus.");
+                if (DEBUG) {
+                    Log.d(TAG, "Re/gained focus.");
+                }
                 this.play();
                 break;
             case AudioManager.AUDIOFOCUS_LOSS:
-                Log.d(TAG, "Lost focus for an unbounded amount of time.");
+                if (DEBUG) {
+                    Log.d(TAG, "Lost focus for an unbounded amount of time.");
+                }
                 this.stop();
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                Log.d(TAG, "Lost focus for a short time.");
+                if (DEBUG) {
+                    Log.d(TAG, "Lost focus for a short time.");
+                }
                 this.pause();
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                Log.d(TAG, "Lost focus for a short time. Can duck. Lowering volume");
-                if (this.mediaPlayer != null) {
-                    this.mediaPlayer.setVolume(0.1f, 0.1f);
+                if (DEBUG) {
+                    Log.d(TAG, "Lost focus for a short time. Can duck. Lowering volume");
                 }
+                this.submit(COMMAND_DUCK, 0);
                 break;
             default:
                 Log.w(TAG, "Unexpected onAudioFocusChange(" + focusChange + ")");
         }
     }
 
+    private static class Command {
+        final int command;
+
+        final int arg;
+
+        final Object obj;
+
+        Command(int command, int arg, Object obj) {
+            this.command = command;
+            this.arg = arg;
+            this.obj = obj;
+        }
+    }
+
+    private class CommandHandler extends Handler {
+        CommandHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            while (true) {
+                Command command;
+                synchronized (pendingCommands) {
+                    if (pendingCommands.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    command = pendingCommands.removeFirst();
+                }
+                execute(command);
+            }
+        }
+    }
+
+    // Polls a just started player until its position moves, which is when audio is first heard
+    private class FirstAudioProbe implements Runnable {
+        private final AudioEngine player;
+
+        private final long deadline = SystemClock.elapsedRealtime() + FIRST_AUDIO_PROBE_TIMEOUT;
+
+        FirstAudioProbe(AudioEngine player) {
+            this.player = player;
+        }
+
+        public void run() {
+            synchronized (IAudioPlayerServiceImpl.this) {
+                if (this.player != IAudioPlayerServiceImpl.this.player
+                        || state != State.PLAYING || SystemClock.elapsedRealtime() > deadline) {
+                    return;
+                }
+                if (this.player.getCurrentPosition() > 0) {
+                    startupTrace.markFirstAudio();
+                    return;
+                }
+            }
+            commands.postDelayed(this, FIRST_AUDIO_PROBE_INTERVAL);
+        }
+    }
+
     private class NoisyAudioReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction())) {
-                Log.d(TAG, "Audio becoming noisy. Pausing.");
+                if (DEBUG) {
+                    Log.d(TAG, "Audio becoming noisy. Pausing.");
+                }
                 IAudioPlayerServiceImpl.this.pause();
             }
         }
@@ -0,0 +1,213 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The title, artist and album of an MP3 file, and its estimated duration, read from its ID3v2 tag
+ * (versions 2.2 to 2.4), falling back to its ID3v1 tag. Only the frames needed are read; others,
+ * such as embedded pictures, are skipped over, so reading a tag costs a few small reads whatever its
+ * size.
+ */
+public class Id3Tag {
+    // how much of the audio to look at for the first frame
+    private static final int AUDIO_HEAD_SIZE = 4096;
+
+    // longer text frames are skipped
+    private static final int MAX_TEXT_SIZE = 1024;
+
+    private static final int ID3V1_SIZE = 128;
+
+    // frame ids of version 2.2, and of versions 2.3 and 2.4
+    private static final int TT2 = 0x545432;
+
+    private static final int TP1 = 0x545031;
+
+    private static final int TAL = 0x54414C;
+
+    private static final int TIT2 = 0x54495432;
+
+    private static final int TPE1 = 0x54504531;
+
+    private static final int TALB = 0x54414C42;
+
+    public String title;
+
+    public String artist;
+
+    public String album;
+
+    /**
+     * In milliseconds, or -1 if not known.
+     */
+    public int duration = -1;
+
+    /**
+     * Reads the tag of the given file, using the given buffer, which must hold at least
+     * {@link #getBufferSize()} bytes.
+     */
+    public static Id3Tag read(RandomAccessFile file, byte[] buffer) throws IOException {
+        Id3Tag tag = new Id3Tag();
+        long length = file.length();
+        long audioStart = 0;
+        // tags may be repeated, e.g. after editing by some tools
+        while (audioStart + 10 <= length) {
+            file.seek(audioStart);
+            file.readFully(buffer, 0, 10);
+            if (buffer[0] != 'I' || buffer[1] != 'D' || buffer[2] != '3') {
+                break;
+            }
+            int version = buffer[3];
+            int flags = buffer[5];
+            long size = synchsafe(buffer, 6);
+            if (tag.title == null && tag.artist == null && tag.album == null) {
+                tag.readFrames(file, buffer, audioStart + 10, Math.min(length, audioStart + 10
+                        + size), version, flags);
+            }
+            audioStart += 10 + size + ((flags & 0x10) != 0 ? 10 : 0);
+        }
+        long audioEnd = length;
+        if (length - audioStart >= ID3V1_SIZE) {
+            file.seek(length - ID3V1_SIZE);
+            file.readFully(buffer, 0, ID3V1_SIZE);
+            if (buffer[0] == 'T' && buffer[1] == 'A' && buffer[2] == 'G') {
+                audioEnd -= ID3V1_SIZE;
+                if (tag.title == null) {
+                    tag.title = latin1(buffer, 3, 30);
+                }
+                if (tag.artist == null) {
+                    tag.artist = latin1(buffer, 33, 30);
+                }
+                if (tag.album == null) {
+                    tag.album = latin1(buffer, 63, 30);
+                }
+            }
+        }
+        if (audioStart < audioEnd) {
+            file.seek(audioStart);
+            int n = (int)Math.min(AUDIO_HEAD_SIZE, audioEnd - audioStart);
+            file.readFully(buffer, 0, n);
+            tag.duration = Mp3FrameIndex.estimateDuration(buffer, n, audioEnd - audioStart);
+        }
+        return tag;
+    }
+
+    public static int getBufferSize() {
+        return Math.max(AUDIO_HEAD_SIZE, MAX_TEXT_SIZE);
+    }
+
+    private void readFrames(RandomAccessFile file, byte[] buffer, long position, long end,
+            int version, int flags) throws IOException {
+        if (version < 2 || version > 4) {
+            return;
+        }
+        int headerSize = version == 2 ? 6 : 10;
+        if (version > 2 && (flags & 0x40) != 0) {
+            // skip the extended header, whose size includes itself only from version 2.4 on
+            file.seek(position);
+            file.readFully(buffer, 0, 4);
+            position += version == 4 ? synchsafe(buffer, 0) : 4 + intAt(buffer, 0);
+        }
+        while (position + headerSize <= end
+                && (this.title == null || this.artist == null || this.album == null)) {
+            file.seek(position);
+            file.readFully(buffer, 0, headerSize);
+            if (buffer[0] == 0) {
+                break; // padding
+            }
+            int id;
+            long size;
+            if (version == 2) {
+                id = (buffer[0] & 0xFF) << 16 | (buffer[1] & 0xFF) << 8 | (buffer[2] & 0xFF);
+                size = (buffer[3] & 0xFF) << 16 | (buffer[4] & 0xFF) << 8 | (buffer[5] & 0xFF);
+            } else {
+                id = intAt(buffer, 0);
+                size = version == 4 ? synchsafe(buffer, 4) : intAt(buffer, 4) & 0xFFFFFFFFL;
+            }
+            position += headerSize;
+            if (size > 1 && size <= MAX_TEXT_SIZE && position + size <= end) {
+                switch (id) {
+                    case TT2:
+                    case TIT2:
+                        if (this.title == null) {
+                            this.title = readText(file, buffer, position, (int)size);
+                        }
+                        break;
+                    case TP1:
+                    case TPE1:
+                        if (this.artist == null) {
+                            this.artist = readText(file, buffer, position, (int)size);
+                        }
+                        break;
+                    case TAL:
+                    case TALB:
+                        if (this.album == null) {
+                            this.album = readText(file, buffer, position, (int)size);
+                        }
+                        break;
+                }
+            }
+            position += size;
+        }
+    }
+
+    private static String readText(RandomAccessFile file, byte[] buffer, long position, int size)
+            throws IOException {
+        file.seek(position);
+        file.readFully(buffer, 0, size);
+        String charset;
+        int step = 1;
+        switch (buffer[0]) {
+            case 0:
+                charset = "ISO-8859-1";
+                break;
+            case 1:
+                charset = "UTF-16";
+                step = 2;
+                break;
+            case 2:
+                charset = "UTF-16BE";
+                step = 2;
+                break;
+            default:
+                charset = "UTF-8";
+                break;
+        }
+        // up to the first terminator
+        int end = 1;
+        while (end + step <= size && (buffer[end] != 0 || (step == 2 && buffer[end + 1] != 0))) {
+            end += step;
+        }
+        try {
+            String text = new String(buffer, 1, end - 1, charset).trim();
+            return text.length() == 0 ? null : text;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static String latin1(byte[] buffer, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buffer[end] != 0) {
+            end++;
+        }
+        try {
+            String text = new String(buffer, offset, end - offset, "ISO-8859-1").trim();
+            return text.length() == 0 ? null : text;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static long synchsafe(byte[] b, int i) {
+        return (b[i] & 0x7F) << 21 | (b[i + 1] & 0x7F) << 14 | (b[i + 2] & 0x7F) << 7
+                | (b[i + 3] & 0x7F);
+    }
+
+    private static int intAt(byte[] b, int i) {
+        return (b[i] & 0xFF) << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8
+                | (b[i + 3] & 0xFF);
+    }
+}
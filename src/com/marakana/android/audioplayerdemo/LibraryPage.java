@@ -0,0 +1,128 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A run of consecutive tracks of the local library, copied out of the {@link MediaLibrary} for a
+ * client, or of items of the play queue, along with the size of the whole library or queue so the
+ * client can page through it.
+ */
+public final class LibraryPage implements Parcelable {
+
+    private final int offset;
+
+    private final int total;
+
+    private final String[] paths;
+
+    private final String[] titles;
+
+    private final String[] artists;
+
+    private final String[] albums;
+
+    private final int[] durations;
+
+    public LibraryPage(int offset, int total, String[] paths, String[] titles, String[] artists,
+            String[] albums, int[] durations) {
+        this.offset = offset;
+        this.total = total;
+        this.paths = paths;
+        this.titles = titles;
+        this.artists = artists;
+        this.albums = albums;
+        this.durations = durations;
+    }
+
+    private LibraryPage(Parcel in) {
+        this.offset = in.readInt();
+        this.total = in.readInt();
+        this.paths = in.createStringArray();
+        this.titles = in.createStringArray();
+        this.artists = in.createStringArray();
+        this.albums = in.createStringArray();
+        this.durations = in.createIntArray();
+    }
+
+    /**
+     * @return the index in the library or queue of the first track of this page
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return the number of tracks in the whole library, or items in the whole queue
+     */
+    public int getTotal() {
+        return this.total;
+    }
+
+    public int getCount() {
+        return this.paths.length;
+    }
+
+    /**
+     * @return the file path of a library track, or the URI of an item of the queue
+     */
+    public String getPath(int i) {
+        return this.paths[i];
+    }
+
+    public String getTitle(int i) {
+        return this.titles[i];
+    }
+
+    /**
+     * @return the artist, or null if not known
+     */
+    public String getArtist(int i) {
+        return this.artists[i];
+    }
+
+    /**
+     * @return the album, or null if not known
+     */
+    public String getAlbum(int i) {
+        return this.albums[i];
+    }
+
+    /**
+     * @return the duration in milliseconds, or -1 if not known
+     */
+    public int getDuration(int i) {
+        return this.durations[i];
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(this.offset);
+        out.writeInt(this.total);
+        out.writeStringArray(this.paths);
+        out.writeStringArray(this.titles);
+        out.writeStringArray(this.artists);
+        out.writeStringArray(this.albums);
+        out.writeIntArray(this.durations);
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryPage[" + this.getCount() + " tracks from " + this.offset + " of "
+                + this.total + "]";
+    }
+
+    public static final Parcelable.Creator<LibraryPage> CREATOR = new Parcelable.Creator<LibraryPage>() {
+        public LibraryPage createFromParcel(Parcel in) {
+            return new LibraryPage(in);
+        }
+
+        public LibraryPage[] newArray(int size) {
+            return new LibraryPage[size];
+        }
+    };
+}
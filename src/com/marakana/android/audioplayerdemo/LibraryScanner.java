@@ -0,0 +1,292 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Builds a new {@link MediaLibrary} of the MP3 files under the given directories, in parallel on
+ * the given executor. Every directory is listed by a task of its own, which forks a task per
+ * subdirectory and one per batch of {@link #BATCH_SIZE} files, so a wide or deep tree keeps all
+ * threads busy. The last task to finish builds the index and persists it.
+ * <p>
+ * The scan is incremental: a file whose size and modification time match its entry in the previous
+ * library is taken from there, and only new or changed files have their tags read. Hidden
+ * directories and those holding a {@code .nomedia} file are skipped.
+ */
+public class LibraryScanner {
+    private static final String TAG = "LibraryScanner";
+
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int BATCH_SIZE = 64;
+
+    public interface Listener {
+        /**
+         * Called on one of the executor threads once the scan is complete and the new library has
+         * been persisted. Not called if the scan is cancelled.
+         */
+        public void onLibraryScanned(LibraryScanner scanner, MediaLibrary library);
+    }
+
+    private final File[] roots;
+
+    private final MediaLibrary previous;
+
+    private final File file;
+
+    private final Executor executor;
+
+    private final Listener listener;
+
+    // the directories seen so far, by canonical path, so symbolic links cannot make us loop
+    private final ConcurrentHashMap<String, Boolean> visited = new ConcurrentHashMap<String, Boolean>();
+
+    private final ConcurrentLinkedQueue<Track> tracks = new ConcurrentLinkedQueue<Track>();
+
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+
+    private final AtomicInteger parsed = new AtomicInteger();
+
+    private long startTime;
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param previous the library to reuse unchanged tracks from
+     * @param file where to persist the new library
+     */
+    public LibraryScanner(File[] roots, MediaLibrary previous, File file, Executor executor,
+            Listener listener) {
+        this.roots = roots;
+        this.previous = previous;
+        this.file = file;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    public void start() {
+        this.startTime = SystemClock.elapsedRealtime();
+        // every task forks its subtasks before it finishes, so the count only drops to zero once
+        // the whole tree is done
+        this.fork(new Runnable() {
+            public void run() {
+                for (File root : roots) {
+                    fork(new DirectoryTask(root));
+                }
+                finishTask();
+            }
+        });
+    }
+
+    /**
+     * Stops scanning as soon as possible. The listener is not called any more.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    private void fork(Runnable task) {
+        this.pendingTasks.incrementAndGet();
+        try {
+            this.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            this.cancelled = true;
+            this.finishTask();
+        }
+    }
+
+    private void finishTask() {
+        if (this.pendingTasks.decrementAndGet() == 0 && !this.cancelled) {
+            this.complete();
+        }
+    }
+
+    private void complete() {
+        ArrayList<Track> tracks = new ArrayList<Track>(this.tracks);
+        Collections.sort(tracks, Track.ORDER);
+        MediaLibrary.Builder builder = new MediaLibrary.Builder(tracks.size());
+        for (Track track : tracks) {
+            builder.add(track.directory, track.name, track.title, track.artist, track.album,
+                    track.duration, track.size, track.modified);
+        }
+        MediaLibrary library = builder.build();
+        if (DEBUG) {
+            Log.d(TAG, "Scanned " + library.size() + " tracks, " + this.parsed.get()
+                    + " of them new or changed, in "
+                    + (SystemClock.elapsedRealtime() - this.startTime) + "ms");
+        }
+        try {
+            library.write(this.file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to persist library to " + this.file, e);
+        }
+        if (!this.cancelled) {
+            this.listener.onLibraryScanned(this, library);
+        }
+    }
+
+    // Lists one directory, forking its subdirectories and batches of its files
+    private class DirectoryTask implements Runnable {
+        private final File directory;
+
+        DirectoryTask(File directory) {
+            this.directory = directory;
+        }
+
+        public void run() {
+            try {
+                this.scan();
+            } finally {
+                finishTask();
+            }
+        }
+
+        private void scan() {
+            if (cancelled || !this.enter() || new File(this.directory, ".nomedia").exists()) {
+                return;
+            }
+            File[] entries = this.directory.listFiles();
+            if (entries == null) {
+                return;
+            }
+            ArrayList<File> files = new ArrayList<File>();
+            for (File entry : entries) {
+                String name = entry.getName();
+                if (entry.isDirectory()) {
+                    if (!name.startsWith(".")) {
+                        fork(new DirectoryTask(entry));
+                    }
+                } else if (name.regionMatches(true, name.length() - 4, ".mp3", 0, 4)) {
+                    files.add(entry);
+                }
+            }
+            String path = this.directory.getPath();
+            // the first batch is read on this thread
+            for (int from = BATCH_SIZE; from < files.size(); from += BATCH_SIZE) {
+                fork(new FileTask(path, files, from, Math.min(from + BATCH_SIZE, files.size())));
+            }
+            new FileTask(path, files, 0, Math.min(BATCH_SIZE, files.size())).read();
+        }
+
+        private boolean enter() {
+            try {
+                return visited.putIfAbsent(this.directory.getCanonicalPath(), Boolean.TRUE) == null;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    // Reads the tags of a batch of files of one directory, or takes them from the previous library
+    private class FileTask implements Runnable {
+        private final String directory;
+
+        private final ArrayList<File> files;
+
+        private final int from;
+
+        private final int to;
+
+        FileTask(String directory, ArrayList<File> files, int from, int to) {
+            this.directory = directory;
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        public void run() {
+            try {
+                this.read();
+            } finally {
+                finishTask();
+            }
+        }
+
+        void read() {
+            byte[] buffer = null;
+            for (int i = this.from; i < this.to && !cancelled; i++) {
+                File file = this.files.get(i);
+                String name = file.getName();
+                long size = file.length();
+                long modified = file.lastModified();
+                int known = previous.indexOf(this.directory + '/' + name);
+                if (known >= 0 && previous.getSize(known) == size
+                        && previous.getModified(known) == modified) {
+                    tracks.add(new Track(this.directory, name, previous.getTaggedTitle(known),
+                            previous.getArtist(known), previous.getAlbum(known), previous
+                                    .getDuration(known), size, modified));
+                    continue;
+                }
+                if (buffer == null) {
+                    buffer = new byte[Id3Tag.getBufferSize()];
+                }
+                Id3Tag tag;
+                try {
+                    RandomAccessFile in = new RandomAccessFile(file, "r");
+                    try {
+                        tag = Id3Tag.read(in, buffer);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read tags of " + file, e);
+                    tag = new Id3Tag();
+                }
+                parsed.incrementAndGet();
+                tracks.add(new Track(this.directory, name, tag.title, tag.artist, tag.album,
+                        tag.duration, size, modified));
+            }
+        }
+    }
+
+    private static class Track {
+        static final Comparator<Track> ORDER = new Comparator<Track>() {
+            public int compare(Track a, Track b) {
+                int c = a.directory.compareTo(b.directory);
+                return c != 0 ? c : a.name.compareTo(b.name);
+            }
+        };
+
+        final String directory;
+
+        final String name;
+
+        final String title;
+
+        final String artist;
+
+        final String album;
+
+        final int duration;
+
+        final long size;
+
+        final long modified;
+
+        Track(String directory, String name, String title, String artist, String album,
+                int duration, long size, long modified) {
+            this.directory = directory;
+            this.name = name;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.duration = duration;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Works out a playback gain for local items in the background, so tracks of different loudness play
+ * at about the same level. Each item is decoded once, on at most a given number of executor threads
+ * at a time, and its integrated loudness is measured as in ITU-R BS.1770: K-weighted, in gated
+ * blocks of 400ms. The gain brings it to {@link #REFERENCE_LOUDNESS}, as ReplayGain 2.0 does, but
+ * never above unity, since players cannot amplify, nor so high that the peak sample would clip.
+ * <p>
+ * Results are kept in a small cache file keyed by the content hash of the item, appended to as each
+ * item is done, so analysis picks up where it left off after a restart and an item is only ever
+ * decoded once. {@link #getGain(Uri)} only looks up what is already known and never blocks; the
+ * listener is told as each gain becomes known.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class LoudnessAnalyzer {
+    private static final String TAG = "LoudnessAnalyzer";
+
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // in LUFS, as in ReplayGain 2.0
+    public static final float REFERENCE_LOUDNESS = -18;
+
+    // requests beyond this many waiting are dropped, oldest first
+    private static final int MAX_PENDING = 16;
+
+    private static final int SUB_BLOCK_MILLIS = 100;
+
+    // a gating block is this many sub-blocks, overlapping by all but one
+    private static final int BLOCK_SUB_BLOCKS = 4;
+
+    private static final double ABSOLUTE_GATE = -70;
+
+    private static final double RELATIVE_GATE = -10;
+
+    public interface Listener {
+        /**
+         * Called on one of the executor threads once the gain of an item is known, whether
+         * measured or found in the cache. Not called if the analysis fails or is cancelled.
+         */
+        public void onGainKnown(LoudnessAnalyzer analyzer, Uri uri);
+    }
+
+    private final Context context;
+
+    private final File file;
+
+    private final Executor executor;
+
+    private final int parallelism;
+
+    private final Listener listener;
+
+    // the gain of every item looked at so far in this process, by URI
+    private final ConcurrentHashMap<Uri, Float> gains = new ConcurrentHashMap<Uri, Float>();
+
+    // guarded by this
+    private final LinkedHashSet<Uri> pending = new LinkedHashSet<Uri>();
+
+    private int running = 0;
+
+    // guarded by file; loudness and peak by content hash, read in on first use
+    private HashMap<String, float[]> cache;
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param file the cache file
+     * @param parallelism how many items to decode at a time, at most
+     */
+    public LoudnessAnalyzer(Context context, File file, Executor executor, int parallelism,
+            Listener listener) {
+        this.context = context;
+        this.file = file;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the gain to play the given item at, or 1 if it is not known (yet)
+     */
+    public float getGain(Uri uri) {
+        Float gain = uri == null ? null : this.gains.get(uri);
+        return gain == null ? 1 : gain;
+    }
+
+    /**
+     * Works out the gain of the given item in the background, unless it is already known or on
+     * the way.
+     */
+    public synchronized void request(Uri uri) {
+        if (this.cancelled || uri == null || this.gains.containsKey(uri)
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        String scheme = uri.getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme)) {
+            return;
+        }
+        // requested again, so needed sooner
+        this.pending.remove(uri);
+        this.pending.add(uri);
+        if (this.pending.size() > MAX_PENDING) {
+            Iterator<Uri> oldest = this.pending.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        this.drain();
+    }
+
+    /**
+     * Stops analyzing as soon as possible, dropping what is waiting.
+     */
+    public synchronized void cancel() {
+        this.cancelled = true;
+        this.pending.clear();
+    }
+
+    // must hold the lock; starts the most recently requested items, up to the parallelism
+    private void drain() {
+        while (this.running < this.parallelism && !this.pending.isEmpty()) {
+            Uri uri = null;
+            for (Uri each : this.pending) {
+                uri = each;
+            }
+            this.pending.remove(uri);
+            this.running++;
+            this.executor.execute(new Job(uri));
+        }
+    }
+
+    private synchronized void finish() {
+        this.running--;
+        if (!this.cancelled) {
+            this.drain();
+        }
+    }
+
+    private float[] lookUp(String hash) {
+        synchronized (this.file) {
+            if (this.cache == null) {
+                this.cache = new HashMap<String, float[]>();
+                this.readCache();
+            }
+            return this.cache.get(hash);
+        }
+    }
+
+    // must hold the file lock
+    private void readCache() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            while (true) {
+                String hash;
+                try {
+                    hash = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                this.cache.put(hash, new float[] { in.readFloat(), in.readFloat() });
+            }
+        } catch (IOException e) {
+            // a record cut short by a kill; the item is analyzed again
+            Log.w(TAG, "Loudness cache ends in a torn record after " + this.cache.size(), e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to lose, we only read
+            }
+        }
+    }
+
+    private void store(String hash, float loudness, float peak) {
+        synchronized (this.file) {
+            this.cache.put(hash, new float[] { loudness, peak });
+            try {
+                File dir = this.file.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(this.file, true));
+                try {
+                    out.writeUTF(hash);
+                    out.writeFloat(loudness);
+                    out.writeFloat(peak);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to cache loudness in " + this.file, e);
+            }
+        }
+    }
+
+    /**
+     * @param loudness in LUFS
+     * @param peak the highest absolute sample value, where full scale is 1
+     * @return the gain that brings the loudness to the reference, without amplifying or clipping
+     */
+    static float gain(float loudness, float peak) {
+        if (Float.isInfinite(loudness) || Float.isNaN(loudness)) {
+            return 1; // silence
+        }
+        double gain = Math.pow(10, (REFERENCE_LOUDNESS - loudness) / 20);
+        if (peak > 0) {
+            gain = Math.min(gain, 1 / peak);
+        }
+        return (float)Math.min(gain, 1);
+    }
+
+    // Looks up or measures the loudness of one item
+    private class Job implements Runnable {
+        private final Uri uri;
+
+        Job(Uri uri) {
+            this.uri = uri;
+        }
+
+        public void run() {
+            try {
+                this.analyze();
+            } catch (Exception e) {
+                if (!cancelled) {
+                    Log.w(TAG, "Failed to analyze " + this.uri, e);
+                }
+                // not retried until the next restart
+                gains.put(this.uri, 1f);
+            } finally {
+                finish();
+            }
+        }
+
+        private void analyze() throws IOException, InterruptedException {
+            MappedDataSource source = MappedDataSource.open(context, this.uri);
+            String hash;
+            try {
+                hash = Mp3FrameIndex.contentHash(source);
+            } finally {
+                source.close();
+            }
+            float[] known = lookUp(hash);
+            if (known == null) {
+                long start = SystemClock.elapsedRealtime();
+                Meter meter = new Meter();
+                this.decode(meter);
+                if (cancelled) {
+                    return;
+                }
+                known = new float[] { meter.getLoudness(), meter.getPeak() };
+                if (DEBUG) {
+                    Log.d(TAG, "Measured " + this.uri + " at " + known[0] + " LUFS, peak "
+                            + known[1] + ", in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                }
+                store(hash, known[0], known[1]);
+            }
+            gains.put(this.uri, gain(known[0], known[1]));
+            if (!cancelled) {
+                listener.onGainKnown(LoudnessAnalyzer.this, this.uri);
+            }
+        }
+
+        private void decode(final Meter meter) throws IOException, InterruptedException {
+            PcmDecoder decoder = PcmDecoder.open(context, this.uri);
+            try {
+                MediaFormat format = decoder.getFormat();
+                meter.setFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format
+                        .getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                PcmDecoder.Sink sink = new PcmDecoder.Sink() {
+                    public void onOutputFormat(MediaFormat format) {
+                        meter.setFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format
+                                .getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                    }
+
+                    public void onPcm(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+                        meter.add(buffer, info.offset, info.size);
+                    }
+                };
+                while (!cancelled && decoder.step(sink)) {
+                    // the sink does the work
+                }
+            } finally {
+                decoder.release();
+            }
+        }
+    }
+
+    /**
+     * Measures the integrated loudness and sample peak of 16-bit PCM, fed to it in buffers of
+     * interleaved frames. Every channel is weighted equally.
+     */
+    static class Meter {
+        private int channels;
+
+        private int subBlockFrames;
+
+        // K-weighting: a high shelf and a high pass, as biquad coefficients b0 b1 b2 a1 a2
+        private final double[] shelf = new double[5];
+
+        private final double[] highPass = new double[5];
+
+        // per channel, the two state variables of each filter
+        private double[] state;
+
+        // the mean square of every sub-block so far, summed over channels
+        private float[] energies = new float[256];
+
+        private int subBlocks = 0;
+
+        private double sum = 0;
+
+        private int frames = 0;
+
+        private int peak = 0;
+
+        void setFormat(int sampleRate, int channels) {
+            if (sampleRate == 0 || (channels == this.channels
+                    && this.subBlockFrames == sampleRate * SUB_BLOCK_MILLIS / 1000)) {
+                return;
+            }
+            this.channels = channels;
+            this.subBlockFrames = sampleRate * SUB_BLOCK_MILLIS / 1000;
+            this.state = new double[4 * channels];
+            this.sum = 0;
+            this.frames = 0;
+            // from the filters of BS.1770, as given for 48kHz, mapped to the sample rate
+            double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+            double q = 0.7071752369554196;
+            double vh = Math.pow(10, 3.999843853973347 / 20);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1 + k / q + k * k;
+            this.shelf[0] = (vh + vb * k / q + k * k) / a0;
+            this.shelf[1] = 2 * (k * k - vh) / a0;
+            this.shelf[2] = (vh - vb * k / q + k * k) / a0;
+            this.shelf[3] = 2 * (k * k - 1) / a0;
+            this.shelf[4] = (1 - k / q + k * k) / a0;
+            k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+            q = 0.5003270373238773;
+            a0 = 1 + k / q + k * k;
+            this.highPass[0] = 1;
+            this.highPass[1] = -2;
+            this.highPass[2] = 1;
+            this.highPass[3] = 2 * (k * k - 1) / a0;
+            this.highPass[4] = (1 - k / q + k * k) / a0;
+        }
+
+        void add(ByteBuffer buffer, int offset, int size) {
+            int channels = this.channels;
+            int end = offset + size / (2 * channels) * 2 * channels;
+            for (int position = offset; position < end;) {
+                for (int c = 0; c < channels; c++, position += 2) {
+                    int sample = buffer.getShort(position);
+                    int magnitude = sample < 0 ? -sample : sample;
+                    if (magnitude > this.peak) {
+                        this.peak = magnitude;
+                    }
+                    double x = filter(this.shelf, this.state, 4 * c, sample / 32768.0);
+                    x = filter(this.highPass, this.state, 4 * c + 2, x);
+                    this.sum += x * x;
+                }
+                if (++this.frames == this.subBlockFrames) {
+                    this.endSubBlock();
+                }
+            }
+        }
+
+        // one step of a biquad in transposed direct form II
+        private static double filter(double[] f, double[] state, int s, double x) {
+            double y = f[0] * x + state[s];
+            state[s] = f[1] * x - f[3] * y + state[s + 1];
+            state[s + 1] = f[2] * x - f[4] * y;
+            return y;
+        }
+
+        private void endSubBlock() {
+            if (this.subBlocks == this.energies.length) {
+                float[] grown = new float[this.energies.length * 2];
+                System.arraycopy(this.energies, 0, grown, 0, this.subBlocks);
+                this.energies = grown;
+            }
+            this.energies[this.subBlocks++] = (float)(this.sum / this.frames);
+            this.sum = 0;
+            this.frames = 0;
+        }
+
+        float getPeak() {
+            return this.peak / 32768f;
+        }
+
+        /**
+         * @return the integrated loudness in LUFS, or negative infinity for silence
+         */
+        float getLoudness() {
+            int blocks = this.subBlocks - BLOCK_SUB_BLOCKS + 1;
+            if (blocks <= 0) {
+                return Float.NEGATIVE_INFINITY;
+            }
+            double[] block = new double[blocks];
+            double window = 0;
+            for (int i = 0; i < this.subBlocks; i++) {
+                window += this.energies[i];
+                if (i >= BLOCK_SUB_BLOCKS) {
+                    window -= this.energies[i - BLOCK_SUB_BLOCKS];
+                }
+                if (i >= BLOCK_SUB_BLOCKS - 1) {
+                    block[i - BLOCK_SUB_BLOCKS + 1] = Math.max(0, window / BLOCK_SUB_BLOCKS);
+                }
+            }
+            double gate = energy(ABSOLUTE_GATE);
+            double mean = mean(block, gate);
+            if (mean <= 0) {
+                return Float.NEGATIVE_INFINITY;
+            }
+            gate = Math.max(gate, mean * Math.pow(10, RELATIVE_GATE / 10));
+            return (float)loudness(mean(block, gate));
+        }
+
+        // the mean of the blocks above the gate, or 0 if there are none
+        private static double mean(double[] block, double gate) {
+            double sum = 0;
+            int n = 0;
+            for (double energy : block) {
+                if (energy > gate) {
+                    sum += energy;
+                    n++;
+                }
+            }
+            return n == 0 ? 0 : sum / n;
+        }
+
+        private static double energy(double loudness) {
+            return Math.pow(10, (loudness + 0.691) / 10);
+        }
+
+        private static double loudness(double energy) {
+            return -0.691 + 10 * Math.log10(energy);
+        }
+    }
+}
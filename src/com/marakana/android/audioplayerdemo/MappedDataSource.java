@@ -0,0 +1,107 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+/**
+ * Random access to a local file or packaged asset through a read-only memory mapping. Reads are
+ * positional copies out of the mapped region and allocate nothing, so scanning or seeking around a
+ * large file costs no system calls and no garbage once the pages are resident.
+ * <p>
+ * A buffer can only address 2 GB, so the data is mapped in regions of {@link #REGION_SIZE} bytes,
+ * and a read that spans two of them is copied out of both.
+ * <p>
+ * The methods follow the contract of {@code android.media.MediaDataSource}: {@link #readAt} returns
+ * the number of bytes copied, or -1 at the end of the data.
+ */
+public class MappedDataSource {
+    private static final int REGION_SHIFT = 30;
+
+    public static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+    private final AssetFileDescriptor afd;
+
+    private final MappedByteBuffer[] regions;
+
+    private final long size;
+
+    private MappedDataSource(AssetFileDescriptor afd) throws IOException {
+        this.afd = afd;
+        FileChannel channel = new FileInputStream(afd.getFileDescriptor()).getChannel();
+        long length = afd.getLength();
+        if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+            length = channel.size() - afd.getStartOffset();
+        }
+        this.size = length;
+        this.regions = new MappedByteBuffer[(int)((length + REGION_SIZE - 1) >>> REGION_SHIFT)];
+        for (int i = 0; i < this.regions.length; i++) {
+            long start = (long)i << REGION_SHIFT;
+            this.regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset()
+                    + start, Math.min(REGION_SIZE, length - start));
+        }
+    }
+
+    /**
+     * Maps anything the content resolver can open as a file: {@code file://},
+     * {@code android.resource://} for raw resources stored uncompressed, and local
+     * {@code content://} URIs.
+     */
+    public static MappedDataSource open(Context context, Uri uri) throws IOException {
+        AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+        if (afd == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        try {
+            return new MappedDataSource(afd);
+        } catch (IOException e) {
+            afd.close();
+            throw e;
+        }
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) {
+        if (position < 0 || position >= this.size) {
+            return -1;
+        }
+        int length = (int)Math.min(size, this.size - position);
+        try {
+            for (int done = 0; done < length;) {
+                MappedByteBuffer region = this.regions[(int)(position >>> REGION_SHIFT)];
+                region.position((int)(position & (REGION_SIZE - 1)));
+                int n = Math.min(length - done, region.remaining());
+                region.get(buffer, offset + done, n);
+                done += n;
+                position += n;
+            }
+        } catch (BufferUnderflowException e) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * @return the unsigned byte at the given position, or -1 past the end of the data
+     */
+    public int byteAt(long position) {
+        return position < 0 || position >= this.size ? -1
+                : this.regions[(int)(position >>> REGION_SHIFT)]
+                        .get((int)(position & (REGION_SIZE - 1))) & 0xFF;
+    }
+
+    public void close() throws IOException {
+        // the mapping itself stays valid until it is garbage collected
+        this.afd.close();
+    }
+}
@@ -0,0 +1,157 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyEvent;
+
+/**
+ * Turns media button key events into service commands, on the main thread. Presses of the single
+ * button on a wired headset are counted over a short window: one click plays or pauses, two skip
+ * to the next item and three go back to the previous one. A third click acts at once, without
+ * waiting out the window. Dedicated keys act on the spot, and fast forward and rewind keep seeking
+ * while they are held.
+ * <p>
+ * The time from each key press to the command it was decoded into is recorded as
+ * {@link PlaybackMetrics#MEDIA_BUTTON_TO_COMMAND}.
+ */
+public class MediaButtonHandler {
+    private static final String TAG = "MediaButtonHandler";
+
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int SEEK_OFFSET = 3000;
+
+    private final IAudioPlayerServiceImpl service;
+
+    private final MetricsRegistry metrics;
+
+    private final int clickWindow;
+
+    private final Handler handler = new Handler();
+
+    // the clicks counted in the current window, and when the first of them happened
+    private int clicks = 0;
+
+    private long firstClickTime;
+
+    private final Runnable decodeClicks = new Runnable() {
+        public void run() {
+            decode();
+        }
+    };
+
+    /**
+     * @param clickWindow how long to wait for another headset click, in milliseconds
+     */
+    public MediaButtonHandler(IAudioPlayerServiceImpl service, MetricsRegistry metrics,
+            int clickWindow) {
+        this.service = service;
+        this.metrics = metrics;
+        this.clickWindow = clickWindow;
+    }
+
+    /**
+     * @return whether the event was a media button this handler acts on
+     */
+    public boolean handle(KeyEvent event) {
+        if (event.getAction() != KeyEvent.ACTION_DOWN) {
+            return false;
+        }
+        switch (event.getKeyCode()) {
+            case KeyEvent.KEYCODE_HEADSETHOOK:
+                if (event.getRepeatCount() == 0) {
+                    this.click(event.getEventTime());
+                }
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
+                if (event.getRepeatCount() == 0) {
+                    this.service.playPause();
+                    this.recordSince(event.getEventTime());
+                }
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_PLAY:
+                this.service.play();
+                this.recordSince(event.getEventTime());
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_PAUSE:
+                this.service.pause();
+                this.recordSince(event.getEventTime());
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_STOP:
+                this.service.stop();
+                this.recordSince(event.getEventTime());
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_NEXT:
+                if (event.getRepeatCount() == 0) {
+                    this.service.next();
+                    this.recordSince(event.getEventTime());
+                }
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_PREVIOUS:
+                if (event.getRepeatCount() == 0) {
+                    this.service.previous();
+                    this.recordSince(event.getEventTime());
+                }
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_FAST_FORWARD:
+                this.service.seekRelative(SEEK_OFFSET);
+                this.recordSince(event.getEventTime());
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_REWIND:
+                this.service.seekRelative(-SEEK_OFFSET);
+                this.recordSince(event.getEventTime());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Forgets any clicks still being counted.
+     */
+    public void cancel() {
+        this.handler.removeCallbacks(this.decodeClicks);
+        this.clicks = 0;
+    }
+
+    private void click(long time) {
+        if (this.clicks == 0) {
+            this.firstClickTime = time;
+        }
+        this.clicks++;
+        this.handler.removeCallbacks(this.decodeClicks);
+        if (this.clicks >= 3) {
+            this.decode();
+        } else {
+            this.handler.postDelayed(this.decodeClicks, this.clickWindow);
+        }
+    }
+
+    private void decode() {
+        if (DEBUG) {
+            Log.d(TAG, "Decoded " + this.clicks + " click(s)");
+        }
+        switch (this.clicks) {
+            case 1:
+                this.service.playPause();
+                break;
+            case 2:
+                this.service.next();
+                break;
+            default:
+                this.service.previous();
+                break;
+        }
+        this.clicks = 0;
+        this.handler.removeCallbacks(this.decodeClicks);
+        this.recordSince(this.firstClickTime);
+    }
+
+    // event times are in the SystemClock.uptimeMillis() time base
+    private void recordSince(long eventTime) {
+        this.metrics.record(PlaybackMetrics.MEDIA_BUTTON_TO_COMMAND,
+                (SystemClock.uptimeMillis() - eventTime) * 1000);
+    }
+}
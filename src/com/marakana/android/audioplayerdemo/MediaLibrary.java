@@ -0,0 +1,398 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An immutable index of the tracks in the local library, sorted by directory and then file name.
+ * Every attribute is a column: a primitive array with one entry per track. Text attributes are ids
+ * into a single table of distinct strings, so a directory, artist or album shared by many tracks
+ * is stored once.
+ * <p>
+ * Persisted, the columns are written out as they are, after the string table as one UTF-8 blob
+ * with an offset array, so loading is a handful of bulk reads rather than a read per value.
+ */
+public class MediaLibrary {
+    private static final int MAGIC = 0x4C494252; // "LIBR"
+
+    private static final int VERSION = 1;
+
+    // id of the empty string, which stands for a missing attribute
+    static final int NONE = 0;
+
+    private final String[] strings;
+
+    private final int count;
+
+    private final int[] directories;
+
+    private final int[] names;
+
+    private final int[] titles;
+
+    private final int[] artists;
+
+    private final int[] albums;
+
+    private final int[] durations;
+
+    private final long[] sizes;
+
+    private final long[] modified;
+
+    MediaLibrary(String[] strings, int count, int[] directories, int[] names, int[] titles,
+            int[] artists, int[] albums, int[] durations, long[] sizes, long[] modified) {
+        this.strings = strings;
+        this.count = count;
+        this.directories = directories;
+        this.names = names;
+        this.titles = titles;
+        this.artists = artists;
+        this.albums = albums;
+        this.durations = durations;
+        this.sizes = sizes;
+        this.modified = modified;
+    }
+
+    public static MediaLibrary empty() {
+        return new MediaLibrary(new String[] { "" }, 0, new int[0], new int[0], new int[0],
+                new int[0], new int[0], new int[0], new long[0], new long[0]);
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public String getPath(int track) {
+        return this.strings[this.directories[track]] + '/' + this.strings[this.names[track]];
+    }
+
+    /**
+     * @return the title, or the file name if the track has none
+     */
+    public String getTitle(int track) {
+        int title = this.titles[track];
+        return this.strings[title != NONE ? title : this.names[track]];
+    }
+
+    // the title from the tags only, or null
+    String getTaggedTitle(int track) {
+        return this.get(this.titles[track]);
+    }
+
+    /**
+     * @return the artist, or null if not known
+     */
+    public String getArtist(int track) {
+        return this.get(this.artists[track]);
+    }
+
+    /**
+     * @return the album, or null if not known
+     */
+    public String getAlbum(int track) {
+        return this.get(this.albums[track]);
+    }
+
+    /**
+     * @return the duration in milliseconds, or -1 if not known
+     */
+    public int getDuration(int track) {
+        return this.durations[track];
+    }
+
+    public long getSize(int track) {
+        return this.sizes[track];
+    }
+
+    public long getModified(int track) {
+        return this.modified[track];
+    }
+
+    private String get(int id) {
+        return id == NONE ? null : this.strings[id];
+    }
+
+    /**
+     * @return a page of at most the given number of tracks, starting at the given one
+     */
+    public LibraryPage getPage(int offset, int limit) {
+        offset = Math.max(0, Math.min(offset, this.count));
+        int n = Math.max(0, Math.min(limit, this.count - offset));
+        String[] paths = new String[n];
+        String[] titles = new String[n];
+        String[] artists = new String[n];
+        String[] albums = new String[n];
+        int[] durations = new int[n];
+        for (int i = 0; i < n; i++) {
+            paths[i] = this.getPath(offset + i);
+            titles[i] = this.getTitle(offset + i);
+            artists[i] = this.getArtist(offset + i);
+            albums[i] = this.getAlbum(offset + i);
+            durations[i] = this.durations[offset + i];
+        }
+        return new LibraryPage(offset, this.count, paths, titles, artists, albums, durations);
+    }
+
+    /**
+     * @return the index of the track with the given path, or -1 if there is none
+     */
+    public int indexOf(String path) {
+        int slash = path == null ? -1 : path.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        String directory = path.substring(0, slash);
+        String name = path.substring(slash + 1);
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = this.strings[this.directories[mid]].compareTo(directory);
+            if (c == 0) {
+                c = this.strings[this.names[mid]].compareTo(name);
+            }
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public void write(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        int[] offsets = new int[this.strings.length + 1];
+        for (int i = 0; i < this.strings.length; i++) {
+            byte[] utf8 = this.strings[i].getBytes("UTF-8");
+            blob.write(utf8, 0, utf8.length);
+            offsets[i + 1] = blob.size();
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(this.strings.length);
+            header.writeInt(blob.size());
+            header.writeInt(this.count);
+            header.flush();
+            ByteBuffer columns = ByteBuffer.allocate(4 * offsets.length + blob.size() + this.count
+                    * (6 * 4 + 2 * 8));
+            columns.asIntBuffer().put(offsets);
+            columns.position(4 * offsets.length);
+            blob.writeTo(new ByteBufferOutputStream(columns));
+            putInts(columns, this.directories, this.count);
+            putInts(columns, this.names, this.count);
+            putInts(columns, this.titles, this.count);
+            putInts(columns, this.artists, this.count);
+            putInts(columns, this.albums, this.count);
+            putInts(columns, this.durations, this.count);
+            putLongs(columns, this.sizes, this.count);
+            putLongs(columns, this.modified, this.count);
+            out.write(columns.array(), 0, columns.position());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    public static MediaLibrary read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt library index");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int)length);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+            if (buffer.remaining() < 20 || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION) {
+                throw new IOException("Not a library index");
+            }
+            int stringCount = buffer.getInt();
+            int blobSize = buffer.getInt();
+            int count = buffer.getInt();
+            if (stringCount < 1 || blobSize < 0 || count < 0
+                    || buffer.remaining() != 4L * (stringCount + 1) + blobSize + count
+                            * (6 * 4L + 2 * 8)) {
+                throw new IOException("Corrupt library index");
+            }
+            int[] offsets = getInts(buffer, stringCount + 1);
+            String[] strings = new String[stringCount];
+            byte[] blob = buffer.array();
+            int blobStart = buffer.arrayOffset() + buffer.position();
+            for (int i = 0; i < stringCount; i++) {
+                if (offsets[i] < 0 || offsets[i] > offsets[i + 1] || offsets[i + 1] > blobSize) {
+                    throw new IOException("Corrupt library index");
+                }
+                strings[i] = new String(blob, blobStart + offsets[i], offsets[i + 1]
+                        - offsets[i], "UTF-8");
+            }
+            buffer.position(buffer.position() + blobSize);
+            int[] directories = getInts(buffer, count);
+            int[] names = getInts(buffer, count);
+            int[] titles = getInts(buffer, count);
+            int[] artists = getInts(buffer, count);
+            int[] albums = getInts(buffer, count);
+            int[] durations = getInts(buffer, count);
+            long[] sizes = getLongs(buffer, count);
+            long[] modified = getLongs(buffer, count);
+            for (int i = 0; i < count; i++) {
+                if (!valid(directories[i], stringCount) || !valid(names[i], stringCount)
+                        || !valid(titles[i], stringCount) || !valid(artists[i], stringCount)
+                        || !valid(albums[i], stringCount)) {
+                    throw new IOException("Corrupt library index");
+                }
+            }
+            return new MediaLibrary(strings, count, directories, names, titles, artists, albums,
+                    durations, sizes, modified);
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException(e.toString());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean valid(int id, int stringCount) {
+        return id >= 0 && id < stringCount;
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values, int count) {
+        buffer.asIntBuffer().put(values, 0, count);
+        buffer.position(buffer.position() + 4 * count);
+    }
+
+    private static void putLongs(ByteBuffer buffer, long[] values, int count) {
+        buffer.asLongBuffer().put(values, 0, count);
+        buffer.position(buffer.position() + 8 * count);
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * count);
+        return values;
+    }
+
+    private static long[] getLongs(ByteBuffer buffer, int count) {
+        long[] values = new long[count];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + 8 * count);
+        return values;
+    }
+
+    // Collects the strings and columns of a new index, one track at a time
+    static class Builder {
+        private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+        private final ArrayList<String> strings = new ArrayList<String>();
+
+        private int count = 0;
+
+        private int[] directories;
+
+        private int[] names;
+
+        private int[] titles;
+
+        private int[] artists;
+
+        private int[] albums;
+
+        private int[] durations;
+
+        private long[] sizes;
+
+        private long[] modified;
+
+        Builder(int capacity) {
+            this.intern("");
+            this.directories = new int[capacity];
+            this.names = new int[capacity];
+            this.titles = new int[capacity];
+            this.artists = new int[capacity];
+            this.albums = new int[capacity];
+            this.durations = new int[capacity];
+            this.sizes = new long[capacity];
+            this.modified = new long[capacity];
+        }
+
+        void add(String directory, String name, String title, String artist, String album,
+                int duration, long size, long modified) {
+            int i = this.count++;
+            this.directories[i] = this.intern(directory);
+            this.names[i] = this.intern(name);
+            this.titles[i] = this.intern(title);
+            this.artists[i] = this.intern(artist);
+            this.albums[i] = this.intern(album);
+            this.durations[i] = duration;
+            this.sizes[i] = size;
+            this.modified[i] = modified;
+        }
+
+        private int intern(String s) {
+            if (s == null) {
+                return NONE;
+            }
+            Integer id = this.ids.get(s);
+            if (id == null) {
+                id = this.strings.size();
+                this.ids.put(s, id);
+                this.strings.add(s);
+            }
+            return id;
+        }
+
+        MediaLibrary build() {
+            return new MediaLibrary(this.strings.toArray(new String[this.strings.size()]),
+                    this.count, this.directories, this.names, this.titles, this.artists,
+                    this.albums, this.durations, this.sizes, this.modified);
+        }
+    }
+
+    // Lets ByteArrayOutputStream.writeTo() copy straight into a buffer
+    private static class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            this.buffer.put((byte)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.buffer.put(b, off, len);
+        }
+    }
+}
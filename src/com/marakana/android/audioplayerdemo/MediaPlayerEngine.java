@@ -0,0 +1,133 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnBufferingUpdateListener;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnInfoListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.media.MediaPlayer.OnSeekCompleteListener;
+import android.net.Uri;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * An {@link AudioEngine} backed by a {@link MediaPlayer}. Supports gapless transitions through
+ * {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)} where available.
+ */
+public class MediaPlayerEngine implements AudioEngine, OnPreparedListener, OnErrorListener,
+        OnCompletionListener, OnBufferingUpdateListener, OnSeekCompleteListener, OnInfoListener {
+
+    public static class Factory implements AudioEngine.Factory {
+        public AudioEngine create() {
+            return new MediaPlayerEngine();
+        }
+    }
+
+    private final MediaPlayer mediaPlayer = new MediaPlayer();
+
+    private Listener listener;
+
+    public MediaPlayerEngine() {
+        this.mediaPlayer.setOnErrorListener(this);
+        this.mediaPlayer.setOnPreparedListener(this);
+        this.mediaPlayer.setOnCompletionListener(this);
+        this.mediaPlayer.setOnBufferingUpdateListener(this);
+        this.mediaPlayer.setOnSeekCompleteListener(this);
+        this.mediaPlayer.setOnInfoListener(this);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setDataSource(Context context, Uri uri) throws IOException {
+        this.mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        this.mediaPlayer.setDataSource(context, uri);
+        this.mediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+    }
+
+    public void prepareAsync() {
+        this.mediaPlayer.prepareAsync();
+    }
+
+    public void start() {
+        this.mediaPlayer.start();
+    }
+
+    public void pause() {
+        this.mediaPlayer.pause();
+    }
+
+    public void seekTo(int position) {
+        this.mediaPlayer.seekTo(position);
+    }
+
+    public int getCurrentPosition() {
+        return this.mediaPlayer.getCurrentPosition();
+    }
+
+    public int getDuration() {
+        return this.mediaPlayer.getDuration();
+    }
+
+    public void setVolume(float volume) {
+        this.mediaPlayer.setVolume(volume, volume);
+    }
+
+    public boolean setNext(AudioEngine next) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return false;
+        }
+        if (next == null) {
+            this.mediaPlayer.setNextMediaPlayer(null);
+            return false;
+        }
+        if (!(next instanceof MediaPlayerEngine)) {
+            return false;
+        }
+        this.mediaPlayer.setNextMediaPlayer(((MediaPlayerEngine)next).mediaPlayer);
+        return true;
+    }
+
+    public void reset() {
+        this.mediaPlayer.reset();
+    }
+
+    public void release() {
+        this.mediaPlayer.release();
+    }
+
+    public void onPrepared(MediaPlayer mp) {
+        this.listener.onPrepared(this);
+    }
+
+    public void onCompletion(MediaPlayer mp) {
+        this.listener.onCompletion(this);
+    }
+
+    public void onSeekComplete(MediaPlayer mp) {
+        this.listener.onSeekComplete(this);
+    }
+
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+        this.listener.onBufferingUpdate(this, percent);
+    }
+
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+            this.listener.onStall(this);
+        }
+        return false;
+    }
+
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        this.listener.onError(this, what, extra);
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.SystemClock;
+
+/**
+ * Named counters and latency histograms, recorded without locks or allocation once a name has been
+ * seen, and sampled into a {@link PlaybackMetrics} for clients. Histograms have fixed buckets,
+ * doubling from {@link PlaybackMetrics#FIRST_BUCKET_BOUND} microseconds, so recording never needs
+ * to resize or sort anything.
+ */
+public class MetricsRegistry {
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    public void increment(String name) {
+        AtomicLong counter = this.counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = this.counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    public long getCount(String name) {
+        AtomicLong counter = this.counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Records the time since the given {@link System#nanoTime()}, if it is not negative.
+     */
+    public void recordSince(String name, long startNanos) {
+        if (startNanos >= 0) {
+            this.record(name, (System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    public void record(String name, long micros) {
+        Histogram histogram = this.histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = this.histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(micros);
+    }
+
+    public PlaybackMetrics sample() {
+        String[] counterNames = new String[this.counters.size()];
+        long[] counterValues = new long[counterNames.length];
+        int i = 0;
+        for (Map.Entry<String, AtomicLong> entry : this.counters.entrySet()) {
+            if (i == counterNames.length) {
+                break; // added while sampling
+            }
+            counterNames[i] = entry.getKey();
+            counterValues[i++] = entry.getValue().get();
+        }
+        int counterCount = i;
+
+        String[] histogramNames = new String[this.histograms.size()];
+        long[][] buckets = new long[histogramNames.length][];
+        long[] sums = new long[histogramNames.length];
+        long[] maxima = new long[histogramNames.length];
+        i = 0;
+        for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+            if (i == histogramNames.length) {
+                break;
+            }
+            Histogram histogram = entry.getValue();
+            histogramNames[i] = entry.getKey();
+            buckets[i] = new long[PlaybackMetrics.BUCKET_COUNT];
+            for (int b = 0; b < PlaybackMetrics.BUCKET_COUNT; b++) {
+                buckets[i][b] = histogram.buckets.get(b);
+            }
+            sums[i] = histogram.sum.get();
+            maxima[i++] = histogram.max.get();
+        }
+        return new PlaybackMetrics(SystemClock.elapsedRealtime(), trim(counterNames, counterCount),
+                trim(counterValues, counterCount), trim(histogramNames, i), trim(buckets, i),
+                trim(sums, i), trim(maxima, i));
+    }
+
+    private static String[] trim(String[] a, int n) {
+        if (n == a.length) {
+            return a;
+        }
+        String[] trimmed = new String[n];
+        System.arraycopy(a, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static long[] trim(long[] a, int n) {
+        if (n == a.length) {
+            return a;
+        }
+        long[] trimmed = new long[n];
+        System.arraycopy(a, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static long[][] trim(long[][] a, int n) {
+        if (n == a.length) {
+            return a;
+        }
+        long[][] trimmed = new long[n][];
+        System.arraycopy(a, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(PlaybackMetrics.BUCKET_COUNT);
+
+        final AtomicLong sum = new AtomicLong();
+
+        final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            micros = Math.max(0, micros);
+            this.buckets.incrementAndGet(PlaybackMetrics.bucketOf(micros));
+            this.sum.addAndGet(micros);
+            for (long max = this.max.get(); micros > max; max = this.max.get()) {
+                if (this.max.compareAndSet(max, micros)) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,500 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.util.Log;
+import android.util.TypedValue;
+
+/**
+ * The byte offset of every MPEG audio frame in a stream, built by a streaming frame header scanner.
+ * Since every frame of a stream holds the same number of samples, the time of a frame follows from
+ * its number, so mapping a time to its frame and byte offset is constant-time even for VBR files.
+ * <p>
+ * Offsets live in a single {@code long[]}; scanning reads through one reused buffer and creates no
+ * objects per frame. Indexes are persisted under the cache directory, named by a content hash of
+ * the file, so opening the same content again only has to read the index back.
+ * <p>
+ * The scanner only locks on to a run of several frames that follow each other, both at the start
+ * and after losing sync, since a pair of matching headers turns up by chance in other formats.
+ */
+public class Mp3FrameIndex {
+    private static final String TAG = "Mp3FrameIndex";
+
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final String MPEG_TYPE = "audio/mpeg";
+
+    private static final int MAGIC = 0x4D503349; // "MP3I"
+
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // how many frames in a row it takes to lock on to a stream
+    private static final int SYNC_FRAMES = 4;
+
+    // how much of each end of the file goes into the content hash
+    private static final int HASH_SPAN = 64 * 1024;
+
+    // frame deltas that do not fit in a char are escaped with this and written out in full
+    private static final int LONG_DELTA = 0xFFFF;
+
+    private static final int XING = 0x58696E67;
+
+    private static final int INFO = 0x496E666F;
+
+    private static final int VBRI = 0x56425249;
+
+    private static final int[][] BITRATES = {
+            // MPEG-1 layer I, II, III
+            { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+            { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+            { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+            // MPEG-2 and 2.5 layer I, II and III
+            { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+            { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+    };
+
+    private static final int[][] SAMPLE_RATES = {
+            { 11025, 12000, 8000 }, // MPEG-2.5
+            null, // reserved
+            { 22050, 24000, 16000 }, // MPEG-2
+            { 44100, 48000, 32000 }, // MPEG-1
+    };
+
+    private final long[] offsets;
+
+    private final int frameCount;
+
+    private final int sampleRate;
+
+    private final int samplesPerFrame;
+
+    private Mp3FrameIndex(long[] offsets, int frameCount, int sampleRate, int samplesPerFrame) {
+        this.offsets = offsets;
+        this.frameCount = frameCount;
+        this.sampleRate = sampleRate;
+        this.samplesPerFrame = samplesPerFrame;
+    }
+
+    /**
+     * Loads the index for the given item from the cache, or scans the item and caches the result.
+     * Blocks for as long as the scan takes, so call it off the playback threads.
+     */
+    public static Mp3FrameIndex load(Context context, Uri uri) throws IOException {
+        MappedDataSource source = MappedDataSource.open(context, uri);
+        try {
+            String hash = contentHash(source);
+            File file = new File(new File(context.getCacheDir(), "mp3index"), hash + ".idx");
+            if (file.exists()) {
+                try {
+                    return read(file, source.getSize());
+                } catch (IOException e) {
+                    Log.w(TAG, "Discarding unreadable index " + file, e);
+                    file.delete();
+                }
+            }
+            long start = System.nanoTime();
+            Mp3FrameIndex index = scan(source);
+            if (DEBUG) {
+                Log.d(TAG, "Indexed " + index.frameCount + " frames of " + uri + " in "
+                        + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+            try {
+                index.write(file, source.getSize());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to cache index in " + file, e);
+            }
+            return index;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * @return whether the item is MPEG audio by its MIME type or, if it has none, by the extension
+     *         of its file: for a raw resource, the file it was built from
+     */
+    public static boolean isMpeg(Context context, Uri uri) {
+        String type = context.getContentResolver().getType(uri);
+        if (type != null) {
+            return MPEG_TYPE.equals(type);
+        }
+        String name = uri.getPath();
+        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())) {
+            try {
+                TypedValue value = new TypedValue();
+                context.getResources().getValue(Integer.parseInt(uri.getLastPathSegment()), value,
+                        true);
+                name = value.string != null ? value.string.toString() : null;
+            } catch (NumberFormatException e) {
+                // by type and name, which has no extension
+                return false;
+            } catch (Resources.NotFoundException e) {
+                return false;
+            }
+        }
+        return name != null && name.regionMatches(true, name.length() - 4, ".mp3", 0, 4);
+    }
+
+    /**
+     * @return a cheap fingerprint of the content: its size and a CRC of its first and last bytes
+     */
+    public static String contentHash(MappedDataSource source) {
+        byte[] buffer = new byte[HASH_SPAN];
+        CRC32 crc = new CRC32();
+        long size = source.getSize();
+        int n = source.readAt(0, buffer, 0, buffer.length);
+        if (n > 0) {
+            crc.update(buffer, 0, n);
+        }
+        if (size > HASH_SPAN) {
+            n = source.readAt(Math.max(HASH_SPAN, size - HASH_SPAN), buffer, 0, buffer.length);
+            if (n > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return Long.toHexString(size) + "-" + Long.toHexString(crc.getValue());
+    }
+
+    public static Mp3FrameIndex scan(MappedDataSource source) throws IOException {
+        Reader reader = new Reader(source);
+        long end = source.getSize();
+        if (end >= 128 && source.byteAt(end - 128) == 'T' && source.byteAt(end - 127) == 'A'
+                && source.byteAt(end - 126) == 'G') {
+            end -= 128; // ID3v1 tag
+        }
+        long position = skipId3v2(source);
+
+        // lock on to the first run of frames
+        int reference = -1;
+        while (position + 4 <= end) {
+            int header = reader.intAt(position);
+            if (frameLength(header) > 0 && isSynced(reader, header, header, position, end)) {
+                reference = header;
+                break;
+            }
+            position++;
+        }
+        if (reference == -1) {
+            throw new IOException("Not an MPEG audio stream");
+        }
+        int version = (reference >>> 19) & 3;
+        int sampleRate = SAMPLE_RATES[version][(reference >>> 10) & 3];
+        int samplesPerFrame = samplesPerFrame(reference);
+
+        if (isInfoFrame(reader, reference, position)) {
+            position += frameLength(reference); // VBR header frame; decoders do not play it
+        }
+
+        long[] offsets = new long[1024];
+        int count = 0;
+        boolean synced = true;
+        while (position + 4 <= end) {
+            int header = reader.intAt(position);
+            int length = matches(reference, header) ? frameLength(header) : 0;
+            if (length <= 0 || (!synced && !isSynced(reader, reference, header, position, end))) {
+                synced = false;
+                position++; // lost sync; look for the next run of frames
+                continue;
+            }
+            synced = true;
+            if (count == offsets.length) {
+                long[] grown = new long[offsets.length * 2];
+                System.arraycopy(offsets, 0, grown, 0, count);
+                offsets = grown;
+            }
+            offsets[count++] = position;
+            position += length;
+        }
+        return new Mp3FrameIndex(offsets, count, sampleRate, samplesPerFrame);
+    }
+
+    public int getFrameCount() {
+        return this.frameCount;
+    }
+
+    /**
+     * @return the exact duration in milliseconds
+     */
+    public int getDuration() {
+        return this.timeOfFrame(this.frameCount);
+    }
+
+    /**
+     * @return the number of the frame playing at the given time
+     */
+    public int frameAt(int time) {
+        long frame = (long)Math.max(0, time) * this.sampleRate / (this.samplesPerFrame * 1000L);
+        return (int)Math.min(frame, Math.max(0, this.frameCount - 1));
+    }
+
+    /**
+     * @return the start time of the given frame in milliseconds
+     */
+    public int timeOfFrame(int frame) {
+        return (int)(frame * (long)this.samplesPerFrame * 1000L / this.sampleRate);
+    }
+
+    /**
+     * @return the byte offset of the frame playing at the given time, or -1 if there are no frames
+     */
+    public long offsetAt(int time) {
+        return this.frameCount == 0 ? -1 : this.offsets[this.frameAt(time)];
+    }
+
+    /**
+     * @return the start time of the frame playing at the given time
+     */
+    public int snapToFrame(int time) {
+        return this.timeOfFrame(this.frameAt(time));
+    }
+
+    private void write(File file, long size) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeInt(this.sampleRate);
+            out.writeInt(this.samplesPerFrame);
+            out.writeInt(this.frameCount);
+            long previous = 0;
+            for (int i = 0; i < this.frameCount; i++) {
+                long delta = this.offsets[i] - previous;
+                if (delta < LONG_DELTA) {
+                    out.writeChar((int)delta);
+                } else {
+                    out.writeChar(LONG_DELTA);
+                    out.writeLong(delta);
+                }
+                previous = this.offsets[i];
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    private static Mp3FrameIndex read(File file, long size) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != size) {
+                throw new IOException("Not an index for this content");
+            }
+            int sampleRate = in.readInt();
+            int samplesPerFrame = in.readInt();
+            int frameCount = in.readInt();
+            if (sampleRate <= 0 || samplesPerFrame <= 0 || frameCount < 0) {
+                throw new IOException("Corrupt index");
+            }
+            long[] offsets = new long[frameCount];
+            long previous = 0;
+            for (int i = 0; i < frameCount; i++) {
+                int delta = in.readChar();
+                previous += delta == LONG_DELTA ? in.readLong() : delta;
+                offsets[i] = previous;
+            }
+            return new Mp3FrameIndex(offsets, frameCount, sampleRate, samplesPerFrame);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Estimates the duration of MPEG audio from its first bytes, without scanning it: exactly from a
+     * Xing, Info or VBRI header if the first frame has one, otherwise from its bitrate.
+     *
+     * @param head the first bytes of the audio, after any ID3v2 tag
+     * @param audioBytes the length of the audio in bytes
+     * @return the duration in milliseconds, or -1 if no frame was found
+     */
+    static int estimateDuration(byte[] head, int length, long audioBytes) {
+        for (int i = 0; i + 4 <= length; i++) {
+            int header = intAt(head, i);
+            int frameLength = frameLength(header);
+            if (frameLength <= 0
+                    || (i + frameLength + 4 <= length && !matches(header, intAt(head, i
+                            + frameLength)))) {
+                continue;
+            }
+            int sampleRate = SAMPLE_RATES[(header >>> 19) & 3][(header >>> 10) & 3];
+            boolean mpeg1 = ((header >>> 19) & 3) == 3;
+            boolean mono = ((header >>> 6) & 3) == 3;
+            boolean crc = ((header >>> 16) & 1) == 0;
+            int xing = i + 4 + (crc ? 2 : 0) + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+            long frames = -1;
+            if (xing + 12 <= length) {
+                int tag = intAt(head, xing);
+                if ((tag == XING || tag == INFO) && (intAt(head, xing + 4) & 1) != 0) {
+                    frames = intAt(head, xing + 8) & 0xFFFFFFFFL;
+                }
+            }
+            if (frames < 0 && i + 36 + 18 <= length && intAt(head, i + 36) == VBRI) {
+                frames = intAt(head, i + 36 + 14) & 0xFFFFFFFFL;
+            }
+            if (frames > 0) {
+                return (int)Math.min(Integer.MAX_VALUE, frames * samplesPerFrame(header) * 1000L
+                        / sampleRate);
+            }
+            return (int)Math.min(Integer.MAX_VALUE, (audioBytes - i) * 8000 / bitrate(header));
+        }
+        return -1;
+    }
+
+    private static int intAt(byte[] b, int i) {
+        return (b[i] & 0xFF) << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8
+                | (b[i + 3] & 0xFF);
+    }
+
+    private static long skipId3v2(MappedDataSource source) {
+        long position = 0;
+        // tags may be repeated, e.g. after editing by some tools
+        while (source.byteAt(position) == 'I' && source.byteAt(position + 1) == 'D'
+                && source.byteAt(position + 2) == '3') {
+            int flags = source.byteAt(position + 5);
+            long size = 0;
+            for (int i = 6; i < 10; i++) {
+                size = (size << 7) | (source.byteAt(position + i) & 0x7F); // synchsafe
+            }
+            position += 10 + size + ((flags & 0x10) != 0 ? 10 : 0);
+        }
+        return position;
+    }
+
+    private static boolean isInfoFrame(Reader reader, int header, long position) {
+        boolean mpeg1 = ((header >>> 19) & 3) == 3;
+        boolean mono = ((header >>> 6) & 3) == 3;
+        boolean crc = ((header >>> 16) & 1) == 0;
+        int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+        int tag = reader.intAt(position + 4 + (crc ? 2 : 0) + sideInfo);
+        return tag == XING || tag == INFO || reader.intAt(position + 36) == VBRI;
+    }
+
+    // whether SYNC_FRAMES frames matching the reference follow each other from the given one, or
+    // fewer that end the stream exactly
+    private static boolean isSynced(Reader reader, int reference, int header, long position,
+            long end) {
+        for (int i = 1; i < SYNC_FRAMES; i++) {
+            position += frameLength(header);
+            if (position == end) {
+                return true;
+            }
+            header = reader.intAt(position);
+            if (position + 4 > end || !matches(reference, header)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // whether the header is valid and has the same version, layer and sample rate as the reference
+    private static boolean matches(int reference, int header) {
+        return frameLength(header) > 0 && (reference & 0xFFFE0C00) == (header & 0xFFFE0C00);
+    }
+
+    private static int samplesPerFrame(int header) {
+        int layer = (header >>> 17) & 3;
+        if (layer == 3) {
+            return 384;
+        } else if (layer == 1 && ((header >>> 19) & 3) != 3) {
+            return 576;
+        } else {
+            return 1152;
+        }
+    }
+
+    /**
+     * @return the length in bytes of the frame starting with the given header, or 0 if the header is
+     *         not valid
+     */
+    static int frameLength(int header) {
+        if ((header >>> 21) != 0x7FF) {
+            return 0;
+        }
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        int bitrateIndex = (header >>> 12) & 0xF;
+        int sampleRateIndex = (header >>> 10) & 3;
+        if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15
+                || sampleRateIndex == 3) {
+            return 0;
+        }
+        int bitrate = bitrate(header);
+        int sampleRate = SAMPLE_RATES[version][sampleRateIndex];
+        int padding = (header >>> 9) & 1;
+        if (layer == 3) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        } else if (layer == 1 && version != 3) {
+            return 72 * bitrate / sampleRate + padding;
+        } else {
+            return 144 * bitrate / sampleRate + padding;
+        }
+    }
+
+    // in bits per second; the header must be valid
+    private static int bitrate(int header) {
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        int table;
+        if (version == 3) {
+            table = 3 - layer; // I -> 0, II -> 1, III -> 2
+        } else {
+            table = layer == 3 ? 3 : 4;
+        }
+        return BITRATES[table][(header >>> 12) & 0xF] * 1000;
+    }
+
+    // Reads big-endian ints through one reused buffer, refilling it as the position moves on
+    private static final class Reader {
+        private final MappedDataSource source;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private long start = 0;
+
+        private int length = 0;
+
+        Reader(MappedDataSource source) {
+            this.source = source;
+        }
+
+        // returns 0 (never a valid header) past the end of the data
+        int intAt(long position) {
+            if (position < this.start || position + 4 > this.start + this.length) {
+                this.start = position;
+                this.length = Math.max(0, this.source.readAt(position, this.buffer, 0,
+                        this.buffer.length));
+                if (this.length < 4) {
+                    return 0;
+                }
+            }
+            int i = (int)(position - this.start);
+            byte[] b = this.buffer;
+            return (b[i] & 0xFF) << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8
+                    | (b[i + 3] & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+
+/**
+ * Decodes the audio track of an item to 16-bit PCM with a {@link MediaExtractor} and a
+ * {@link MediaCodec}, handing each decoded buffer to a {@link Sink}. It is driven a step at a time,
+ * so that callers can check for cancellation, seek or wait between steps; each step feeds the codec
+ * at most one input buffer and takes at most one output buffer from it.
+ * <p>
+ * Not thread safe: one thread opens, steps and releases each decoder.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmDecoder {
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    public interface Sink {
+        /**
+         * Called when the codec announces the format of its output, which may differ from that of
+         * the track.
+         */
+        public void onOutputFormat(MediaFormat format) throws InterruptedException;
+
+        /**
+         * Called with each decoded buffer, in native byte order, which holds interleaved frames
+         * from {@code info.offset} for {@code info.size} bytes and is only valid during the call.
+         */
+        public void onPcm(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws InterruptedException;
+    }
+
+    private final MediaExtractor extractor;
+
+    private final MediaCodec codec;
+
+    private final MediaFormat format;
+
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    private ByteBuffer[] inputs;
+
+    private ByteBuffer[] outputs;
+
+    // no input is fed from this time on, in microseconds
+    private long end = Long.MAX_VALUE;
+
+    private boolean inputDone = false;
+
+    private boolean outputDone = false;
+
+    private PcmDecoder(MediaExtractor extractor, MediaCodec codec, MediaFormat format) {
+        this.extractor = extractor;
+        this.codec = codec;
+        this.format = format;
+        this.inputs = codec.getInputBuffers();
+        this.outputs = codec.getOutputBuffers();
+    }
+
+    /**
+     * @return a decoder of the first audio track of the given item, started
+     * @throws IOException if the item cannot be read or has no audio
+     */
+    public static PcmDecoder open(Context context, Uri uri) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(context, uri, null);
+            MediaFormat format = selectAudioTrack(extractor);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            return new PcmDecoder(extractor, codec, format);
+        } catch (IOException e) {
+            release(extractor, codec);
+            throw e;
+        } catch (RuntimeException e) {
+            release(extractor, codec);
+            throw e;
+        }
+    }
+
+    /**
+     * Selects the first audio track of the extractor.
+     *
+     * @return its format
+     * @throws IOException if there is none
+     */
+    public static MediaFormat selectAudioTrack(MediaExtractor extractor) throws IOException {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        throw new IOException("No audio");
+    }
+
+    /**
+     * @return the format of the track, which is also that of the output until the codec announces
+     *         otherwise
+     */
+    public MediaFormat getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Stops feeding the codec at the first sample at or after the given time, in microseconds, as
+     * if the track ended there.
+     */
+    public void setEnd(long end) {
+        this.end = end;
+    }
+
+    /**
+     * Seeks to the sync sample at or before the given time, in microseconds, dropping whatever the
+     * codec holds.
+     *
+     * @return the time of the sample decoding resumes from, or -1 past the end
+     */
+    public long seekTo(long time) {
+        this.extractor.seekTo(time, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        this.codec.flush();
+        this.inputDone = false;
+        this.outputDone = false;
+        return this.extractor.getSampleTime();
+    }
+
+    /**
+     * Feeds the codec a sample, if it has room, and hands the sink a decoded buffer, if one is
+     * ready. Each call waits for the codec for a few milliseconds at most.
+     *
+     * @return false once the last buffer has been handed to the sink, until the next seek
+     */
+    public boolean step(Sink sink) throws InterruptedException {
+        if (this.outputDone) {
+            return false;
+        }
+        if (!this.inputDone) {
+            int index = this.codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (index >= 0) {
+                long time = this.extractor.getSampleTime();
+                int size = time < 0 || time >= this.end ? -1 : this.extractor.readSampleData(
+                        this.inputs[index], 0);
+                if (size < 0) {
+                    this.codec.queueInputBuffer(index, 0, 0, 0,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    this.inputDone = true;
+                } else {
+                    this.codec.queueInputBuffer(index, 0, size, time, 0);
+                    this.extractor.advance();
+                }
+            }
+        }
+        int index = this.codec.dequeueOutputBuffer(this.info, CODEC_TIMEOUT_US);
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            this.outputs = this.codec.getOutputBuffers();
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            sink.onOutputFormat(this.codec.getOutputFormat());
+        } else if (index >= 0) {
+            ByteBuffer buffer = this.outputs[index];
+            buffer.order(ByteOrder.nativeOrder());
+            try {
+                sink.onPcm(buffer, this.info);
+            } finally {
+                this.codec.releaseOutputBuffer(index, false);
+            }
+            if ((this.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                this.outputDone = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void release() {
+        release(this.extractor, this.codec);
+    }
+
+    private static void release(MediaExtractor extractor, MediaCodec codec) {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // already stopped by a failure
+            }
+            codec.release();
+        }
+        extractor.release();
+    }
+}
@@ -0,0 +1,616 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * An {@link AudioEngine} that decodes with a {@link PcmDecoder} and plays the PCM through an
+ * {@link AudioTrack} it writes itself. A decoder thread fills a {@link PcmRing} and an output thread
+ * drains it into the track, so how much audio is buffered ahead, and so how long a hiccup in
+ * decoding or I/O can be ridden out, is set by the ring depth rather than by the platform. Volume
+ * changes are ramped over a few milliseconds by a {@link GainRamp} on the output thread instead of
+ * being applied as a step, so muting and ducking do not click. Times the output thread ran out of
+ * audio are counted as {@link PlaybackMetrics#UNDERRUNS}, except while the ring refills after a
+ * seek.
+ * <p>
+ * Seeks are handled by the decoder thread, which marks everything already in the ring as stale;
+ * the output thread drops it, flushes the track and reports the seek complete. Neither thread
+ * polls: each waits on the session's lock until the other, or a play, seek or release, changes
+ * what it is waiting for. At the end of the item the output thread waits the same way for the
+ * track's notification marker, set at the last frame written.
+ * <p>
+ * An item that decodes to no audio at all is reported as an error.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmEngine implements AudioEngine {
+    private static final String TAG = "PcmEngine";
+
+    private static final int RAMP_MILLIS = 30;
+
+    // how long past the expected end of the item the output thread waits for the track's marker
+    private static final int DRAIN_TIMEOUT = 200;
+
+    private static final int CALLBACK_PREPARED = 1;
+
+    private static final int CALLBACK_SEEK_COMPLETE = 2;
+
+    private static final int CALLBACK_COMPLETION = 3;
+
+    private static final int CALLBACK_ERROR = 4;
+
+    public static class Factory implements AudioEngine.Factory {
+        private final int bufferMillis;
+
+        private final MetricsRegistry metrics;
+
+        /**
+         * @param bufferMillis how much decoded audio to keep ahead of the track; more survives
+         *            longer stalls, less starts and seeks sooner
+         */
+        public Factory(int bufferMillis, MetricsRegistry metrics) {
+            this.bufferMillis = bufferMillis;
+            this.metrics = metrics;
+        }
+
+        public AudioEngine create() {
+            return new PcmEngine(this.bufferMillis, this.metrics);
+        }
+    }
+
+    private final int bufferMillis;
+
+    private final MetricsRegistry metrics;
+
+    private final Handler handler;
+
+    private Listener listener;
+
+    private Context context;
+
+    private Uri uri;
+
+    private PowerManager.WakeLock wakeLock;
+
+    // guarded by this
+    private Session session;
+
+    // read by the output thread of the current session
+    private volatile float volume = 1.0f;
+
+    public PcmEngine(int bufferMillis, MetricsRegistry metrics) {
+        this.bufferMillis = bufferMillis;
+        this.metrics = metrics;
+        Looper looper = Looper.myLooper();
+        this.handler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setDataSource(Context context, Uri uri) throws IOException {
+        this.context = context;
+        this.uri = uri;
+        if (this.wakeLock == null) {
+            PowerManager powerManager = (PowerManager)context
+                    .getSystemService(Context.POWER_SERVICE);
+            this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            this.wakeLock.setReferenceCounted(false);
+        }
+    }
+
+    public synchronized void prepareAsync() {
+        if (this.uri == null || this.session != null) {
+            throw new IllegalStateException("prepareAsync() called in the wrong state");
+        }
+        this.session = new Session(this.context, this.uri);
+        this.session.decoder.start();
+    }
+
+    public synchronized void start() {
+        if (this.session == null || !this.session.prepared) {
+            throw new IllegalStateException("start() called before prepared");
+        }
+        this.wakeLock.acquire();
+        this.session.play();
+    }
+
+    public synchronized void pause() {
+        if (this.session != null) {
+            this.session.pause();
+        }
+        if (this.wakeLock != null) {
+            this.wakeLock.release();
+        }
+    }
+
+    public synchronized void seekTo(int position) {
+        if (this.session == null || !this.session.prepared) {
+            throw new IllegalStateException("seekTo() called before prepared");
+        }
+        this.session.pendingSeek.set(Math.max(0, position));
+        this.session.signal();
+    }
+
+    public synchronized int getCurrentPosition() {
+        return this.session == null ? 0 : this.session.getPosition();
+    }
+
+    public synchronized int getDuration() {
+        return this.session == null ? -1 : this.session.duration;
+    }
+
+    public void setVolume(float volume) {
+        this.volume = volume;
+    }
+
+    public boolean setNext(AudioEngine next) {
+        return false;
+    }
+
+    public synchronized void reset() {
+        if (this.session != null) {
+            this.session.release();
+            this.session = null;
+        }
+        if (this.wakeLock != null) {
+            this.wakeLock.release();
+        }
+        this.uri = null;
+    }
+
+    public void release() {
+        this.reset();
+        this.context = null;
+    }
+
+    // posted to the listener's thread; dropped if the session ended in the meantime
+    private class Callback implements Runnable {
+        private final Session session;
+
+        private final int type;
+
+        private int what;
+
+        Callback(Session session, int type) {
+            this.session = session;
+            this.type = type;
+        }
+
+        public void run() {
+            synchronized (PcmEngine.this) {
+                if (this.session != PcmEngine.this.session) {
+                    return;
+                }
+                if (this.type == CALLBACK_COMPLETION && wakeLock != null) {
+                    wakeLock.release();
+                }
+            }
+            switch (this.type) {
+                case CALLBACK_PREPARED:
+                    listener.onPrepared(PcmEngine.this);
+                    break;
+                case CALLBACK_SEEK_COMPLETE:
+                    listener.onSeekComplete(PcmEngine.this);
+                    break;
+                case CALLBACK_COMPLETION:
+                    listener.onCompletion(PcmEngine.this);
+                    break;
+                case CALLBACK_ERROR:
+                    listener.onError(PcmEngine.this, this.what, 0);
+                    break;
+            }
+        }
+    }
+
+    // One prepared item: the decoder and output threads and everything they share
+    private class Session implements PcmDecoder.Sink, AudioTrack.OnPlaybackPositionUpdateListener {
+        final Context context;
+
+        final Uri uri;
+
+        final Thread decoder = new Thread(TAG + "-decoder") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                decode();
+            }
+        };
+
+        final Thread output = new Thread(TAG + "-output") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                output();
+            }
+        };
+
+        // preallocated, so that the output thread does not allocate to report anything
+        final Callback seekCompleteCallback = new Callback(this, CALLBACK_SEEK_COMPLETE);
+
+        final Callback completionCallback = new Callback(this, CALLBACK_COMPLETION);
+
+        // waited on by either thread for the other, or for a play, seek or release
+        final Object lock = new Object();
+
+        // the position to seek to, in milliseconds, or -1 if none
+        final AtomicInteger pendingSeek = new AtomicInteger(-1);
+
+        volatile boolean released = false;
+
+        volatile boolean prepared = false;
+
+        // guarded by lock
+        boolean playing = false;
+
+        // written by the decoder before it starts the output thread
+        volatile AudioTrack track;
+
+        volatile PcmRing ring;
+
+        volatile int sampleRate;
+
+        volatile int channels;
+
+        volatile int duration = -1;
+
+        // written by the decoder: everything in the ring before staleBefore predates a seek to
+        // staleBase; endIndex is the ring index where the item ends, or -1 if not reached yet
+        volatile int staleBase = 0;
+
+        volatile long staleBefore = 0;
+
+        volatile long endIndex = -1;
+
+        // written by the output thread: the position at the last flush of the track
+        volatile int basePosition = 0;
+
+        volatile boolean completed = false;
+
+        // used by the decoder thread only: the format of the track, and decoded samples
+        MediaFormat format;
+
+        short[] samples = new short[0];
+
+        Session(Context context, Uri uri) {
+            this.context = context;
+            this.uri = uri;
+        }
+
+        void play() {
+            synchronized (this.lock) {
+                this.playing = true;
+                this.track.play();
+                this.lock.notifyAll();
+            }
+        }
+
+        void pause() {
+            synchronized (this.lock) {
+                this.playing = false;
+                if (this.track != null) {
+                    this.track.pause();
+                }
+                this.lock.notifyAll();
+            }
+        }
+
+        boolean isPlaying() {
+            synchronized (this.lock) {
+                return this.playing;
+            }
+        }
+
+        void release() {
+            this.released = true;
+            this.decoder.interrupt();
+            this.output.interrupt();
+        }
+
+        // wakes up whichever thread waits for what was just changed
+        void signal() {
+            synchronized (this.lock) {
+                this.lock.notifyAll();
+            }
+        }
+
+        int getPosition() {
+            AudioTrack track = this.track;
+            if (track == null) {
+                return 0;
+            }
+            if (this.completed) {
+                return this.duration;
+            }
+            int position = this.basePosition
+                    + (int)(track.getPlaybackHeadPosition() * 1000L / this.sampleRate);
+            return this.duration > 0 ? Math.min(position, this.duration) : position;
+        }
+
+        void decode() {
+            PcmDecoder decoder = null;
+            try {
+                decoder = PcmDecoder.open(this.context, this.uri);
+                this.format = decoder.getFormat();
+                if (this.format.containsKey(MediaFormat.KEY_DURATION)) {
+                    this.duration = (int)(this.format.getLong(MediaFormat.KEY_DURATION) / 1000);
+                }
+                this.decode(decoder);
+            } catch (Exception e) {
+                if (!this.released) {
+                    Log.w(TAG, "Failed to decode " + this.uri, e);
+                    Callback error = new Callback(this, CALLBACK_ERROR);
+                    error.what = MediaPlayer.MEDIA_ERROR_UNKNOWN;
+                    handler.post(error);
+                }
+            } finally {
+                if (decoder != null) {
+                    decoder.release();
+                }
+                if (this.track != null && !this.prepared) {
+                    // the output thread, which owns the track from then on, never started
+                    this.track.release();
+                }
+            }
+        }
+
+        private void decode(PcmDecoder decoder) throws IOException, InterruptedException {
+            boolean outputDone = false;
+            while (!this.released) {
+                int seek = this.pendingSeek.getAndSet(-1);
+                if (seek >= 0) {
+                    long time = decoder.seekTo(seek * 1000L);
+                    outputDone = false;
+                    this.endIndex = -1;
+                    this.staleBase = time >= 0 ? (int)(time / 1000) : seek;
+                    this.staleBefore = this.ring.getWriteIndex();
+                    this.signal();
+                }
+                if (outputDone) {
+                    // nothing left to decode unless there is a seek
+                    synchronized (this.lock) {
+                        while (!this.released && this.pendingSeek.get() < 0) {
+                            this.lock.wait();
+                        }
+                    }
+                    continue;
+                }
+                if (!decoder.step(this)) {
+                    if (this.track == null) {
+                        // an empty or undecodable item, which would otherwise never be prepared
+                        throw new IOException("No audio decoded");
+                    }
+                    outputDone = true;
+                    this.endIndex = this.ring.getWriteIndex();
+                    this.signal();
+                }
+                if (!this.prepared && this.track != null
+                        && (outputDone || this.ring.available() >= this.ring.getCapacity() / 2)) {
+                    this.prepared = true;
+                    this.output.start();
+                    handler.post(new Callback(this, CALLBACK_PREPARED));
+                }
+            }
+        }
+
+        public void onOutputFormat(MediaFormat format) throws InterruptedException {
+            if (this.track == null) {
+                this.open(format);
+            } else {
+                Log.w(TAG, "Ignoring output format change to " + format);
+            }
+        }
+
+        public void onPcm(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws InterruptedException {
+            if (this.track == null) {
+                if (info.size == 0) {
+                    // an end of stream with no audio before it; there is nothing to play
+                    return;
+                }
+                // some decoders never announce their output format
+                this.open(this.format);
+            }
+            int count = info.size / 2;
+            if (this.samples.length < count) {
+                this.samples = new short[count];
+            }
+            buffer.position(info.offset);
+            for (int i = 0; i < count; i++) {
+                this.samples[i] = buffer.getShort();
+            }
+            this.fill(this.samples, count);
+        }
+
+        // creates the track and the ring for the given PCM format
+        private void open(MediaFormat format) throws InterruptedException {
+            this.sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            this.channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            if (this.channels < 1 || this.channels > 2) {
+                throw new IllegalArgumentException("Unsupported channel count " + this.channels);
+            }
+            int channelConfig = this.channels == 1 ? AudioFormat.CHANNEL_OUT_MONO
+                    : AudioFormat.CHANNEL_OUT_STEREO;
+            int minBufferSize = AudioTrack.getMinBufferSize(this.sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            this.ring = new PcmRing(Math.max((int)((long)this.sampleRate * this.channels
+                    * bufferMillis / 1000), minBufferSize));
+            this.track = new AudioTrack(AudioManager.STREAM_MUSIC, this.sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT, minBufferSize, AudioTrack.MODE_STREAM);
+            this.track.setPlaybackPositionUpdateListener(this, handler);
+        }
+
+        // writes whole frames into the ring, waiting for room; gives up on a seek or release
+        private void fill(short[] samples, int count) throws InterruptedException {
+            PcmRing ring = this.ring;
+            for (int offset = 0; offset < count;) {
+                int room = ring.getCapacity() - ring.available();
+                int n = ring.write(samples, offset, Math.min(count - offset, room - room
+                        % this.channels));
+                offset += n;
+                if (n > 0) {
+                    this.signal();
+                    continue;
+                }
+                synchronized (this.lock) {
+                    while (!this.released && this.pendingSeek.get() < 0
+                            && ring.getCapacity() - ring.available() < this.channels) {
+                        this.lock.wait();
+                    }
+                }
+                if (this.released || this.pendingSeek.get() >= 0) {
+                    return;
+                }
+            }
+        }
+
+        void output() {
+            AudioTrack track = this.track;
+            PcmRing ring = this.ring;
+            GainRamp ramp = new GainRamp(volume);
+            int rampFrames = this.sampleRate * RAMP_MILLIS / 1000;
+            // about 10 ms at a time
+            short[] buffer = new short[Math.max(this.channels, this.sampleRate / 100
+                    * this.channels)];
+            int pending = 0;
+            int pendingOffset = 0;
+            long framesWritten = 0;
+            boolean underrun = false;
+            try {
+                while (!this.released) {
+                    long staleBefore = this.staleBefore;
+                    if (ring.getReadIndex() < staleBefore) {
+                        synchronized (this.lock) {
+                            track.pause();
+                            track.flush();
+                            ring.skipTo(staleBefore);
+                            this.basePosition = this.staleBase;
+                            this.completed = false;
+                            if (this.playing) {
+                                track.play();
+                            }
+                            this.lock.notifyAll();
+                        }
+                        pending = 0;
+                        framesWritten = 0;
+                        // the ring is empty until the decoder catches up, which is no underrun
+                        underrun = true;
+                        handler.post(this.seekCompleteCallback);
+                        continue;
+                    }
+                    if (!this.isPlaying()) {
+                        synchronized (this.lock) {
+                            if (!this.playing && ring.getReadIndex() >= this.staleBefore) {
+                                this.lock.wait();
+                            }
+                        }
+                        continue;
+                    }
+                    if (pending == 0) {
+                        pendingOffset = 0;
+                        pending = ring.read(buffer, 0, buffer.length);
+                        if (pending == 0) {
+                            long end = this.endIndex;
+                            if (end >= 0 && ring.getReadIndex() >= end) {
+                                this.drain(track, framesWritten);
+                                continue;
+                            }
+                            if (!underrun) {
+                                underrun = true;
+                                metrics.increment(PlaybackMetrics.UNDERRUNS);
+                            }
+                            synchronized (this.lock) {
+                                if (this.playing && ring.available() == 0 && this.endIndex < 0
+                                        && ring.getReadIndex() >= this.staleBefore) {
+                                    this.lock.wait();
+                                }
+                            }
+                            continue;
+                        }
+                        this.signal();
+                        underrun = false;
+                        float target = volume;
+                        if (target != ramp.getTarget()) {
+                            ramp.rampTo(target, rampFrames);
+                        }
+                        ramp.apply(buffer, 0, pending, this.channels);
+                    }
+                    int n = track.write(buffer, pendingOffset, pending);
+                    if (n < 0) {
+                        throw new IllegalStateException("AudioTrack.write() failed with " + n);
+                    }
+                    // a track paused while we were writing takes only part of it
+                    pending -= n;
+                    pendingOffset += n;
+                    framesWritten += n / this.channels;
+                }
+            } catch (InterruptedException e) {
+                // released
+            } catch (RuntimeException e) {
+                if (!this.released) {
+                    Log.w(TAG, "Failed to play " + this.uri, e);
+                    Callback error = new Callback(this, CALLBACK_ERROR);
+                    error.what = MediaPlayer.MEDIA_ERROR_UNKNOWN;
+                    handler.post(error);
+                }
+            } finally {
+                track.release();
+            }
+        }
+
+        // lets the track play out what was written, then reports completion
+        private void drain(AudioTrack track, long framesWritten) throws InterruptedException {
+            track.setNotificationMarkerPosition((int)framesWritten);
+            track.stop();
+            synchronized (this.lock) {
+                int head = track.getPlaybackHeadPosition();
+                // woken by the marker, or by a seek; a track that stalls short of the marker is
+                // given up on a little after it should have played everything out
+                long deadline = System.currentTimeMillis() + (framesWritten - head) * 1000
+                        / this.sampleRate + DRAIN_TIMEOUT;
+                while (!this.released && this.ring.getReadIndex() >= this.staleBefore
+                        && head < framesWritten) {
+                    long timeout = deadline - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        break;
+                    }
+                    this.lock.wait(timeout);
+                    head = track.getPlaybackHeadPosition();
+                }
+            }
+            if (this.ring.getReadIndex() < this.staleBefore) {
+                return; // seeked while draining
+            }
+            synchronized (this.lock) {
+                this.playing = false;
+            }
+            this.completed = true;
+            handler.post(this.completionCallback);
+        }
+
+        public void onMarkerReached(AudioTrack track) {
+            this.signal();
+        }
+
+        public void onPeriodicNotification(AudioTrack track) {
+        }
+    }
+}
@@ -0,0 +1,92 @@
+
+package com.marakana.android.audioplayerdemo;
+
+/**
+ * A fixed-size ring of 16-bit PCM samples for exactly one producer thread and one consumer thread.
+ * Neither side takes a lock or allocates: each only advances its own index, and reads the other's
+ * through a volatile field, which also publishes the samples written before it.
+ */
+public class PcmRing {
+    private final short[] samples;
+
+    private final int mask;
+
+    // written by the producer only
+    private volatile long writeIndex = 0;
+
+    // written by the consumer only
+    private volatile long readIndex = 0;
+
+    /**
+     * @param capacity the minimum number of samples to hold; rounded up to a power of two
+     */
+    public PcmRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.samples = new short[size];
+        this.mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return this.samples.length;
+    }
+
+    /**
+     * @return the number of samples the consumer can read
+     */
+    public int available() {
+        return (int)(this.writeIndex - this.readIndex);
+    }
+
+    /**
+     * Producer only: copies as many of the given samples as fit.
+     *
+     * @return the number of samples copied
+     */
+    public int write(short[] src, int offset, int length) {
+        long write = this.writeIndex;
+        int n = Math.min(length, this.samples.length - (int)(write - this.readIndex));
+        int start = (int)write & this.mask;
+        int first = Math.min(n, this.samples.length - start);
+        System.arraycopy(src, offset, this.samples, start, first);
+        System.arraycopy(src, offset + first, this.samples, 0, n - first);
+        this.writeIndex = write + n;
+        return n;
+    }
+
+    /**
+     * Consumer only: copies up to the given number of samples out.
+     *
+     * @return the number of samples copied
+     */
+    public int read(short[] dst, int offset, int length) {
+        long read = this.readIndex;
+        int n = Math.min(length, (int)(this.writeIndex - read));
+        int start = (int)read & this.mask;
+        int first = Math.min(n, this.samples.length - start);
+        System.arraycopy(this.samples, start, dst, offset, first);
+        System.arraycopy(this.samples, 0, dst, offset + first, n - first);
+        this.readIndex = read + n;
+        return n;
+    }
+
+    /**
+     * @return the total number of samples written so far, which the producer can publish to mark
+     *         everything before it as stale
+     */
+    public long getWriteIndex() {
+        return this.writeIndex;
+    }
+
+    public long getReadIndex() {
+        return this.readIndex;
+    }
+
+    /**
+     * Consumer only: drops everything before the given write index.
+     */
+    public void skipTo(long index) {
+        if (index > this.readIndex) {
+            this.readIndex = index;
+        }
+    }
+}
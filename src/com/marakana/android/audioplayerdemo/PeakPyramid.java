@@ -0,0 +1,204 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The lowest and highest sample of a track at several resolutions. Level 0 holds one min/max pair
+ * per {@link #BIN_MILLIS} of audio; every further level merges pairs of bins of the level below,
+ * down to a handful of bins. All levels live in {@code short[]}s sized from the duration up front,
+ * under 10 KB per minute of audio in total, however the track is decoded.
+ * <p>
+ * Bins are filled in any order and from several threads through {@link #merge}; bins nothing was
+ * merged into yet are empty, with a minimum above their maximum. Only level 0 is persisted, since
+ * the other levels are quickly rebuilt from it.
+ */
+public class PeakPyramid {
+    public static final int BIN_MILLIS = 50;
+
+    private static final int MAGIC = 0x5045414B; // "PEAK"
+
+    private static final int VERSION = 1;
+
+    // levels are halved until they have no more bins than this
+    private static final int MIN_BINS = 16;
+
+    // min/max pairs, guarded by this
+    private final short[][] levels;
+
+    private final int[] counts;
+
+    private int filled = 0;
+
+    private boolean complete = false;
+
+    /**
+     * @param duration the duration of the track in milliseconds
+     */
+    public PeakPyramid(int duration) {
+        int bins = Math.max(1, (duration + BIN_MILLIS - 1) / BIN_MILLIS);
+        int depth = 1;
+        for (int n = bins; n > MIN_BINS; n = (n + 1) / 2) {
+            depth++;
+        }
+        this.levels = new short[depth][];
+        this.counts = new int[depth];
+        for (int level = 0; level < depth; level++) {
+            this.counts[level] = bins;
+            this.levels[level] = new short[2 * bins];
+            clear(this.levels[level], 0, bins);
+            bins = (bins + 1) / 2;
+        }
+    }
+
+    /**
+     * Marks the given number of min/max pairs as empty, starting at the given bin.
+     */
+    public static void clear(short[] peaks, int first, int count) {
+        for (int i = 2 * first, end = 2 * (first + count); i < end; i += 2) {
+            peaks[i] = Short.MAX_VALUE;
+            peaks[i + 1] = Short.MIN_VALUE;
+        }
+    }
+
+    public int getBinCount() {
+        return this.counts[0];
+    }
+
+    /**
+     * Widens the given run of level 0 bins to also cover the given min/max pairs, and updates the
+     * levels above. Empty pairs are skipped, and pairs past the end of the track are dropped.
+     */
+    public synchronized void merge(int first, short[] peaks, int count) {
+        short[] bins = this.levels[0];
+        count = Math.min(count, this.counts[0] - first);
+        if (count <= 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            short min = peaks[2 * i];
+            short max = peaks[2 * i + 1];
+            if (min > max) {
+                continue;
+            }
+            int bin = 2 * (first + i);
+            if (bins[bin] > bins[bin + 1]) {
+                this.filled++;
+            }
+            if (min < bins[bin]) {
+                bins[bin] = min;
+            }
+            if (max > bins[bin + 1]) {
+                bins[bin + 1] = max;
+            }
+        }
+        int from = first;
+        int to = first + count - 1;
+        for (int level = 1; level < this.levels.length; level++) {
+            short[] children = this.levels[level - 1];
+            short[] parents = this.levels[level];
+            int childCount = this.counts[level - 1];
+            from >>= 1;
+            to >>= 1;
+            for (int parent = from; parent <= to; parent++) {
+                int child = 2 * parent;
+                short min = children[2 * child];
+                short max = children[2 * child + 1];
+                if (child + 1 < childCount) {
+                    min = (short)Math.min(min, children[2 * child + 2]);
+                    max = (short)Math.max(max, children[2 * child + 3]);
+                }
+                parents[2 * parent] = min;
+                parents[2 * parent + 1] = max;
+            }
+        }
+    }
+
+    public synchronized void setComplete() {
+        this.complete = true;
+    }
+
+    public synchronized boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * @return the fraction of level 0 bins that have been filled
+     */
+    public synchronized float getProgress() {
+        return (float)this.filled / this.counts[0];
+    }
+
+    /**
+     * @return a copy of the finest level with no more than the given number of bins, or of the
+     *         coarsest level if they all have more
+     */
+    public synchronized WaveformPeaks getPeaks(int maxBins) {
+        int level = 0;
+        while (level < this.levels.length - 1 && this.counts[level] > maxBins) {
+            level++;
+        }
+        short[] peaks = new short[2 * this.counts[level]];
+        System.arraycopy(this.levels[level], 0, peaks, 0, peaks.length);
+        return new WaveformPeaks(BIN_MILLIS << level, peaks, this.complete);
+    }
+
+    public synchronized void write(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(BIN_MILLIS);
+            out.writeInt(this.counts[0]);
+            short[] bins = this.levels[0];
+            for (int i = 0; i < bins.length; i++) {
+                out.writeShort(bins[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * @return the complete pyramid stored in the given file
+     */
+    public static PeakPyramid read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != BIN_MILLIS) {
+                throw new IOException("Not a peak map");
+            }
+            int count = in.readInt();
+            if (count <= 0 || count > Integer.MAX_VALUE / BIN_MILLIS) {
+                throw new IOException("Corrupt peak map");
+            }
+            short[] bins = new short[2 * count];
+            for (int i = 0; i < bins.length; i++) {
+                bins[i] = in.readShort();
+            }
+            PeakPyramid pyramid = new PeakPyramid(count * BIN_MILLIS);
+            pyramid.merge(0, bins, count);
+            pyramid.setComplete();
+            return pyramid;
+        } finally {
+            in.close();
+        }
+    }
+}
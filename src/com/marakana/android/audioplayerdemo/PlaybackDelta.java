@@ -0,0 +1,121 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.marakana.android.audioplayerdemo.PlaybackState.State;
+
+/**
+ * The fields of a {@link PlaybackState} that changed since a session's last update, as a bit mask
+ * of {@code PlaybackState.FIELD_*} constants. Only those fields are parceled. A client keeps the
+ * state it has and brings it up to date with {@link #applyTo(PlaybackState)}.
+ */
+public final class PlaybackDelta implements Parcelable {
+    private static final State[] STATES = State.values();
+
+    private final int fields;
+
+    // the fields not in the mask are meaningless
+    private final PlaybackState state;
+
+    public PlaybackDelta(int fields, PlaybackState state) {
+        this.fields = fields;
+        this.state = state;
+    }
+
+    private PlaybackDelta(Parcel in) {
+        this.fields = in.readInt();
+        State state = State.STOPPED;
+        int position = 0;
+        long timestamp = 0;
+        int duration = 0;
+        boolean muted = false;
+        int bufferedPercent = 0;
+        if (this.has(PlaybackState.FIELD_STATE | PlaybackState.FIELD_POSITION)) {
+            state = STATES[in.readInt()];
+        }
+        if (this.has(PlaybackState.FIELD_POSITION)) {
+            position = in.readInt();
+            timestamp = in.readLong();
+        }
+        if (this.has(PlaybackState.FIELD_DURATION)) {
+            duration = in.readInt();
+        }
+        if (this.has(PlaybackState.FIELD_MUTED)) {
+            muted = in.readInt() != 0;
+        }
+        if (this.has(PlaybackState.FIELD_BUFFERED)) {
+            bufferedPercent = in.readInt();
+        }
+        this.state = new PlaybackState(state, position, duration, muted, bufferedPercent,
+                timestamp);
+    }
+
+    public int getFields() {
+        return this.fields;
+    }
+
+    private boolean has(int fields) {
+        return (this.fields & fields) != 0;
+    }
+
+    /**
+     * @param previous the state before this delta, or null for the first one
+     * @return the state after it
+     */
+    public PlaybackState applyTo(PlaybackState previous) {
+        if (previous == null) {
+            previous = new PlaybackState(State.STOPPED, 0, 0, false, 0, 0);
+        }
+        boolean position = this.has(PlaybackState.FIELD_POSITION);
+        PlaybackState from = position || this.has(PlaybackState.FIELD_STATE) ? this.state
+                : previous;
+        return new PlaybackState(from.getState(), position ? this.state.getPosition() : previous
+                .getPosition(), (this.has(PlaybackState.FIELD_DURATION) ? this.state : previous)
+                .getDuration(), (this.has(PlaybackState.FIELD_MUTED) ? this.state : previous)
+                .isMuted(), (this.has(PlaybackState.FIELD_BUFFERED) ? this.state : previous)
+                .getBufferedPercent(), position ? this.state.getTimestamp() : previous
+                .getTimestamp());
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(this.fields);
+        if (this.has(PlaybackState.FIELD_STATE | PlaybackState.FIELD_POSITION)) {
+            out.writeInt(this.state.getState().ordinal());
+        }
+        if (this.has(PlaybackState.FIELD_POSITION)) {
+            out.writeInt(this.state.getPosition());
+            out.writeLong(this.state.getTimestamp());
+        }
+        if (this.has(PlaybackState.FIELD_DURATION)) {
+            out.writeInt(this.state.getDuration());
+        }
+        if (this.has(PlaybackState.FIELD_MUTED)) {
+            out.writeInt(this.state.isMuted() ? 1 : 0);
+        }
+        if (this.has(PlaybackState.FIELD_BUFFERED)) {
+            out.writeInt(this.state.getBufferedPercent());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackDelta[fields=" + Integer.toBinaryString(this.fields) + ", " + this.state
+                + "]";
+    }
+
+    public static final Parcelable.Creator<PlaybackDelta> CREATOR = new Parcelable.Creator<PlaybackDelta>() {
+        public PlaybackDelta createFromParcel(Parcel in) {
+            return new PlaybackDelta(in);
+        }
+
+        public PlaybackDelta[] newArray(int size) {
+            return new PlaybackDelta[size];
+        }
+    };
+}
@@ -0,0 +1,214 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A snapshot of the service's counters and latency histograms. Latencies are in microseconds.
+ * Bucket i counts values up to {@link #getBucketBound(int)}, and the last bucket counts everything
+ * above the one before it.
+ * <p>
+ * Histograms named after an {@link IAudioPlayerService} method, such as {@code "call.play"}, time
+ * that call inside the service. Errors are counted as {@code "error(what,extra)"}.
+ */
+public final class PlaybackMetrics implements Parcelable {
+
+    // counters kept by the service
+    public static final String STALLS = "stalls";
+
+    public static final String ERRORS = "errors";
+
+    public static final String COMMANDS_COLLAPSED = "commandsCollapsed";
+
+    public static final String COLD_PREPARES = "coldPrepares";
+
+    public static final String WARM_PREPARES = "warmPrepares";
+
+    public static final String UNDERRUNS = "underruns";
+
+    public static final String SESSION_UPDATES = "sessionUpdates";
+
+    // updates held back by a session's rate, to go out later folded into one
+    public static final String SESSION_UPDATES_DEFERRED = "sessionUpdatesDeferred";
+
+    // latencies recorded by the service
+    public static final String PLAY_TO_PREPARED = "playToPrepared";
+
+    public static final String PREPARED_TO_STARTED = "preparedToStarted";
+
+    public static final String SEEK_TO_COMPLETE = "seekToComplete";
+
+    public static final String AUDIO_FOCUS_REQUEST = "audioFocusRequest";
+
+    public static final String MEDIA_BUTTON_TO_COMMAND = "mediaButtonToCommand";
+
+    static final int BUCKET_COUNT = 24;
+
+    static final long FIRST_BUCKET_BOUND = 10;
+
+    private final long timestamp;
+
+    private final String[] counterNames;
+
+    private final long[] counters;
+
+    private final String[] histogramNames;
+
+    private final long[][] buckets;
+
+    private final long[] sums;
+
+    private final long[] maxima;
+
+    PlaybackMetrics(long timestamp, String[] counterNames, long[] counters,
+            String[] histogramNames, long[][] buckets, long[] sums, long[] maxima) {
+        this.timestamp = timestamp;
+        this.counterNames = counterNames;
+        this.counters = counters;
+        this.histogramNames = histogramNames;
+        this.buckets = buckets;
+        this.sums = sums;
+        this.maxima = maxima;
+    }
+
+    private PlaybackMetrics(Parcel in) {
+        this.timestamp = in.readLong();
+        this.counterNames = in.createStringArray();
+        this.counters = in.createLongArray();
+        this.histogramNames = in.createStringArray();
+        this.buckets = new long[this.histogramNames.length][];
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = in.createLongArray();
+        }
+        this.sums = in.createLongArray();
+        this.maxima = in.createLongArray();
+    }
+
+    static int bucketOf(long micros) {
+        long bound = FIRST_BUCKET_BOUND;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++, bound <<= 1) {
+            if (micros <= bound) {
+                return i;
+            }
+        }
+        return BUCKET_COUNT - 1;
+    }
+
+    /**
+     * @return the largest value counted in the given bucket, or {@link Long#MAX_VALUE} for the
+     *         last one
+     */
+    public static long getBucketBound(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : FIRST_BUCKET_BOUND << bucket;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public String[] getCounterNames() {
+        return this.counterNames.clone();
+    }
+
+    public long getCounter(String name) {
+        int i = indexOf(this.counterNames, name);
+        return i < 0 ? 0 : this.counters[i];
+    }
+
+    public String[] getHistogramNames() {
+        return this.histogramNames.clone();
+    }
+
+    public long getCount(String histogram) {
+        int i = indexOf(this.histogramNames, histogram);
+        long count = 0;
+        if (i >= 0) {
+            for (long n : this.buckets[i]) {
+                count += n;
+            }
+        }
+        return count;
+    }
+
+    public long getMean(String histogram) {
+        long count = this.getCount(histogram);
+        return count == 0 ? 0 : this.sums[indexOf(this.histogramNames, histogram)] / count;
+    }
+
+    public long getMax(String histogram) {
+        int i = indexOf(this.histogramNames, histogram);
+        return i < 0 ? 0 : this.maxima[i];
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given fraction (0 to 1) of the values, but
+     *         no more than the largest value recorded
+     */
+    public long getPercentile(String histogram, double fraction) {
+        int i = indexOf(this.histogramNames, histogram);
+        long count = this.getCount(histogram);
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(fraction * count);
+        long seen = 0;
+        for (int b = 0; b < BUCKET_COUNT; b++) {
+            seen += this.buckets[i][b];
+            if (seen >= rank) {
+                return Math.min(getBucketBound(b), this.maxima[i]);
+            }
+        }
+        return this.maxima[i];
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(this.timestamp);
+        out.writeStringArray(this.counterNames);
+        out.writeLongArray(this.counters);
+        out.writeStringArray(this.histogramNames);
+        for (long[] b : this.buckets) {
+            out.writeLongArray(b);
+        }
+        out.writeLongArray(this.sums);
+        out.writeLongArray(this.maxima);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("PlaybackMetrics[");
+        for (int i = 0; i < this.counterNames.length; i++) {
+            s.append(this.counterNames[i]).append('=').append(this.counters[i]).append(", ");
+        }
+        for (String name : this.histogramNames) {
+            s.append(name).append("={n=").append(this.getCount(name)).append(", mean=")
+                    .append(this.getMean(name)).append("us, p99=")
+                    .append(this.getPercentile(name, 0.99)).append("us, max=")
+                    .append(this.getMax(name)).append("us}, ");
+        }
+        return s.append("timestamp=").append(this.timestamp).append(']').toString();
+    }
+
+    public static final Parcelable.Creator<PlaybackMetrics> CREATOR = new Parcelable.Creator<PlaybackMetrics>() {
+        public PlaybackMetrics createFromParcel(Parcel in) {
+            return new PlaybackMetrics(in);
+        }
+
+        public PlaybackMetrics[] newArray(int size) {
+            return new PlaybackMetrics[size];
+        }
+    };
+}
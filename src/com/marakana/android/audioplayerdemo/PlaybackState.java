@@ -0,0 +1,187 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * An immutable snapshot of the player, sampled under a single lock so that all of its fields
+ * agree with each other. The timestamp is taken from {@link android.os.SystemClock#elapsedRealtime()}
+ * at sampling time.
+ */
+public final class PlaybackState implements Parcelable {
+
+    public enum State {
+        STOPPED, PREPARING, PLAYING, PAUSED
+    }
+
+    // events delivered through IPlaybackSessionCallback.onPlaybackUpdate(), as bits 1 << event
+    public static final int EVENT_PREPARED = 1;
+
+    public static final int EVENT_STARTED = 2;
+
+    public static final int EVENT_PAUSED = 3;
+
+    public static final int EVENT_SEEK_COMPLETE = 4;
+
+    public static final int EVENT_COMPLETED = 5;
+
+    public static final int EVENT_ERROR = 6;
+
+    public static final int EVENT_FOCUS_DUCK = 7;
+
+    public static final int EVENT_STOPPED = 8;
+
+    public static final int EVENT_TRACK_CHANGED = 9;
+
+    // more of the waveform of the current item is available through getWaveform()
+    public static final int EVENT_WAVEFORM_UPDATED = 10;
+
+    // the local library has been rescanned; see getLibraryPage()
+    public static final int EVENT_LIBRARY_CHANGED = 11;
+
+    // fields a session can subscribe to; see IPlaybackSessionCallback and PlaybackDelta
+    public static final int FIELD_STATE = 1;
+
+    // implies the state and duration, which the position is extrapolated with
+    public static final int FIELD_POSITION = 2;
+
+    public static final int FIELD_DURATION = 4;
+
+    public static final int FIELD_MUTED = 8;
+
+    public static final int FIELD_BUFFERED = 16;
+
+    public static final int FIELD_ALL = 31;
+
+    private static final State[] STATES = State.values();
+
+    private final State state;
+
+    private final int position;
+
+    private final int duration;
+
+    private final boolean muted;
+
+    private final int bufferedPercent;
+
+    private final long timestamp;
+
+    public PlaybackState(State state, int position, int duration, boolean muted,
+            int bufferedPercent, long timestamp) {
+        this.state = state;
+        this.position = position;
+        this.duration = duration;
+        this.muted = muted;
+        this.bufferedPercent = bufferedPercent;
+        this.timestamp = timestamp;
+    }
+
+    private PlaybackState(Parcel in) {
+        this.state = STATES[in.readInt()];
+        this.position = in.readInt();
+        this.duration = in.readInt();
+        this.muted = in.readInt() != 0;
+        this.bufferedPercent = in.readInt();
+        this.timestamp = in.readLong();
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public int getPosition() {
+        return this.position;
+    }
+
+    /**
+     * @return how many milliseconds the position advances per millisecond of real time: 1 while
+     *         playing, 0 otherwise
+     */
+    public float getRate() {
+        return this.state == State.PLAYING ? 1.0f : 0.0f;
+    }
+
+    /**
+     * @return the position extrapolated to the given {@link android.os.SystemClock#elapsedRealtime()},
+     *         assuming that playback continued at {@link #getRate()} since this snapshot was taken.
+     *         Clients can render a smoothly moving position from one snapshot this way.
+     */
+    public int getPositionAt(long time) {
+        float rate = this.getRate();
+        if (rate == 0 || time <= this.timestamp) {
+            return this.position;
+        }
+        return (int)Math.min(this.duration, this.position + (long)((time - this.timestamp) * rate));
+    }
+
+    /**
+     * @return this snapshot with its position extrapolated to the given time
+     */
+    public PlaybackState at(long time) {
+        if (this.state != State.PLAYING || time <= this.timestamp) {
+            return this;
+        }
+        return new PlaybackState(this.state, this.getPositionAt(time), this.duration, this.muted,
+                this.bufferedPercent, time);
+    }
+
+    public int getDuration() {
+        return this.duration;
+    }
+
+    public boolean isMuted() {
+        return this.muted;
+    }
+
+    public int getBufferedPercent() {
+        return this.bufferedPercent;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public boolean isPlaying() {
+        return this.state == State.PLAYING;
+    }
+
+    public boolean isPreparing() {
+        return this.state == State.PREPARING;
+    }
+
+    public boolean isStopped() {
+        return this.state == State.STOPPED;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(this.state.ordinal());
+        out.writeInt(this.position);
+        out.writeInt(this.duration);
+        out.writeInt(this.muted ? 1 : 0);
+        out.writeInt(this.bufferedPercent);
+        out.writeLong(this.timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackState[" + this.state + ", position=" + this.position + ", duration="
+                + this.duration + ", muted=" + this.muted + ", buffered=" + this.bufferedPercent
+                + "%, timestamp=" + this.timestamp + "]";
+    }
+
+    public static final Parcelable.Creator<PlaybackState> CREATOR = new Parcelable.Creator<PlaybackState>() {
+        public PlaybackState createFromParcel(Parcel in) {
+            return new PlaybackState(in);
+        }
+
+        public PlaybackState[] newArray(int size) {
+            return new PlaybackState[size];
+        }
+    };
+}
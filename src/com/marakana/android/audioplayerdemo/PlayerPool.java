@@ -0,0 +1,126 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Keeps a few idle {@link AudioEngine}s for reuse through {@link AudioEngine#reset()}, and a few
+ * players that are still prepared for recently played items. Playing one of those items again then
+ * needs neither a new player nor another prepare. Not thread-safe; the service only touches it
+ * while holding its own lock, on the thread the players were created on.
+ */
+public class PlayerPool {
+    private static final String TAG = "PlayerPool";
+
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private final AudioEngine.Factory factory;
+
+    private final int maxIdle;
+
+    private final int maxPrepared;
+
+    private final ArrayList<AudioEngine> idle = new ArrayList<AudioEngine>();
+
+    // in order of parking, oldest first
+    private final LinkedHashMap<Uri, AudioEngine> prepared = new LinkedHashMap<Uri, AudioEngine>();
+
+    public PlayerPool(AudioEngine.Factory factory, int maxIdle, int maxPrepared) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+        this.maxPrepared = maxPrepared;
+    }
+
+    /**
+     * @return an idle player in its idle state, or a new one if none is left
+     */
+    public AudioEngine acquire() {
+        if (this.idle.isEmpty()) {
+            if (DEBUG) {
+                Log.d(TAG, "Creating a new player");
+            }
+            return this.factory.create();
+        } else {
+            if (DEBUG) {
+                Log.d(TAG, "Reusing an idle player");
+            }
+            return this.idle.remove(this.idle.size() - 1);
+        }
+    }
+
+    /**
+     * Resets the player and keeps it for reuse, or releases it if enough players are idle.
+     */
+    public void recycle(AudioEngine player) {
+        try {
+            player.reset();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to reset player. Releasing it.", e);
+            player.release();
+            return;
+        }
+        if (this.idle.size() < this.maxIdle) {
+            this.idle.add(player);
+        } else {
+            player.release();
+        }
+    }
+
+    /**
+     * Keeps a prepared player for the given item, evicting the oldest one if there are too many.
+     */
+    public void park(Uri uri, AudioEngine player) {
+        if (DEBUG) {
+            Log.d(TAG, "Keeping prepared player for " + uri);
+        }
+        AudioEngine old = this.prepared.remove(uri);
+        if (old != null && old != player) {
+            this.recycle(old);
+        }
+        this.prepared.put(uri, player);
+        if (this.prepared.size() > this.maxPrepared) {
+            Iterator<AudioEngine> eldest = this.prepared.values().iterator();
+            AudioEngine evicted = eldest.next();
+            eldest.remove();
+            this.recycle(evicted);
+        }
+    }
+
+    /**
+     * @return the player still prepared for the given item, or null if there is none
+     */
+    public AudioEngine takePrepared(Uri uri) {
+        return this.prepared.remove(uri);
+    }
+
+    /**
+     * Releases the given player if it is parked here, for example because it reported an error.
+     */
+    public void discard(AudioEngine player) {
+        for (Iterator<Map.Entry<Uri, AudioEngine>> i = this.prepared.entrySet().iterator(); i
+                .hasNext();) {
+            if (i.next().getValue() == player) {
+                i.remove();
+                player.release();
+                return;
+            }
+        }
+    }
+
+    public void clear() {
+        for (AudioEngine player : this.prepared.values()) {
+            player.release();
+        }
+        this.prepared.clear();
+        for (AudioEngine player : this.idle) {
+            player.release();
+        }
+        this.idle.clear();
+    }
+}
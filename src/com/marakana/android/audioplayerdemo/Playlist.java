@@ -0,0 +1,583 @@
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import android.net.Uri;
+
+/**
+ * The queue of items to play and the position of the current item in it. Not thread-safe; the
+ * service only touches it while holding its own lock, and other threads read a {@link Snapshot}.
+ * <p>
+ * Queues may hold whole libraries, so items are kept as ints rather than objects: tracks of the
+ * {@link MediaLibrary} as their index in it, and anything else, such as a stream, as a negative
+ * index into a side list of URIs. URIs are only made for the items actually looked at.
+ * <p>
+ * Removing an item only marks its slot, and a Fenwick tree of the marked slots maps between slots
+ * and positions in O(log n). The slots are compacted once more are marked than are left.
+ * <p>
+ * Shuffling does not reorder the queue. It draws a play order over it one Fisher-Yates step at a
+ * time, as items are reached, and turning it off goes back to the queue order at the current item.
+ */
+public class Playlist {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final int REMOVED = Integer.MIN_VALUE;
+
+    private MediaLibrary library = MediaLibrary.empty();
+
+    // the items in queue order, REMOVED where one was removed; a power of two long
+    private int[] items = new int[INITIAL_CAPACITY];
+
+    private int slots = 0;
+
+    private Removals removed = new Removals(INITIAL_CAPACITY);
+
+    private int size = 0;
+
+    private ArrayList<Uri> others = new ArrayList<Uri>();
+
+    // while shuffled, the play order as slots, or null; only the first drawn are final, and only
+    // those may be REMOVED
+    private int[] order;
+
+    // while shuffled, the position of each slot in the play order
+    private int[] where;
+
+    private Removals removedFromOrder;
+
+    private int orderLength;
+
+    private int drawn;
+
+    private final Random random = new Random();
+
+    // the current item, in play order
+    private int current = 0;
+
+    // the items last copied for a snapshot, and the positions removed since, in order; both are
+    // only written past their ends, so snapshots can share them. Null when they need copying again.
+    private int[] published;
+
+    private int publishedLength;
+
+    private int[] publishedRemovals;
+
+    private int publishedRemovalCount;
+
+    private Uri[] publishedOthers;
+
+    public void add(Uri uri) {
+        int track = find(uri, this.library);
+        if (track < 0) {
+            this.others.add(uri);
+            this.publishedOthers = null;
+            track = -this.others.size();
+        }
+        this.append(track);
+    }
+
+    /**
+     * Adds the given tracks of the library to the end of the queue.
+     */
+    public void addLibraryTracks(int offset, int count) {
+        int end = (int)Math.min((long)offset + count, this.library.size());
+        for (int track = Math.max(0, offset); track < end; track++) {
+            this.append(track);
+        }
+    }
+
+    private void append(int item) {
+        if (this.slots == this.items.length) {
+            int capacity = this.items.length * 2;
+            this.items = grow(this.items, capacity);
+            this.removed.grow(capacity);
+            if (this.order != null) {
+                this.order = grow(this.order, capacity);
+                this.where = grow(this.where, capacity);
+                this.removedFromOrder.grow(capacity);
+            }
+        }
+        int slot = this.slots++;
+        this.items[slot] = item;
+        if (this.order != null) {
+            // joins the part of the order not drawn yet
+            this.order[this.orderLength] = slot;
+            this.where[slot] = this.orderLength++;
+        }
+        if (this.published != null) {
+            if (this.publishedLength == this.published.length) {
+                this.published = grow(this.published, this.published.length * 2);
+            }
+            this.published[this.publishedLength++] = item;
+        }
+        this.size++;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Removes the item at the given position in the queue. If it is the current item, the one
+     * after it in play order becomes current.
+     */
+    public void remove(int index) {
+        if (index < 0 || index >= this.size) {
+            return;
+        }
+        int slot = this.removed.slot(index);
+        int removed = index;
+        if (this.order != null) {
+            int position = this.where[slot];
+            removed = position - this.removedFromOrder.before(position);
+            if (position < this.drawn) {
+                this.order[position] = REMOVED;
+                this.removedFromOrder.add(position);
+            } else {
+                // not drawn yet, so the last one not drawn can take its place
+                int last = this.order[--this.orderLength];
+                this.order[position] = last;
+                this.where[last] = position;
+            }
+        }
+        this.items[slot] = REMOVED;
+        this.removed.add(slot);
+        this.size--;
+        if (this.published != null) {
+            // snapshots skip the removed items until there are enough to make copying worth it
+            if (this.publishedRemovalCount >= Math.max(64, (int)Math.sqrt(this.size))) {
+                this.published = null;
+            } else {
+                if (this.publishedRemovalCount == this.publishedRemovals.length) {
+                    this.publishedRemovals = grow(this.publishedRemovals,
+                            this.publishedRemovals.length * 2);
+                }
+                this.publishedRemovals[this.publishedRemovalCount++] = index;
+            }
+        }
+        if (removed < this.current || (this.current == this.size && this.current > 0)) {
+            this.current--;
+        }
+        if (this.removed.count() > Math.max(INITIAL_CAPACITY, this.size)) {
+            this.compact();
+        }
+    }
+
+    // drops the removed slots, numbering the rest from 0 again
+    private void compact() {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < this.size) {
+            capacity *= 2;
+        }
+        int[] items = new int[capacity];
+        int[] slots = this.order != null ? new int[this.slots] : null;
+        int n = 0;
+        for (int slot = 0; slot < this.slots; slot++) {
+            if (this.items[slot] != REMOVED) {
+                if (slots != null) {
+                    slots[slot] = n;
+                }
+                items[n++] = this.items[slot];
+            }
+        }
+        if (this.order != null) {
+            int[] order = new int[capacity];
+            int[] where = new int[capacity];
+            int m = 0;
+            for (int position = 0; position < this.orderLength; position++) {
+                if (this.order[position] != REMOVED) {
+                    order[m] = slots[this.order[position]];
+                    where[order[m]] = m;
+                    m++;
+                }
+            }
+            this.drawn -= this.removedFromOrder.count();
+            this.order = order;
+            this.where = where;
+            this.orderLength = m;
+            this.removedFromOrder = new Removals(capacity);
+        }
+        this.items = items;
+        this.slots = n;
+        this.removed = new Removals(capacity);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return the position of the current item in the queue
+     */
+    public int getCurrentIndex() {
+        if (this.isEmpty()) {
+            return 0;
+        }
+        int slot = this.slot(this.current);
+        return slot - this.removed.before(slot);
+    }
+
+    public Uri getCurrent() {
+        return this.isEmpty() ? null : this.uri(this.items[this.slot(this.current)]);
+    }
+
+    public boolean hasNext() {
+        return this.current + 1 < this.size;
+    }
+
+    public Uri getNext() {
+        return this.hasNext() ? this.uri(this.items[this.slot(this.current + 1)]) : null;
+    }
+
+    public boolean hasPrevious() {
+        return this.current > 0;
+    }
+
+    public Uri getPrevious() {
+        return this.hasPrevious() ? this.uri(this.items[this.slot(this.current - 1)]) : null;
+    }
+
+    /**
+     * @return the item the given number of items after the current one in play order, or null
+     */
+    public Uri getUpcoming(int n) {
+        return this.current + n < this.size ? this.uri(this.items[this.slot(this.current + n)])
+                : null;
+    }
+
+    public void moveToNext() {
+        if (this.hasNext()) {
+            this.current++;
+        }
+    }
+
+    public void moveToPrevious() {
+        if (this.hasPrevious()) {
+            this.current--;
+        }
+    }
+
+    /**
+     * Makes the item at the given position in the queue current. While shuffled, a new play order
+     * is drawn from it.
+     */
+    public void moveTo(int index) {
+        index = Math.max(0, Math.min(index, this.size - 1));
+        if (this.order != null) {
+            this.order = null;
+            this.current = index;
+            this.setShuffle(true);
+        } else {
+            this.current = index;
+        }
+    }
+
+    public boolean isShuffled() {
+        return this.order != null;
+    }
+
+    /**
+     * Turns shuffling on, drawing a new play order that starts at the current item, or off, going
+     * back to the queue order at the current item.
+     */
+    public void setShuffle(boolean shuffle) {
+        if (shuffle == (this.order != null)) {
+            return;
+        }
+        if (shuffle) {
+            if (this.removed.count() > 0) {
+                // so that slots and positions are the same
+                this.compact();
+            }
+            int index = this.current;
+            int capacity = this.items.length;
+            this.order = new int[capacity];
+            this.where = new int[capacity];
+            this.removedFromOrder = new Removals(capacity);
+            for (int i = 0; i < this.size; i++) {
+                this.order[i] = i;
+                this.where[i] = i;
+            }
+            this.orderLength = this.size;
+            if (this.size > 0) {
+                this.order[0] = index;
+                this.where[index] = 0;
+                this.order[index] = 0;
+                this.where[0] = index;
+                this.drawn = 1;
+            } else {
+                this.drawn = 0;
+            }
+            this.current = 0;
+        } else {
+            this.current = this.getCurrentIndex();
+            this.order = null;
+            this.where = null;
+            this.removedFromOrder = null;
+        }
+    }
+
+    // the slot of the given item in play order, drawing it if need be
+    private int slot(int i) {
+        if (this.order == null) {
+            return this.removed.slot(i);
+        }
+        // everything removed from the order was drawn before
+        int drawn = this.drawn - this.removedFromOrder.count();
+        while (drawn <= i) {
+            int j = this.drawn + this.random.nextInt(this.orderLength - this.drawn);
+            int slot = this.order[j];
+            this.order[j] = this.order[this.drawn];
+            this.where[this.order[j]] = j;
+            this.order[this.drawn] = slot;
+            this.where[slot] = this.drawn++;
+            drawn++;
+        }
+        return this.order[this.removedFromOrder.slot(i)];
+    }
+
+    /**
+     * @return the item at the given position in the queue
+     */
+    public Uri get(int index) {
+        return this.uri(this.items[this.removed.slot(index)]);
+    }
+
+    private Uri uri(int item) {
+        return item >= 0 ? Uri.fromFile(new File(this.library.getPath(item))) : this.others
+                .get(-1 - item);
+    }
+
+    /**
+     * @return the queue as it is now, for any thread to read; copies the items after the library
+     *         changed or after O(sqrt n) removals, and is cheap otherwise
+     */
+    public Snapshot snapshot() {
+        if (this.published == null) {
+            this.published = new int[this.items.length];
+            int n = 0;
+            for (int slot = 0; slot < this.slots; slot++) {
+                if (this.items[slot] != REMOVED) {
+                    this.published[n++] = this.items[slot];
+                }
+            }
+            this.publishedLength = n;
+            this.publishedRemovals = new int[INITIAL_CAPACITY];
+            this.publishedRemovalCount = 0;
+        }
+        if (this.publishedOthers == null) {
+            this.publishedOthers = this.others.toArray(new Uri[this.others.size()]);
+        }
+        return new Snapshot(this.library, this.published, this.publishedRemovals,
+                this.publishedRemovalCount, this.publishedOthers, this.size,
+                this.getCurrentIndex(), this.isShuffled());
+    }
+
+    /**
+     * Switches to a new library, such as after a rescan, finding every item in it again by path.
+     * Tracks no longer in it are kept by their URI.
+     */
+    public void setLibrary(MediaLibrary library) {
+        ArrayList<Uri> others = new ArrayList<Uri>();
+        for (int i = 0; i < this.slots; i++) {
+            int item = this.items[i];
+            if (item == REMOVED) {
+                continue;
+            } else if (item >= 0) {
+                int track = library.indexOf(this.library.getPath(item));
+                if (track < 0) {
+                    others.add(Uri.fromFile(new File(this.library.getPath(item))));
+                    track = -others.size();
+                }
+                this.items[i] = track;
+            } else {
+                Uri uri = this.others.get(-1 - item);
+                int track = find(uri, library);
+                if (track < 0) {
+                    others.add(uri);
+                    track = -others.size();
+                }
+                this.items[i] = track;
+            }
+        }
+        this.library = library;
+        this.others = others;
+        this.published = null;
+        this.publishedOthers = null;
+    }
+
+    // the track of the given library the URI points to, or -1
+    private static int find(Uri uri, MediaLibrary library) {
+        String scheme = uri.getScheme();
+        return scheme == null || "file".equals(scheme) ? library.indexOf(uri.getPath()) : -1;
+    }
+
+    /**
+     * The queue as it was at one point. Shares its items with the playlist, which only ever writes
+     * past the end of them: the items as they were last copied, and the positions removed since.
+     */
+    public static class Snapshot {
+        private final MediaLibrary library;
+
+        private final int[] items;
+
+        private final int[] removals;
+
+        private final int removalCount;
+
+        private final Uri[] others;
+
+        private final int size;
+
+        private final int currentIndex;
+
+        private final boolean shuffled;
+
+        Snapshot(MediaLibrary library, int[] items, int[] removals, int removalCount,
+                Uri[] others, int size, int currentIndex, boolean shuffled) {
+            this.library = library;
+            this.items = items;
+            this.removals = removals;
+            this.removalCount = removalCount;
+            this.others = others;
+            this.size = size;
+            this.currentIndex = currentIndex;
+            this.shuffled = shuffled;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * @return the position of the current item in the queue
+         */
+        public int getCurrentIndex() {
+            return this.currentIndex;
+        }
+
+        public boolean isShuffled() {
+            return this.shuffled;
+        }
+
+        /**
+         * @return the item at the given position in the queue
+         */
+        public Uri get(int index) {
+            int item = this.items[this.copied(index)];
+            return item >= 0 ? Uri.fromFile(new File(this.library.getPath(item))) : this.others[-1
+                    - item];
+        }
+
+        /**
+         * @return a page of at most the given number of items, in queue order, starting at the
+         *         given position; items not in the library are titled by the last segment of their
+         *         URI
+         */
+        public LibraryPage getPage(int offset, int limit) {
+            offset = Math.max(0, Math.min(offset, this.size));
+            int n = Math.max(0, Math.min(limit, this.size - offset));
+            String[] uris = new String[n];
+            String[] titles = new String[n];
+            String[] artists = new String[n];
+            String[] albums = new String[n];
+            int[] durations = new int[n];
+            for (int i = 0; i < n; i++) {
+                int item = this.items[this.copied(offset + i)];
+                if (item >= 0) {
+                    uris[i] = Uri.fromFile(new File(this.library.getPath(item))).toString();
+                    titles[i] = this.library.getTitle(item);
+                    artists[i] = this.library.getArtist(item);
+                    albums[i] = this.library.getAlbum(item);
+                    durations[i] = this.library.getDuration(item);
+                } else {
+                    Uri uri = this.others[-1 - item];
+                    uris[i] = uri.toString();
+                    titles[i] = uri.getLastPathSegment();
+                    durations[i] = -1;
+                }
+            }
+            return new LibraryPage(offset, this.size, uris, titles, artists, albums, durations);
+        }
+
+        // the position in the copied items of the given one, undoing the removals since
+        private int copied(int index) {
+            for (int i = this.removalCount - 1; i >= 0; i--) {
+                if (index >= this.removals[i]) {
+                    index++;
+                }
+            }
+            return index;
+        }
+    }
+
+    // Counts the removed slots in a Fenwick tree, to map between slots and positions among the
+    // slots left in O(log n). Slots are only added at the end, never removed, which costs nothing.
+    private static class Removals {
+        // 1-based; the capacity is a power of two
+        private int[] tree;
+
+        private int count = 0;
+
+        Removals(int capacity) {
+            this.tree = new int[capacity + 1];
+        }
+
+        int count() {
+            return this.count;
+        }
+
+        // the new nodes only span slots not removed, except those at powers of two, which span all
+        void grow(int capacity) {
+            int[] tree = new int[capacity + 1];
+            System.arraycopy(this.tree, 0, tree, 0, this.tree.length);
+            for (int i = (this.tree.length - 1) * 2; i <= capacity; i *= 2) {
+                tree[i] = this.count;
+            }
+            this.tree = tree;
+        }
+
+        void add(int slot) {
+            this.count++;
+            for (int i = slot + 1; i < this.tree.length; i += i & -i) {
+                this.tree[i]++;
+            }
+        }
+
+        // the number of slots removed before the given one
+        int before(int slot) {
+            int n = 0;
+            if (this.count > 0) {
+                for (int i = slot; i > 0; i -= i & -i) {
+                    n += this.tree[i];
+                }
+            }
+            return n;
+        }
+
+        // the slot at the given position among those not removed
+        int slot(int position) {
+            if (this.count == 0) {
+                return position;
+            }
+            int slot = 0;
+            for (int step = this.tree.length - 1; step > 0; step >>= 1) {
+                int next = slot + step;
+                if (next < this.tree.length && step - this.tree[next] <= position) {
+                    slot = next;
+                    position -= step - this.tree[next];
+                }
+            }
+            return slot;
+        }
+    }
+}
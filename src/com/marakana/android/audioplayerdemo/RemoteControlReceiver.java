@@ -1,4 +1,3 @@
-
 package com.marakana.android.audioplayerdemo;
 
 import android.content.BroadcastReceiver;
@@ -7,6 +6,10 @@ import android.content.Intent;
 import android.util.Log;
 import android.view.KeyEvent;
 
+/**
+ * Receives media buttons while the service holds audio focus. Buttons go straight to the running
+ * service; only if it is not running is it started with the key event.
+ */
 public class RemoteControlReceiver extends BroadcastReceiver {
     private static final String TAG = "RemoteControlReceiver";
 
@@ -14,15 +17,13 @@ public class RemoteControlReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         if (Intent.ACTION_MEDIA_BUTTON.equals(intent.getAction())) {
             KeyEvent event = (KeyEvent)intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
-            switch (event.getKeyCode()) {
-                case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
-                    Log.d(TAG, "Detected play/pause event");
-                    context.startService(new Intent(AudioPlayerService.ACTION_PLAY_PAUSE));
-                    break;
-                case KeyEvent.KEYCODE_MEDIA_STOP:
-                    Log.d(TAG, "Detected stop event");
-                    context.startService(new Intent(AudioPlayerService.ACTION_STOP));
-                    break;
+            if (event == null || AudioPlayerService.dispatchMediaButton(event)) {
+                return;
+            }
+            if (event.getAction() == KeyEvent.ACTION_DOWN) {
+                Log.d(TAG, "Starting service for " + event);
+                context.startService(new Intent(Intent.ACTION_MEDIA_BUTTON, null, context,
+                        AudioPlayerService.class).putExtra(Intent.EXTRA_KEY_EVENT, event));
             }
         }
     }
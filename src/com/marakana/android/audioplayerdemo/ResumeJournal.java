@@ -0,0 +1,469 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Remembers the queue and where in it playback was, so the service can pick up where it left off
+ * after its process is killed. The service only hands it the latest state, which costs no I/O;
+ * the state is written behind on the given executor, batched to at most every
+ * {@link #FLUSH_INTERVAL} while playing, and right away when asked to after a pause or a stop.
+ * <p>
+ * The file is an append-only log of checksummed records: one per item enqueued or removed, and one
+ * cursor (item index, position, muted) per write. A torn record at the end, from a kill in the
+ * middle of a write, ends the log there. Once enough records have piled up the log is compacted to
+ * the items and the latest cursor, written to a new file that then replaces the old one.
+ * <p>
+ * Every change comes with the {@link Playlist.Snapshot} it left, so recording one costs the
+ * service the same however many items it adds, and items only become URIs on the executor. The
+ * log holds their URIs rather than library tracks, whose indexes change with every rescan. The
+ * latest snapshot written is also what the log is compacted to.
+ */
+public class ResumeJournal {
+    private static final String TAG = "ResumeJournal";
+
+    public static final int FLUSH_INTERVAL = 5000;
+
+    private static final int MAGIC = 0x4A524E4C; // "JRNL"
+
+    private static final int VERSION = 1;
+
+    private static final int RECORD_ITEM = 1;
+
+    private static final int RECORD_CURSOR = 2;
+
+    private static final int RECORD_REMOVE = 3;
+
+    // the log is compacted once it holds this many records more than the compacted form
+    private static final int COMPACT_THRESHOLD = 256;
+
+    /**
+     * What the journal last recorded.
+     */
+    public static class Resume {
+        public final List<Uri> items;
+
+        public final int index;
+
+        public final int position;
+
+        public final boolean muted;
+
+        Resume(List<Uri> items, int index, int position, boolean muted) {
+            this.items = items;
+            this.index = index;
+            this.position = position;
+            this.muted = muted;
+        }
+
+        @Override
+        public String toString() {
+            return "Resume[" + this.items.size() + " items, index=" + this.index + ", position="
+                    + this.position + ", muted=" + this.muted + "]";
+        }
+    }
+
+    private final File file;
+
+    private final Executor executor;
+
+    private final Handler handler;
+
+    // a change to the queue and the queue it left
+    private static class Change {
+        final Playlist.Snapshot queue;
+
+        // the position of the first item added, up to the end of the queue
+        final int added;
+
+        // the position of the item removed, or -1
+        final int removed;
+
+        Change(Playlist.Snapshot queue, int added, int removed) {
+            this.queue = queue;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    // guarded by this; everything the service handed us that is not written yet, the queue changes
+    // in order
+    private final ArrayList<Change> pendingChanges = new ArrayList<Change>();
+
+    private int index = 0;
+
+    private PlaybackState state;
+
+    private boolean dirty = false;
+
+    private boolean scheduled = false;
+
+    private boolean closed = false;
+
+    // guarded by file; the queue as last written, for compaction, or null if it was not handed to
+    // us yet, and the items loaded until then; and the shape of the log
+    private Playlist.Snapshot written;
+
+    private int loaded = 0;
+
+    private int records = 0;
+
+    private boolean torn = false;
+
+    private int writtenIndex = -1;
+
+    private int writtenPosition = -1;
+
+    private boolean writtenMuted = false;
+
+    private final Runnable trigger = new Runnable() {
+        public void run() {
+            executor.execute(write);
+        }
+    };
+
+    private final Runnable write = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    public ResumeJournal(File file, Executor executor, Handler handler) {
+        this.file = file;
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /**
+     * Reads the journal back. Blocks on I/O, so call it on the executor, and before anything is
+     * recorded.
+     *
+     * @return what was last recorded, or null if nothing was
+     */
+    public Resume load() {
+        synchronized (this.file) {
+            ArrayList<Uri> items = new ArrayList<Uri>();
+            int index = 0;
+            int position = 0;
+            boolean muted = false;
+            boolean cursor = false;
+            DataInputStream in;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a journal");
+                }
+                CRC32 crc = new CRC32();
+                byte[] record = new byte[0];
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readUnsignedShort();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (record.length < length) {
+                        record = new byte[length];
+                    }
+                    in.readFully(record, 0, length);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if ((int)crc.getValue() != in.readInt()) {
+                        throw new IOException("Bad checksum");
+                    }
+                    DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record,
+                            0, length));
+                    switch (fields.readByte()) {
+                        case RECORD_ITEM:
+                            items.add(Uri.parse(fields.readUTF()));
+                            break;
+                        case RECORD_REMOVE:
+                            int removed = fields.readInt();
+                            if (removed < 0 || removed >= items.size()) {
+                                throw new IOException("Bad removal");
+                            }
+                            items.remove(removed);
+                            break;
+                        case RECORD_CURSOR:
+                            index = fields.readInt();
+                            position = fields.readInt();
+                            muted = fields.readBoolean();
+                            cursor = true;
+                            break;
+                        default:
+                            throw new IOException("Unknown record");
+                    }
+                    this.records++;
+                }
+            } catch (IOException e) {
+                // a write cut short by a kill; everything before it still counts
+                Log.w(TAG, "Journal ends in a torn record after " + this.records + " records", e);
+                this.torn = true;
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to lose, we only read
+                }
+            }
+            this.loaded = items.size();
+            if (!cursor && items.isEmpty()) {
+                return null;
+            }
+            this.writtenIndex = index;
+            this.writtenPosition = position;
+            this.writtenMuted = muted;
+            return new Resume(items, index, position, muted);
+        }
+    }
+
+    /**
+     * Forgets what was loaded, for when the service does not resume it. What is recorded from now
+     * on replaces it with the next write.
+     */
+    public void discard() {
+        synchronized (this.file) {
+            this.loaded = 0;
+            this.torn = true;
+            this.writtenIndex = -1;
+            this.writtenPosition = -1;
+        }
+    }
+
+    /**
+     * Records the queue as restored from what was loaded, which leaves nothing to write.
+     */
+    public synchronized void recordRestored(Playlist.Snapshot queue) {
+        this.pendingChanges.add(new Change(queue, queue.size(), -1));
+    }
+
+    /**
+     * Records the items from the given position to the end of the queue as added to it.
+     */
+    public synchronized void recordItems(Playlist.Snapshot queue, int from) {
+        this.pendingChanges.add(new Change(queue, from, -1));
+        this.markDirty();
+    }
+
+    /**
+     * Records the removal of the item at the given position in the queue.
+     */
+    public synchronized void recordRemoval(Playlist.Snapshot queue, int index) {
+        this.pendingChanges.add(new Change(queue, queue.size(), index));
+        this.markDirty();
+    }
+
+    /**
+     * Records the current state. The position written is extrapolated from it at write time.
+     */
+    public synchronized void recordState(int index, PlaybackState state) {
+        this.index = index;
+        this.state = state;
+        this.markDirty();
+    }
+
+    /**
+     * Writes whatever is not written yet as soon as possible, rather than batched.
+     */
+    public synchronized void flushSoon() {
+        if (this.closed) {
+            return;
+        }
+        this.handler.removeCallbacks(this.trigger);
+        this.scheduled = true;
+        this.executor.execute(this.write);
+    }
+
+    /**
+     * Writes whatever is not written yet on the calling thread, and stops scheduling writes.
+     */
+    public void close() {
+        synchronized (this) {
+            this.handler.removeCallbacks(this.trigger);
+            this.closed = true;
+        }
+        this.flush();
+    }
+
+    // must hold the lock
+    private void markDirty() {
+        this.dirty = true;
+        if (!this.scheduled && !this.closed) {
+            this.scheduled = true;
+            this.handler.postDelayed(this.trigger, FLUSH_INTERVAL);
+        }
+    }
+
+    private void flush() {
+        Change[] changes;
+        int index;
+        PlaybackState state;
+        synchronized (this) {
+            this.scheduled = false;
+            if (!this.dirty) {
+                return;
+            }
+            this.dirty = false;
+            changes = this.pendingChanges.toArray(new Change[this.pendingChanges.size()]);
+            this.pendingChanges.clear();
+            index = this.index;
+            state = this.state;
+            if (state != null && state.isPlaying()) {
+                // the position keeps moving without anyone telling us
+                this.markDirty();
+            }
+        }
+        int position = state == null ? 0 : state.getPositionAt(SystemClock.elapsedRealtime());
+        boolean muted = state != null && state.isMuted();
+        synchronized (this.file) {
+            try {
+                this.write(changes, index, position, muted);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write journal " + this.file, e);
+                // start over from a complete file next time
+                this.torn = true;
+            }
+        }
+    }
+
+    // must hold the file lock
+    private void write(Change[] changes, int index, int position, boolean muted)
+            throws IOException {
+        boolean cursor = index != this.writtenIndex || position != this.writtenPosition
+                || muted != this.writtenMuted;
+        if (changes.length == 0 && !cursor) {
+            return;
+        }
+        if (changes.length > 0) {
+            this.written = changes[changes.length - 1].queue;
+        }
+        this.writtenIndex = index;
+        this.writtenPosition = position;
+        this.writtenMuted = muted;
+        // until the queue is handed to us, only what was loaded could be compacted
+        int items = this.written != null ? this.written.size() : this.loaded;
+        if ((this.written != null || this.loaded == 0)
+                && (this.torn || !this.file.exists()
+                        || this.records >= items + 1 + COMPACT_THRESHOLD)) {
+            this.compact();
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int records = 1;
+        for (Change change : changes) {
+            if (change.removed >= 0) {
+                appendRemoval(bytes, change.removed);
+                records++;
+            }
+            for (int i = change.added; i < change.queue.size(); i++) {
+                appendItem(bytes, change.queue.get(i).toString());
+                records++;
+            }
+        }
+        appendCursor(bytes, index, position, muted);
+        FileOutputStream out = new FileOutputStream(this.file, true);
+        try {
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+        this.records += records;
+    }
+
+    // must hold the file lock; rewrites the log as the items and the latest cursor
+    private void compact() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        int items = this.written != null ? this.written.size() : 0;
+        for (int i = 0; i < items; i++) {
+            appendItem(bytes, this.written.get(i).toString());
+        }
+        appendCursor(bytes, this.writtenIndex, this.writtenPosition, this.writtenMuted);
+        File dir = this.file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(dir, this.file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            bytes.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(this.file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + this.file);
+        }
+        this.records = items + 1;
+        this.loaded = 0;
+        this.torn = false;
+    }
+
+    private static void appendItem(ByteArrayOutputStream bytes, String item) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream fields = new DataOutputStream(record);
+        fields.writeByte(RECORD_ITEM);
+        fields.writeUTF(item);
+        append(bytes, record);
+    }
+
+    private static void appendRemoval(ByteArrayOutputStream bytes, int index) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream fields = new DataOutputStream(record);
+        fields.writeByte(RECORD_REMOVE);
+        fields.writeInt(index);
+        append(bytes, record);
+    }
+
+    private static void appendCursor(ByteArrayOutputStream bytes, int index, int position,
+            boolean muted) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream fields = new DataOutputStream(record);
+        fields.writeByte(RECORD_CURSOR);
+        fields.writeInt(index);
+        fields.writeInt(position);
+        fields.writeBoolean(muted);
+        append(bytes, record);
+    }
+
+    // frames a record with its length and checksum
+    private static void append(ByteArrayOutputStream bytes, ByteArrayOutputStream record)
+            throws IOException {
+        byte[] data = record.toByteArray();
+        if (data.length > 0xFFFF) {
+            throw new IOException("Record too long: " + data.length + " bytes");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(data.length);
+        out.write(data);
+        out.writeInt((int)crc.getValue());
+    }
+}
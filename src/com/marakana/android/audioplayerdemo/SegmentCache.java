@@ -0,0 +1,173 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A size-bounded on-disk cache of fixed-size segments of remote resources, evicting the least
+ * recently used segments first. Each segment is one file named after its resource key and index,
+ * so that a segment is either completely there or not at all. Thread-safe.
+ * <p>
+ * Segments are opened while holding the lock that evicting them takes, so a segment once opened
+ * can be read to the end through its handle even if it is evicted meanwhile.
+ */
+public class SegmentCache {
+    private static final String TAG = "SegmentCache";
+
+    private final File dir;
+
+    private final long maxSize;
+
+    private long size = 0;
+
+    // file name -> length, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(64, 0.75f,
+            true);
+
+    public SegmentCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            // oldest first, so that they are evicted first
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long diff = a.lastModified() - b.lastModified();
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                } else {
+                    this.entries.put(file.getName(), file.length());
+                    this.size += file.length();
+                }
+            }
+        }
+        Log.d(TAG, "Opened " + dir + " with " + this.entries.size() + " segments, " + this.size
+                + " bytes");
+    }
+
+    /**
+     * @return the file holding the given segment, or null if it is not cached
+     */
+    public synchronized File get(String key, int segment) {
+        String name = name(key, segment);
+        if (this.entries.get(name) == null) {
+            return null;
+        }
+        File file = new File(this.dir, name);
+        if (!file.exists()) {
+            this.remove(name);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * @return the given segment, open for reading, or null if it is not cached
+     */
+    public synchronized RandomAccessFile open(String key, int segment) {
+        File file = this.get(key, segment);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            this.remove(file.getName());
+            return null;
+        }
+    }
+
+    public void put(String key, int segment, byte[] data, int length) throws IOException {
+        this.put(key, segment, data, length, false);
+    }
+
+    /**
+     * Caches the given segment and opens it for reading, before anything else can evict it.
+     */
+    public RandomAccessFile putAndOpen(String key, int segment, byte[] data, int length)
+            throws IOException {
+        return this.put(key, segment, data, length, true);
+    }
+
+    private RandomAccessFile put(String key, int segment, byte[] data, int length, boolean open)
+            throws IOException {
+        String name = name(key, segment);
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("Cannot create " + this.dir);
+        }
+        File tmp = new File(this.dir, name + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data, 0, length);
+        } finally {
+            out.close();
+        }
+        synchronized (this) {
+            if (!tmp.renameTo(new File(this.dir, name))) {
+                tmp.delete();
+                throw new IOException("Cannot rename " + tmp);
+            }
+            this.remove(name);
+            this.entries.put(name, (long)length);
+            this.size += length;
+            // opened before trimming, which may evict it if it alone is larger than the cache
+            RandomAccessFile file = open ? new RandomAccessFile(new File(this.dir, name), "r")
+                    : null;
+            this.trim();
+            return file;
+        }
+    }
+
+    /**
+     * Drops all segments of the given resource, for example because it changed on the server.
+     */
+    public synchronized void invalidate(String key) {
+        String prefix = key + "-";
+        // not entries.get(), which reorders the entries under the iterator
+        for (Iterator<Map.Entry<String, Long>> i = this.entries.entrySet().iterator(); i
+                .hasNext();) {
+            Map.Entry<String, Long> entry = i.next();
+            if (entry.getKey().startsWith(prefix)) {
+                this.size -= entry.getValue();
+                new File(this.dir, entry.getKey()).delete();
+                i.remove();
+            }
+        }
+    }
+
+    private void remove(String name) {
+        Long length = this.entries.remove(name);
+        if (length != null) {
+            this.size -= length;
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> i = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && i.hasNext()) {
+            Map.Entry<String, Long> eldest = i.next();
+            new File(this.dir, eldest.getKey()).delete();
+            this.size -= eldest.getValue();
+            i.remove();
+        }
+    }
+
+    private static String name(String key, int segment) {
+        return key + "-" + segment;
+    }
+}
@@ -0,0 +1,314 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.util.HashMap;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the bound clients registered as sessions up to date with the playback state. The service
+ * hands every new snapshot and event to {@link #publish(PlaybackState, int)}, which only records
+ * it and wakes the fan-out thread, so the command thread never waits on a client.
+ * <p>
+ * On the fan-out thread, each session is sent a {@link PlaybackDelta} holding only those of its
+ * fields that changed since its last update. A position that still matches what the client
+ * extrapolates from the last one it got does not count as changed, so a playing track costs nothing
+ * until it is paused, sought or drifts. A session is sent at most one update per interval it asked
+ * for; whatever happens in between is folded into the next one.
+ * <p>
+ * Updates are oneway calls, which return as soon as they are queued for the client, so how long a
+ * call takes says nothing about whether the client keeps up. Instead each update is numbered and
+ * the client acknowledges it through {@link #acknowledge(IPlaybackSessionCallback, int)} once
+ * handled. A session with {@link #MAX_UNACKNOWLEDGED} updates not acknowledged yet is sent nothing
+ * more until it catches up, and then only the changes since, so a slow client neither fills its
+ * binder buffer nor holds up the others. A client that throws has its interval doubled until a
+ * call gets through again.
+ * <p>
+ * While playing, the player is sampled once, not once per client, at the shortest interval of the
+ * sessions that want the position, but no more often than {@link #MIN_SAMPLE_INTERVAL}, to notice
+ * drift.
+ */
+public class SessionFanout {
+    private static final String TAG = "SessionFanout";
+
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // how far, in milliseconds, the position may drift from the extrapolated one before it is sent
+    private static final int DRIFT_TOLERANCE = 200;
+
+    private static final int MIN_INTERVAL = 50;
+
+    private static final int MIN_SAMPLE_INTERVAL = 250;
+
+    // how many updates a session may have in flight before it is sent no more
+    static final int MAX_UNACKNOWLEDGED = 2;
+
+    private static final int MAX_BACKOFF = 6;
+
+    public interface Source {
+        /**
+         * Called on the fan-out thread to re-anchor the position on the player. The new snapshot
+         * is expected to come back through {@link SessionFanout#publish(PlaybackState, int)}.
+         */
+        public void resample();
+    }
+
+    private final Source source;
+
+    private final MetricsRegistry metrics;
+
+    private final HandlerThread thread;
+
+    private final Handler handler;
+
+    private final RemoteCallbackList<IPlaybackSessionCallback> sessions = new RemoteCallbackList<IPlaybackSessionCallback>();
+
+    // guarded by this
+    private PlaybackState latest;
+
+    // guarded by this; the events since the last pass, as a bit mask of 1 << event
+    private int events = 0;
+
+    // guarded by this; the latest update each client acknowledged since the last pass
+    private HashMap<IBinder, Integer> acks = new HashMap<IBinder, Integer>();
+
+    // guarded by this
+    private boolean passPending = false;
+
+    // the rest is only touched on the fan-out thread
+    private boolean sampling = false;
+
+    private final Runnable pass = new Runnable() {
+        public void run() {
+            fanOut();
+        }
+    };
+
+    private final Runnable retry = new Runnable() {
+        public void run() {
+            fanOut();
+        }
+    };
+
+    private final Runnable sampler = new Runnable() {
+        public void run() {
+            sampling = false;
+            source.resample();
+        }
+    };
+
+    public SessionFanout(Source source, PlaybackState initial, MetricsRegistry metrics) {
+        this.source = source;
+        this.latest = initial;
+        this.metrics = metrics;
+        this.thread = new HandlerThread(TAG);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+    }
+
+    /**
+     * @param interval the fewest milliseconds between two updates to this session
+     * @param fields the {@code PlaybackState.FIELD_*} to keep the session up to date on
+     */
+    public void register(IPlaybackSessionCallback callback, int interval, int fields) {
+        if (DEBUG) {
+            Log.d(TAG, "Registering session with interval " + interval + " and fields " + fields);
+        }
+        fields &= PlaybackState.FIELD_ALL;
+        if ((fields & PlaybackState.FIELD_POSITION) != 0) {
+            fields |= PlaybackState.FIELD_STATE | PlaybackState.FIELD_DURATION;
+        }
+        this.sessions.unregister(callback);
+        this.sessions.register(callback, new Session(Math.max(interval, MIN_INTERVAL), fields));
+        // sends it the whole state
+        this.publish(null, 0);
+    }
+
+    public void unregister(IPlaybackSessionCallback callback) {
+        this.sessions.unregister(callback);
+    }
+
+    /**
+     * Records that the client has handled the update with the given sequence number, and those
+     * before it, so that it may be sent more.
+     */
+    public synchronized void acknowledge(IPlaybackSessionCallback callback, int sequence) {
+        this.acks.put(callback.asBinder(), sequence);
+        if (!this.passPending) {
+            this.passPending = true;
+            this.handler.post(this.pass);
+        }
+    }
+
+    /**
+     * Records a new snapshot, and the event that led to it if not 0, for the sessions. Does not
+     * block on the fan-out.
+     *
+     * @param state the new snapshot, or null to keep the last one
+     */
+    public synchronized void publish(PlaybackState state, int event) {
+        if (state != null) {
+            this.latest = state;
+        }
+        if (event != 0) {
+            this.events |= 1 << event;
+        }
+        if (!this.passPending) {
+            this.passPending = true;
+            this.handler.post(this.pass);
+        }
+    }
+
+    public void close() {
+        this.handler.removeCallbacksAndMessages(null);
+        this.sessions.kill();
+        this.thread.quit();
+    }
+
+    private void fanOut() {
+        PlaybackState state;
+        int events;
+        HashMap<IBinder, Integer> acks;
+        synchronized (this) {
+            state = this.latest;
+            events = this.events;
+            this.events = 0;
+            acks = this.acks;
+            if (!acks.isEmpty()) {
+                this.acks = new HashMap<IBinder, Integer>();
+            }
+            this.passPending = false;
+        }
+        this.handler.removeCallbacks(this.retry);
+        long now = SystemClock.elapsedRealtime();
+        long nextRetry = Long.MAX_VALUE;
+        int sampleInterval = Integer.MAX_VALUE;
+        int n = this.sessions.beginBroadcast();
+        try {
+            for (int i = 0; i < n; i++) {
+                IPlaybackSessionCallback callback = this.sessions.getBroadcastItem(i);
+                Session session = (Session)this.sessions.getBroadcastCookie(i);
+                session.events |= events;
+                Integer ack = acks.get(callback.asBinder());
+                if (ack != null && ack - session.acknowledged > 0 && session.sequence - ack >= 0) {
+                    session.acknowledged = ack;
+                }
+                if ((session.fields & PlaybackState.FIELD_POSITION) != 0) {
+                    sampleInterval = Math.min(sampleInterval, session.interval);
+                }
+                int fields = session.diff(state);
+                if (fields == 0 && session.events == 0) {
+                    continue;
+                }
+                if (session.sequence - session.acknowledged >= MAX_UNACKNOWLEDGED) {
+                    // sent once the client acknowledges what it has
+                    this.metrics.increment(PlaybackMetrics.SESSION_UPDATES_DEFERRED);
+                    continue;
+                }
+                long due = session.lastSent + ((long)session.interval << session.backoff);
+                if (now < due) {
+                    // folded into the next update
+                    this.metrics.increment(PlaybackMetrics.SESSION_UPDATES_DEFERRED);
+                    nextRetry = Math.min(nextRetry, due);
+                    continue;
+                }
+                PlaybackDelta delta = new PlaybackDelta(fields, state);
+                try {
+                    callback.onPlaybackUpdate(session.sequence + 1, session.events, delta);
+                    session.sequence++;
+                    session.sent = delta.applyTo(session.sent);
+                    session.events = 0;
+                    session.backoff = 0;
+                    this.metrics.increment(PlaybackMetrics.SESSION_UPDATES);
+                } catch (RemoteException e) {
+                    // retried with the latest state later; the list drops dead clients by itself
+                    session.backoff = Math.min(session.backoff + 1, MAX_BACKOFF);
+                    nextRetry = Math.min(nextRetry, now
+                            + ((long)session.interval << session.backoff));
+                }
+                session.lastSent = now;
+            }
+        } finally {
+            this.sessions.finishBroadcast();
+        }
+        if (nextRetry != Long.MAX_VALUE) {
+            this.handler.postDelayed(this.retry, nextRetry - now);
+        }
+        if (state.isPlaying() && sampleInterval != Integer.MAX_VALUE) {
+            if (!this.sampling) {
+                this.sampling = true;
+                this.handler.postDelayed(this.sampler,
+                        Math.max(sampleInterval, MIN_SAMPLE_INTERVAL));
+            }
+        } else if (this.sampling) {
+            this.sampling = false;
+            this.handler.removeCallbacks(this.sampler);
+        }
+    }
+
+    private static class Session {
+        final int interval;
+
+        final int fields;
+
+        // the state as the client knows it, or null before the first update
+        PlaybackState sent;
+
+        // the events not sent yet
+        int events;
+
+        // the number of the last update sent, and of the last one the client acknowledged
+        int sequence;
+
+        int acknowledged;
+
+        long lastSent = Long.MIN_VALUE / 2;
+
+        // the interval is doubled this many times
+        int backoff;
+
+        Session(int interval, int fields) {
+            this.interval = interval;
+            this.fields = fields;
+        }
+
+        // the fields of the given state the client has to be sent
+        int diff(PlaybackState state) {
+            if (this.sent == null) {
+                return this.withPosition(this.fields);
+            }
+            int changed = 0;
+            if (state.getState() != this.sent.getState()) {
+                changed |= PlaybackState.FIELD_STATE;
+            }
+            int expected = this.sent.getPositionAt(state.getTimestamp());
+            if (Math.abs(state.getPosition() - expected) > DRIFT_TOLERANCE) {
+                changed |= PlaybackState.FIELD_POSITION;
+            }
+            if (state.getDuration() != this.sent.getDuration()) {
+                changed |= PlaybackState.FIELD_DURATION;
+            }
+            if (state.isMuted() != this.sent.isMuted()) {
+                changed |= PlaybackState.FIELD_MUTED;
+            }
+            if (state.getBufferedPercent() != this.sent.getBufferedPercent()) {
+                changed |= PlaybackState.FIELD_BUFFERED;
+            }
+            return this.withPosition(changed & this.fields);
+        }
+
+        // the state and position are sent together, since both are needed to extrapolate
+        private int withPosition(int fields) {
+            if ((fields & (PlaybackState.FIELD_STATE | PlaybackState.FIELD_POSITION)) != 0) {
+                fields |= this.fields & (PlaybackState.FIELD_STATE | PlaybackState.FIELD_POSITION);
+            }
+            return fields;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records when each step from binding to the first audible audio happened, on the
+ * {@link SystemClock#elapsedRealtime()} time base, and logs a summary once audio is heard. A new
+ * play-from-stopped starts a new trace; the bind times are kept from the first bind.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    private long bindRequested = -1;
+
+    private long bound = -1;
+
+    private long playRequested = -1;
+
+    private boolean prewarmed = false;
+
+    private long prepared = -1;
+
+    private long started = -1;
+
+    private long firstAudio = -1;
+
+    public synchronized void markBound(long bindRequested) {
+        if (this.bound < 0) {
+            this.bindRequested = bindRequested;
+            this.bound = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public synchronized void markPlayRequested() {
+        this.playRequested = SystemClock.elapsedRealtime();
+        this.prewarmed = false;
+        this.prepared = -1;
+        this.started = -1;
+        this.firstAudio = -1;
+    }
+
+    public synchronized void markPrepared(boolean prewarmed) {
+        if (this.playRequested >= 0 && this.prepared < 0) {
+            this.prepared = SystemClock.elapsedRealtime();
+            this.prewarmed = prewarmed;
+        }
+    }
+
+    public synchronized void markStarted() {
+        if (this.playRequested >= 0 && this.started < 0) {
+            this.started = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * @return whether a trace is still waiting for its first audio
+     */
+    public synchronized boolean isAwaitingFirstAudio() {
+        return this.started >= 0 && this.firstAudio < 0;
+    }
+
+    public synchronized void markFirstAudio() {
+        if (this.isAwaitingFirstAudio()) {
+            this.firstAudio = SystemClock.elapsedRealtime();
+            Log.i(TAG, this.toString());
+        }
+    }
+
+    public synchronized long getBindTime() {
+        return this.bindRequested < 0 || this.bound < 0 ? -1 : this.bound - this.bindRequested;
+    }
+
+    public synchronized long getTimeToPrepared() {
+        return this.prepared < 0 ? -1 : this.prepared - this.playRequested;
+    }
+
+    public synchronized long getTimeToFirstAudio() {
+        return this.firstAudio < 0 ? -1 : this.firstAudio - this.playRequested;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StartupTrace[bind=" + this.getBindTime() + "ms, play->prepared="
+                + this.getTimeToPrepared() + "ms" + (this.prewarmed ? " (prewarmed)" : "")
+                + ", prepared->started=" + (this.started < 0 ? -1 : this.started - this.prepared)
+                + "ms, play->first audio=" + this.getTimeToFirstAudio() + "ms]";
+    }
+}
@@ -0,0 +1,267 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Serves remote items to {@link android.media.MediaPlayer} from a loopback HTTP server, so that
+ * everything it reads goes through an {@link HttpStream} and its on-disk segment cache. The player
+ * is given a local URL for each registered item and issues range requests against it as usual.
+ * <p>
+ * The path of each local URL is a random token, so that other apps on the device, which can reach
+ * the loopback port too, cannot enumerate the items being played. Only the {@link #MAX_STREAMS}
+ * items registered most recently are served.
+ */
+public class StreamingProxy implements Runnable {
+    private static final String TAG = "StreamingProxy";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    static final int MAX_STREAMS = 32;
+
+    private static final int TOKEN_SIZE = 16;
+
+    private final ServerSocket serverSocket;
+
+    private final SegmentCache cache;
+
+    private final File metadataDir;
+
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final HashMap<String, HttpStream> streams = new HashMap<String, HttpStream>();
+
+    // guarded by itself, as is streams; the path each remote URL is served at, least recently
+    // registered first, and the stream behind each path
+    private final LinkedHashMap<String, String> paths = new LinkedHashMap<String, String>(
+            MAX_STREAMS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            if (this.size() <= MAX_STREAMS) {
+                return false;
+            }
+            streams.remove(eldest.getValue());
+            return true;
+        }
+    };
+
+    public StreamingProxy(File cacheDir, long maxCacheSize) throws IOException {
+        this.cache = new SegmentCache(new File(cacheDir, "segments"), maxCacheSize);
+        this.metadataDir = new File(cacheDir, "meta");
+        this.serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+        Log.d(TAG, "Listening on port " + this.serverSocket.getLocalPort());
+    }
+
+    /**
+     * @return the local URL to give the player for the given remote item
+     */
+    public Uri register(Uri uri) throws IOException {
+        String url = uri.toString();
+        synchronized (this.paths) {
+            String path = this.paths.get(url);
+            if (path == null) {
+                path = "/" + this.newToken();
+                this.paths.put(url, path);
+                this.streams.put(path, new HttpStream(new URL(url), this.cache, this.metadataDir,
+                        this.prefetcher, this.hits, this.misses));
+            }
+            return Uri.parse("http://127.0.0.1:" + this.serverSocket.getLocalPort() + path);
+        }
+    }
+
+    private String newToken() {
+        byte[] token = new byte[TOKEN_SIZE];
+        this.random.nextBytes(token);
+        StringBuilder hex = new StringBuilder(token.length * 2);
+        for (byte b : token) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+                    Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the share of segments read by the player that were already cached, or 0 if none
+     *         were read yet
+     */
+    public float getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + this.misses.get();
+        return total == 0 ? 0 : (float)hits / total;
+    }
+
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the server socket", e);
+        }
+        this.connections.shutdownNow();
+        this.prefetcher.shutdownNow();
+    }
+
+    public void run() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (IOException e) {
+                Log.d(TAG, "Stopped accepting connections: " + e.getMessage());
+                return;
+            }
+            this.connections.execute(new Connection(socket));
+        }
+    }
+
+    // Answers a single GET or HEAD request, with a partial response if a range was asked for
+    private class Connection implements Runnable {
+        private final Socket socket;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                try {
+                    this.serve();
+                } finally {
+                    this.socket.close();
+                }
+            } catch (IOException e) {
+                // the player routinely drops connections when it seeks
+                Log.d(TAG, "Connection ended: " + e.getMessage());
+            }
+        }
+
+        private void serve() throws IOException {
+            InputStream in = new BufferedInputStream(this.socket.getInputStream());
+            OutputStream out = this.socket.getOutputStream();
+            String[] request = readLine(in).split(" ");
+            String range = null;
+            for (String line = readLine(in); line.length() > 0; line = readLine(in)) {
+                if (line.regionMatches(true, 0, "Range:", 0, 6)) {
+                    range = line.substring(6).trim();
+                }
+            }
+            HttpStream stream;
+            synchronized (paths) {
+                stream = request.length < 2 ? null : streams.get(request[1]);
+            }
+            if (stream == null) {
+                respond(out, "404 Not Found", "Content-Length: 0\r\n");
+                return;
+            }
+            stream.open();
+            long length = stream.getLength();
+            long first = 0;
+            long last = length - 1;
+            int dash = range == null ? -1 : range.indexOf('-');
+            if (range != null && range.startsWith("bytes=") && dash > 6) {
+                try {
+                    first = Long.parseLong(range.substring(6, dash).trim());
+                    if (dash + 1 < range.length()) {
+                        last = Math.min(last, Long.parseLong(range.substring(dash + 1).trim()));
+                    }
+                } catch (NumberFormatException e) {
+                    range = null;
+                    first = 0;
+                }
+            } else {
+                range = null;
+            }
+            if (first > last) {
+                respond(out, "416 Requested Range Not Satisfiable", "Content-Range: bytes */"
+                        + length + "\r\n");
+                return;
+            }
+            StringBuilder headers = new StringBuilder();
+            headers.append("Accept-Ranges: bytes\r\n");
+            headers.append("Content-Length: ").append(last - first + 1).append("\r\n");
+            if (stream.getContentType() != null) {
+                headers.append("Content-Type: ").append(stream.getContentType()).append("\r\n");
+            }
+            if (range != null) {
+                headers.append("Content-Range: bytes ").append(first).append('-').append(last)
+                        .append('/').append(length).append("\r\n");
+            }
+            respond(out, range != null ? "206 Partial Content" : "200 OK", headers.toString());
+            if ("HEAD".equals(request[0])) {
+                return;
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (long position = first; position <= last;) {
+                int segment = (int)(position / HttpStream.SEGMENT_SIZE);
+                RandomAccessFile file = stream.openSegment(segment);
+                try {
+                    file.seek(position - (long)segment * HttpStream.SEGMENT_SIZE);
+                    long end = Math.min(last + 1, (long)(segment + 1) * HttpStream.SEGMENT_SIZE);
+                    while (position < end) {
+                        int n = file.read(buffer, 0, (int)Math.min(buffer.length, end - position));
+                        if (n < 0) {
+                            throw new IOException("Truncated segment " + segment);
+                        }
+                        out.write(buffer, 0, n);
+                        position += n;
+                    }
+                } finally {
+                    file.close();
+                }
+            }
+            out.flush();
+        }
+    }
+
+    private static void respond(OutputStream out, String status, String headers)
+            throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nConnection: close\r\n" + headers + "\r\n")
+                .getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new IOException("Unexpected end of request");
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+}
@@ -0,0 +1,76 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Draws {@link WaveformPeaks} as one vertical line per pixel column, spanning the lowest to the
+ * highest sample of the bins under it. Columns over bins that are not decoded yet stay blank, so
+ * the waveform fills in as it is published.
+ */
+public class WaveformDrawable extends Drawable {
+    private final Paint paint = new Paint();
+
+    private WaveformPeaks peaks;
+
+    public WaveformDrawable(int color) {
+        this.paint.setColor(color);
+    }
+
+    public void setPeaks(WaveformPeaks peaks) {
+        this.peaks = peaks;
+        this.invalidateSelf();
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        WaveformPeaks peaks = this.peaks;
+        if (peaks == null) {
+            return;
+        }
+        Rect bounds = super.getBounds();
+        int width = bounds.width();
+        int count = peaks.getCount();
+        float middle = bounds.exactCenterY();
+        float scale = bounds.height() / 2f / -Short.MIN_VALUE;
+        for (int x = 0; x < width; x++) {
+            int from = (int)((long)x * count / width);
+            int to = Math.max(from + 1, (int)((long)(x + 1) * count / width));
+            int min = Short.MAX_VALUE;
+            int max = Short.MIN_VALUE;
+            for (int bin = from; bin < to; bin++) {
+                if (!peaks.isEmpty(bin)) {
+                    min = Math.min(min, peaks.getMin(bin));
+                    max = Math.max(max, peaks.getMax(bin));
+                }
+            }
+            if (min <= max) {
+                float left = bounds.left + x + 0.5f;
+                canvas.drawLine(left, middle - max * scale, left, middle - min * scale + 1,
+                        this.paint);
+            }
+        }
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        this.paint.setAlpha(alpha);
+        this.invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        this.paint.setColorFilter(cf);
+        this.invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -0,0 +1,290 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Builds the {@link PeakPyramid} of a local item in the background, publishing it as it fills in.
+ * Long items are split into chunks that are decoded in parallel on the given executor, each with
+ * its own {@link PcmDecoder}; for MPEG audio the chunks are split on frame boundaries taken from its
+ * {@link Mp3FrameIndex}. Decoded audio is reduced to peaks a batch of bins at a time and never
+ * kept, so memory use does not grow with the length of the item.
+ * <p>
+ * Finished pyramids are cached under the cache directory, named by a content hash of the item, so
+ * opening the same content again only has to read them back.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class WaveformGenerator {
+    private static final String TAG = "WaveformGenerator";
+
+    // items are only split into chunks at least this long
+    private static final int MIN_CHUNK_MILLIS = 30000;
+
+    private static final int BATCH_BINS = 64;
+
+    private static final int PUBLISH_INTERVAL = 250;
+
+    public interface Listener {
+        /**
+         * Called on one of the executor threads, at most every few hundred milliseconds while
+         * decoding, and once the pyramid is complete.
+         */
+        public void onWaveformUpdated(WaveformGenerator generator);
+    }
+
+    private final Context context;
+
+    private final Uri uri;
+
+    private final Mp3FrameIndex frameIndex;
+
+    private final Executor executor;
+
+    private final Listener listener;
+
+    private final AtomicInteger remainingChunks = new AtomicInteger();
+
+    private final AtomicLong lastPublished = new AtomicLong();
+
+    private volatile PeakPyramid pyramid;
+
+    private volatile File file;
+
+    private volatile boolean cancelled = false;
+
+    private volatile boolean failed = false;
+
+    /**
+     * @param frameIndex the frame index of the item, if it is MPEG audio, or null
+     */
+    public WaveformGenerator(Context context, Uri uri, Mp3FrameIndex frameIndex,
+            Executor executor, Listener listener) {
+        this.context = context;
+        this.uri = uri;
+        this.frameIndex = frameIndex;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    public Uri getUri() {
+        return this.uri;
+    }
+
+    /**
+     * @return the pyramid, filled in as far as decoded so far, or null if it is not known yet
+     */
+    public PeakPyramid getPyramid() {
+        return this.pyramid;
+    }
+
+    public void start() {
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    load();
+                } catch (IOException e) {
+                    Log.w(TAG, "No waveform for " + uri, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops decoding as soon as possible. The listener is not called any more.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    private void load() throws IOException {
+        MappedDataSource source = MappedDataSource.open(this.context, this.uri);
+        String hash;
+        try {
+            hash = Mp3FrameIndex.contentHash(source);
+        } finally {
+            source.close();
+        }
+        File file = new File(new File(this.context.getCacheDir(), "peaks"), hash + ".pk");
+        if (file.exists()) {
+            try {
+                this.pyramid = PeakPyramid.read(file);
+                this.publish(true);
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable peak map " + file, e);
+                file.delete();
+            }
+        }
+        this.file = file;
+        int duration = this.frameIndex != null ? this.frameIndex.getDuration() : this
+                .probeDuration();
+        if (duration <= 0) {
+            throw new IOException("Unknown duration");
+        }
+        this.pyramid = new PeakPyramid(duration);
+        int chunks = Math.max(1, Math.min(duration / MIN_CHUNK_MILLIS, Runtime.getRuntime()
+                .availableProcessors()));
+        this.remainingChunks.set(chunks);
+        long start = 0;
+        for (int i = 1; i <= chunks; i++) {
+            long end = i == chunks ? Long.MAX_VALUE : this.splitAt((int)((long)duration * i
+                    / chunks));
+            this.executor.execute(new Chunk(start, end));
+            start = end;
+        }
+    }
+
+    // the time in microseconds of the frame boundary nearest before the given time
+    private long splitAt(int time) {
+        return (this.frameIndex != null ? this.frameIndex.snapToFrame(time) : time) * 1000L;
+    }
+
+    private int probeDuration() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(this.context, this.uri, null);
+            MediaFormat format = PcmDecoder.selectAudioTrack(extractor);
+            return format.containsKey(MediaFormat.KEY_DURATION) ? (int)(format
+                    .getLong(MediaFormat.KEY_DURATION) / 1000) : -1;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private void publish(boolean force) {
+        if (this.cancelled) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long last = this.lastPublished.get();
+        if (force || (now - last >= PUBLISH_INTERVAL && this.lastPublished.compareAndSet(last, now))) {
+            this.listener.onWaveformUpdated(this);
+        }
+    }
+
+    // Decodes the audio from start up to end, both in microseconds, into the pyramid
+    private class Chunk implements Runnable, PcmDecoder.Sink {
+        private final long start;
+
+        private final long end;
+
+        private int sampleRate;
+
+        private int channels;
+
+        // the bins being accumulated before they are merged into the pyramid
+        private final short[] batch = new short[2 * BATCH_BINS];
+
+        private int batchStart = -1;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+            PeakPyramid.clear(this.batch, 0, BATCH_BINS);
+        }
+
+        public void run() {
+            try {
+                this.decode();
+            } catch (Exception e) {
+                if (!cancelled) {
+                    Log.w(TAG, "Failed to decode " + uri + " from " + this.start / 1000 + "ms", e);
+                }
+                failed = true;
+            }
+            if (remainingChunks.decrementAndGet() == 0 && !cancelled && !failed) {
+                PeakPyramid pyramid = WaveformGenerator.this.pyramid;
+                pyramid.setComplete();
+                try {
+                    pyramid.write(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to cache peak map in " + file, e);
+                }
+                publish(true);
+            }
+        }
+
+        private void decode() throws IOException, InterruptedException {
+            PcmDecoder decoder = PcmDecoder.open(context, uri);
+            try {
+                this.onOutputFormat(decoder.getFormat());
+                if (this.start > 0) {
+                    decoder.seekTo(this.start);
+                }
+                decoder.setEnd(this.end);
+                while (!cancelled && decoder.step(this)) {
+                    // accumulates what was decoded
+                }
+            } finally {
+                decoder.release();
+            }
+            this.flush();
+        }
+
+        public void onOutputFormat(MediaFormat format) {
+            this.sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            this.channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+
+        public void onPcm(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            int frames = info.size / (2 * this.channels);
+            int position = info.offset;
+            for (int frame = 0; frame < frames; frame++) {
+                short min = Short.MAX_VALUE;
+                short max = Short.MIN_VALUE;
+                for (int c = 0; c < this.channels; c++, position += 2) {
+                    short sample = buffer.getShort(position);
+                    if (sample < min) {
+                        min = sample;
+                    }
+                    if (sample > max) {
+                        max = sample;
+                    }
+                }
+                long time = info.presentationTimeUs + frame * 1000000L / this.sampleRate;
+                if (time < this.start || time >= this.end) {
+                    continue;
+                }
+                int bin = (int)(time / (PeakPyramid.BIN_MILLIS * 1000L));
+                if (this.batchStart < 0) {
+                    this.batchStart = bin;
+                } else if (bin >= this.batchStart + BATCH_BINS) {
+                    this.flush();
+                    this.batchStart = bin;
+                }
+                int i = 2 * Math.max(0, bin - this.batchStart);
+                if (min < this.batch[i]) {
+                    this.batch[i] = min;
+                }
+                if (max > this.batch[i + 1]) {
+                    this.batch[i + 1] = max;
+                }
+            }
+        }
+
+        // merges the batch into the pyramid and starts a new one
+        private void flush() {
+            if (this.batchStart >= 0) {
+                pyramid.merge(this.batchStart, this.batch, BATCH_BINS);
+                PeakPyramid.clear(this.batch, 0, BATCH_BINS);
+                this.batchStart = -1;
+                publish(false);
+            }
+        }
+    }
+}
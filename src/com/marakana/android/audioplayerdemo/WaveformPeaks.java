@@ -0,0 +1,94 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One level of a {@link PeakPyramid}, copied out for a client to draw: the lowest and highest
+ * sample of every bin of {@link #getBinMillis()} milliseconds. Bins that have not been decoded yet
+ * are empty, with a minimum above their maximum.
+ */
+public final class WaveformPeaks implements Parcelable {
+
+    private final int binMillis;
+
+    // min/max pairs
+    private final short[] peaks;
+
+    private final boolean complete;
+
+    public WaveformPeaks(int binMillis, short[] peaks, boolean complete) {
+        this.binMillis = binMillis;
+        this.peaks = peaks;
+        this.complete = complete;
+    }
+
+    private WaveformPeaks(Parcel in) {
+        this.binMillis = in.readInt();
+        this.complete = in.readInt() != 0;
+        int count = in.readInt();
+        this.peaks = new short[2 * count];
+        for (int i = 0; i < this.peaks.length; i += 2) {
+            int pair = in.readInt();
+            this.peaks[i] = (short)(pair >> 16);
+            this.peaks[i + 1] = (short)pair;
+        }
+    }
+
+    public int getBinMillis() {
+        return this.binMillis;
+    }
+
+    public int getCount() {
+        return this.peaks.length / 2;
+    }
+
+    public short getMin(int bin) {
+        return this.peaks[2 * bin];
+    }
+
+    public short getMax(int bin) {
+        return this.peaks[2 * bin + 1];
+    }
+
+    public boolean isEmpty(int bin) {
+        return this.peaks[2 * bin] > this.peaks[2 * bin + 1];
+    }
+
+    /**
+     * @return whether every bin has been decoded
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(this.binMillis);
+        out.writeInt(this.complete ? 1 : 0);
+        out.writeInt(this.peaks.length / 2);
+        for (int i = 0; i < this.peaks.length; i += 2) {
+            out.writeInt((this.peaks[i] << 16) | (this.peaks[i + 1] & 0xFFFF));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WaveformPeaks[" + this.getCount() + " bins of " + this.binMillis + "ms, complete="
+                + this.complete + "]";
+    }
+
+    public static final Parcelable.Creator<WaveformPeaks> CREATOR = new Parcelable.Creator<WaveformPeaks>() {
+        public WaveformPeaks createFromParcel(Parcel in) {
+            return new WaveformPeaks(in);
+        }
+
+        public WaveformPeaks[] newArray(int size) {
+            return new WaveformPeaks[size];
+        }
+    };
+}
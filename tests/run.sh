@@ -0,0 +1,26 @@
+#!/bin/sh
+#
+# Builds the service against the stand-ins for the Android framework in tests/shim, and runs one of
+# the programs in tests/src on the JVM, for example:
+#
+#   tests/run.sh ServiceBenchmark
+#
+# R and the AIDL interfaces are taken from gen/, where the Android build generates them; set GEN to
+# use another directory. The classes are built into bin/tests.
+
+set -e
+cd "$(dirname "$0")/.."
+GEN=${GEN:-gen}
+OUT=bin/tests
+if [ $# -lt 1 ]; then
+    echo "usage: $0 <program> [args...]" >&2
+    exit 2
+fi
+rm -rf "$OUT"
+mkdir -p "$OUT"
+find src tests/shim tests/src "$GEN" -name '*.java' ! -path 'src/*/AudioPlayerActivity.java' \
+    ! -path 'src/*/WaveformDrawable.java' > "$OUT/sources"
+javac -encoding UTF-8 -d "$OUT" @"$OUT/sources"
+PROGRAM=$1
+shift
+exec java -cp "$OUT" -Dshim.res=res $JAVA_OPTS com.marakana.android.audioplayerdemo.$PROGRAM "$@"
@@ -0,0 +1,12 @@
+
+package android;
+
+public final class R {
+    public static final class drawable {
+        public static final int ic_media_pause = 0x01080023;
+
+        public static final int ic_media_play = 0x01080024;
+
+        public static final int stat_notify_error = 0x01080027;
+    }
+}
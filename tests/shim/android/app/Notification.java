@@ -0,0 +1,42 @@
+
+package android.app;
+
+import android.content.Context;
+
+public class Notification {
+    public static final int FLAG_ONGOING_EVENT = 0x00000002;
+
+    public static final int FLAG_NO_CLEAR = 0x00000020;
+
+    public static final int FLAG_FOREGROUND_SERVICE = 0x00000040;
+
+    public int icon;
+
+    public CharSequence tickerText;
+
+    public long when;
+
+    public int flags;
+
+    public PendingIntent contentIntent;
+
+    public CharSequence contentTitle;
+
+    public CharSequence contentText;
+
+    public Notification() {
+    }
+
+    public Notification(int icon, CharSequence tickerText, long when) {
+        this.icon = icon;
+        this.tickerText = tickerText;
+        this.when = when;
+    }
+
+    public void setLatestEventInfo(Context context, CharSequence contentTitle,
+            CharSequence contentText, PendingIntent contentIntent) {
+        this.contentTitle = contentTitle;
+        this.contentText = contentText;
+        this.contentIntent = contentIntent;
+    }
+}
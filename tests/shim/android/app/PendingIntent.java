@@ -0,0 +1,40 @@
+
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+public final class PendingIntent {
+    public static final int FLAG_ONE_SHOT = 1 << 30;
+
+    public static final int FLAG_NO_CREATE = 1 << 29;
+
+    public static final int FLAG_CANCEL_CURRENT = 1 << 28;
+
+    public static final int FLAG_UPDATE_CURRENT = 1 << 27;
+
+    private final Intent intent;
+
+    private PendingIntent(Intent intent) {
+        this.intent = intent;
+    }
+
+    public static PendingIntent getActivity(Context context, int requestCode, Intent intent,
+            int flags) {
+        return new PendingIntent(intent);
+    }
+
+    public static PendingIntent getService(Context context, int requestCode, Intent intent,
+            int flags) {
+        return new PendingIntent(intent);
+    }
+
+    public static PendingIntent getBroadcast(Context context, int requestCode, Intent intent,
+            int flags) {
+        return new PendingIntent(intent);
+    }
+
+    public Intent getIntent() {
+        return this.intent;
+    }
+}
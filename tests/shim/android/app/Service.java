@@ -0,0 +1,77 @@
+
+package android.app;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * Records the calls a service makes on itself about its lifecycle, so they can be checked.
+ */
+public abstract class Service extends ContextWrapper {
+    public static final int START_NOT_STICKY = 2;
+
+    public static final int START_STICKY = 1;
+
+    private Notification foreground;
+
+    private int stopSelfCount = 0;
+
+    public Service() {
+        super(null);
+    }
+
+    /**
+     * Does what the system does before {@link #onCreate()}.
+     */
+    public final void attach(Context base) {
+        this.attachBaseContext(base);
+    }
+
+    public void onCreate() {
+    }
+
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    public void onDestroy() {
+    }
+
+    public abstract IBinder onBind(Intent intent);
+
+    public boolean onUnbind(Intent intent) {
+        return false;
+    }
+
+    public final synchronized void startForeground(int id, Notification notification) {
+        if (notification == null) {
+            throw new IllegalArgumentException("null notification");
+        }
+        this.foreground = notification;
+    }
+
+    public final synchronized void stopForeground(boolean removeNotification) {
+        this.foreground = null;
+    }
+
+    public final synchronized void stopSelf() {
+        this.stopSelfCount++;
+    }
+
+    public final void stopSelf(int startId) {
+        this.stopSelf();
+    }
+
+    /**
+     * @return the notification the service is in the foreground with, or null if it is not
+     */
+    public final synchronized Notification getForegroundNotification() {
+        return this.foreground;
+    }
+
+    public final synchronized int getStopSelfCount() {
+        return this.stopSelfCount;
+    }
+}
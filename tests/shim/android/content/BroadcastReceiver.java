@@ -0,0 +1,9 @@
+
+package android.content;
+
+public abstract class BroadcastReceiver {
+    public BroadcastReceiver() {
+    }
+
+    public abstract void onReceive(Context context, Intent intent);
+}
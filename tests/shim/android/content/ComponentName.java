@@ -0,0 +1,41 @@
+
+package android.content;
+
+public final class ComponentName {
+    private final String packageName;
+
+    private final String className;
+
+    public ComponentName(String packageName, String className) {
+        this.packageName = packageName;
+        this.className = className;
+    }
+
+    public ComponentName(Context context, Class<?> cls) {
+        this(context.getPackageName(), cls.getName());
+    }
+
+    public String getPackageName() {
+        return this.packageName;
+    }
+
+    public String getClassName() {
+        return this.className;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ComponentName && this.packageName.equals(((ComponentName)o).packageName)
+                && this.className.equals(((ComponentName)o).className);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.packageName.hashCode() * 31 + this.className.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ComponentName{" + this.packageName + "/" + this.className + "}";
+    }
+}
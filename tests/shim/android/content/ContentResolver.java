@@ -0,0 +1,53 @@
+
+package android.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+/**
+ * Opens {@code file://} URIs. Anything else is looked up through {@link #resolve(Uri)}, which
+ * finds nothing unless overridden. There are no providers, so no URI has a MIME type.
+ */
+public class ContentResolver {
+    public static final String SCHEME_FILE = "file";
+
+    public static final String SCHEME_CONTENT = "content";
+
+    public static final String SCHEME_ANDROID_RESOURCE = "android.resource";
+
+    /**
+     * @return the file holding the content of the given non-file URI, or null if there is none
+     */
+    protected File resolve(Uri uri) {
+        return null;
+    }
+
+    private File file(Uri uri) throws FileNotFoundException {
+        File file = SCHEME_FILE.equals(uri.getScheme()) ? new File(uri.getPath()) : this
+                .resolve(uri);
+        if (file == null || !file.isFile()) {
+            throw new FileNotFoundException("No content provider: " + uri);
+        }
+        return file;
+    }
+
+    public final AssetFileDescriptor openAssetFileDescriptor(Uri uri, String mode)
+            throws FileNotFoundException {
+        File file = this.file(uri);
+        return new AssetFileDescriptor(new FileInputStream(file), 0,
+                AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    public final String getType(Uri uri) {
+        return null;
+    }
+
+    public final InputStream openInputStream(Uri uri) throws FileNotFoundException {
+        return new FileInputStream(this.file(uri));
+    }
+}
@@ -0,0 +1,57 @@
+
+package android.content;
+
+import java.io.File;
+
+import android.content.res.Resources;
+import android.os.Looper;
+
+public abstract class Context {
+    public static final String AUDIO_SERVICE = "audio";
+
+    public static final String POWER_SERVICE = "power";
+
+    public static final String NOTIFICATION_SERVICE = "notification";
+
+    public static final int MODE_PRIVATE = 0;
+
+    public static final int BIND_AUTO_CREATE = 0x0001;
+
+    public abstract Context getApplicationContext();
+
+    public abstract String getPackageName();
+
+    public abstract Resources getResources();
+
+    public abstract ContentResolver getContentResolver();
+
+    public abstract Looper getMainLooper();
+
+    public abstract File getFilesDir();
+
+    public abstract File getCacheDir();
+
+    public abstract Object getSystemService(String name);
+
+    public abstract Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter);
+
+    public abstract void unregisterReceiver(BroadcastReceiver receiver);
+
+    public abstract ComponentName startService(Intent service);
+
+    public abstract boolean stopService(Intent service);
+
+    public abstract boolean bindService(Intent service, ServiceConnection conn, int flags);
+
+    public abstract void unbindService(ServiceConnection conn);
+
+    public abstract void sendBroadcast(Intent intent);
+
+    public final CharSequence getText(int resId) {
+        return this.getResources().getText(resId);
+    }
+
+    public final String getString(int resId) {
+        return this.getResources().getString(resId);
+    }
+}
@@ -0,0 +1,101 @@
+
+package android.content;
+
+import java.io.File;
+
+import android.content.res.Resources;
+import android.os.Looper;
+
+public class ContextWrapper extends Context {
+    private Context base;
+
+    public ContextWrapper(Context base) {
+        this.base = base;
+    }
+
+    protected void attachBaseContext(Context base) {
+        if (this.base != null) {
+            throw new IllegalStateException("Base context already set");
+        }
+        this.base = base;
+    }
+
+    public Context getBaseContext() {
+        return this.base;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this.base.getApplicationContext();
+    }
+
+    @Override
+    public String getPackageName() {
+        return this.base.getPackageName();
+    }
+
+    @Override
+    public Resources getResources() {
+        return this.base.getResources();
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return this.base.getContentResolver();
+    }
+
+    @Override
+    public Looper getMainLooper() {
+        return this.base.getMainLooper();
+    }
+
+    @Override
+    public File getFilesDir() {
+        return this.base.getFilesDir();
+    }
+
+    @Override
+    public File getCacheDir() {
+        return this.base.getCacheDir();
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        return this.base.getSystemService(name);
+    }
+
+    @Override
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return this.base.registerReceiver(receiver, filter);
+    }
+
+    @Override
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+        this.base.unregisterReceiver(receiver);
+    }
+
+    @Override
+    public ComponentName startService(Intent service) {
+        return this.base.startService(service);
+    }
+
+    @Override
+    public boolean stopService(Intent service) {
+        return this.base.stopService(service);
+    }
+
+    @Override
+    public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+        return this.base.bindService(service, conn, flags);
+    }
+
+    @Override
+    public void unbindService(ServiceConnection conn) {
+        this.base.unbindService(conn);
+    }
+
+    @Override
+    public void sendBroadcast(Intent intent) {
+        this.base.sendBroadcast(intent);
+    }
+}
@@ -0,0 +1,152 @@
+
+package android.content;
+
+import java.util.HashMap;
+
+import android.net.Uri;
+import android.os.Parcelable;
+
+public class Intent {
+    public static final String ACTION_MEDIA_BUTTON = "android.intent.action.MEDIA_BUTTON";
+
+    public static final String ACTION_HEADSET_PLUG = "android.intent.action.HEADSET_PLUG";
+
+    public static final String EXTRA_KEY_EVENT = "android.intent.extra.KEY_EVENT";
+
+    public static final int FLAG_ACTIVITY_NEW_TASK = 0x10000000;
+
+    private String action;
+
+    private Uri data;
+
+    private ComponentName component;
+
+    private int flags;
+
+    private final HashMap<String, Object> extras = new HashMap<String, Object>();
+
+    public Intent() {
+    }
+
+    public Intent(String action) {
+        this.action = action;
+    }
+
+    public Intent(String action, Uri data) {
+        this.action = action;
+        this.data = data;
+    }
+
+    public Intent(Context packageContext, Class<?> cls) {
+        this.component = new ComponentName(packageContext, cls);
+    }
+
+    public Intent(String action, Uri data, Context packageContext, Class<?> cls) {
+        this(packageContext, cls);
+        this.action = action;
+        this.data = data;
+    }
+
+    public String getAction() {
+        return this.action;
+    }
+
+    public Intent setAction(String action) {
+        this.action = action;
+        return this;
+    }
+
+    public Uri getData() {
+        return this.data;
+    }
+
+    public Intent setData(Uri data) {
+        this.data = data;
+        return this;
+    }
+
+    public ComponentName getComponent() {
+        return this.component;
+    }
+
+    public Intent setClass(Context packageContext, Class<?> cls) {
+        this.component = new ComponentName(packageContext, cls);
+        return this;
+    }
+
+    public int getFlags() {
+        return this.flags;
+    }
+
+    public Intent addFlags(int flags) {
+        this.flags |= flags;
+        return this;
+    }
+
+    public Intent setFlags(int flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    public boolean hasExtra(String name) {
+        return this.extras.containsKey(name);
+    }
+
+    private Intent put(String name, Object value) {
+        this.extras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, boolean value) {
+        return this.put(name, value);
+    }
+
+    public Intent putExtra(String name, int value) {
+        return this.put(name, value);
+    }
+
+    public Intent putExtra(String name, long value) {
+        return this.put(name, value);
+    }
+
+    public Intent putExtra(String name, String value) {
+        return this.put(name, value);
+    }
+
+    public Intent putExtra(String name, Parcelable value) {
+        return this.put(name, value);
+    }
+
+    public boolean getBooleanExtra(String name, boolean defaultValue) {
+        Object value = this.extras.get(name);
+        return value instanceof Boolean ? (Boolean)value : defaultValue;
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        Object value = this.extras.get(name);
+        return value instanceof Integer ? (Integer)value : defaultValue;
+    }
+
+    public long getLongExtra(String name, long defaultValue) {
+        Object value = this.extras.get(name);
+        return value instanceof Long ? (Long)value : defaultValue;
+    }
+
+    public String getStringExtra(String name) {
+        Object value = this.extras.get(name);
+        return value instanceof String ? (String)value : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelableExtra(String name) {
+        Object value = this.extras.get(name);
+        return value instanceof Parcelable ? (T)value : null;
+    }
+
+    @Override
+    public String toString() {
+        return "Intent { act=" + this.action + (this.data != null ? " dat=" + this.data : "")
+                + (this.component != null ? " cmp=" + this.component.getClassName() : "")
+                + (this.extras.isEmpty() ? "" : " (has extras)") + " }";
+    }
+}
@@ -0,0 +1,31 @@
+
+package android.content;
+
+import java.util.ArrayList;
+
+public class IntentFilter {
+    private final ArrayList<String> actions = new ArrayList<String>();
+
+    public IntentFilter() {
+    }
+
+    public IntentFilter(String action) {
+        this.addAction(action);
+    }
+
+    public final void addAction(String action) {
+        this.actions.add(action);
+    }
+
+    public final boolean hasAction(String action) {
+        return this.actions.contains(action);
+    }
+
+    public final int countActions() {
+        return this.actions.size();
+    }
+
+    public final String getAction(int index) {
+        return this.actions.get(index);
+    }
+}
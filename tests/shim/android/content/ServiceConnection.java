@@ -0,0 +1,10 @@
+
+package android.content;
+
+import android.os.IBinder;
+
+public interface ServiceConnection {
+    public void onServiceConnected(ComponentName name, IBinder service);
+
+    public void onServiceDisconnected(ComponentName name);
+}
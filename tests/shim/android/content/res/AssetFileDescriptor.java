@@ -0,0 +1,46 @@
+
+package android.content.res;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public class AssetFileDescriptor {
+    public static final long UNKNOWN_LENGTH = -1;
+
+    private final FileInputStream stream;
+
+    private final long startOffset;
+
+    private final long length;
+
+    public AssetFileDescriptor(FileInputStream stream, long startOffset, long length) {
+        this.stream = stream;
+        this.startOffset = startOffset;
+        this.length = length;
+    }
+
+    public FileDescriptor getFileDescriptor() {
+        try {
+            return this.stream.getFD();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getStartOffset() {
+        return this.startOffset;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public long getDeclaredLength() {
+        return this.length;
+    }
+
+    public void close() throws IOException {
+        this.stream.close();
+    }
+}
@@ -0,0 +1,61 @@
+
+package android.content.res;
+
+import java.util.HashMap;
+
+import android.util.TypedValue;
+
+/**
+ * Holds whatever values the test puts in, by resource id.
+ */
+public class Resources {
+    public static class NotFoundException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public NotFoundException(String name) {
+            super(name);
+        }
+    }
+
+    private final HashMap<Integer, Object> values = new HashMap<Integer, Object>();
+
+    public void put(int id, Object value) {
+        this.values.put(id, value);
+    }
+
+    private Object get(int id) {
+        Object value = this.values.get(id);
+        if (value == null) {
+            throw new NotFoundException("Resource ID #0x" + Integer.toHexString(id));
+        }
+        return value;
+    }
+
+    public boolean getBoolean(int id) {
+        return (Boolean)this.get(id);
+    }
+
+    public int getInteger(int id) {
+        return (Integer)this.get(id);
+    }
+
+    public int getColor(int id) {
+        return (Integer)this.get(id);
+    }
+
+    public CharSequence getText(int id) {
+        return (CharSequence)this.get(id);
+    }
+
+    public String getString(int id) {
+        return this.get(id).toString();
+    }
+
+    public void getValue(int id, TypedValue outValue, boolean resolveRefs) {
+        outValue.string = this.get(id).toString();
+    }
+
+    public String[] getStringArray(int id) {
+        return ((String[])this.get(id)).clone();
+    }
+}
@@ -0,0 +1,12 @@
+
+package android.media;
+
+public class AudioFormat {
+    public static final int ENCODING_PCM_16BIT = 2;
+
+    public static final int ENCODING_PCM_8BIT = 3;
+
+    public static final int CHANNEL_OUT_MONO = 0x4;
+
+    public static final int CHANNEL_OUT_STEREO = 0xc;
+}
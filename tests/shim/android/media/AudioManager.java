@@ -0,0 +1,69 @@
+
+package android.media;
+
+import android.content.ComponentName;
+
+/**
+ * Grants audio focus to whoever asks last, and remembers who holds it and which media button
+ * receiver is registered, so they can be checked.
+ */
+public class AudioManager {
+    public static final String ACTION_AUDIO_BECOMING_NOISY = "android.media.AUDIO_BECOMING_NOISY";
+
+    public static final int STREAM_MUSIC = 3;
+
+    public static final int AUDIOFOCUS_GAIN = 1;
+
+    public static final int AUDIOFOCUS_GAIN_TRANSIENT = 2;
+
+    public static final int AUDIOFOCUS_GAIN_TRANSIENT_MAY_DUCK = 3;
+
+    public static final int AUDIOFOCUS_LOSS = -1 * AUDIOFOCUS_GAIN;
+
+    public static final int AUDIOFOCUS_LOSS_TRANSIENT = -1 * AUDIOFOCUS_GAIN_TRANSIENT;
+
+    public static final int AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK = -1 * AUDIOFOCUS_GAIN_TRANSIENT_MAY_DUCK;
+
+    public static final int AUDIOFOCUS_REQUEST_FAILED = 0;
+
+    public static final int AUDIOFOCUS_REQUEST_GRANTED = 1;
+
+    public interface OnAudioFocusChangeListener {
+        public void onAudioFocusChange(int focusChange);
+    }
+
+    private OnAudioFocusChangeListener focusHolder;
+
+    private ComponentName mediaButtonReceiver;
+
+    public synchronized int requestAudioFocus(OnAudioFocusChangeListener l, int streamType,
+            int durationHint) {
+        this.focusHolder = l;
+        return AUDIOFOCUS_REQUEST_GRANTED;
+    }
+
+    public synchronized int abandonAudioFocus(OnAudioFocusChangeListener l) {
+        if (this.focusHolder == l) {
+            this.focusHolder = null;
+        }
+        return AUDIOFOCUS_REQUEST_GRANTED;
+    }
+
+    public synchronized void registerMediaButtonEventReceiver(ComponentName eventReceiver) {
+        this.mediaButtonReceiver = eventReceiver;
+    }
+
+    public synchronized void unregisterMediaButtonEventReceiver(ComponentName eventReceiver) {
+        if (eventReceiver.equals(this.mediaButtonReceiver)) {
+            this.mediaButtonReceiver = null;
+        }
+    }
+
+    public synchronized OnAudioFocusChangeListener getFocusHolder() {
+        return this.focusHolder;
+    }
+
+    public synchronized ComponentName getMediaButtonReceiver() {
+        return this.mediaButtonReceiver;
+    }
+}
@@ -0,0 +1,232 @@
+
+package android.media;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Plays out what is written at the sample rate, against {@link SystemClock}, and blocks writers
+ * while its buffer is full. Running dry while playing counts as an underrun. The notification
+ * marker is reported once the head has passed it, as seen when the head is next moved: by a query,
+ * a play, a pause or a stop.
+ */
+public class AudioTrack {
+    public static final int MODE_STATIC = 0;
+
+    public static final int MODE_STREAM = 1;
+
+    public static final int PLAYSTATE_STOPPED = 1;
+
+    public static final int PLAYSTATE_PAUSED = 2;
+
+    public static final int PLAYSTATE_PLAYING = 3;
+
+    public static final int STATE_UNINITIALIZED = 0;
+
+    public static final int STATE_INITIALIZED = 1;
+
+    public static final int ERROR = -1;
+
+    public static final int ERROR_BAD_VALUE = -2;
+
+    public static final int ERROR_INVALID_OPERATION = -3;
+
+    public static final int SUCCESS = 0;
+
+    public interface OnPlaybackPositionUpdateListener {
+        void onMarkerReached(AudioTrack track);
+
+        void onPeriodicNotification(AudioTrack track);
+    }
+
+    private final int sampleRate;
+
+    private final int frameSize;
+
+    private final int capacity;
+
+    private int playState = PLAYSTATE_STOPPED;
+
+    private boolean released = false;
+
+    // frames written, and played up to the last time the head was moved
+    private long written = 0;
+
+    private long played = 0;
+
+    private long playedAt;
+
+    private int underruns = 0;
+
+    private OnPlaybackPositionUpdateListener listener;
+
+    private Handler handler;
+
+    // the marker in frames, or 0 if none or once reported
+    private int marker = 0;
+
+    public AudioTrack(int streamType, int sampleRateInHz, int channelConfig, int audioFormat,
+            int bufferSizeInBytes, int mode) {
+        if (audioFormat != AudioFormat.ENCODING_PCM_16BIT || mode != MODE_STREAM) {
+            throw new IllegalArgumentException("Unsupported format or mode");
+        }
+        this.sampleRate = sampleRateInHz;
+        this.frameSize = (channelConfig == AudioFormat.CHANNEL_OUT_STEREO ? 2 : 1) * 2;
+        this.capacity = bufferSizeInBytes / this.frameSize;
+    }
+
+    public static int getMinBufferSize(int sampleRateInHz, int channelConfig, int audioFormat) {
+        // about 40 milliseconds
+        int frames = sampleRateInHz / 25;
+        return frames * (channelConfig == AudioFormat.CHANNEL_OUT_STEREO ? 4 : 2);
+    }
+
+    // moves the head to now
+    private void update() {
+        long now = SystemClock.uptimeMillis();
+        if (this.playState == PLAYSTATE_PLAYING) {
+            long head = this.played + (now - this.playedAt) * this.sampleRate / 1000;
+            if (head >= this.written) {
+                if (this.played < this.written) {
+                    this.underruns++;
+                }
+                head = this.written;
+            }
+            if (head > this.played) {
+                this.played = head;
+                this.playedAt = now;
+            } else if (head == this.written) {
+                this.playedAt = now;
+            }
+        } else {
+            this.playedAt = now;
+        }
+        this.checkMarker();
+    }
+
+    private void checkMarker() {
+        if (this.marker > 0 && this.played >= this.marker) {
+            this.marker = 0;
+            final OnPlaybackPositionUpdateListener listener = this.listener;
+            if (listener != null) {
+                this.handler.post(new Runnable() {
+                    public void run() {
+                        listener.onMarkerReached(AudioTrack.this);
+                    }
+                });
+            }
+        }
+    }
+
+    public synchronized void setPlaybackPositionUpdateListener(
+            OnPlaybackPositionUpdateListener listener, Handler handler) {
+        this.listener = listener;
+        if (handler != null) {
+            this.handler = handler;
+        } else {
+            Looper looper = Looper.myLooper();
+            this.handler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        }
+    }
+
+    public synchronized int setNotificationMarkerPosition(int markerInFrames) {
+        this.checkReleased();
+        this.marker = markerInFrames;
+        return SUCCESS;
+    }
+
+    public synchronized void play() {
+        this.checkReleased();
+        this.update();
+        this.playState = PLAYSTATE_PLAYING;
+        this.playedAt = SystemClock.uptimeMillis();
+    }
+
+    public synchronized void pause() {
+        this.checkReleased();
+        this.update();
+        this.playState = PLAYSTATE_PAUSED;
+    }
+
+    public synchronized void stop() {
+        this.checkReleased();
+        this.update();
+        this.playState = PLAYSTATE_STOPPED;
+        // plays out what is left, which here takes no time
+        this.played = this.written;
+        this.checkMarker();
+    }
+
+    public synchronized void flush() {
+        this.checkReleased();
+        if (this.playState != PLAYSTATE_PLAYING) {
+            this.update();
+            this.written = this.played;
+        }
+    }
+
+    public synchronized void release() {
+        this.released = true;
+        this.playState = PLAYSTATE_STOPPED;
+        this.notifyAll();
+    }
+
+    private void checkReleased() {
+        if (this.released) {
+            throw new IllegalStateException("Track released");
+        }
+    }
+
+    public synchronized int getPlayState() {
+        return this.playState;
+    }
+
+    public synchronized int getState() {
+        return this.released ? STATE_UNINITIALIZED : STATE_INITIALIZED;
+    }
+
+    public synchronized int getPlaybackHeadPosition() {
+        this.update();
+        return (int)this.played;
+    }
+
+    public synchronized int getUnderrunCount() {
+        this.update();
+        return this.underruns;
+    }
+
+    public int write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+        return this.writeFrames(sizeInShorts * 2) / 2;
+    }
+
+    public int write(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+        return this.writeFrames(sizeInBytes);
+    }
+
+    // blocks until all the bytes fit or the track is paused, stopped or released
+    private int writeFrames(int bytes) {
+        int frames = bytes / this.frameSize;
+        int done = 0;
+        while (done < frames) {
+            synchronized (this) {
+                if (this.released) {
+                    return done == 0 ? ERROR_INVALID_OPERATION : done * this.frameSize;
+                }
+                this.update();
+                int room = (int)(this.capacity - (this.written - this.played));
+                if (room > 0) {
+                    int n = Math.min(room, frames - done);
+                    this.written += n;
+                    done += n;
+                    continue;
+                }
+                if (this.playState != PLAYSTATE_PLAYING) {
+                    break;
+                }
+            }
+            SystemClock.sleep(1);
+        }
+        return done * this.frameSize;
+    }
+}
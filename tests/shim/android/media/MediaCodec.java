@@ -0,0 +1,189 @@
+
+package android.media;
+
+import java.nio.ByteBuffer;
+
+import android.view.Surface;
+
+/**
+ * A decoder for {@code audio/raw}, which copies every input buffer to an output buffer unchanged.
+ * Like a real decoder, it announces its output format before the first buffer with audio in it, so
+ * an empty stream yields only the end of stream.
+ */
+public final class MediaCodec {
+    public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    public static final int CONFIGURE_FLAG_ENCODE = 1;
+
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    private static final int BUFFERS = 4;
+
+    private static final int BUFFER_SIZE = 16384;
+
+    public static final class BufferInfo {
+        public int offset;
+
+        public int size;
+
+        public long presentationTimeUs;
+
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            this.offset = newOffset;
+            this.size = newSize;
+            this.presentationTimeUs = newTimeUs;
+            this.flags = newFlags;
+        }
+    }
+
+    private final ByteBuffer[] inputs = new ByteBuffer[BUFFERS];
+
+    private final ByteBuffer[] outputs = new ByteBuffer[BUFFERS];
+
+    // per buffer index: whether the client owns the input buffer, and the queued input's info
+    private final boolean[] dequeued = new boolean[BUFFERS];
+
+    private final BufferInfo[] queued = new BufferInfo[BUFFERS];
+
+    private final boolean[] outputHeld = new boolean[BUFFERS];
+
+    private MediaFormat format;
+
+    private boolean started = false;
+
+    private boolean formatReported = false;
+
+    private MediaCodec() {
+        for (int i = 0; i < BUFFERS; i++) {
+            this.inputs[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.outputs[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    }
+
+    public static MediaCodec createDecoderByType(String type) {
+        if (!"audio/raw".equals(type)) {
+            throw new IllegalArgumentException("No decoder for " + type);
+        }
+        return new MediaCodec();
+    }
+
+    public void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
+        this.format = format;
+    }
+
+    public final void start() {
+        if (this.format == null) {
+            throw new IllegalStateException("Not configured");
+        }
+        this.started = true;
+    }
+
+    public final void stop() {
+        this.started = false;
+        this.flush();
+    }
+
+    public final void release() {
+        this.started = false;
+        this.format = null;
+    }
+
+    public final void flush() {
+        for (int i = 0; i < BUFFERS; i++) {
+            this.dequeued[i] = false;
+            this.queued[i] = null;
+            this.outputHeld[i] = false;
+        }
+    }
+
+    private void checkStarted() {
+        if (!this.started) {
+            throw new IllegalStateException("Not started");
+        }
+    }
+
+    public ByteBuffer[] getInputBuffers() {
+        this.checkStarted();
+        return this.inputs;
+    }
+
+    public ByteBuffer[] getOutputBuffers() {
+        this.checkStarted();
+        return this.outputs;
+    }
+
+    public final MediaFormat getOutputFormat() {
+        return this.format;
+    }
+
+    public final int dequeueInputBuffer(long timeoutUs) {
+        this.checkStarted();
+        for (int i = 0; i < BUFFERS; i++) {
+            if (!this.dequeued[i] && this.queued[i] == null && !this.outputHeld[i]) {
+                this.dequeued[i] = true;
+                this.inputs[i].clear();
+                return i;
+            }
+        }
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    public final void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        this.checkStarted();
+        if (!this.dequeued[index]) {
+            throw new IllegalStateException("Input buffer " + index + " not dequeued");
+        }
+        this.dequeued[index] = false;
+        BufferInfo info = new BufferInfo();
+        info.set(offset, size, presentationTimeUs, flags);
+        this.queued[index] = info;
+    }
+
+    public final int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        this.checkStarted();
+        int next = -1;
+        for (int i = 0; i < BUFFERS; i++) {
+            if (this.queued[i] != null
+                    && (next < 0 || this.queued[i].presentationTimeUs < this.queued[next].presentationTimeUs)) {
+                next = i;
+            }
+        }
+        if (next < 0) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+        BufferInfo in = this.queued[next];
+        if (!this.formatReported && in.size > 0) {
+            this.formatReported = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        this.queued[next] = null;
+        ByteBuffer source = this.inputs[next].duplicate();
+        source.limit(in.offset + in.size);
+        source.position(in.offset);
+        ByteBuffer target = this.outputs[next];
+        target.clear();
+        target.put(source);
+        target.flip();
+        info.set(0, in.size, in.presentationTimeUs, in.flags);
+        this.outputHeld[next] = true;
+        return next;
+    }
+
+    public final void releaseOutputBuffer(int index, boolean render) {
+        if (!this.outputHeld[index]) {
+            throw new IllegalStateException("Output buffer " + index + " not dequeued");
+        }
+        this.outputHeld[index] = false;
+    }
+}
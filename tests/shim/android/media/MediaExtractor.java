@@ -0,0 +1,166 @@
+
+package android.media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * Extracts the samples of 16-bit PCM WAV files, as a single track of type {@code audio/raw}, which
+ * {@link MediaCodec} passes through. Anything else fails to open, as an unsupported format does on
+ * a device.
+ */
+public final class MediaExtractor {
+    public static final int SEEK_TO_PREVIOUS_SYNC = 0;
+
+    public static final int SEEK_TO_NEXT_SYNC = 1;
+
+    public static final int SEEK_TO_CLOSEST_SYNC = 2;
+
+    public static final int SAMPLE_FLAG_SYNC = 1;
+
+    // the bytes handed out per sample
+    private static final int SAMPLE_SIZE = 4096;
+
+    private ByteBuffer data;
+
+    private MediaFormat format;
+
+    private int frameSize;
+
+    private int sampleRate;
+
+    private boolean selected = false;
+
+    public MediaExtractor() {
+    }
+
+    public final void setDataSource(Context context, Uri uri, Map<String, String> headers)
+            throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0;) {
+                bytes.write(buffer, 0, n);
+            }
+            this.parse(ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN));
+        } finally {
+            in.close();
+        }
+    }
+
+    public final void setDataSource(String path) throws IOException {
+        throw new IOException("Failed to instantiate extractor.");
+    }
+
+    private void parse(ByteBuffer file) throws IOException {
+        if (file.remaining() < 12 || file.getInt(0) != 0x46464952 || file.getInt(8) != 0x45564157) {
+            throw new IOException("Failed to instantiate extractor.");
+        }
+        int channels = 0;
+        int bits = 0;
+        for (int chunk = 12; chunk + 8 <= file.limit();) {
+            int id = file.getInt(chunk);
+            int size = file.getInt(chunk + 4);
+            if (id == 0x20746d66) {
+                // "fmt "
+                if (file.getShort(chunk + 8) != 1) {
+                    throw new IOException("Failed to instantiate extractor.");
+                }
+                channels = file.getShort(chunk + 10);
+                this.sampleRate = file.getInt(chunk + 12);
+                bits = file.getShort(chunk + 22);
+            } else if (id == 0x61746164) {
+                // "data"
+                int end = Math.min(file.limit(), chunk + 8 + size);
+                file.position(chunk + 8);
+                file.limit(end);
+                this.data = file.slice();
+                break;
+            }
+            chunk += 8 + size + (size & 1);
+        }
+        if (this.data == null || channels <= 0 || bits != 16 || this.sampleRate <= 0) {
+            throw new IOException("Failed to instantiate extractor.");
+        }
+        this.frameSize = channels * 2;
+        this.format = MediaFormat.createAudioFormat("audio/raw", this.sampleRate, channels);
+        this.format.setLong(MediaFormat.KEY_DURATION, this.timeOf(this.data.limit()));
+    }
+
+    private long timeOf(int offset) {
+        return offset / this.frameSize * 1000000L / this.sampleRate;
+    }
+
+    public final int getTrackCount() {
+        return this.format == null ? 0 : 1;
+    }
+
+    public MediaFormat getTrackFormat(int index) {
+        if (index != 0 || this.format == null) {
+            throw new IllegalArgumentException("No track " + index);
+        }
+        return this.format;
+    }
+
+    public void selectTrack(int index) {
+        this.getTrackFormat(index);
+        this.selected = true;
+    }
+
+    public void unselectTrack(int index) {
+        this.selected = false;
+    }
+
+    public void seekTo(long timeUs, int mode) {
+        long frame = Math.max(0, timeUs) * this.sampleRate / 1000000L;
+        this.data.position((int)Math.min(this.data.limit(), frame * this.frameSize));
+    }
+
+    public boolean advance() {
+        if (!this.selected || !this.data.hasRemaining()) {
+            return false;
+        }
+        this.data.position(Math.min(this.data.limit(), this.data.position() + SAMPLE_SIZE));
+        return this.data.hasRemaining();
+    }
+
+    public int readSampleData(ByteBuffer byteBuf, int offset) {
+        if (!this.selected || !this.data.hasRemaining()) {
+            return -1;
+        }
+        int size = Math.min(SAMPLE_SIZE, Math.min(this.data.remaining(), byteBuf.capacity()
+                - offset));
+        ByteBuffer sample = this.data.duplicate();
+        sample.limit(sample.position() + size);
+        ByteBuffer target = byteBuf.duplicate();
+        target.clear();
+        target.position(offset);
+        target.put(sample);
+        return size;
+    }
+
+    public int getSampleTrackIndex() {
+        return this.selected && this.data.hasRemaining() ? 0 : -1;
+    }
+
+    public long getSampleTime() {
+        return this.selected && this.data.hasRemaining() ? this.timeOf(this.data.position()) : -1;
+    }
+
+    public int getSampleFlags() {
+        return SAMPLE_FLAG_SYNC;
+    }
+
+    public final void release() {
+        this.data = null;
+        this.format = null;
+    }
+}
@@ -0,0 +1,70 @@
+
+package android.media;
+
+import java.util.HashMap;
+
+public final class MediaFormat {
+    public static final String KEY_MIME = "mime";
+
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+
+    public static final String KEY_DURATION = "durationUs";
+
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+
+    private final HashMap<String, Object> values = new HashMap<String, Object>();
+
+    public MediaFormat() {
+    }
+
+    public static MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public final boolean containsKey(String name) {
+        return this.values.containsKey(name);
+    }
+
+    private Object get(String name) {
+        Object value = this.values.get(name);
+        if (value == null) {
+            throw new NullPointerException(name);
+        }
+        return value;
+    }
+
+    public final int getInteger(String name) {
+        return (Integer)this.get(name);
+    }
+
+    public final long getLong(String name) {
+        return (Long)this.get(name);
+    }
+
+    public final String getString(String name) {
+        return (String)this.values.get(name);
+    }
+
+    public final void setInteger(String name, int value) {
+        this.values.put(name, value);
+    }
+
+    public final void setLong(String name, long value) {
+        this.values.put(name, value);
+    }
+
+    public final void setString(String name, String value) {
+        this.values.put(name, value);
+    }
+
+    @Override
+    public String toString() {
+        return this.values.toString();
+    }
+}
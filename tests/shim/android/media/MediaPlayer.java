@@ -0,0 +1,124 @@
+
+package android.media;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Does not decode anything: preparing fails through the error listener, as an unsupported file
+ * does on a device. Only here for {@code MediaPlayerEngine} to build against.
+ */
+public class MediaPlayer {
+    public static final int MEDIA_ERROR_UNKNOWN = 1;
+
+    public static final int MEDIA_ERROR_SERVER_DIED = 100;
+
+    public static final int MEDIA_INFO_BUFFERING_START = 701;
+
+    public static final int MEDIA_INFO_BUFFERING_END = 702;
+
+    public interface OnPreparedListener {
+        void onPrepared(MediaPlayer mp);
+    }
+
+    public interface OnCompletionListener {
+        void onCompletion(MediaPlayer mp);
+    }
+
+    public interface OnSeekCompleteListener {
+        void onSeekComplete(MediaPlayer mp);
+    }
+
+    public interface OnBufferingUpdateListener {
+        void onBufferingUpdate(MediaPlayer mp, int percent);
+    }
+
+    public interface OnInfoListener {
+        boolean onInfo(MediaPlayer mp, int what, int extra);
+    }
+
+    public interface OnErrorListener {
+        boolean onError(MediaPlayer mp, int what, int extra);
+    }
+
+    private final Handler handler = new Handler(Looper.myLooper() != null ? Looper.myLooper()
+            : Looper.getMainLooper());
+
+    private OnErrorListener onError;
+
+    public void setDataSource(Context context, Uri uri) throws IOException {
+    }
+
+    public void setAudioStreamType(int streamtype) {
+    }
+
+    public void setWakeMode(Context context, int mode) {
+    }
+
+    public void prepareAsync() {
+        this.handler.post(new Runnable() {
+            public void run() {
+                if (onError != null) {
+                    onError.onError(MediaPlayer.this, MEDIA_ERROR_UNKNOWN, 0);
+                }
+            }
+        });
+    }
+
+    public void start() {
+    }
+
+    public void pause() {
+    }
+
+    public void stop() {
+    }
+
+    public void seekTo(int msec) {
+    }
+
+    public int getCurrentPosition() {
+        return 0;
+    }
+
+    public int getDuration() {
+        return 0;
+    }
+
+    public void setVolume(float leftVolume, float rightVolume) {
+    }
+
+    public void setNextMediaPlayer(MediaPlayer next) {
+    }
+
+    public void reset() {
+        this.handler.removeCallbacksAndMessages(null);
+    }
+
+    public void release() {
+        this.handler.removeCallbacksAndMessages(null);
+    }
+
+    public void setOnPreparedListener(OnPreparedListener listener) {
+    }
+
+    public void setOnCompletionListener(OnCompletionListener listener) {
+    }
+
+    public void setOnSeekCompleteListener(OnSeekCompleteListener listener) {
+    }
+
+    public void setOnBufferingUpdateListener(OnBufferingUpdateListener listener) {
+    }
+
+    public void setOnInfoListener(OnInfoListener listener) {
+    }
+
+    public void setOnErrorListener(OnErrorListener listener) {
+        this.onError = listener;
+    }
+}
@@ -0,0 +1,193 @@
+
+package android.net;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * An immutable URI reference, parsed leniently the way the platform does: nothing is validated, and
+ * the parts are only split out when asked for.
+ */
+public final class Uri implements Parcelable, Comparable<Uri> {
+    public static final Uri EMPTY = new Uri("");
+
+    private final String uriString;
+
+    private Uri(String uriString) {
+        this.uriString = uriString;
+    }
+
+    public static Uri parse(String uriString) {
+        if (uriString == null) {
+            throw new NullPointerException("uriString");
+        }
+        return new Uri(uriString);
+    }
+
+    public static Uri fromFile(File file) {
+        return new Uri("file://" + file.getAbsolutePath());
+    }
+
+    private int schemeEnd() {
+        for (int i = 0; i < this.uriString.length(); i++) {
+            char c = this.uriString.charAt(i);
+            if (c == ':') {
+                return i;
+            }
+            if (c == '/' || c == '?' || c == '#') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    public String getScheme() {
+        int end = this.schemeEnd();
+        return end < 0 ? null : this.uriString.substring(0, end);
+    }
+
+    public boolean isRelative() {
+        return this.schemeEnd() < 0;
+    }
+
+    public boolean isAbsolute() {
+        return !this.isRelative();
+    }
+
+    // the part after the scheme, without the fragment
+    private String ssp() {
+        String ssp = this.uriString.substring(this.schemeEnd() + 1);
+        int fragment = ssp.indexOf('#');
+        return fragment < 0 ? ssp : ssp.substring(0, fragment);
+    }
+
+    public String getSchemeSpecificPart() {
+        return this.ssp();
+    }
+
+    public String getAuthority() {
+        String ssp = this.ssp();
+        if (!ssp.startsWith("//")) {
+            return null;
+        }
+        int end = 2;
+        while (end < ssp.length() && "/?".indexOf(ssp.charAt(end)) < 0) {
+            end++;
+        }
+        return ssp.substring(2, end);
+    }
+
+    public String getHost() {
+        String authority = this.getAuthority();
+        if (authority == null) {
+            return null;
+        }
+        authority = authority.substring(authority.indexOf('@') + 1);
+        int colon = authority.lastIndexOf(':');
+        return colon < 0 ? authority : authority.substring(0, colon);
+    }
+
+    public int getPort() {
+        String authority = this.getAuthority();
+        int colon = authority == null ? -1 : authority.lastIndexOf(':');
+        if (colon < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(authority.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getPath() {
+        String ssp = this.ssp();
+        int start = 0;
+        if (ssp.startsWith("//")) {
+            start = 2;
+            while (start < ssp.length() && "/?".indexOf(ssp.charAt(start)) < 0) {
+                start++;
+            }
+        } else if (this.isAbsolute() && !ssp.startsWith("/")) {
+            // opaque
+            return null;
+        }
+        int end = ssp.indexOf('?', start);
+        return ssp.substring(start, end < 0 ? ssp.length() : end);
+    }
+
+    public String getQuery() {
+        String ssp = this.ssp();
+        int start = ssp.indexOf('?');
+        return start < 0 ? null : ssp.substring(start + 1);
+    }
+
+    public String getFragment() {
+        int start = this.uriString.indexOf('#');
+        return start < 0 ? null : this.uriString.substring(start + 1);
+    }
+
+    public List<String> getPathSegments() {
+        ArrayList<String> segments = new ArrayList<String>();
+        String path = this.getPath();
+        if (path != null) {
+            for (String segment : path.split("/")) {
+                if (segment.length() > 0) {
+                    segments.add(segment);
+                }
+            }
+        }
+        return segments;
+    }
+
+    public String getLastPathSegment() {
+        List<String> segments = this.getPathSegments();
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Uri && this.uriString.equals(((Uri)o).uriString);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.uriString.hashCode();
+    }
+
+    public int compareTo(Uri other) {
+        return this.uriString.compareTo(other.uriString);
+    }
+
+    @Override
+    public String toString() {
+        return this.uriString;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(this.uriString);
+    }
+
+    public static void writeToParcel(Parcel out, Uri uri) {
+        out.writeString(uri == null ? null : uri.uriString);
+    }
+
+    public static final Parcelable.Creator<Uri> CREATOR = new Parcelable.Creator<Uri>() {
+        public Uri createFromParcel(Parcel in) {
+            String uriString = in.readString();
+            return uriString == null ? null : new Uri(uriString);
+        }
+
+        public Uri[] newArray(int size) {
+            return new Uri[size];
+        }
+    };
+}
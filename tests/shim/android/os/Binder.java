@@ -0,0 +1,83 @@
+
+package android.os;
+
+/**
+ * A local binder. Transactions are dispatched to {@link #onTransact} on the calling thread, as
+ * they are for calls within one process.
+ */
+public class Binder implements IBinder {
+    private IInterface owner;
+
+    private String descriptor;
+
+    public Binder() {
+    }
+
+    public void attachInterface(IInterface owner, String descriptor) {
+        this.owner = owner;
+        this.descriptor = descriptor;
+    }
+
+    public static final int getCallingPid() {
+        return Process.myPid();
+    }
+
+    public static final int getCallingUid() {
+        return Process.myUid();
+    }
+
+    public static final long clearCallingIdentity() {
+        return 0;
+    }
+
+    public static final void restoreCallingIdentity(long token) {
+    }
+
+    public String getInterfaceDescriptor() {
+        return this.descriptor;
+    }
+
+    public boolean pingBinder() {
+        return true;
+    }
+
+    public boolean isBinderAlive() {
+        return true;
+    }
+
+    public IInterface queryLocalInterface(String descriptor) {
+        if (this.descriptor == null || this.descriptor.equals(descriptor)) {
+            return this.owner != null ? this.owner : (this instanceof IInterface ? (IInterface)this
+                    : null);
+        }
+        return null;
+    }
+
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        if (code == INTERFACE_TRANSACTION) {
+            reply.writeString(this.descriptor);
+            return true;
+        }
+        return false;
+    }
+
+    public final boolean transact(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        if (data != null) {
+            data.setDataPosition(0);
+        }
+        boolean handled = this.onTransact(code, data, reply, flags);
+        if (reply != null) {
+            reply.setDataPosition(0);
+        }
+        return handled;
+    }
+
+    public void linkToDeath(DeathRecipient recipient, int flags) {
+    }
+
+    public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+        return true;
+    }
+}
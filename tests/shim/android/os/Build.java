@@ -0,0 +1,32 @@
+
+package android.os;
+
+/**
+ * Reports Jelly Bean, the newest release the application builds against, so the API 16 code paths
+ * are the ones exercised.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.JELLY_BEAN;
+    }
+
+    public static class VERSION_CODES {
+        public static final int FROYO = 8;
+
+        public static final int GINGERBREAD = 9;
+
+        public static final int GINGERBREAD_MR1 = 10;
+
+        public static final int HONEYCOMB = 11;
+
+        public static final int HONEYCOMB_MR1 = 12;
+
+        public static final int HONEYCOMB_MR2 = 13;
+
+        public static final int ICE_CREAM_SANDWICH = 14;
+
+        public static final int ICE_CREAM_SANDWICH_MR1 = 15;
+
+        public static final int JELLY_BEAN = 16;
+    }
+}
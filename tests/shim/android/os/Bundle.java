@@ -0,0 +1,25 @@
+
+package android.os;
+
+import java.util.HashMap;
+
+public final class Bundle {
+    private final HashMap<String, Object> values = new HashMap<String, Object>();
+
+    public boolean containsKey(String key) {
+        return this.values.containsKey(key);
+    }
+
+    public Object get(String key) {
+        return this.values.get(key);
+    }
+
+    public void put(String key, Object value) {
+        this.values.put(key, value);
+    }
+
+    @Override
+    public String toString() {
+        return "Bundle" + this.values;
+    }
+}
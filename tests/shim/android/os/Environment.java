@@ -0,0 +1,25 @@
+
+package android.os;
+
+import java.io.File;
+
+/**
+ * The external storage is the directory named by the {@code shim.storage} system property, or
+ * unmounted if it is not set.
+ */
+public class Environment {
+    public static final String MEDIA_MOUNTED = "mounted";
+
+    public static final String MEDIA_MOUNTED_READ_ONLY = "mounted_ro";
+
+    public static final String MEDIA_UNMOUNTED = "unmounted";
+
+    public static File getExternalStorageDirectory() {
+        String storage = System.getProperty("shim.storage");
+        return new File(storage != null ? storage : "/sdcard");
+    }
+
+    public static String getExternalStorageState() {
+        return System.getProperty("shim.storage") != null ? MEDIA_MOUNTED : MEDIA_UNMOUNTED;
+    }
+}
@@ -0,0 +1,157 @@
+
+package android.os;
+
+public class Handler {
+    public interface Callback {
+        public boolean handleMessage(Message msg);
+    }
+
+    private final Looper looper;
+
+    private final MessageQueue queue;
+
+    private final Callback callback;
+
+    public Handler() {
+        this(Looper.myLooper(), null);
+        if (this.looper == null) {
+            throw new RuntimeException(
+                    "Can't create handler inside thread that has not called Looper.prepare()");
+        }
+    }
+
+    public Handler(Callback callback) {
+        this();
+    }
+
+    public Handler(Looper looper) {
+        this(looper, null);
+    }
+
+    public Handler(Looper looper, Callback callback) {
+        this.looper = looper;
+        this.queue = looper == null ? null : looper.getQueue();
+        this.callback = callback;
+    }
+
+    public void handleMessage(Message msg) {
+    }
+
+    public void dispatchMessage(Message msg) {
+        if (msg.callback != null) {
+            msg.callback.run();
+        } else if (this.callback == null || !this.callback.handleMessage(msg)) {
+            this.handleMessage(msg);
+        }
+    }
+
+    public final Looper getLooper() {
+        return this.looper;
+    }
+
+    public final Message obtainMessage() {
+        return Message.obtain(this);
+    }
+
+    public final Message obtainMessage(int what) {
+        return Message.obtain(this, what);
+    }
+
+    public final Message obtainMessage(int what, Object obj) {
+        return Message.obtain(this, what, obj);
+    }
+
+    public final Message obtainMessage(int what, int arg1, int arg2) {
+        return Message.obtain(this, what, arg1, arg2);
+    }
+
+    public final Message obtainMessage(int what, int arg1, int arg2, Object obj) {
+        return Message.obtain(this, what, arg1, arg2, obj);
+    }
+
+    public final boolean post(Runnable r) {
+        return this.sendMessageDelayed(Message.obtain(this, r), 0);
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        return this.sendMessageAtTime(Message.obtain(this, r), uptimeMillis);
+    }
+
+    public final boolean postAtTime(Runnable r, Object token, long uptimeMillis) {
+        Message m = Message.obtain(this, r);
+        m.obj = token;
+        return this.sendMessageAtTime(m, uptimeMillis);
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return this.sendMessageDelayed(Message.obtain(this, r), delayMillis);
+    }
+
+    public final boolean postAtFrontOfQueue(Runnable r) {
+        return this.sendMessageAtFrontOfQueue(Message.obtain(this, r));
+    }
+
+    public final boolean sendMessage(Message msg) {
+        return this.sendMessageDelayed(msg, 0);
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return this.sendMessageDelayed(Message.obtain(this, what), 0);
+    }
+
+    public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
+        return this.sendMessageDelayed(Message.obtain(this, what), delayMillis);
+    }
+
+    public final boolean sendEmptyMessageAtTime(int what, long uptimeMillis) {
+        return this.sendMessageAtTime(Message.obtain(this, what), uptimeMillis);
+    }
+
+    public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return this.sendMessageAtTime(msg, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        msg.target = this;
+        return this.queue.enqueue(msg, uptimeMillis);
+    }
+
+    public final boolean sendMessageAtFrontOfQueue(Message msg) {
+        msg.target = this;
+        this.queue.enqueueAtFront(msg);
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        this.queue.remove(this, -1, r, null);
+    }
+
+    public final void removeCallbacks(Runnable r, Object token) {
+        this.queue.remove(this, -1, r, token);
+    }
+
+    public final void removeMessages(int what) {
+        this.queue.remove(this, what, null, null);
+    }
+
+    public final void removeMessages(int what, Object object) {
+        this.queue.remove(this, what, null, object);
+    }
+
+    public final void removeCallbacksAndMessages(Object token) {
+        this.queue.remove(this, -1, null, token);
+    }
+
+    public final boolean hasMessages(int what) {
+        return this.queue.has(this, what, null, null);
+    }
+
+    public final boolean hasMessages(int what, Object object) {
+        return this.queue.has(this, what, null, object);
+    }
+
+    @Override
+    public String toString() {
+        return "Handler (" + this.getClass().getName() + ") {" + this.looper + "}";
+    }
+}
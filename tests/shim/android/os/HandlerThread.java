@@ -0,0 +1,69 @@
+
+package android.os;
+
+public class HandlerThread extends Thread {
+    private final int priority;
+
+    private Looper looper;
+
+    private int tid = -1;
+
+    public HandlerThread(String name) {
+        this(name, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    public HandlerThread(String name, int priority) {
+        super(name);
+        this.priority = priority;
+    }
+
+    protected void onLooperPrepared() {
+    }
+
+    @Override
+    public void run() {
+        this.tid = Process.myTid();
+        Process.setThreadPriority(this.priority);
+        Looper.prepare();
+        synchronized (this) {
+            this.looper = Looper.myLooper();
+            this.notifyAll();
+        }
+        this.onLooperPrepared();
+        Looper.loop();
+        this.tid = -1;
+    }
+
+    public Looper getLooper() {
+        if (!this.isAlive()) {
+            return null;
+        }
+        synchronized (this) {
+            while (this.isAlive() && this.looper == null) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    // keeps waiting
+                }
+            }
+        }
+        return this.looper;
+    }
+
+    public boolean quit() {
+        Looper looper = this.getLooper();
+        if (looper != null) {
+            looper.quit();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean quitSafely() {
+        return this.quit();
+    }
+
+    public int getThreadId() {
+        return this.tid;
+    }
+}
@@ -0,0 +1,31 @@
+
+package android.os;
+
+public interface IBinder {
+    public static final int FIRST_CALL_TRANSACTION = 0x00000001;
+
+    public static final int LAST_CALL_TRANSACTION = 0x00ffffff;
+
+    public static final int INTERFACE_TRANSACTION = ('_' << 24) | ('N' << 16) | ('T' << 8) | 'F';
+
+    public static final int FLAG_ONEWAY = 0x00000001;
+
+    public interface DeathRecipient {
+        public void binderDied();
+    }
+
+    public String getInterfaceDescriptor() throws RemoteException;
+
+    public boolean pingBinder();
+
+    public boolean isBinderAlive();
+
+    public IInterface queryLocalInterface(String descriptor);
+
+    public boolean transact(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException;
+
+    public void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException;
+
+    public boolean unlinkToDeath(DeathRecipient recipient, int flags);
+}
@@ -0,0 +1,6 @@
+
+package android.os;
+
+public interface IInterface {
+    public IBinder asBinder();
+}
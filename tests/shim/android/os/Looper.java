@@ -0,0 +1,83 @@
+
+package android.os;
+
+public final class Looper {
+    private static final ThreadLocal<Looper> LOOPERS = new ThreadLocal<Looper>();
+
+    private static Looper main;
+
+    private final MessageQueue queue = new MessageQueue();
+
+    private final Thread thread = Thread.currentThread();
+
+    private Looper() {
+    }
+
+    public static void prepare() {
+        if (LOOPERS.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        LOOPERS.set(new Looper());
+    }
+
+    public static void prepareMainLooper() {
+        prepare();
+        synchronized (Looper.class) {
+            if (main != null) {
+                throw new IllegalStateException("The main Looper has already been prepared.");
+            }
+            main = myLooper();
+        }
+    }
+
+    public static synchronized Looper getMainLooper() {
+        return main;
+    }
+
+    public static Looper myLooper() {
+        return LOOPERS.get();
+    }
+
+    public static MessageQueue myQueue() {
+        return myLooper().queue;
+    }
+
+    public static void loop() {
+        Looper me = myLooper();
+        if (me == null) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        while (true) {
+            Message msg = me.queue.next();
+            if (msg == null) {
+                return;
+            }
+            msg.target.dispatchMessage(msg);
+        }
+    }
+
+    public void quit() {
+        this.queue.quit();
+    }
+
+    public void quitSafely() {
+        this.queue.quit();
+    }
+
+    public Thread getThread() {
+        return this.thread;
+    }
+
+    public MessageQueue getQueue() {
+        return this.queue;
+    }
+
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    @Override
+    public String toString() {
+        return "Looper (" + this.thread.getName() + ")";
+    }
+}
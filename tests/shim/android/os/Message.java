@@ -0,0 +1,91 @@
+
+package android.os;
+
+public final class Message {
+    public int what;
+
+    public int arg1;
+
+    public int arg2;
+
+    public Object obj;
+
+    Handler target;
+
+    Runnable callback;
+
+    long when;
+
+    public Message() {
+    }
+
+    public static Message obtain() {
+        return new Message();
+    }
+
+    public static Message obtain(Handler h) {
+        Message m = new Message();
+        m.target = h;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what) {
+        Message m = obtain(h);
+        m.what = what;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what, Object obj) {
+        Message m = obtain(h, what);
+        m.obj = obj;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what, int arg1, int arg2) {
+        Message m = obtain(h, what);
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what, int arg1, int arg2, Object obj) {
+        Message m = obtain(h, what, arg1, arg2);
+        m.obj = obj;
+        return m;
+    }
+
+    public static Message obtain(Handler h, Runnable callback) {
+        Message m = obtain(h);
+        m.callback = callback;
+        return m;
+    }
+
+    public void recycle() {
+    }
+
+    public long getWhen() {
+        return this.when;
+    }
+
+    public Handler getTarget() {
+        return this.target;
+    }
+
+    public void setTarget(Handler target) {
+        this.target = target;
+    }
+
+    public Runnable getCallback() {
+        return this.callback;
+    }
+
+    public void sendToTarget() {
+        this.target.sendMessage(this);
+    }
+
+    @Override
+    public String toString() {
+        return "Message[what=" + this.what + ", when=" + this.when + ", callback="
+                + this.callback + "]";
+    }
+}
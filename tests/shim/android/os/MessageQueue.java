@@ -0,0 +1,120 @@
+
+package android.os;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public final class MessageQueue {
+    // the queues of the loopers still running, to wake up when the manual clock moves
+    private static final CopyOnWriteArrayList<MessageQueue> QUEUES = new CopyOnWriteArrayList<MessageQueue>();
+
+    // in order of delivery
+    private final ArrayList<Message> messages = new ArrayList<Message>();
+
+    private boolean quitting = false;
+
+    private boolean dispatching = false;
+
+    MessageQueue() {
+        QUEUES.add(this);
+    }
+
+    static void wakeAll() {
+        for (MessageQueue queue : QUEUES) {
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+    }
+
+    synchronized boolean enqueue(Message msg, long when) {
+        if (this.quitting) {
+            return false;
+        }
+        msg.when = when;
+        int i = this.messages.size();
+        while (i > 0 && this.messages.get(i - 1).when > when) {
+            i--;
+        }
+        this.messages.add(i, msg);
+        this.notifyAll();
+        return true;
+    }
+
+    synchronized void enqueueAtFront(Message msg) {
+        if (!this.quitting) {
+            msg.when = 0;
+            this.messages.add(0, msg);
+            this.notifyAll();
+        }
+    }
+
+    // blocks until a message is due; null once quit
+    synchronized Message next() {
+        this.dispatching = false;
+        while (true) {
+            if (this.quitting) {
+                return null;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (!this.messages.isEmpty() && this.messages.get(0).when <= now) {
+                this.dispatching = true;
+                return this.messages.remove(0);
+            }
+            this.notifyAll();
+            try {
+                if (this.messages.isEmpty() || SystemClock.isManual()) {
+                    this.wait();
+                } else {
+                    this.wait(Math.max(1, this.messages.get(0).when - now));
+                }
+            } catch (InterruptedException e) {
+                // keeps looping until quit
+            }
+        }
+    }
+
+    synchronized void quit() {
+        this.quitting = true;
+        this.messages.clear();
+        QUEUES.remove(this);
+        this.notifyAll();
+    }
+
+    /**
+     * @return whether no message is being dispatched and none is due
+     */
+    public synchronized boolean isIdle() {
+        return !this.dispatching
+                && (this.messages.isEmpty() || this.messages.get(0).when > SystemClock
+                        .uptimeMillis());
+    }
+
+    synchronized boolean has(Handler h, int what, Runnable r, Object object) {
+        for (Message m : this.messages) {
+            if (matches(m, h, what, r, object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void remove(Handler h, int what, Runnable r, Object object) {
+        for (int i = this.messages.size() - 1; i >= 0; i--) {
+            if (matches(this.messages.get(i), h, what, r, object)) {
+                this.messages.remove(i);
+            }
+        }
+    }
+
+    // what is ignored if r is given, and r if what is negative
+    private static boolean matches(Message m, Handler h, int what, Runnable r, Object object) {
+        if (m.target != h || (object != null && m.obj != object)) {
+            return false;
+        }
+        if (r != null) {
+            return m.callback == r;
+        }
+        return what < 0 || (m.callback == null && m.what == what);
+    }
+}
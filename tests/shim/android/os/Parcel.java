@@ -0,0 +1,248 @@
+
+package android.os;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Keeps the written values as objects rather than bytes, but accounts for the size each would take
+ * in a real parcel (4-byte aligned, strings as UTF-16), so {@link #dataSize()} measures binder
+ * traffic.
+ */
+public final class Parcel {
+    private static final HashMap<String, Parcelable.Creator<?>> CREATORS = new HashMap<String, Parcelable.Creator<?>>();
+
+    private final ArrayList<Object> values = new ArrayList<Object>();
+
+    // the byte offset at which each value starts
+    private final ArrayList<Integer> offsets = new ArrayList<Integer>();
+
+    private int size = 0;
+
+    private int next = 0;
+
+    public Parcel() {
+    }
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        this.values.clear();
+        this.offsets.clear();
+        this.size = 0;
+        this.next = 0;
+    }
+
+    public int dataSize() {
+        return this.size;
+    }
+
+    public int dataAvail() {
+        return this.size - this.dataPosition();
+    }
+
+    public int dataPosition() {
+        return this.next < this.offsets.size() ? this.offsets.get(this.next) : this.size;
+    }
+
+    public void setDataPosition(int pos) {
+        int i = 0;
+        while (i < this.offsets.size() && this.offsets.get(i) < pos) {
+            i++;
+        }
+        this.next = i;
+    }
+
+    private void write(Object value, int bytes) {
+        this.values.add(value);
+        this.offsets.add(this.size);
+        this.size += (bytes + 3) & ~3;
+    }
+
+    private Object read() {
+        if (this.next >= this.values.size()) {
+            throw new RuntimeException("Reading past the end of the parcel");
+        }
+        return this.values.get(this.next++);
+    }
+
+    private static int stringSize(String s) {
+        return s == null ? 4 : 4 + (s.length() + 1) * 2;
+    }
+
+    public void writeInt(int val) {
+        this.write(val, 4);
+    }
+
+    public int readInt() {
+        return (Integer)this.read();
+    }
+
+    public void writeLong(long val) {
+        this.write(val, 8);
+    }
+
+    public long readLong() {
+        return (Long)this.read();
+    }
+
+    public void writeFloat(float val) {
+        this.write(val, 4);
+    }
+
+    public float readFloat() {
+        return (Float)this.read();
+    }
+
+    public void writeDouble(double val) {
+        this.write(val, 8);
+    }
+
+    public double readDouble() {
+        return (Double)this.read();
+    }
+
+    public void writeByte(byte val) {
+        this.write(val, 4);
+    }
+
+    public byte readByte() {
+        return (Byte)this.read();
+    }
+
+    public void writeString(String val) {
+        this.write(val, stringSize(val));
+    }
+
+    public String readString() {
+        return (String)this.read();
+    }
+
+    public void writeIntArray(int[] val) {
+        this.write(val == null ? null : val.clone(), val == null ? 4 : 4 + val.length * 4);
+    }
+
+    public int[] createIntArray() {
+        int[] val = (int[])this.read();
+        return val == null ? null : val.clone();
+    }
+
+    public void writeLongArray(long[] val) {
+        this.write(val == null ? null : val.clone(), val == null ? 4 : 4 + val.length * 8);
+    }
+
+    public long[] createLongArray() {
+        long[] val = (long[])this.read();
+        return val == null ? null : val.clone();
+    }
+
+    public void writeFloatArray(float[] val) {
+        this.write(val == null ? null : val.clone(), val == null ? 4 : 4 + val.length * 4);
+    }
+
+    public float[] createFloatArray() {
+        float[] val = (float[])this.read();
+        return val == null ? null : val.clone();
+    }
+
+    public void writeByteArray(byte[] val) {
+        this.write(val == null ? null : val.clone(), val == null ? 4 : 4 + val.length);
+    }
+
+    public byte[] createByteArray() {
+        byte[] val = (byte[])this.read();
+        return val == null ? null : val.clone();
+    }
+
+    public void writeStringArray(String[] val) {
+        int bytes = 4;
+        if (val != null) {
+            for (String s : val) {
+                bytes += (stringSize(s) + 3) & ~3;
+            }
+        }
+        this.write(val == null ? null : val.clone(), bytes);
+    }
+
+    public String[] createStringArray() {
+        String[] val = (String[])this.read();
+        return val == null ? null : val.clone();
+    }
+
+    public void writeStrongBinder(IBinder val) {
+        this.write(val, 16);
+    }
+
+    public IBinder readStrongBinder() {
+        return (IBinder)this.read();
+    }
+
+    public void writeStrongInterface(IInterface val) {
+        this.writeStrongBinder(val == null ? null : val.asBinder());
+    }
+
+    public void writeInterfaceToken(String interfaceName) {
+        // the strict mode policy, then the descriptor
+        this.writeInt(0);
+        this.writeString(interfaceName);
+    }
+
+    public void enforceInterface(String interfaceName) {
+        this.readInt();
+        String descriptor = this.readString();
+        if (descriptor == null ? interfaceName != null : !descriptor.equals(interfaceName)) {
+            throw new SecurityException("Binder invocation to an incorrect interface");
+        }
+    }
+
+    public void writeNoException() {
+        this.writeInt(0);
+    }
+
+    public void readException() {
+        int code = this.readInt();
+        if (code != 0) {
+            throw new RuntimeException(this.readString());
+        }
+    }
+
+    public void writeException(Exception e) {
+        this.writeInt(-1);
+        this.writeString(e.getMessage());
+    }
+
+    public void writeParcelable(Parcelable p, int flags) {
+        if (p == null) {
+            this.writeString(null);
+            return;
+        }
+        this.writeString(p.getClass().getName());
+        p.writeToParcel(this, flags);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+        String name = this.readString();
+        if (name == null) {
+            return null;
+        }
+        return (T)creator(name).createFromParcel(this);
+    }
+
+    private static synchronized Parcelable.Creator<?> creator(String name) {
+        Parcelable.Creator<?> creator = CREATORS.get(name);
+        if (creator == null) {
+            try {
+                Field field = Class.forName(name).getField("CREATOR");
+                creator = (Parcelable.Creator<?>)field.get(null);
+            } catch (Exception e) {
+                throw new RuntimeException("No CREATOR in " + name, e);
+            }
+            CREATORS.put(name, creator);
+        }
+        return creator;
+    }
+}
@@ -0,0 +1,69 @@
+
+package android.os;
+
+public class PowerManager {
+    public static final int PARTIAL_WAKE_LOCK = 0x00000001;
+
+    private int held = 0;
+
+    public WakeLock newWakeLock(int levelAndFlags, String tag) {
+        return new WakeLock(tag);
+    }
+
+    /**
+     * @return how many wake locks from this manager are held
+     */
+    public synchronized int getHeldCount() {
+        return this.held;
+    }
+
+    public final class WakeLock {
+        private final String tag;
+
+        private boolean refCounted = true;
+
+        private int count = 0;
+
+        WakeLock(String tag) {
+            this.tag = tag;
+        }
+
+        public void setReferenceCounted(boolean value) {
+            this.refCounted = value;
+        }
+
+        public void acquire() {
+            synchronized (PowerManager.this) {
+                if (this.count == 0) {
+                    PowerManager.this.held++;
+                }
+                this.count = this.refCounted ? this.count + 1 : 1;
+            }
+        }
+
+        public void acquire(long timeout) {
+            this.acquire();
+        }
+
+        public void release() {
+            synchronized (PowerManager.this) {
+                if (this.count == 0) {
+                    if (this.refCounted) {
+                        throw new RuntimeException("WakeLock under-locked " + this.tag);
+                    }
+                    return;
+                }
+                this.count = this.refCounted ? this.count - 1 : 0;
+                if (this.count == 0) {
+                    PowerManager.this.held--;
+                }
+            }
+        }
+
+        public boolean isHeld() {
+            synchronized (PowerManager.this) {
+                return this.count > 0;
+            }
+        }
+    }
+}
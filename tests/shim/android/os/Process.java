@@ -0,0 +1,56 @@
+
+package android.os;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the priority each thread asked for, so it can be checked. Thread ids are the Java ones.
+ */
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+
+    public static final int THREAD_PRIORITY_LOWEST = 19;
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    public static final int THREAD_PRIORITY_FOREGROUND = -2;
+
+    public static final int THREAD_PRIORITY_DISPLAY = -4;
+
+    public static final int THREAD_PRIORITY_URGENT_DISPLAY = -8;
+
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+
+    public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+    public static final int THREAD_PRIORITY_MORE_FAVORABLE = -1;
+
+    public static final int THREAD_PRIORITY_LESS_FAVORABLE = 1;
+
+    private static final ConcurrentHashMap<Integer, Integer> PRIORITIES = new ConcurrentHashMap<Integer, Integer>();
+
+    public static final int myPid() {
+        return 1;
+    }
+
+    public static final int myUid() {
+        return 10000;
+    }
+
+    public static final int myTid() {
+        return (int)Thread.currentThread().getId();
+    }
+
+    public static final void setThreadPriority(int priority) {
+        setThreadPriority(myTid(), priority);
+    }
+
+    public static final void setThreadPriority(int tid, int priority) {
+        PRIORITIES.put(tid, priority);
+    }
+
+    public static final int getThreadPriority(int tid) {
+        Integer priority = PRIORITIES.get(tid);
+        return priority == null ? THREAD_PRIORITY_DEFAULT : priority;
+    }
+}
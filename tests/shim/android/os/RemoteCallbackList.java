@@ -0,0 +1,79 @@
+
+package android.os;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class RemoteCallbackList<E extends IInterface> {
+    private final LinkedHashMap<IBinder, Object[]> callbacks = new LinkedHashMap<IBinder, Object[]>();
+
+    private Object[][] broadcast;
+
+    private boolean killed = false;
+
+    public boolean register(E callback) {
+        return this.register(callback, null);
+    }
+
+    public boolean register(E callback, Object cookie) {
+        synchronized (this.callbacks) {
+            if (this.killed) {
+                return false;
+            }
+            this.callbacks.put(callback.asBinder(), new Object[] { callback, cookie });
+            return true;
+        }
+    }
+
+    public boolean unregister(E callback) {
+        synchronized (this.callbacks) {
+            return this.callbacks.remove(callback.asBinder()) != null;
+        }
+    }
+
+    public void kill() {
+        synchronized (this.callbacks) {
+            this.callbacks.clear();
+            this.killed = true;
+        }
+    }
+
+    public int getRegisteredCallbackCount() {
+        synchronized (this.callbacks) {
+            return this.killed ? 0 : this.callbacks.size();
+        }
+    }
+
+    public int beginBroadcast() {
+        synchronized (this.callbacks) {
+            if (this.broadcast != null) {
+                throw new IllegalStateException("beginBroadcast() called while already in a broadcast");
+            }
+            ArrayList<Object[]> items = new ArrayList<Object[]>();
+            for (Map.Entry<IBinder, Object[]> e : this.callbacks.entrySet()) {
+                items.add(e.getValue());
+            }
+            this.broadcast = items.toArray(new Object[items.size()][]);
+            return this.broadcast.length;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E getBroadcastItem(int index) {
+        return (E)this.broadcast[index][0];
+    }
+
+    public Object getBroadcastCookie(int index) {
+        return this.broadcast[index][1];
+    }
+
+    public void finishBroadcast() {
+        synchronized (this.callbacks) {
+            if (this.broadcast == null) {
+                throw new IllegalStateException("finishBroadcast() called outside of a broadcast");
+            }
+            this.broadcast = null;
+        }
+    }
+}
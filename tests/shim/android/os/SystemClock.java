@@ -0,0 +1,115 @@
+
+package android.os;
+
+/**
+ * The monotonic clocks, which may be switched to a manual clock that only moves when
+ * {@link #advance(long)} is called. Loopers and {@link #sleep(long)} follow the manual clock, so
+ * delayed messages and sleeps take no real time.
+ */
+public final class SystemClock {
+    private static final long BOOT = System.nanoTime();
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK; the manual time, or -1 while the real clock is used
+    private static long manual = -1;
+
+    // guarded by LOCK; the threads in sleep() waiting for the manual clock
+    private static int sleeping = 0;
+
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        synchronized (LOCK) {
+            if (manual >= 0) {
+                return manual;
+            }
+        }
+        // like on a device, never 0
+        return (System.nanoTime() - BOOT) / 1000000 + 1000;
+    }
+
+    public static long elapsedRealtime() {
+        return uptimeMillis();
+    }
+
+    public static long currentThreadTimeMillis() {
+        return uptimeMillis();
+    }
+
+    public static void sleep(long ms) {
+        synchronized (LOCK) {
+            if (manual >= 0) {
+                long until = manual + ms;
+                sleeping++;
+                while (manual >= 0 && manual < until) {
+                    try {
+                        LOCK.wait();
+                    } catch (InterruptedException e) {
+                        // like the real one, sleeps through interrupts
+                    }
+                }
+                sleeping--;
+                if (manual >= 0) {
+                    return;
+                }
+            }
+        }
+        long until = System.nanoTime() + ms * 1000000;
+        for (long left = ms; left > 0; left = (until - System.nanoTime()) / 1000000) {
+            try {
+                Thread.sleep(left);
+            } catch (InterruptedException e) {
+                // like the real one, sleeps through interrupts
+            }
+        }
+    }
+
+    /**
+     * Switches to the manual clock, starting at the current time.
+     */
+    public static void useManualClock() {
+        long now = uptimeMillis();
+        synchronized (LOCK) {
+            manual = now;
+        }
+    }
+
+    public static void useRealClock() {
+        synchronized (LOCK) {
+            manual = -1;
+            LOCK.notifyAll();
+        }
+        MessageQueue.wakeAll();
+    }
+
+    public static boolean isManual() {
+        synchronized (LOCK) {
+            return manual >= 0;
+        }
+    }
+
+    /**
+     * @return how many threads are sleeping until the manual clock moves
+     */
+    public static int getSleeping() {
+        synchronized (LOCK) {
+            return sleeping;
+        }
+    }
+
+    /**
+     * Moves the manual clock forward, waking up the loopers and sleepers that are due.
+     */
+    public static void advance(long ms) {
+        synchronized (LOCK) {
+            if (manual < 0) {
+                throw new IllegalStateException("Not on the manual clock");
+            }
+            manual += ms;
+            LOCK.notifyAll();
+        }
+        MessageQueue.wakeAll();
+    }
+}
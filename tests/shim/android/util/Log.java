@@ -0,0 +1,101 @@
+
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Writes warnings and errors to standard error. Debug and verbose output is dropped, and
+ * {@link #isLoggable(String, int)} is false, unless the {@code shim.debug} system property is set.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+
+    public static final int DEBUG = 3;
+
+    public static final int INFO = 4;
+
+    public static final int WARN = 5;
+
+    public static final int ERROR = 6;
+
+    public static final int ASSERT = 7;
+
+    private static final boolean ALL = System.getProperty("shim.debug") != null;
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return ALL || level >= INFO;
+    }
+
+    public static int v(String tag, String msg) {
+        return print(VERBOSE, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg) {
+        return print(DEBUG, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return print(DEBUG, tag, msg, tr);
+    }
+
+    public static int i(String tag, String msg) {
+        return print(INFO, tag, msg, null);
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        return print(INFO, tag, msg, tr);
+    }
+
+    public static int w(String tag, String msg) {
+        return print(WARN, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print(WARN, tag, msg, tr);
+    }
+
+    public static int w(String tag, Throwable tr) {
+        return print(WARN, tag, "", tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print(ERROR, tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print(ERROR, tag, msg, tr);
+    }
+
+    public static int wtf(String tag, String msg) {
+        return print(ASSERT, tag, msg, null);
+    }
+
+    public static int wtf(String tag, String msg, Throwable tr) {
+        return print(ASSERT, tag, msg, tr);
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        if (tr == null) {
+            return "";
+        }
+        StringWriter out = new StringWriter();
+        tr.printStackTrace(new PrintWriter(out));
+        return out.toString();
+    }
+
+    private static int print(int level, String tag, String msg, Throwable tr) {
+        if (level < WARN && !ALL) {
+            return 0;
+        }
+        String line = "VDIWEA".charAt(level - VERBOSE) + "/" + tag + ": " + msg;
+        if (tr != null) {
+            line += '\n' + getStackTraceString(tr);
+        }
+        System.err.println(line);
+        return line.length();
+    }
+}
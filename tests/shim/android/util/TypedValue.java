@@ -0,0 +1,8 @@
+package android.util;
+
+/**
+ * The value of a resource; only the string, which for a file resource is its path in the package.
+ */
+public class TypedValue {
+    public CharSequence string;
+}
@@ -0,0 +1,100 @@
+
+package android.view;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+public class KeyEvent implements Parcelable {
+    public static final int ACTION_DOWN = 0;
+
+    public static final int ACTION_UP = 1;
+
+    public static final int KEYCODE_HEADSETHOOK = 79;
+
+    public static final int KEYCODE_MEDIA_PLAY_PAUSE = 85;
+
+    public static final int KEYCODE_MEDIA_STOP = 86;
+
+    public static final int KEYCODE_MEDIA_NEXT = 87;
+
+    public static final int KEYCODE_MEDIA_PREVIOUS = 88;
+
+    public static final int KEYCODE_MEDIA_REWIND = 89;
+
+    public static final int KEYCODE_MEDIA_FAST_FORWARD = 90;
+
+    public static final int KEYCODE_MEDIA_PLAY = 126;
+
+    public static final int KEYCODE_MEDIA_PAUSE = 127;
+
+    private final long downTime;
+
+    private final long eventTime;
+
+    private final int action;
+
+    private final int code;
+
+    private final int repeat;
+
+    public KeyEvent(int action, int code) {
+        this(0, 0, action, code, 0);
+    }
+
+    public KeyEvent(long downTime, long eventTime, int action, int code, int repeat) {
+        this.downTime = downTime;
+        this.eventTime = eventTime;
+        this.action = action;
+        this.code = code;
+        this.repeat = repeat;
+    }
+
+    public final int getAction() {
+        return this.action;
+    }
+
+    public final int getKeyCode() {
+        return this.code;
+    }
+
+    public final int getRepeatCount() {
+        return this.repeat;
+    }
+
+    public final long getDownTime() {
+        return this.downTime;
+    }
+
+    public final long getEventTime() {
+        return this.eventTime;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyEvent { action=" + this.action + ", keyCode=" + this.code + ", repeatCount="
+                + this.repeat + ", eventTime=" + this.eventTime + " }";
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(this.downTime);
+        out.writeLong(this.eventTime);
+        out.writeInt(this.action);
+        out.writeInt(this.code);
+        out.writeInt(this.repeat);
+    }
+
+    public static final Parcelable.Creator<KeyEvent> CREATOR = new Parcelable.Creator<KeyEvent>() {
+        public KeyEvent createFromParcel(Parcel in) {
+            return new KeyEvent(in.readLong(), in.readLong(), in.readInt(), in.readInt(), in
+                    .readInt());
+        }
+
+        public KeyEvent[] newArray(int size) {
+            return new KeyEvent[size];
+        }
+    };
+}
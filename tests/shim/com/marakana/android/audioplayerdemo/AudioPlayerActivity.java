@@ -0,0 +1,9 @@
+
+package com.marakana.android.audioplayerdemo;
+
+/**
+ * Stands in for the activity, which needs the widget toolkit, as the target of the service's
+ * notification.
+ */
+public class AudioPlayerActivity {
+}
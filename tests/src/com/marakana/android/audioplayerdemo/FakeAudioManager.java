@@ -0,0 +1,63 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import android.content.ComponentName;
+import android.media.AudioManager;
+import android.os.SystemClock;
+
+/**
+ * Counts the audio focus and media button calls, and can make them as slow as the binder calls to
+ * the system they are on a device.
+ */
+public class FakeAudioManager extends AudioManager {
+    // how long each call blocks its caller, in milliseconds
+    volatile int callMillis = 0;
+
+    private int focusRequests = 0;
+
+    private int focusAbandons = 0;
+
+    private void call() {
+        if (this.callMillis > 0) {
+            SystemClock.sleep(this.callMillis);
+        }
+    }
+
+    @Override
+    public int requestAudioFocus(OnAudioFocusChangeListener l, int streamType, int durationHint) {
+        this.call();
+        synchronized (this) {
+            this.focusRequests++;
+        }
+        return super.requestAudioFocus(l, streamType, durationHint);
+    }
+
+    @Override
+    public int abandonAudioFocus(OnAudioFocusChangeListener l) {
+        this.call();
+        synchronized (this) {
+            this.focusAbandons++;
+        }
+        return super.abandonAudioFocus(l);
+    }
+
+    @Override
+    public void registerMediaButtonEventReceiver(ComponentName eventReceiver) {
+        this.call();
+        super.registerMediaButtonEventReceiver(eventReceiver);
+    }
+
+    @Override
+    public void unregisterMediaButtonEventReceiver(ComponentName eventReceiver) {
+        this.call();
+        super.unregisterMediaButtonEventReceiver(eventReceiver);
+    }
+
+    public synchronized int getFocusRequests() {
+        return this.focusRequests;
+    }
+
+    public synchronized int getFocusAbandons() {
+        return this.focusAbandons;
+    }
+}
@@ -0,0 +1,239 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.Looper;
+import android.os.PowerManager;
+
+/**
+ * The application context: the resources in {@code res/values}, private directories under a
+ * scratch directory, and the system services as fakes. Receivers are held to the platform's rules:
+ * unregistering one that is not registered throws {@link IllegalArgumentException}. Raw resources
+ * resolve to the files given to {@link #putRaw(int, File)}, and have their names as values.
+ */
+public class FakeContext extends Context {
+    public static final String PACKAGE_NAME = "com.marakana.android.audioplayerdemo";
+
+    private final File root;
+
+    private final Resources resources = new Resources();
+
+    private final FakeAudioManager audioManager = new FakeAudioManager();
+
+    private final PowerManager powerManager = new PowerManager();
+
+    private final Set<BroadcastReceiver> receivers = new HashSet<BroadcastReceiver>();
+
+    private final ArrayList<Intent> startedServices = new ArrayList<Intent>();
+
+    private final ArrayList<Object[]> raws = new ArrayList<Object[]>();
+
+    private final ContentResolver contentResolver = new ContentResolver() {
+        @Override
+        protected File resolve(Uri uri) {
+            if (!SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())) {
+                return null;
+            }
+            String id = uri.getLastPathSegment();
+            synchronized (raws) {
+                for (Object[] raw : raws) {
+                    if (raw[0].toString().equals(id)) {
+                        return (File)raw[1];
+                    }
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * @param root the scratch directory to keep the files and cache directories in
+     * @param res the resource directory of the application
+     */
+    public FakeContext(File root, File res) throws Exception {
+        this.root = root;
+        File[] values = new File(res, "values").listFiles();
+        if (values != null) {
+            for (File file : values) {
+                if (file.getName().endsWith(".xml")) {
+                    this.load(file);
+                }
+            }
+        }
+    }
+
+    // puts the values of a resource file under their ids in the generated R
+    private void load(File file) throws Exception {
+        Element resources = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file)
+                .getDocumentElement();
+        NodeList items = resources.getChildNodes();
+        for (int i = 0; i < items.getLength(); i++) {
+            if (!(items.item(i) instanceof Element)) {
+                continue;
+            }
+            Element item = (Element)items.item(i);
+            String type = item.getTagName();
+            Object value;
+            if (type.equals("string")) {
+                value = item.getTextContent();
+            } else if (type.equals("bool")) {
+                value = Boolean.valueOf(item.getTextContent().trim());
+            } else if (type.equals("integer")) {
+                value = Integer.valueOf(item.getTextContent().trim());
+            } else if (type.equals("string-array")) {
+                NodeList elements = item.getElementsByTagName("item");
+                String[] array = new String[elements.getLength()];
+                for (int j = 0; j < array.length; j++) {
+                    array[j] = elements.item(j).getTextContent();
+                }
+                value = array;
+                type = "array";
+            } else {
+                continue;
+            }
+            this.resources.put(id(type, item.getAttribute("name")), value);
+        }
+    }
+
+    static int id(String type, String name) {
+        try {
+            Field field = Class.forName(R.class.getName() + "$" + type).getField(name);
+            return field.getInt(null);
+        } catch (Exception e) {
+            throw new IllegalStateException("No R." + type + "." + name, e);
+        }
+    }
+
+    /**
+     * Makes {@code android.resource://} URIs of the given raw resource open the given file.
+     */
+    public void putRaw(int id, File file) {
+        synchronized (this.raws) {
+            this.raws.add(new Object[] { id, file });
+        }
+        this.resources.put(id, "res/raw/" + file.getName());
+    }
+
+    public FakeAudioManager getAudioManager() {
+        return this.audioManager;
+    }
+
+    public PowerManager getPowerManager() {
+        return this.powerManager;
+    }
+
+    public synchronized int getReceiverCount() {
+        return this.receivers.size();
+    }
+
+    public synchronized int getStartedServiceCount() {
+        return this.startedServices.size();
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public String getPackageName() {
+        return PACKAGE_NAME;
+    }
+
+    @Override
+    public Resources getResources() {
+        return this.resources;
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return this.contentResolver;
+    }
+
+    @Override
+    public Looper getMainLooper() {
+        return Looper.getMainLooper();
+    }
+
+    private File dir(String name) {
+        File dir = new File(this.root, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return this.dir("files");
+    }
+
+    @Override
+    public File getCacheDir() {
+        return this.dir("cache");
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        if (AUDIO_SERVICE.equals(name)) {
+            return this.audioManager;
+        } else if (POWER_SERVICE.equals(name)) {
+            return this.powerManager;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        this.receivers.add(receiver);
+        return null;
+    }
+
+    @Override
+    public synchronized void unregisterReceiver(BroadcastReceiver receiver) {
+        if (!this.receivers.remove(receiver)) {
+            throw new IllegalArgumentException("Receiver not registered: " + receiver);
+        }
+    }
+
+    @Override
+    public synchronized ComponentName startService(Intent service) {
+        this.startedServices.add(service);
+        return service.getComponent();
+    }
+
+    @Override
+    public boolean stopService(Intent service) {
+        return true;
+    }
+
+    @Override
+    public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+        return false;
+    }
+
+    @Override
+    public void unbindService(ServiceConnection conn) {
+    }
+
+    @Override
+    public void sendBroadcast(Intent intent) {
+    }
+}
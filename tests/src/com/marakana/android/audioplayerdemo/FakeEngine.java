@@ -0,0 +1,367 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * An {@link AudioEngine} that plays nothing but keeps time against {@link SystemClock}, and holds
+ * its callers to the {@link android.media.MediaPlayer} state machine: a call in a state the
+ * platform player would reject is recorded as a violation and throws
+ * {@link IllegalStateException}, as the platform player does. The duration of an item is read from
+ * its WAV header.
+ */
+public class FakeEngine implements AudioEngine {
+    enum State {
+        IDLE, INITIALIZED, PREPARING, PREPARED, STARTED, PAUSED, COMPLETED, ERROR, END
+    }
+
+    /**
+     * Creates engines and keeps count of them. The delays are in milliseconds.
+     */
+    public static class Factory implements AudioEngine.Factory {
+        // how long setDataSource blocks its caller, as opening a file or a socket does
+        volatile int openMillis = 0;
+
+        // how long after prepareAsync onPrepared is called
+        volatile int prepareMillis = 20;
+
+        volatile int seekMillis = 5;
+
+        // every this many prepares fails with onError, or none if 0
+        volatile int failEvery = 0;
+
+        private final Set<FakeEngine> live = new HashSet<FakeEngine>();
+
+        private final List<String> violations = new ArrayList<String>();
+
+        private int created = 0;
+
+        private int prepares = 0;
+
+        public synchronized AudioEngine create() {
+            FakeEngine engine = new FakeEngine(this);
+            this.live.add(engine);
+            this.created++;
+            return engine;
+        }
+
+        public synchronized int getCreated() {
+            return this.created;
+        }
+
+        /**
+         * @return how many engines were created and not released
+         */
+        public synchronized int getLive() {
+            return this.live.size();
+        }
+
+        /**
+         * @return how many engines are playing
+         */
+        public int getStarted() {
+            FakeEngine[] engines;
+            synchronized (this) {
+                engines = this.live.toArray(new FakeEngine[this.live.size()]);
+            }
+            // an engine calls back into the factory holding its own lock, so not the other way
+            int started = 0;
+            for (FakeEngine engine : engines) {
+                synchronized (engine) {
+                    if (engine.state == State.STARTED) {
+                        started++;
+                    }
+                }
+            }
+            return started;
+        }
+
+        /**
+         * @return an engine that was given the item and not released, or null
+         */
+        public FakeEngine find(Uri uri) {
+            FakeEngine[] engines;
+            synchronized (this) {
+                engines = this.live.toArray(new FakeEngine[this.live.size()]);
+            }
+            for (FakeEngine engine : engines) {
+                synchronized (engine) {
+                    if (uri.equals(engine.uri)) {
+                        return engine;
+                    }
+                }
+            }
+            return null;
+        }
+
+        public synchronized List<String> getViolations() {
+            return Collections.unmodifiableList(new ArrayList<String>(this.violations));
+        }
+
+        synchronized void released(FakeEngine engine) {
+            this.live.remove(engine);
+        }
+
+        synchronized void violation(String violation) {
+            this.violations.add(violation);
+        }
+
+        synchronized boolean nextPrepareFails() {
+            this.prepares++;
+            return this.failEvery > 0 && this.prepares % this.failEvery == 0;
+        }
+    }
+
+    private final Factory factory;
+
+    // callbacks go to the looper of the thread that created the engine, as with MediaPlayer
+    private final Handler handler = new Handler(Looper.myLooper() != null ? Looper.myLooper()
+            : Looper.getMainLooper());
+
+    private Listener listener;
+
+    private State state = State.IDLE;
+
+    private Uri uri;
+
+    private int duration;
+
+    // the position when last started, paused or sought, and the time it was taken at
+    private int position;
+
+    private long positionTime;
+
+    private FakeEngine next;
+
+    private float volume = 1;
+
+    private final Runnable completion = new Runnable() {
+        public void run() {
+            complete();
+        }
+    };
+
+    FakeEngine(Factory factory) {
+        this.factory = factory;
+    }
+
+    private void check(String call, State... allowed) {
+        for (State s : allowed) {
+            if (this.state == s) {
+                return;
+            }
+        }
+        String violation = call + " in state " + this.state;
+        this.factory.violation(violation);
+        throw new IllegalStateException(violation);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setDataSource(Context context, Uri uri) throws IOException {
+        synchronized (this) {
+            this.check("setDataSource", State.IDLE);
+        }
+        if (this.factory.openMillis > 0) {
+            SystemClock.sleep(this.factory.openMillis);
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        int duration;
+        try {
+            extractor.setDataSource(context, uri, null);
+            duration = (int)(extractor.getTrackFormat(0).getLong(MediaFormat.KEY_DURATION) / 1000);
+        } finally {
+            extractor.release();
+        }
+        synchronized (this) {
+            this.uri = uri;
+            this.duration = duration;
+            this.state = State.INITIALIZED;
+        }
+    }
+
+    public synchronized void prepareAsync() {
+        this.check("prepareAsync", State.INITIALIZED);
+        this.state = State.PREPARING;
+        final boolean fails = this.factory.nextPrepareFails();
+        this.handler.postDelayed(new Runnable() {
+            public void run() {
+                Listener listener;
+                synchronized (FakeEngine.this) {
+                    if (state != State.PREPARING) {
+                        return;
+                    }
+                    state = fails ? State.ERROR : State.PREPARED;
+                    position = 0;
+                    positionTime = SystemClock.uptimeMillis();
+                    listener = FakeEngine.this.listener;
+                }
+                if (listener != null) {
+                    if (fails) {
+                        listener.onError(FakeEngine.this, 1, 0);
+                    } else {
+                        listener.onPrepared(FakeEngine.this);
+                    }
+                }
+            }
+        }, this.factory.prepareMillis);
+    }
+
+    private int positionNow() {
+        if (this.state != State.STARTED) {
+            return this.position;
+        }
+        long played = SystemClock.uptimeMillis() - this.positionTime;
+        return (int)Math.min(this.duration, this.position + played);
+    }
+
+    public synchronized void start() {
+        this.check("start", State.PREPARED, State.STARTED, State.PAUSED, State.COMPLETED);
+        if (this.state == State.STARTED) {
+            return;
+        }
+        if (this.state == State.COMPLETED) {
+            this.position = 0;
+        }
+        this.state = State.STARTED;
+        this.positionTime = SystemClock.uptimeMillis();
+        this.handler.removeCallbacks(this.completion);
+        this.handler.postDelayed(this.completion, this.duration - this.position);
+    }
+
+    public synchronized void pause() {
+        this.check("pause", State.STARTED, State.PAUSED, State.COMPLETED);
+        if (this.state == State.STARTED) {
+            this.position = this.positionNow();
+            this.state = State.PAUSED;
+            this.handler.removeCallbacks(this.completion);
+        }
+    }
+
+    public synchronized void seekTo(final int position) {
+        this.check("seekTo", State.PREPARED, State.STARTED, State.PAUSED, State.COMPLETED);
+        this.position = Math.max(0, Math.min(this.duration, position));
+        this.positionTime = SystemClock.uptimeMillis();
+        if (this.state == State.STARTED) {
+            this.handler.removeCallbacks(this.completion);
+            this.handler.postDelayed(this.completion, this.duration - this.position);
+        }
+        this.handler.postDelayed(new Runnable() {
+            public void run() {
+                Listener listener;
+                synchronized (FakeEngine.this) {
+                    if (state == State.IDLE || state == State.END || state == State.ERROR) {
+                        return;
+                    }
+                    listener = FakeEngine.this.listener;
+                }
+                if (listener != null) {
+                    listener.onSeekComplete(FakeEngine.this);
+                }
+            }
+        }, this.factory.seekMillis);
+    }
+
+    private void complete() {
+        Listener listener;
+        FakeEngine next;
+        synchronized (this) {
+            if (this.state != State.STARTED) {
+                return;
+            }
+            this.position = this.duration;
+            this.state = State.COMPLETED;
+            listener = this.listener;
+            next = this.next;
+        }
+        if (next != null) {
+            next.start();
+        }
+        if (listener != null) {
+            listener.onCompletion(this);
+        }
+    }
+
+    public synchronized int getCurrentPosition() {
+        this.check("getCurrentPosition", State.INITIALIZED, State.PREPARED, State.STARTED,
+                State.PAUSED, State.COMPLETED);
+        return this.positionNow();
+    }
+
+    public synchronized int getDuration() {
+        this.check("getDuration", State.PREPARED, State.STARTED, State.PAUSED, State.COMPLETED);
+        return this.duration;
+    }
+
+    public synchronized void setVolume(float volume) {
+        this.check("setVolume", State.IDLE, State.INITIALIZED, State.PREPARING, State.PREPARED,
+                State.STARTED, State.PAUSED, State.COMPLETED);
+        this.volume = volume;
+    }
+
+    synchronized float getVolume() {
+        return this.volume;
+    }
+
+    synchronized boolean isPrepared() {
+        return this.state == State.PREPARED;
+    }
+
+    synchronized Uri getUri() {
+        return this.uri;
+    }
+
+    public synchronized boolean setNext(AudioEngine next) {
+        // the platform player only checks the state of the next one, so a completed player may still
+        // be unchained
+        this.check("setNext", State.PREPARED, State.STARTED, State.PAUSED, State.COMPLETED);
+        if (next != null) {
+            FakeEngine engine = (FakeEngine)next;
+            synchronized (engine) {
+                if (engine.state != State.PREPARED && engine.state != State.PAUSED) {
+                    String violation = "setNext with a next engine in state " + engine.state;
+                    this.factory.violation(violation);
+                    throw new IllegalStateException(violation);
+                }
+            }
+        }
+        this.next = (FakeEngine)next;
+        return true;
+    }
+
+    public synchronized void reset() {
+        this.check("reset", State.IDLE, State.INITIALIZED, State.PREPARING, State.PREPARED,
+                State.STARTED, State.PAUSED, State.COMPLETED, State.ERROR);
+        this.handler.removeCallbacksAndMessages(null);
+        this.state = State.IDLE;
+        this.uri = null;
+        this.next = null;
+        this.position = 0;
+        this.volume = 1;
+    }
+
+    public void release() {
+        synchronized (this) {
+            this.handler.removeCallbacksAndMessages(null);
+            this.state = State.END;
+            this.next = null;
+            this.listener = null;
+        }
+        this.factory.released(this);
+    }
+}
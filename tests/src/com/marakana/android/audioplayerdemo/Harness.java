@@ -0,0 +1,262 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Sets up {@link IAudioPlayerServiceImpl} as {@link AudioPlayerService#onCreate()} does, on a
+ * main looper and a command looper of its own, with {@link FakeEngine} players and a
+ * {@link FakeContext}. Items are short WAV files written to a scratch directory, which is deleted
+ * again by {@link #shutdown()}, or kept by {@link #shutdownKeepingFiles()} to look at what the
+ * service left behind.
+ */
+public class Harness {
+    private static final int SAMPLE_RATE = 8000;
+
+    private static Looper mainLooper;
+
+    final File root;
+
+    final FakeContext context;
+
+    final FakeEngine.Factory engines;
+
+    final MetricsRegistry metrics = new MetricsRegistry();
+
+    final AudioPlayerService service = new AudioPlayerService();
+
+    final HandlerThread commandThread;
+
+    final ThreadPoolExecutor background = pool(1);
+
+    final ThreadPoolExecutor analysis = pool(2);
+
+    final Handler main;
+
+    final IAudioPlayerServiceImpl impl;
+
+    private int tracks = 0;
+
+    public Harness(FakeEngine.Factory engines) throws Exception {
+        this.engines = engines;
+        this.root = new File(System.getProperty("java.io.tmpdir"), "audioplayer-"
+                + System.nanoTime());
+        this.context = new FakeContext(this.root, new File(System.getProperty("shim.res", "res")));
+        this.context.putRaw(R.raw.test_cbr, this.file("default", 30000));
+        this.service.attach(this.context);
+        this.main = new Handler(getMainLooper());
+        this.commandThread = new HandlerThread("AudioPlayerService", Process.THREAD_PRIORITY_AUDIO);
+        this.commandThread.start();
+        this.impl = this.call(new Callable<IAudioPlayerServiceImpl>() {
+            public IAudioPlayerServiceImpl call() {
+                return new IAudioPlayerServiceImpl(service, commandThread.getLooper(), background,
+                        analysis, Harness.this.engines, metrics);
+            }
+        });
+    }
+
+    // the main looper runs for as long as the process does, as on a device
+    private static synchronized Looper getMainLooper() throws InterruptedException {
+        if (mainLooper == null) {
+            Thread thread = new Thread("main") {
+                @Override
+                public void run() {
+                    Looper.prepareMainLooper();
+                    synchronized (Harness.class) {
+                        mainLooper = Looper.myLooper();
+                        Harness.class.notifyAll();
+                    }
+                    Looper.loop();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            while (mainLooper == null) {
+                Harness.class.wait();
+            }
+        }
+        return mainLooper;
+    }
+
+    /**
+     * @return a new WAV item of the given length, holding a tone
+     */
+    public Uri track(int millis) throws IOException {
+        return Uri.fromFile(this.file("track" + this.tracks++, millis));
+    }
+
+    private File file(String name, int millis) throws IOException {
+        File dir = new File(this.root, "music");
+        dir.mkdirs();
+        File file = new File(dir, name + ".wav");
+        int frames = (int)((long)millis * SAMPLE_RATE / 1000);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeBytes("RIFF");
+            out.writeInt(Integer.reverseBytes(36 + frames * 2));
+            out.writeBytes("WAVEfmt ");
+            out.writeInt(Integer.reverseBytes(16));
+            out.writeShort(Short.reverseBytes((short)1));
+            out.writeShort(Short.reverseBytes((short)1));
+            out.writeInt(Integer.reverseBytes(SAMPLE_RATE));
+            out.writeInt(Integer.reverseBytes(SAMPLE_RATE * 2));
+            out.writeShort(Short.reverseBytes((short)2));
+            out.writeShort(Short.reverseBytes((short)16));
+            out.writeBytes("data");
+            out.writeInt(Integer.reverseBytes(frames * 2));
+            // a different level per item, so they do not all get the same gain
+            double amplitude = 4000 + (name.hashCode() & 0x3fff);
+            byte[] buffer = new byte[frames * 2];
+            for (int i = 0; i < frames; i++) {
+                short sample = (short)(amplitude * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+                buffer[2 * i] = (byte)sample;
+                buffer[2 * i + 1] = (byte)(sample >> 8);
+            }
+            out.write(buffer);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Runs the given task on the main thread and waits for its result.
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        FutureTask<T> future = new FutureTask<T>(task);
+        this.main.post(future);
+        return future.get(60, TimeUnit.SECONDS);
+    }
+
+    public void run(final Runnable task) throws Exception {
+        this.call(new Callable<Void>() {
+            public Void call() {
+                task.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits until nothing is due on either looper and both executors have run out of work.
+     */
+    public void awaitIdle(long timeoutMillis) throws InterruptedException {
+        this.await(false, timeoutMillis);
+    }
+
+    // with waiting set, also returns once all that is busy sleeps until the manual clock moves;
+    // returns whether all is idle
+    private boolean await(boolean waiting, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        int idleChecks = 0;
+        int busy = 0;
+        while (idleChecks < 3) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Still busy after " + timeoutMillis + "ms");
+            }
+            Looper command = this.commandThread.getLooper();
+            busy = (mainLooper.getQueue().isIdle() ? 0 : 1)
+                    + (command == null || command.getQueue().isIdle() ? 0 : 1)
+                    + (isIdle(this.background) ? 0 : 1) + (isIdle(this.analysis) ? 0 : 1);
+            if (busy == 0 || waiting && busy <= SystemClock.getSleeping()) {
+                idleChecks++;
+            } else {
+                idleChecks = 0;
+            }
+            Thread.sleep(1);
+        }
+        return busy == 0;
+    }
+
+    private static ThreadPoolExecutor pool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+    }
+
+    private static boolean isIdle(ThreadPoolExecutor executor) {
+        return executor.getActiveCount() == 0 && executor.getQueue().isEmpty();
+    }
+
+    /**
+     * Moves the manual clock forward in steps, letting the loopers catch up after each, and then
+     * for as long as it takes them to go idle. A looper or executor that sleeps until the clock
+     * moves lets it move, so no other thread may sleep meanwhile.
+     */
+    public void advance(long millis, long step) throws InterruptedException {
+        for (long done = 0; done < millis; done += step) {
+            SystemClock.advance(Math.min(step, millis - done));
+            this.await(true, 60000);
+        }
+        while (!this.await(true, 60000)) {
+            SystemClock.advance(step);
+        }
+    }
+
+    /**
+     * Shuts down as {@link AudioPlayerService#onDestroy()} does, and deletes the scratch directory.
+     */
+    public void shutdown() throws Exception {
+        this.shutdownKeepingFiles();
+        this.deleteFiles();
+    }
+
+    /**
+     * Shuts down as {@link AudioPlayerService#onDestroy()} does, and leaves the scratch directory
+     * for {@link #deleteFiles()}.
+     */
+    public void shutdownKeepingFiles() throws Exception {
+        this.run(new Runnable() {
+            public void run() {
+                impl.shutdown();
+            }
+        });
+        this.commandThread.quit();
+        this.background.shutdownNow();
+        this.analysis.shutdownNow();
+        this.commandThread.join(10000);
+        this.background.awaitTermination(10, TimeUnit.SECONDS);
+        this.analysis.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    public void deleteFiles() {
+        delete(this.root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return the value at the given fraction, from 0 to 1, of the sorted samples
+     */
+    public static long percentile(long[] samples, int count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[(int)Math.min(count - 1, Math.round(fraction * (count - 1)))];
+    }
+}
@@ -0,0 +1,123 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import android.net.Uri;
+
+import com.marakana.android.audioplayerdemo.PlaybackState.State;
+
+/**
+ * Holds up loudness analysis until the current and next players are prepared, paused, and then lets
+ * it finish. Checks that both players are then set to the gains of their items, as measured by an
+ * analyzer of the test's own, rather than left at unity until they are prepared again.
+ * <p>
+ * Usage: {@code LoudnessGainTest}
+ */
+public class LoudnessGainTest {
+    private static final int TIMEOUT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        FakeEngine.Factory engines = new FakeEngine.Factory();
+        Harness harness = new Harness(engines);
+        String failure;
+        try {
+            failure = run(harness, engines);
+        } finally {
+            harness.shutdown();
+        }
+        if (failure != null) {
+            System.out.println("FAIL: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static String run(Harness harness, FakeEngine.Factory engines) throws Exception {
+        IAudioPlayerServiceImpl service = harness.impl;
+        Uri current = harness.track(5000);
+        Uri next = harness.track(5000);
+        float currentGain = measure(harness, current);
+        float nextGain = measure(harness, next);
+        if (currentGain > 0.99f || nextGain > 0.99f) {
+            return "the items are too quiet to be turned down: " + currentGain + ", " + nextGain;
+        }
+        harness.awaitIdle(TIMEOUT);
+
+        // both analysis threads wait until both players are prepared
+        final CountDownLatch held = new CountDownLatch(1);
+        for (int i = 0; i < harness.analysis.getCorePoolSize(); i++) {
+            harness.analysis.execute(new Runnable() {
+                public void run() {
+                    try {
+                        held.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        service.enqueue(current);
+        service.enqueue(next);
+        service.play();
+        if (!await(service, State.PREPARING)) {
+            return "not preparing but " + service.getPlaybackState().getState();
+        }
+        service.pause();
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (service.getPlaybackState().getState() != State.PAUSED
+                || engines.find(next) == null || !engines.find(next).isPrepared()) {
+            if (System.currentTimeMillis() > end) {
+                return "the current and next players were not prepared";
+            }
+            Thread.sleep(5);
+        }
+        FakeEngine currentPlayer = engines.find(current);
+        FakeEngine nextPlayer = engines.find(next);
+        if (currentPlayer.getVolume() != 1 || nextPlayer.getVolume() != 1) {
+            return "the players were set to a gain before it was known";
+        }
+
+        held.countDown();
+        harness.awaitIdle(TIMEOUT);
+        if (Math.abs(currentPlayer.getVolume() - currentGain) > 1e-4) {
+            return "the paused player is at " + currentPlayer.getVolume() + ", not " + currentGain;
+        }
+        if (Math.abs(nextPlayer.getVolume() - nextGain) > 1e-4) {
+            return "the next player is at " + nextPlayer.getVolume() + ", not " + nextGain;
+        }
+        System.out.println("  gains known after prepare: OK, current " + currentGain + ", next "
+                + nextGain);
+        return null;
+    }
+
+    private static boolean await(IAudioPlayerServiceImpl service, State state)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (service.getPlaybackState().getState() != state) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    // measures the gain of the item on this thread, with a cache of its own
+    private static float measure(Harness harness, Uri uri) {
+        File file = new File(harness.context.getCacheDir(), "loudness-" + System.nanoTime());
+        LoudnessAnalyzer analyzer = new LoudnessAnalyzer(harness.context, file, new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, 1, new LoudnessAnalyzer.Listener() {
+            public void onGainKnown(LoudnessAnalyzer analyzer, Uri uri) {
+            }
+        });
+        analyzer.request(uri);
+        file.delete();
+        return analyzer.getGain(uri);
+    }
+}
@@ -0,0 +1,202 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.net.Uri;
+
+/**
+ * Compares reading a file through {@link MappedDataSource} with reading it through its file
+ * descriptor, as a {@code MediaDataSource} backed by one would: a seek and a read per call, or one
+ * positional read. Each is timed for sequential and random 4 KB reads, the random 4 byte reads of
+ * scanning frame headers, and single bytes.
+ * <p>
+ * Also checks, on a sparse file of over 3 GB, that reads past 2 GB and across the boundaries of
+ * the mapped regions return the right bytes, and that reads outside the data return -1.
+ * <p>
+ * Usage: {@code MappedDataSourceBenchmark [file size in MB]}
+ */
+public class MappedDataSourceBenchmark {
+    private static final String[] READS = { "sequential 4 KB", "random 4 KB", "random 4 B",
+            "random 1 B" };
+
+    private static final int[] READ_SIZES = { 4096, 4096, 4, 1 };
+
+    private static final String[] SOURCES = { "seek + read", "pread", "mmap" };
+
+    private static final long LARGE_SIZE = 3L * MappedDataSource.REGION_SIZE + 4096;
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        File root = new File(System.getProperty("java.io.tmpdir"), "mapped-" + System.nanoTime());
+        root.mkdirs();
+        try {
+            FakeContext context = new FakeContext(root, new File(System.getProperty("shim.res",
+                    "res")));
+            File file = new File(root, "data");
+            write(file, megabytes << 20);
+            measure(context, file);
+            checkLarge(context, new File(root, "large"));
+        } finally {
+            File[] files = root.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            root.delete();
+        }
+    }
+
+    private static void write(File file, int size) throws IOException {
+        Random random = new Random(1);
+        byte[] chunk = new byte[1 << 20];
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int done = 0; done < size; done += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, Math.min(chunk.length, size - done));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void measure(FakeContext context, File file) throws IOException {
+        long size = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        MappedDataSource mapped = MappedDataSource.open(context, Uri.fromFile(file));
+        System.out.println((size >> 20) + " MB file, in the page cache");
+        System.out.println("  reads             " + String.format("%14s %14s %14s", SOURCES[0],
+                SOURCES[1], SOURCES[2]) + "   ns/read");
+        try {
+            for (int r = 0; r < READS.length; r++) {
+                int length = READ_SIZES[r];
+                int count = r == 0 ? (int)(size / length) : 200000;
+                long[] positions = new long[count];
+                Random random = new Random(r);
+                for (int i = 0; i < count; i++) {
+                    positions[i] = r == 0 ? (long)i * length : (long)(random.nextDouble()
+                            * (size - length));
+                }
+                StringBuilder line = new StringBuilder(String.format("  %-17s", READS[r]));
+                for (int s = 0; s < SOURCES.length; s++) {
+                    // once to warm up, then timed
+                    read(s, raf, channel, mapped, positions, length);
+                    long start = System.nanoTime();
+                    read(s, raf, channel, mapped, positions, length);
+                    line.append(String.format(" %14.1f", (double)(System.nanoTime() - start)
+                            / count));
+                }
+                System.out.println(line);
+            }
+        } finally {
+            mapped.close();
+            raf.close();
+        }
+    }
+
+    private static void read(int source, RandomAccessFile raf, FileChannel channel,
+            MappedDataSource mapped, long[] positions, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        int sum = 0;
+        for (long position : positions) {
+            switch (source) {
+                case 0:
+                    raf.seek(position);
+                    raf.readFully(buffer);
+                    break;
+                case 1:
+                    wrapped.clear();
+                    while (wrapped.hasRemaining()) {
+                        channel.read(wrapped, position + wrapped.position());
+                    }
+                    break;
+                default:
+                    if (length == 1) {
+                        buffer[0] = (byte)mapped.byteAt(position);
+                    } else {
+                        mapped.readAt(position, buffer, 0, length);
+                    }
+                    break;
+            }
+            sum += buffer[0];
+        }
+        sink = sum;
+    }
+
+    // writes a few bytes around each region boundary of a sparse file and reads them back
+    private static void checkLarge(FakeContext context, File file) throws IOException {
+        long[] marks = { MappedDataSource.REGION_SIZE - 3, 2L * MappedDataSource.REGION_SIZE - 3,
+                3L * MappedDataSource.REGION_SIZE - 3, LARGE_SIZE - 6 };
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(LARGE_SIZE);
+            for (long mark : marks) {
+                raf.seek(mark);
+                raf.write(pattern(mark));
+            }
+        } catch (IOException e) {
+            System.out.println("skipped the large file check: " + e);
+            return;
+        } finally {
+            raf.close();
+        }
+        MappedDataSource source = MappedDataSource.open(context, Uri.fromFile(file));
+        String failure = null;
+        try {
+            byte[] buffer = new byte[6];
+            for (long mark : marks) {
+                byte[] expected = pattern(mark);
+                int n = source.readAt(mark, buffer, 0, buffer.length);
+                if (n != buffer.length || !Arrays.equals(buffer, expected)) {
+                    failure = "readAt(" + mark + ") returned " + n + " bytes, not the ones written";
+                }
+                for (int i = 0; i < expected.length; i++) {
+                    if (source.byteAt(mark + i) != (expected[i] & 0xFF)) {
+                        failure = "byteAt(" + (mark + i) + ") is " + source.byteAt(mark + i);
+                    }
+                }
+            }
+            if (source.getSize() != LARGE_SIZE) {
+                failure = "size is " + source.getSize();
+            }
+            if (source.readAt(-1, buffer, 0, 1) != -1 || source.byteAt(-1) != -1) {
+                failure = "a read before the start did not return -1";
+            }
+            if (source.readAt(LARGE_SIZE, buffer, 0, 1) != -1 || source.byteAt(LARGE_SIZE) != -1) {
+                failure = "a read at the end did not return -1";
+            }
+            if (source.readAt(LARGE_SIZE - 2, buffer, 0, buffer.length) != 2) {
+                failure = "a read over the end was not cut short";
+            }
+        } finally {
+            source.close();
+            file.delete();
+        }
+        if (failure != null) {
+            System.out.println("FAIL: " + (LARGE_SIZE >> 20) + " MB file: " + failure);
+            System.exit(1);
+        }
+        System.out.println((LARGE_SIZE >> 20) + " MB file, reads across the mapped regions: OK");
+    }
+
+    private static byte[] pattern(long mark) {
+        byte[] bytes = new byte[6];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)(mark >>> (i * 5) ^ 0x5A);
+        }
+        return bytes;
+    }
+}
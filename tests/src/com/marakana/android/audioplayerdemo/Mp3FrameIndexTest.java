@@ -0,0 +1,186 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import android.net.Uri;
+
+/**
+ * Checks that {@link Mp3FrameIndex} only indexes MPEG audio. WAV files of quiet noise, in which
+ * pairs of matching frame headers turn up by chance, must not be taken for MPEG audio; the same
+ * noise spliced into the middle of {@code res/raw/test_cbr.mp3} must not add frames to its index;
+ * and only items with an MPEG extension, or raw resources built from one, are taken for MPEG.
+ * <p>
+ * Usage: {@code Mp3FrameIndexTest}
+ */
+public class Mp3FrameIndexTest {
+    private static final int NOISE_FILES = 20;
+
+    private static final int NOISE_SIZE = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        File res = new File(System.getProperty("shim.res", "res"));
+        File root = new File(System.getProperty("java.io.tmpdir"), "mp3index-" + System.nanoTime());
+        root.mkdirs();
+        String failure;
+        try {
+            FakeContext context = new FakeContext(root, res);
+            failure = checkNoise(context, root);
+            if (failure == null) {
+                failure = checkSplice(context, root, new File(res, "raw/test_cbr.mp3"));
+            }
+            if (failure == null) {
+                failure = checkTypes(context, root);
+            }
+        } finally {
+            File[] files = root.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            root.delete();
+        }
+        if (failure != null) {
+            System.out.println("FAIL: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static String checkNoise(FakeContext context, File root) throws IOException {
+        for (int i = 0; i < NOISE_FILES; i++) {
+            File file = new File(root, "noise" + i + ".wav");
+            write(file, wav(noise(new Random(i), NOISE_SIZE)));
+            try {
+                Mp3FrameIndex index = scan(context, file);
+                return "indexed " + index.getFrameCount() + " frames, "
+                        + index.getDuration() + "ms, of " + file.getName();
+            } catch (IOException e) {
+                // not MPEG audio, as expected
+            }
+        }
+        System.out.println("  " + NOISE_FILES + " WAV files of noise: OK, none indexed");
+        return null;
+    }
+
+    private static String checkSplice(FakeContext context, File root, File mp3)
+            throws IOException {
+        byte[] original = read(mp3);
+        File file = new File(root, "original.mp3");
+        write(file, original);
+        Mp3FrameIndex index = scan(context, file);
+        int frames = index.getFrameCount();
+        // the start of the frame in the middle; a frame is far longer than a millisecond
+        int middle = (int)index.offsetAt(index.timeOfFrame(frames / 2) + 1);
+
+        byte[] noise = noise(new Random(NOISE_FILES), 64 * 1024);
+        ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+        spliced.write(original, 0, middle);
+        spliced.write(noise, 0, noise.length);
+        spliced.write(original, middle, original.length - middle);
+        file = new File(root, "spliced.mp3");
+        write(file, spliced.toByteArray());
+        int splicedFrames = scan(context, file).getFrameCount();
+        if (splicedFrames != frames) {
+            return "indexed " + splicedFrames + " frames with noise in the middle, not " + frames;
+        }
+        System.out.println("  " + frames + " frames, " + index.getDuration()
+                + "ms, with and without noise in the middle: OK");
+        return null;
+    }
+
+    private static String checkTypes(FakeContext context, File root) throws IOException {
+        String[] names = { "a.mp3", "b.MP3", "c.wav", "d.m4a", "e.ogg", "f.flac", "mp3" };
+        boolean[] mpeg = { true, true, false, false, false, false, false };
+        for (int i = 0; i < names.length; i++) {
+            Uri uri = Uri.fromFile(new File(root, names[i]));
+            if (Mp3FrameIndex.isMpeg(context, uri) != mpeg[i]) {
+                return uri + (mpeg[i] ? " not" : "") + " taken for MPEG audio";
+            }
+        }
+        context.putRaw(R.raw.test_cbr, new File(root, "test_cbr.mp3"));
+        Uri raw = Uri.parse("android.resource://" + FakeContext.PACKAGE_NAME + "/"
+                + R.raw.test_cbr);
+        if (!Mp3FrameIndex.isMpeg(context, raw)) {
+            return raw + " not taken for MPEG audio";
+        }
+        context.putRaw(R.raw.test_cbr, new File(root, "test_cbr.wav"));
+        if (Mp3FrameIndex.isMpeg(context, raw)) {
+            return raw + ", built from a WAV file, taken for MPEG audio";
+        }
+        System.out.println("  MPEG by extension, for files and raw resources: OK");
+        return null;
+    }
+
+    private static Mp3FrameIndex scan(FakeContext context, File file) throws IOException {
+        MappedDataSource source = MappedDataSource.open(context, Uri.fromFile(file));
+        try {
+            return Mp3FrameIndex.scan(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    // 16-bit little-endian samples within 256 of silence, so that every other byte is 0 or 0xFF
+    private static byte[] noise(Random random, int size) {
+        byte[] noise = new byte[size];
+        for (int i = 0; i + 1 < size; i += 2) {
+            int sample = random.nextInt(512) - 256;
+            noise[i] = (byte)sample;
+            noise[i + 1] = (byte)(sample >> 8);
+        }
+        return noise;
+    }
+
+    private static byte[] wav(byte[] samples) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("RIFF");
+        out.writeInt(Integer.reverseBytes(36 + samples.length));
+        out.writeBytes("WAVEfmt ");
+        out.writeInt(Integer.reverseBytes(16));
+        out.writeShort(Short.reverseBytes((short)1));
+        out.writeShort(Short.reverseBytes((short)1));
+        out.writeInt(Integer.reverseBytes(44100));
+        out.writeInt(Integer.reverseBytes(44100 * 2));
+        out.writeShort(Short.reverseBytes((short)2));
+        out.writeShort(Short.reverseBytes((short)16));
+        out.writeBytes("data");
+        out.writeInt(Integer.reverseBytes(samples.length));
+        out.write(samples);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            for (int done = 0; done < bytes.length;) {
+                int n = in.read(bytes, done, bytes.length - done);
+                if (n < 0) {
+                    throw new IOException("Truncated " + file);
+                }
+                done += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.net.Uri;
+import android.os.Process;
+
+/**
+ * Plays an item through a {@link PcmEngine} on the real clock. Checks that its decoder and output
+ * threads run at audio priority; that they wait without a timeout, rather than polling, while the
+ * ring is full, while paused and once the item is decoded; that a seek while paused completes at
+ * once; and that no underrun is counted, in particular not while the ring refills after a seek.
+ * Also checks that an item with no audio in it is reported as an error rather than left preparing.
+ * <p>
+ * Usage: {@code PcmEngineTest}
+ */
+public class PcmEngineTest {
+    private static final int BUFFER_MILLIS = 500;
+
+    private static final int MAX_SEEK_MILLIS = 20;
+
+    private static final int TIMEOUT = 5000;
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = new Harness(new FakeEngine.Factory());
+        String failure;
+        try {
+            failure = run(harness);
+            if (failure == null) {
+                failure = runEmpty(harness);
+            }
+        } finally {
+            harness.shutdown();
+        }
+        if (failure != null) {
+            System.out.println("FAIL: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static String run(final Harness harness) throws Exception {
+        final Uri uri = harness.track(3000);
+        final Events events = new Events();
+        final PcmEngine engine = harness.call(new Callable<PcmEngine>() {
+            public PcmEngine call() throws Exception {
+                PcmEngine engine = new PcmEngine(BUFFER_MILLIS, harness.metrics);
+                engine.setListener(events);
+                engine.setDataSource(harness.context, uri);
+                engine.prepareAsync();
+                return engine;
+            }
+        });
+        try {
+            if (!events.prepared.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return "not prepared";
+            }
+            Thread decoder = find("PcmEngine-decoder");
+            Thread output = find("PcmEngine-output");
+            String failure = awaitWaiting(decoder, "with the ring full");
+            if (failure == null) {
+                failure = awaitWaiting(output, "while paused");
+            }
+            if (failure != null) {
+                return failure;
+            }
+            for (Thread thread : new Thread[] { decoder, output }) {
+                int priority = Process.getThreadPriority((int)thread.getId());
+                if (priority != Process.THREAD_PRIORITY_AUDIO) {
+                    return thread.getName() + " runs at priority " + priority;
+                }
+            }
+            System.out.println("  prepared: OK, both threads at audio priority and waiting");
+
+            long start = System.nanoTime();
+            engine.seekTo(1000);
+            if (!events.seekComplete.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return "a seek while paused did not complete";
+            }
+            long seekMillis = (System.nanoTime() - start) / 1000000;
+            if (seekMillis > MAX_SEEK_MILLIS) {
+                return "a seek while paused took " + seekMillis + "ms";
+            }
+            System.out.println("  seek while paused: OK, " + seekMillis + "ms");
+
+            engine.start();
+            Thread.sleep(300);
+            engine.seekTo(2000);
+            if (!events.seekComplete.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return "a seek while playing did not complete";
+            }
+            if (!events.completion.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return "did not complete";
+            }
+            failure = awaitWaiting(decoder, "at the end");
+            if (failure == null) {
+                failure = awaitWaiting(output, "after completing");
+            }
+            if (failure != null) {
+                return failure;
+            }
+            long underruns = harness.metrics.getCount(PlaybackMetrics.UNDERRUNS);
+            if (underruns != 0) {
+                return underruns + " underruns counted";
+            }
+            System.out.println("  seek while playing and completion: OK, no underruns");
+            return null;
+        } finally {
+            harness.run(new Runnable() {
+                public void run() {
+                    engine.release();
+                }
+            });
+        }
+    }
+
+    private static String runEmpty(final Harness harness) throws Exception {
+        final Uri uri = harness.track(0);
+        final Events events = new Events();
+        final PcmEngine engine = harness.call(new Callable<PcmEngine>() {
+            public PcmEngine call() throws Exception {
+                PcmEngine engine = new PcmEngine(BUFFER_MILLIS, harness.metrics);
+                engine.setListener(events);
+                engine.setDataSource(harness.context, uri);
+                engine.prepareAsync();
+                return engine;
+            }
+        });
+        try {
+            if (!events.error.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return "an empty item was neither prepared nor failed";
+            }
+            if (events.prepared.availablePermits() > 0) {
+                return "an empty item was prepared";
+            }
+            System.out.println("  empty item: OK, reported as an error");
+            return null;
+        } finally {
+            harness.run(new Runnable() {
+                public void run() {
+                    engine.release();
+                }
+            });
+        }
+    }
+
+    private static Thread find(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name) && thread.isAlive()) {
+                return thread;
+            }
+        }
+        throw new IllegalStateException("No thread " + name);
+    }
+
+    // a thread in a timed wait or sleep is polling
+    private static String awaitWaiting(Thread thread, String when) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (thread.getState() != Thread.State.WAITING) {
+            if (System.currentTimeMillis() > end) {
+                return thread.getName() + " is " + thread.getState() + " " + when;
+            }
+            Thread.sleep(5);
+        }
+        return null;
+    }
+
+    private static class Events implements AudioEngine.Listener {
+        final Semaphore prepared = new Semaphore(0);
+
+        final Semaphore seekComplete = new Semaphore(0);
+
+        final Semaphore completion = new Semaphore(0);
+
+        final Semaphore error = new Semaphore(0);
+
+        public void onPrepared(AudioEngine engine) {
+            this.prepared.release();
+        }
+
+        public void onCompletion(AudioEngine engine) {
+            this.completion.release();
+        }
+
+        public void onSeekComplete(AudioEngine engine) {
+            this.seekComplete.release();
+        }
+
+        public void onBufferingUpdate(AudioEngine engine, int percent) {
+        }
+
+        public void onStall(AudioEngine engine) {
+        }
+
+        public void onError(AudioEngine engine, int what, int extra) {
+            System.out.println("  error " + what);
+            this.error.release();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import android.net.Uri;
+
+/**
+ * Compares a {@link Playlist} of a whole library with the boxed lists it replaces: how much heap
+ * it takes, with a snapshot for readers, against a list of {@link Uri}s and a list of
+ * {@link Integer} track ids; and what enqueuing, stepping, shuffling, removing and taking a
+ * snapshot cost per item. Removing at random positions is also timed on the list of ids, where
+ * it shifts everything after the item.
+ * <p>
+ * First checks the playlist against a plain list through random adds, removals, moves and
+ * shuffles, so that removed slots are compacted many times over.
+ * <p>
+ * Usage: {@code PlaylistBenchmark [tracks...]}
+ */
+public class PlaylistBenchmark {
+    private static final int SNAPSHOTS = 50;
+
+    private static Object retained;
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        String failure = check(new Random(1), 200000);
+        if (failure != null) {
+            System.out.println("FAIL: " + failure);
+            System.exit(1);
+        }
+        System.out.println("random operations against a list: OK");
+        int[] sizes = { 100000, 1000000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int size : sizes) {
+            MediaLibrary library = library(size);
+            measureMemory(library);
+            measureTime(library);
+        }
+    }
+
+    private static MediaLibrary library(int size) {
+        MediaLibrary.Builder builder = new MediaLibrary.Builder(size);
+        for (int i = 0; i < size; i++) {
+            builder.add("/sdcard/Music/Artist " + i % 500 + "/Album " + i % 5000, "track" + i
+                    + ".mp3", "Track " + i, "Artist " + i % 500, "Album " + i % 5000, 240000,
+                    4000000, 0);
+        }
+        return builder.build();
+    }
+
+    private static void measureMemory(MediaLibrary library) throws InterruptedException {
+        int size = library.size();
+        long base = usedHeap();
+        Playlist playlist = new Playlist();
+        playlist.setLibrary(library);
+        playlist.addLibraryTracks(0, size);
+        retained = new Object[] { playlist, playlist.snapshot() };
+        long playlistBytes = usedHeap() - base;
+        retained = null;
+
+        base = usedHeap();
+        ArrayList<Uri> uris = new ArrayList<Uri>();
+        for (int i = 0; i < size; i++) {
+            uris.add(Uri.fromFile(new File(library.getPath(i))));
+        }
+        retained = uris;
+        long uriBytes = usedHeap() - base;
+        retained = null;
+
+        base = usedHeap();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            ids.add(i);
+        }
+        retained = ids;
+        long idBytes = usedHeap() - base;
+        retained = null;
+
+        System.out.println(size + " items, heap retained:");
+        System.out.println(String.format("  Playlist and a snapshot %10.1f KB %6.1f B/item",
+                playlistBytes / 1024.0, (double)playlistBytes / size));
+        System.out.println(String.format("  ArrayList<Uri>          %10.1f KB %6.1f B/item",
+                uriBytes / 1024.0, (double)uriBytes / size));
+        System.out.println(String.format("  ArrayList<Integer>      %10.1f KB %6.1f B/item",
+                idBytes / 1024.0, (double)idBytes / size));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void measureTime(MediaLibrary library) {
+        int size = library.size();
+        int removals = Math.min(size / 2, 20000);
+        // once to warm up, then timed
+        for (int run = 0; run < 2; run++) {
+            Playlist playlist = new Playlist();
+            playlist.setLibrary(library);
+            long start = System.nanoTime();
+            playlist.addLibraryTracks(0, size);
+            long enqueue = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 1; i < size; i++) {
+                playlist.moveToNext();
+                sink = playlist.getCurrentIndex();
+            }
+            long step = System.nanoTime() - start;
+
+            playlist.moveTo(0);
+            playlist.setShuffle(true);
+            start = System.nanoTime();
+            for (int i = 1; i < size; i++) {
+                playlist.moveToNext();
+                sink = playlist.getCurrentIndex();
+            }
+            long shuffled = System.nanoTime() - start;
+
+            Random random = new Random(2);
+            start = System.nanoTime();
+            for (int i = 0; i < removals; i++) {
+                playlist.remove(random.nextInt(playlist.size()));
+            }
+            long remove = System.nanoTime() - start;
+
+            // as the service does after each removal
+            start = System.nanoTime();
+            for (int i = 0; i < SNAPSHOTS; i++) {
+                playlist.remove(random.nextInt(playlist.size()));
+                sink = playlist.snapshot().getPage(size / 4, 50).getCount();
+            }
+            long snapshot = (System.nanoTime() - start) / SNAPSHOTS;
+
+            ArrayList<Integer> ids = new ArrayList<Integer>(size);
+            for (int i = 0; i < size; i++) {
+                ids.add(i);
+            }
+            random = new Random(2);
+            start = System.nanoTime();
+            for (int i = 0; i < removals; i++) {
+                ids.remove(random.nextInt(ids.size()));
+            }
+            long listRemove = System.nanoTime() - start;
+
+            if (run == 1) {
+                System.out.println(String.format("  enqueue %.1f ns/item, next %.1f ns, next "
+                        + "while shuffled %.1f ns", (double)enqueue / size, (double)step / size,
+                        (double)shuffled / size));
+                System.out.println(String.format("  remove at random %.1f ns, from the "
+                        + "ArrayList<Integer> %.1f ns; remove and snapshot %.1f us",
+                        (double)remove / removals, (double)listRemove / removals,
+                        snapshot / 1000.0));
+            }
+        }
+    }
+
+    // runs random operations on a playlist and a list of the same tracks, comparing them
+    private static String check(Random random, int operations) {
+        MediaLibrary library = library(1000);
+        Playlist playlist = new Playlist();
+        playlist.setLibrary(library);
+        ArrayList<Integer> tracks = new ArrayList<Integer>();
+        int index = 0;
+        for (int i = 0; i < operations; i++) {
+            int op = random.nextInt(100);
+            int size = tracks.size();
+            if (op < 30 || size == 0) {
+                int track = random.nextInt(library.size());
+                playlist.addLibraryTracks(track, 1);
+                tracks.add(track);
+            } else if (op < 60) {
+                int removed = random.nextInt(size);
+                Uri next = playlist.getNext();
+                Uri previous = playlist.getPrevious();
+                boolean current = removed == playlist.getCurrentIndex();
+                playlist.remove(removed);
+                tracks.remove(removed);
+                if (current && playlist.size() > 0) {
+                    Uri expected = next != null ? next : previous;
+                    if (!expected.equals(playlist.getCurrent())) {
+                        return "removing the current item made " + playlist.getCurrent()
+                                + " current, not " + expected;
+                    }
+                }
+                if (!playlist.isShuffled()) {
+                    if (removed < index || (index == tracks.size() && index > 0)) {
+                        index--;
+                    }
+                }
+            } else if (op < 80) {
+                playlist.moveToNext();
+                if (index + 1 < size) {
+                    index++;
+                }
+            } else if (op < 90) {
+                playlist.moveToPrevious();
+                if (index > 0) {
+                    index--;
+                }
+            } else if (op < 95) {
+                index = random.nextInt(size);
+                playlist.moveTo(index);
+            } else if (op < 98) {
+                playlist.setShuffle(!playlist.isShuffled());
+                index = playlist.getCurrentIndex();
+            } else {
+                String failure = checkOrder(playlist);
+                if (failure != null) {
+                    return failure;
+                }
+                index = playlist.getCurrentIndex();
+            }
+            if (playlist.size() != tracks.size()) {
+                return "size " + playlist.size() + ", expected " + tracks.size();
+            }
+            if (!playlist.isShuffled() && playlist.getCurrentIndex() != index) {
+                return "current item " + playlist.getCurrentIndex() + ", expected " + index;
+            }
+            int current = playlist.getCurrentIndex();
+            if (current < 0 || (current >= tracks.size() && tracks.size() > 0)) {
+                return "current item " + current + " out of " + tracks.size();
+            }
+            if (i % 97 == 0) {
+                String failure = compare(playlist, library, tracks);
+                if (failure != null) {
+                    return failure;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String compare(Playlist playlist, MediaLibrary library,
+            ArrayList<Integer> tracks) {
+        Playlist.Snapshot snapshot = playlist.snapshot();
+        LibraryPage page = snapshot.getPage(0, tracks.size());
+        if (snapshot.size() != tracks.size() || page.getCount() != tracks.size()
+                || snapshot.getCurrentIndex() != playlist.getCurrentIndex()
+                || snapshot.isShuffled() != playlist.isShuffled()) {
+            return "snapshot differs from the playlist";
+        }
+        for (int i = 0; i < tracks.size(); i++) {
+            String path = Uri.fromFile(new File(library.getPath(tracks.get(i)))).toString();
+            if (!path.equals(playlist.get(i).toString()) || !path.equals(page.getPath(i))) {
+                return "item " + i + " is " + playlist.get(i) + ", expected " + path;
+            }
+        }
+        return null;
+    }
+
+    // steps through the whole play order from its start, which must reach every item once
+    private static String checkOrder(Playlist playlist) {
+        while (playlist.hasPrevious()) {
+            playlist.moveToPrevious();
+        }
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (int i = 0; i < playlist.size(); i++) {
+            if (!seen.add(playlist.getCurrentIndex())) {
+                return "the play order reaches item " + playlist.getCurrentIndex() + " twice";
+            }
+            playlist.moveToNext();
+        }
+        if (seen.size() != playlist.size()) {
+            return "the play order reaches " + seen.size() + " of " + playlist.size() + " items";
+        }
+        return null;
+    }
+}
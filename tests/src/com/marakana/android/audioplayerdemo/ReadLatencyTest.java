@@ -0,0 +1,165 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how long the main thread and binder threads wait while the command thread is busy with
+ * slow transitions: every item takes {@link #OPEN_MILLIS} to open and every audio focus call
+ * {@link #FOCUS_MILLIS}, both while holding the service's monitor. A session asks for the position
+ * often, so the player is sampled throughout, and acknowledges each update on the main thread as
+ * the activity does. A probe posts to the main thread every millisecond and times how late each
+ * post runs; readers call {@link IAudioPlayerServiceImpl#position()} and {@link
+ * IAudioPlayerServiceImpl#getPlaybackState()}.
+ * Exits with 1 if the main thread was ever held up, or a read took, as long as an open takes.
+ * <p>
+ * Usage: {@code ReadLatencyTest [seconds]}
+ */
+public class ReadLatencyTest {
+    private static final int OPEN_MILLIS = 50;
+
+    private static final int FOCUS_MILLIS = 20;
+
+    private static final int SESSION_INTERVAL = 20;
+
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        FakeEngine.Factory engines = new FakeEngine.Factory();
+        final Harness harness = new Harness(engines);
+        final IAudioPlayerServiceImpl service = harness.impl;
+        for (int i = 0; i < 20; i++) {
+            service.enqueue(harness.track(60000));
+        }
+        final AtomicInteger updates = new AtomicInteger();
+        service.registerSession(new IPlaybackSessionCallback.Stub() {
+            public void onPlaybackUpdate(final int sequence, int events, PlaybackDelta delta) {
+                updates.incrementAndGet();
+                final IPlaybackSessionCallback session = this;
+                harness.main.post(new Runnable() {
+                    public void run() {
+                        service.acknowledgeSessionUpdate(session, sequence);
+                    }
+                });
+            }
+        }, SESSION_INTERVAL, PlaybackState.FIELD_ALL);
+        // once through every transition first, so that none of them runs for the first time while
+        // being timed
+        service.play();
+        harness.awaitIdle(60000);
+        Thread.sleep(4 * SESSION_INTERVAL);
+        service.next();
+        harness.awaitIdle(60000);
+        service.stop();
+        service.play();
+        harness.awaitIdle(60000);
+        engines.openMillis = OPEN_MILLIS;
+        harness.context.getAudioManager().callMillis = FOCUS_MILLIS;
+
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(3);
+        // skips, and stops and plays again, so the monitor is held for an open and the focus calls
+        Thread transitions = new Thread("transitions") {
+            @Override
+            public void run() {
+                for (int i = 0; System.nanoTime() < end; i++) {
+                    if (i % 4 == 3) {
+                        service.stop();
+                        service.play();
+                    } else {
+                        service.next();
+                    }
+                    try {
+                        Thread.sleep(OPEN_MILLIS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                done.countDown();
+            }
+        };
+        final long[] delays = new long[MAX_SAMPLES];
+        final int[] delayCount = new int[1];
+        Thread probe = new Thread("probe") {
+            @Override
+            public void run() {
+                final CountDownLatch[] ran = new CountDownLatch[1];
+                while (System.nanoTime() < end && delayCount[0] < MAX_SAMPLES) {
+                    final long posted = System.nanoTime();
+                    ran[0] = new CountDownLatch(1);
+                    final CountDownLatch latch = ran[0];
+                    harness.main.post(new Runnable() {
+                        public void run() {
+                            delays[delayCount[0]++] = System.nanoTime() - posted;
+                            latch.countDown();
+                        }
+                    });
+                    try {
+                        latch.await();
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                done.countDown();
+            }
+        };
+        final long[] reads = new long[MAX_SAMPLES];
+        final int[] readCount = new int[1];
+        Thread reader = new Thread("reader") {
+            @Override
+            public void run() {
+                while (System.nanoTime() < end && readCount[0] < MAX_SAMPLES) {
+                    long start = System.nanoTime();
+                    sink = readCount[0] % 2 == 0 ? service.position() : service
+                            .getPlaybackState().getPosition();
+                    reads[readCount[0]++] = System.nanoTime() - start;
+                    try {
+                        Thread.sleep(0, 100000);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                done.countDown();
+            }
+        };
+        transitions.start();
+        probe.start();
+        reader.start();
+        done.await();
+
+        int n = delayCount[0];
+        int m = readCount[0];
+        System.out.println(seconds + "s of transitions, " + OPEN_MILLIS + "ms per open, "
+                + FOCUS_MILLIS + "ms per focus call, " + updates.get() + " session updates");
+        System.out.println("                     samples   p50 us   p99 us  p99.9 us    max us");
+        System.out.println(String.format("  main thread delay %8d %8.1f %8.1f %9.1f %9.1f", n,
+                Harness.percentile(delays, n, 0.5) / 1000.0,
+                Harness.percentile(delays, n, 0.99) / 1000.0,
+                Harness.percentile(delays, n, 0.999) / 1000.0,
+                Harness.percentile(delays, n, 1) / 1000.0));
+        System.out.println(String.format("  position reads    %8d %8.1f %8.1f %9.1f %9.1f", m,
+                Harness.percentile(reads, m, 0.5) / 1000.0,
+                Harness.percentile(reads, m, 0.99) / 1000.0,
+                Harness.percentile(reads, m, 0.999) / 1000.0,
+                Harness.percentile(reads, m, 1) / 1000.0));
+        long worst = Harness.percentile(delays, n, 1);
+        long worstRead = Harness.percentile(reads, m, 1);
+        harness.shutdown();
+        if (worst >= OPEN_MILLIS * 1000000L) {
+            System.out.println("FAIL: the main thread waited " + worst / 1000000
+                    + "ms, as long as an open under the lock");
+            System.exit(1);
+        }
+        if (worstRead >= OPEN_MILLIS * 1000000L) {
+            System.out.println("FAIL: a position read waited " + worstRead / 1000000
+                    + "ms, as long as an open under the lock");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,240 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the query side of the service: what each query costs and allocates on its own, and how
+ * the queries hold up when several binder threads make them while the command thread keeps the
+ * service busy with transitions. Players are {@link FakeEngine}s, and opening an item and the
+ * audio focus calls block for as long as they take on a device, so the command thread holds the
+ * service's monitor for realistic stretches.
+ * <p>
+ * Usage: {@code ServiceBenchmark [seconds per run] [reader threads...]}
+ */
+public class ServiceBenchmark {
+    private static final String[] QUERIES = { "position", "duration", "isPlaying", "isPaused",
+            "isMuted", "getPlaybackState", "getCacheHitRatio", "isShuffled", "getQueueSize",
+            "getQueueIndex", "getQueuePage" };
+
+    // latencies kept per reader thread; calls beyond this are counted but not timed
+    private static final int MAX_SAMPLES = 1 << 21;
+
+    private static final int TRANSITION_INTERVAL = 10;
+
+    private static volatile int sink;
+
+    // returns something of the result, so nothing is optimized away or boxed here
+    private static int query(IAudioPlayerServiceImpl service, int query) {
+        switch (query) {
+            case 0:
+                return service.position();
+            case 1:
+                return service.duration();
+            case 2:
+                return service.isPlaying() ? 1 : 0;
+            case 3:
+                return service.isPaused() ? 1 : 0;
+            case 4:
+                return service.isMuted() ? 1 : 0;
+            case 5:
+                return service.getPlaybackState().getPosition();
+            case 6:
+                return (int)(service.getCacheHitRatio() * 100);
+            case 7:
+                return service.isShuffled() ? 1 : 0;
+            case 8:
+                return service.getQueueSize();
+            case 9:
+                return service.getQueueIndex();
+            default:
+                return service.getQueuePage(0, 10) != null ? 1 : 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int[] readers = { 1, 2, 4, 8 };
+        if (args.length > 1) {
+            readers = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                readers[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        FakeEngine.Factory engines = new FakeEngine.Factory();
+        engines.openMillis = 5;
+        Harness harness = new Harness(engines);
+        harness.context.getAudioManager().callMillis = 2;
+        IAudioPlayerServiceImpl service = harness.impl;
+        for (int i = 0; i < 50; i++) {
+            service.enqueue(harness.track(60000));
+        }
+        service.play();
+        harness.awaitIdle(60000);
+
+        measureAlone(service);
+
+        System.out.println();
+        System.out.println("with " + 1000 / TRANSITION_INTERVAL
+                + " transitions/s on the command thread, " + seconds + "s per run");
+        System.out.println("readers     calls/s   p50 us   p99 us  p99.9 us    max us"
+                + "   blocked/1k calls  blocked ms");
+        long[][] perQuery = null;
+        for (int n : readers) {
+            perQuery = measureContended(service, n, seconds);
+        }
+        System.out.println();
+        System.out.println("p99 by query with " + readers[readers.length - 1] + " readers, in us");
+        for (int q = 0; q < QUERIES.length; q++) {
+            System.out.println(String.format("  %-18s %8.1f", QUERIES[q], perQuery[q][0] / 1000.0));
+        }
+        harness.shutdown();
+    }
+
+    // one thread, no transitions: time and allocation per call
+    private static void measureAlone(IAudioPlayerServiceImpl service) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory
+                .getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        int calls = 200000;
+        System.out.println("alone, one thread");
+        System.out.println("  query                ns/call  bytes/call");
+        for (int q = 0; q < QUERIES.length; q++) {
+            for (int i = 0; i < calls; i++) {
+                sink = query(service, q);
+            }
+            long bytes = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                sink = query(service, q);
+            }
+            long elapsed = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(id) - bytes;
+            System.out.println(String.format("  %-18s %9d %11.1f", QUERIES[q], elapsed / calls,
+                    (double)bytes / calls));
+        }
+    }
+
+    // returns the p99 per query, in nanoseconds
+    private static long[][] measureContended(final IAudioPlayerServiceImpl service, int n,
+            int seconds) throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(n + 1);
+        Thread transitions = new Thread("transitions") {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                for (int i = 0; System.nanoTime() < end; i++) {
+                    switch (i % 6) {
+                        case 0:
+                            service.next();
+                            break;
+                        case 1:
+                            service.seek(random.nextInt(50000));
+                            break;
+                        case 2:
+                            service.pause();
+                            break;
+                        case 3:
+                            service.play();
+                            break;
+                        case 4:
+                            // gives up and takes audio focus again
+                            service.stop();
+                            break;
+                        default:
+                            service.play();
+                    }
+                    try {
+                        Thread.sleep(TRANSITION_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                done.countDown();
+            }
+        };
+        final long[][] latencies = new long[n][MAX_SAMPLES];
+        final int[][] kinds = new int[n][MAX_SAMPLES];
+        final long[] calls = new long[n];
+        final long[] blockedCount = new long[n];
+        final long[] blockedTime = new long[n];
+        Thread[] readers = new Thread[n];
+        for (int r = 0; r < n; r++) {
+            final int reader = r;
+            readers[r] = new Thread("reader-" + r) {
+                @Override
+                public void run() {
+                    ThreadInfo before = threads.getThreadInfo(this.getId());
+                    long[] latency = latencies[reader];
+                    int[] kind = kinds[reader];
+                    int q = reader;
+                    long count = 0;
+                    long now = System.nanoTime();
+                    while (now < end) {
+                        q = (q + 1) % QUERIES.length;
+                        sink = query(service, q);
+                        long after = System.nanoTime();
+                        if (count < MAX_SAMPLES) {
+                            latency[(int)count] = after - now;
+                            kind[(int)count] = q;
+                        }
+                        count++;
+                        now = after;
+                    }
+                    ThreadInfo info = threads.getThreadInfo(this.getId());
+                    calls[reader] = count;
+                    blockedCount[reader] = info.getBlockedCount() - before.getBlockedCount();
+                    blockedTime[reader] = info.getBlockedTime() - before.getBlockedTime();
+                    done.countDown();
+                }
+            };
+        }
+        transitions.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        done.await();
+
+        long total = 0;
+        long blocked = 0;
+        long blockedMillis = 0;
+        int samples = 0;
+        for (int r = 0; r < n; r++) {
+            total += calls[r];
+            blocked += blockedCount[r];
+            blockedMillis += blockedTime[r];
+            samples += (int)Math.min(calls[r], MAX_SAMPLES);
+        }
+        long[] all = new long[samples];
+        long[][] byQuery = new long[QUERIES.length][samples];
+        int[] byQueryCount = new int[QUERIES.length];
+        int k = 0;
+        for (int r = 0; r < n; r++) {
+            int count = (int)Math.min(calls[r], MAX_SAMPLES);
+            System.arraycopy(latencies[r], 0, all, k, count);
+            k += count;
+            for (int i = 0; i < count; i++) {
+                int q = kinds[r][i];
+                byQuery[q][byQueryCount[q]++] = latencies[r][i];
+            }
+        }
+        System.out.println(String.format("%7d %11d %8.1f %8.1f %9.1f %9.1f %18.2f %11d", n, total
+                / seconds, Harness.percentile(all, k, 0.5) / 1000.0, Harness.percentile(all, k,
+                0.99) / 1000.0, Harness.percentile(all, k, 0.999) / 1000.0, Harness.percentile(
+                all, k, 1) / 1000.0, blocked * 1000.0 / total, blockedMillis));
+        long[][] p99 = new long[QUERIES.length][1];
+        for (int q = 0; q < QUERIES.length; q++) {
+            p99[q][0] = Harness.percentile(byQuery[q], byQueryCount[q], 0.99);
+        }
+        return p99;
+    }
+}
@@ -0,0 +1,468 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.util.ArrayList;
+
+import android.os.HandlerThread;
+import android.os.MessageQueue;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.marakana.android.audioplayerdemo.PlaybackState.State;
+
+/**
+ * Simulates many clients following the playback state through a {@link SessionFanout} for half an
+ * hour on a fake clock, while a player plays, pauses, seeks, changes tracks, buffers, stalls and
+ * mutes, and counts the binder traffic: every update and acknowledgement, marshalled as the
+ * generated proxies would. The same clients polling {@code getPlaybackState()} once per interval
+ * are counted for comparison.
+ * <p>
+ * The clients handle updates in their own time and acknowledge them as they go, like an app
+ * process would with oneway calls. Among them is one that takes {@link #SLOW_MILLIS} per update,
+ * one whose calls fail for a minute, and one that stops acknowledging altogether. Checks that no
+ * client ever has more than {@link SessionFanout#MAX_UNACKNOWLEDGED} updates waiting, that the
+ * others see the position within {@link #TOLERANCE} of the player's again soon after any change,
+ * and that all but the stuck one end up stopped.
+ * <p>
+ * Usage: {@code SessionFanoutTest [clients]}
+ */
+public class SessionFanoutTest {
+    private static final long END = 30 * 60 * 1000;
+
+    private static final int STEP = 10;
+
+    private static final int DURATION = 240000;
+
+    // how fast the player's clock runs against the system clock
+    private static final double RATE = 1.0007;
+
+    private static final int TOLERANCE = 300;
+
+    private static final int PROCESS_MILLIS = 2;
+
+    private static final int SLOW_MILLIS = 1500;
+
+    private static final long FAIL_FROM = 290000;
+
+    private static final long FAIL_UNTIL = 350000;
+
+    private static final long STUCK_FROM = 400000;
+
+    private static final int[] INTERVALS = { 100, 250, 500, 1000, 1000, 2000 };
+
+    private static final int[] FIELDS = { PlaybackState.FIELD_ALL,
+            PlaybackState.FIELD_STATE | PlaybackState.FIELD_POSITION, PlaybackState.FIELD_STATE,
+            PlaybackState.FIELD_STATE | PlaybackState.FIELD_POSITION
+                    | PlaybackState.FIELD_DURATION };
+
+    private static final int SERVICE_TOKEN = token(IAudioPlayerService.class.getName());
+
+    private static final int SESSION_TOKEN = token(IPlaybackSessionCallback.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        SystemClock.useManualClock();
+        Player player = new Player();
+        MetricsRegistry metrics = new MetricsRegistry();
+        SessionFanout fanout = new SessionFanout(player, player.snapshot(), metrics);
+        player.fanout = fanout;
+        String failure;
+        try {
+            failure = run(fanout, player, metrics, count);
+        } finally {
+            fanout.close();
+        }
+        if (failure != null) {
+            System.out.println("FAIL: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static String run(SessionFanout fanout, Player player, MetricsRegistry metrics,
+            int count) throws InterruptedException {
+        MessageQueue queue = find(SessionFanout.class.getSimpleName()).getLooper().getQueue();
+        Client[] clients = new Client[count];
+        for (int i = 0; i < count; i++) {
+            clients[i] = new Client(fanout, INTERVALS[i % INTERVALS.length], FIELDS[i
+                    % FIELDS.length]);
+            fanout.register(clients[i], clients[i].interval, clients[i].fields);
+        }
+        clients[0].processMillis = SLOW_MILLIS;
+        clients[1].failFrom = FAIL_FROM;
+        clients[1].failUntil = FAIL_UNTIL;
+        clients[2].stuckFrom = STUCK_FROM;
+
+        ArrayList<Change> script = script(player);
+        int next = 0;
+        for (long time = 0; time <= END; time += STEP) {
+            if (time > 0) {
+                SystemClock.advance(STEP);
+                awaitIdle(queue);
+            }
+            while (next < script.size() && script.get(next).time <= time) {
+                script.get(next++).apply();
+            }
+            long now = SystemClock.uptimeMillis();
+            player.nextTrackIfDone(now);
+            for (Client client : clients) {
+                client.handle(now);
+            }
+            // lets the fan-out thread act on what was published and acknowledged
+            awaitIdle(queue);
+            if (time % 100 == 0) {
+                PlaybackState truth = player.snapshot();
+                for (Client client : clients) {
+                    client.check(truth, now);
+                }
+            }
+        }
+
+        long calls = 0;
+        long bytes = 0;
+        long pollCalls = 0;
+        long pollBytes = 0;
+        Parcel reply = new Parcel();
+        reply.writeInt(0);
+        reply.writeInt(1);
+        player.snapshot().writeToParcel(reply, 0);
+        for (Client client : clients) {
+            calls += client.calls;
+            bytes += client.bytes;
+            long polls = END / client.interval;
+            pollCalls += polls;
+            pollBytes += polls * (SERVICE_TOKEN + reply.dataSize());
+        }
+        System.out.println(String.format("%d clients, %d min: polling %d calls, %d KB; sessions "
+                + "%d calls, %d KB (%.1f%% of calls, %.1f%% of bytes); %d updates deferred",
+                count, END / 60000, pollCalls, pollBytes / 1024, calls, bytes / 1024, 100.0
+                        * calls / pollCalls, 100.0 * bytes / pollBytes, metrics
+                        .getCount(PlaybackMetrics.SESSION_UPDATES_DEFERRED)));
+        StringBuilder line = new StringBuilder("  longest a client was off by more than "
+                + TOLERANCE + "ms, by interval:");
+        for (int k = 0; k < INTERVALS.length; k++) {
+            long stale = -1;
+            for (int i = 3; i < count; i++) {
+                if (clients[i].interval == INTERVALS[k]) {
+                    stale = Math.max(stale, clients[i].maxStale);
+                }
+            }
+            if (line.indexOf(" " + INTERVALS[k] + "ms=") < 0 && stale >= 0) {
+                line.append(" ").append(INTERVALS[k]).append("ms=").append(stale);
+            }
+        }
+        System.out.println(line);
+        System.out.println("  slow client: " + clients[0].updates + " updates, at most "
+                + clients[0].maxWaiting + " waiting; failing client: " + clients[1].updates
+                + " updates; stuck client: " + clients[2].updates + " updates, at most "
+                + clients[2].maxWaiting + " waiting");
+
+        for (int i = 0; i < count; i++) {
+            Client client = clients[i];
+            if (client.maxWaiting > SessionFanout.MAX_UNACKNOWLEDGED) {
+                return "client " + i + " had " + client.maxWaiting + " updates waiting";
+            }
+            if (i != 2 && (client.view == null || client.view.getState() != State.STOPPED)) {
+                return "client " + i + " ended up with " + client.view;
+            }
+            // a stall is only noticed by sampling, at least every 250ms, and sent at the
+            // client's next interval
+            long limit = 2 * Math.max(client.interval, 250) + 2 * STEP;
+            if (i >= 3 && client.maxStale > limit) {
+                return "client " + i + ", every " + client.interval + "ms, was off for "
+                        + client.maxStale + "ms";
+            }
+        }
+        if (bytes * 10 > pollBytes) {
+            return "sessions took " + bytes + " bytes, polling " + pollBytes;
+        }
+        return null;
+    }
+
+    // what the player does, and when, in order; the next track starts whenever one runs out
+    private static ArrayList<Change> script(final Player player) {
+        ArrayList<Change> script = new ArrayList<Change>();
+        script.add(new Change(1000) {
+            void apply() {
+                player.set(State.PLAYING, 0);
+                player.publish(PlaybackState.EVENT_STARTED);
+            }
+        });
+        // a stream buffering in
+        for (int i = 1; i <= 20; i++) {
+            final int percent = i * 5;
+            script.add(new Change(1000 + i * 1000) {
+                void apply() {
+                    player.buffered = percent;
+                    player.publish(0);
+                }
+            });
+        }
+        script.add(new Change(300000) {
+            void apply() {
+                player.set(State.PAUSED, -1);
+                player.publish(PlaybackState.EVENT_PAUSED);
+            }
+        });
+        script.add(new Change(330000) {
+            void apply() {
+                player.set(State.PLAYING, -1);
+                player.publish(PlaybackState.EVENT_STARTED);
+            }
+        });
+        long[] seeks = { 600000, 610000, 610300, 612000 };
+        for (long seek : seeks) {
+            final int target = (int)(seek % 7 * 20000 + 30000);
+            script.add(new Change(seek) {
+                void apply() {
+                    player.set(State.PLAYING, target);
+                    player.publish(PlaybackState.EVENT_SEEK_COMPLETE);
+                }
+            });
+        }
+        script.add(new Change(900000) {
+            void apply() {
+                player.muted = true;
+                player.publish(0);
+            }
+        });
+        script.add(new Change(960000) {
+            void apply() {
+                player.muted = false;
+                player.publish(0);
+            }
+        });
+        // a stall while still playing, which only sampling notices
+        script.add(new Change(1200000) {
+            void apply() {
+                player.set(State.PLAYING, -1);
+                player.stalled = true;
+            }
+        });
+        script.add(new Change(1203000) {
+            void apply() {
+                player.set(State.PLAYING, -1);
+                player.stalled = false;
+            }
+        });
+        script.add(new Change(1700000) {
+            void apply() {
+                player.set(State.STOPPED, 0);
+                player.publish(PlaybackState.EVENT_STOPPED);
+            }
+        });
+        return script;
+    }
+
+    private static void awaitIdle(MessageQueue queue) {
+        while (!queue.isIdle()) {
+            Thread.yield();
+        }
+    }
+
+    // the size of the token writeInterfaceToken writes: a strict mode policy and the descriptor
+    private static int token(String descriptor) {
+        Parcel parcel = new Parcel();
+        parcel.writeInt(0);
+        parcel.writeString(descriptor);
+        return parcel.dataSize();
+    }
+
+    private static HandlerThread find(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name) && thread instanceof HandlerThread) {
+                return (HandlerThread)thread;
+            }
+        }
+        throw new IllegalStateException("No thread " + name);
+    }
+
+    private abstract static class Change {
+        final long time;
+
+        Change(long time) {
+            this.time = time;
+        }
+
+        abstract void apply();
+    }
+
+    // The state the service would publish, with a player clock that runs a little fast
+    private static class Player implements SessionFanout.Source {
+        private final long start = SystemClock.uptimeMillis();
+
+        SessionFanout fanout;
+
+        volatile State state = State.STOPPED;
+
+        volatile int duration = DURATION;
+
+        volatile boolean muted;
+
+        volatile int buffered;
+
+        volatile boolean stalled;
+
+        // the position at the anchor time
+        private double anchor;
+
+        private long anchorTime;
+
+        synchronized int position(long now) {
+            if (this.state != State.PLAYING || this.stalled) {
+                return (int)this.anchor;
+            }
+            return (int)Math.min(this.duration, this.anchor + (now - this.anchorTime) * RATE);
+        }
+
+        // to the given position, or where it is now if negative
+        synchronized void set(State state, int position) {
+            long now = SystemClock.uptimeMillis();
+            this.anchor = position >= 0 ? position : this.position(now);
+            this.anchorTime = now;
+            this.state = state;
+        }
+
+        synchronized PlaybackState snapshot() {
+            long now = SystemClock.uptimeMillis();
+            boolean stopped = this.state == State.STOPPED;
+            return new PlaybackState(this.state, stopped ? 0 : this.position(now), stopped ? 0
+                    : this.duration, this.muted, this.buffered, now);
+        }
+
+        void publish(int event) {
+            this.fanout.publish(this.snapshot(), event);
+        }
+
+        void nextTrackIfDone(long now) {
+            if (this.state == State.PLAYING && this.position(now) >= this.duration) {
+                this.duration = DURATION + (int)((now - this.start) % 60000);
+                this.set(State.PLAYING, 0);
+                this.publish(PlaybackState.EVENT_TRACK_CHANGED);
+            }
+        }
+
+        // on the fan-out thread
+        public void resample() {
+            if (this.state == State.PLAYING) {
+                this.publish(0);
+            }
+        }
+    }
+
+    // A client in a process of its own: updates arrive at once, and are handled and acknowledged
+    // one after another on its main thread
+    private static class Client extends IPlaybackSessionCallback.Stub {
+        final SessionFanout fanout;
+
+        final int interval;
+
+        final int fields;
+
+        int processMillis = PROCESS_MILLIS;
+
+        long failFrom = -1;
+
+        long failUntil = -1;
+
+        long stuckFrom = Long.MAX_VALUE;
+
+        // the rest only on the test's thread, but for the arrivals
+        private final ArrayList<Parcel> arrived = new ArrayList<Parcel>();
+
+        private final ArrayList<Long> due = new ArrayList<Long>();
+
+        private long busyUntil;
+
+        long calls;
+
+        long bytes;
+
+        int updates;
+
+        int maxWaiting;
+
+        PlaybackState view;
+
+        // since when the view has been off, and the longest it was
+        private long wrongSince = -1;
+
+        long maxStale;
+
+        Client(SessionFanout fanout, int interval, int fields) {
+            this.fanout = fanout;
+            this.interval = interval;
+            this.fields = fields;
+        }
+
+        // on the fan-out thread
+        public void onPlaybackUpdate(int sequence, int events, PlaybackDelta delta)
+                throws RemoteException {
+            long now = SystemClock.uptimeMillis();
+            if (now >= this.failFrom && now < this.failUntil) {
+                throw new RemoteException();
+            }
+            Parcel data = new Parcel();
+            data.writeInt(sequence);
+            data.writeInt(events);
+            data.writeInt(1);
+            delta.writeToParcel(data, 0);
+            synchronized (this) {
+                this.calls++;
+                this.bytes += SESSION_TOKEN + data.dataSize();
+                this.updates++;
+                this.arrived.add(data);
+                this.busyUntil = Math.max(this.busyUntil, now) + this.processMillis;
+                this.due.add(this.busyUntil);
+                this.maxWaiting = Math.max(this.maxWaiting, this.arrived.size());
+            }
+        }
+
+        // handles and acknowledges the updates done by now
+        void handle(long now) {
+            if (now >= this.stuckFrom) {
+                return;
+            }
+            while (true) {
+                Parcel data;
+                synchronized (this) {
+                    if (this.arrived.isEmpty() || this.due.get(0) > now) {
+                        return;
+                    }
+                    data = this.arrived.remove(0);
+                    this.due.remove(0);
+                }
+                data.setDataPosition(0);
+                int sequence = data.readInt();
+                data.readInt();
+                data.readInt();
+                this.view = PlaybackDelta.CREATOR.createFromParcel(data).applyTo(this.view);
+                Parcel ack = new Parcel();
+                ack.writeStrongBinder(this);
+                ack.writeInt(sequence);
+                synchronized (this) {
+                    this.calls++;
+                    this.bytes += SERVICE_TOKEN + ack.dataSize();
+                }
+                this.fanout.acknowledge(this, sequence);
+            }
+        }
+
+        void check(PlaybackState truth, long now) {
+            if (this.view == null || (this.fields & PlaybackState.FIELD_POSITION) == 0
+                    || now >= this.stuckFrom) {
+                return;
+            }
+            int error = Math.abs(this.view.getPositionAt(now) - truth.getPosition());
+            if (error > TOLERANCE || this.view.getState() != truth.getState()) {
+                if (this.wrongSince < 0) {
+                    this.wrongSince = now;
+                }
+                this.maxStale = Math.max(this.maxStale, now - this.wrongSince);
+            } else {
+                this.wrongSince = -1;
+            }
+        }
+    }
+}
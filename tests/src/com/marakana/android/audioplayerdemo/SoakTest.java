@@ -0,0 +1,492 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import android.media.AudioManager;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.marakana.android.audioplayerdemo.PlaybackState.State;
+
+/**
+ * Runs random commands and queries against the service from several binder threads at once, on
+ * the manual clock, with {@link FakeEngine} players of which some fail to prepare. Every round
+ * runs the clients for a while with the clock moving, then lets the service settle and checks that:
+ * <ul>
+ * <li>no player was called in a state the platform player rejects,</li>
+ * <li>no more players are alive than the service keeps, and one plays exactly when it is
+ * playing,</li>
+ * <li>the session updates were numbered in order and held back until acknowledged, and add up to
+ * the service's state,</li>
+ * <li>a stopped service holds no audio focus, receivers or foreground notification.</li>
+ * </ul>
+ * At the end it stops and shuts down the service, and checks that no player is left alive and that
+ * the resume journal holds the queue as the service last reported it. It prints the calls per
+ * second and the tail latency of each call, and exits with 1 if anything failed.
+ * <p>
+ * Usage: {@code SoakTest [rounds] [milliseconds per round] [client threads] [seed]}
+ */
+public class SoakTest {
+    private static final String[] OPS = { "play", "pause", "playPause", "stop", "seek",
+            "seekRelative", "next", "previous", "enqueue", "enqueue(missing)", "removeFromQueue",
+            "setShuffle", "mute", "unmute", "prewarm", "onAudioFocusChange", "position",
+            "getPlaybackState", "getQueueSize", "getQueuePage" };
+
+    // how often each of the OPS is picked, relative to the others
+    private static final int[] WEIGHTS = { 10, 8, 6, 3, 8, 6, 8, 6, 8, 1, 8, 3, 3, 3, 2, 3, 10, 10,
+            5, 5 };
+
+    private static final int[] FOCUS_CHANGES = { AudioManager.AUDIOFOCUS_GAIN,
+            AudioManager.AUDIOFOCUS_LOSS, AudioManager.AUDIOFOCUS_LOSS_TRANSIENT,
+            AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK };
+
+    // the current, next and prewarming players, and two idle and two prepared ones in the pool
+    private static final int MAX_LIVE = 7;
+
+    // latencies kept per client thread; calls beyond this are counted but not timed
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    // how many milliseconds the clock moves on every real one while the clients run
+    private static final int SPEEDUP = 5;
+
+    private static final List<String> failures = new ArrayList<String>();
+
+    private static volatile int sink;
+
+    private static synchronized void fail(String failure) {
+        if (failures.size() < 100) {
+            failures.add(failure);
+        }
+        System.err.println("FAIL: " + failure);
+    }
+
+    /**
+     * Follows the service through a session as the activity does, acknowledging each update on
+     * the main thread. Checks that updates are numbered one after the other, that no more than
+     * {@link SessionFanout#MAX_UNACKNOWLEDGED} are sent before an acknowledgement, that only
+     * events the service has are sent and that positions are in range; {@link #await} checks that
+     * the state put together from the deltas comes to match the service's.
+     */
+    static class SessionChecker extends IPlaybackSessionCallback.Stub {
+        private static final int INTERVAL = 100;
+
+        private static final int FIELDS = PlaybackState.FIELD_STATE | PlaybackState.FIELD_POSITION
+                | PlaybackState.FIELD_DURATION | PlaybackState.FIELD_MUTED;
+
+        // bits 1 << event of the events there are
+        private static final int EVENTS = (1 << PlaybackState.EVENT_LIBRARY_CHANGED + 1) - 2;
+
+        private final IAudioPlayerServiceImpl service;
+
+        private final Harness harness;
+
+        // only touched on the fan-out thread
+        private int sequence = 0;
+
+        private PlaybackState received;
+
+        private volatile PlaybackState latest;
+
+        private volatile int acknowledged = 0;
+
+        private volatile int updates = 0;
+
+        SessionChecker(Harness harness) {
+            this.harness = harness;
+            this.service = harness.impl;
+        }
+
+        public void onPlaybackUpdate(final int sequence, int events, PlaybackDelta delta) {
+            if (sequence != this.sequence + 1) {
+                fail("update " + sequence + " after " + this.sequence);
+            }
+            if (sequence - this.acknowledged > SessionFanout.MAX_UNACKNOWLEDGED) {
+                fail("update " + sequence + " sent with " + this.acknowledged + " acknowledged");
+            }
+            if ((events & ~EVENTS) != 0) {
+                fail("update " + sequence + ": events " + Integer.toBinaryString(events));
+            }
+            PlaybackState state = delta.applyTo(this.received);
+            if (state.getState() != State.STOPPED
+                    && (state.getPosition() < 0 || state.getPosition() > state.getDuration())) {
+                fail("update " + sequence + ": position " + state.getPosition() + " out of 0.."
+                        + state.getDuration());
+            }
+            this.sequence = sequence;
+            this.received = state;
+            this.latest = state;
+            this.updates++;
+            this.harness.main.post(new Runnable() {
+                public void run() {
+                    acknowledged = sequence;
+                    service.acknowledgeSessionUpdate(SessionChecker.this, sequence);
+                }
+            });
+        }
+
+        /**
+         * Moves the clock on until the session has caught up with the service, and fails if it
+         * does not within a few seconds.
+         */
+        void await(String when) throws InterruptedException {
+            PlaybackState expected = null;
+            PlaybackState state = null;
+            for (int i = 0; i < 300; i++) {
+                expected = this.service.getPlaybackState();
+                state = this.latest;
+                if (state != null && state.getState() == expected.getState()
+                        && state.getDuration() == expected.getDuration()
+                        && state.isMuted() == expected.isMuted()) {
+                    return;
+                }
+                this.harness.advance(10, 10);
+                Thread.sleep(1);
+            }
+            fail(when + ": session at " + state + ", service at " + expected);
+        }
+    }
+
+    static class Client extends Thread {
+        private final IAudioPlayerServiceImpl service;
+
+        private final Harness harness;
+
+        private final Uri[] tracks;
+
+        private final Random random;
+
+        private final long end;
+
+        final long[] latencies = new long[MAX_SAMPLES];
+
+        final byte[] kinds = new byte[MAX_SAMPLES];
+
+        long calls = 0;
+
+        Client(Harness harness, Uri[] tracks, long seed, long end) {
+            super("client-" + seed);
+            this.harness = harness;
+            this.service = harness.impl;
+            this.tracks = tracks;
+            this.random = new Random(seed);
+            this.end = end;
+        }
+
+        private int pick() {
+            int total = 0;
+            for (int weight : WEIGHTS) {
+                total += weight;
+            }
+            int r = this.random.nextInt(total);
+            int op = 0;
+            while (r >= WEIGHTS[op]) {
+                r -= WEIGHTS[op++];
+            }
+            return op;
+        }
+
+        private void call(int op) {
+            switch (op) {
+                case 0:
+                    this.service.play();
+                    break;
+                case 1:
+                    this.service.pause();
+                    break;
+                case 2:
+                    this.service.playPause();
+                    break;
+                case 3:
+                    this.service.stop();
+                    break;
+                case 4:
+                    this.service.seek(this.random.nextInt(25000) - 1000);
+                    break;
+                case 5:
+                    this.service.seekRelative(this.random.nextInt(20000) - 10000);
+                    break;
+                case 6:
+                    this.service.next();
+                    break;
+                case 7:
+                    this.service.previous();
+                    break;
+                case 8:
+                    this.service.enqueue(this.tracks[this.random.nextInt(this.tracks.length)]);
+                    break;
+                case 9:
+                    this.service.enqueue(Uri.fromFile(new File(this.harness.root, "missing-"
+                            + this.random.nextInt(4) + ".wav")));
+                    break;
+                case 10:
+                    // may well be out of range by the time it runs
+                    this.service.removeFromQueue(this.random.nextInt(this.service.getQueueSize() + 2) - 1);
+                    break;
+                case 11:
+                    this.service.setShuffle(this.random.nextBoolean());
+                    break;
+                case 12:
+                    this.service.mute();
+                    break;
+                case 13:
+                    this.service.unmute();
+                    break;
+                case 14:
+                    this.service.prewarm();
+                    break;
+                case 15:
+                    // the system calls the focus listener on the main thread
+                    final int change = FOCUS_CHANGES[this.random.nextInt(FOCUS_CHANGES.length)];
+                    this.harness.main.post(new Runnable() {
+                        public void run() {
+                            service.onAudioFocusChange(change);
+                        }
+                    });
+                    break;
+                case 16:
+                    sink = this.service.position();
+                    break;
+                case 17:
+                    sink = this.service.getPlaybackState().getPosition();
+                    break;
+                case 18:
+                    sink = this.service.getQueueSize();
+                    break;
+                default:
+                    sink = this.service.getQueuePage(this.random.nextInt(20), 10).getCount();
+                    break;
+            }
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            while (now < this.end) {
+                int op = this.pick();
+                try {
+                    this.call(op);
+                } catch (Throwable t) {
+                    fail(OPS[op] + " threw " + t);
+                }
+                long after = System.nanoTime();
+                if (this.calls < MAX_SAMPLES) {
+                    this.latencies[(int)this.calls] = after - now;
+                    this.kinds[(int)this.calls] = (byte)op;
+                }
+                this.calls++;
+                now = after;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int roundMillis = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread thread, Throwable e) {
+                fail("uncaught in " + thread.getName() + ": " + e);
+                e.printStackTrace();
+            }
+        });
+
+        SystemClock.useManualClock();
+        FakeEngine.Factory engines = new FakeEngine.Factory();
+        engines.openMillis = 2;
+        engines.failEvery = 13;
+        final Harness harness = new Harness(engines);
+        harness.context.getAudioManager().callMillis = 1;
+        IAudioPlayerServiceImpl service = harness.impl;
+        SessionChecker checker = new SessionChecker(harness);
+        service.registerSession(checker, SessionChecker.INTERVAL, SessionChecker.FIELDS);
+        Random random = new Random(seed);
+        Uri[] tracks = new Uri[24];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = harness.track(1000 + random.nextInt(15000));
+        }
+        for (int i = 0; i < 8; i++) {
+            service.enqueue(tracks[i]);
+        }
+        harness.advance(1000, 10);
+
+        System.out.println(rounds + " rounds of " + roundMillis + "ms, " + clients
+                + " client threads, seed " + seed);
+        long[][] byOp = new long[OPS.length][];
+        int[] byOpCount = new int[OPS.length];
+        long total = 0;
+        long elapsed = 0;
+        for (int round = 0; round < rounds; round++) {
+            final long end = System.nanoTime() + roundMillis * 1000000L;
+            Client[] threads = new Client[clients];
+            for (int c = 0; c < clients; c++) {
+                threads[c] = new Client(harness, tracks, seed * 1000 + round * clients + c, end);
+            }
+            // keeps going until the clients are done, since one may wait on a sleeping thread
+            Thread ticker = new Thread("ticker") {
+                @Override
+                public void run() {
+                    while (!this.isInterrupted()) {
+                        SystemClock.advance(SPEEDUP);
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            long start = System.nanoTime();
+            ticker.start();
+            for (Client client : threads) {
+                client.start();
+            }
+            for (Client client : threads) {
+                client.join();
+            }
+            elapsed += System.nanoTime() - start;
+            ticker.interrupt();
+            ticker.join();
+            for (Client client : threads) {
+                total += client.calls;
+                int n = (int)Math.min(client.calls, MAX_SAMPLES);
+                for (int i = 0; i < n; i++) {
+                    int op = client.kinds[i];
+                    if (byOp[op] == null) {
+                        byOp[op] = new long[1024];
+                    } else if (byOpCount[op] == byOp[op].length) {
+                        long[] grown = new long[byOp[op].length * 2];
+                        System.arraycopy(byOp[op], 0, grown, 0, byOpCount[op]);
+                        byOp[op] = grown;
+                    }
+                    byOp[op][byOpCount[op]++] = client.latencies[i];
+                }
+            }
+            settle(harness);
+            check(harness, "round " + round);
+            checker.await("round " + round);
+        }
+
+        service.stop();
+        settle(harness);
+        check(harness, "after the last stop");
+        checker.await("after the last stop");
+        int size = service.getQueueSize();
+        int index = service.getQueueIndex();
+        List<String> queue = new ArrayList<String>();
+        while (queue.size() < size) {
+            LibraryPage page = service.getQueuePage(queue.size(), size - queue.size());
+            for (int i = 0; i < page.getCount(); i++) {
+                queue.add(page.getPath(i));
+            }
+        }
+        harness.shutdownKeepingFiles();
+        SystemClock.useRealClock();
+        if (engines.getLive() != 0) {
+            fail(engines.getLive() + " players left alive after shutdown");
+        }
+        if (harness.context.getReceiverCount() != 0) {
+            fail(harness.context.getReceiverCount() + " receivers left registered after shutdown");
+        }
+        ResumeJournal.Resume resume = new ResumeJournal(new File(harness.context.getFilesDir(),
+                "journal"), new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, harness.main).load();
+        List<String> journaled = new ArrayList<String>();
+        if (resume != null) {
+            for (Uri uri : resume.items) {
+                journaled.add(uri.toString());
+            }
+        }
+        if (!journaled.equals(queue)) {
+            fail("journal holds " + journaled.size() + " items, the queue " + queue.size()
+                    + (journaled.size() == queue.size() ? ", in another order" : ""));
+        } else if (size > 0 && resume.index != index) {
+            fail("journal is at item " + resume.index + ", the queue at " + index);
+        }
+        harness.deleteFiles();
+
+        System.out.println(String.format("%d calls in %.1fs: %d calls/s; %d players created, "
+                + "queue at %d items, %d session updates", total, elapsed / 1e9, (long)(total / (elapsed
+                / 1e9)), engines.getCreated(), size, checker.updates));
+        System.out.println("  call                     calls   p50 us   p99 us  p99.9 us    max us");
+        for (int op = 0; op < OPS.length; op++) {
+            long[] samples = byOp[op];
+            int n = byOpCount[op];
+            System.out.println(String.format("  %-20s %9d %8.1f %8.1f %9.1f %9.1f", OPS[op], n,
+                    Harness.percentile(samples, n, 0.5) / 1000.0, Harness.percentile(samples, n,
+                    0.99) / 1000.0, Harness.percentile(samples, n, 0.999) / 1000.0,
+                    Harness.percentile(samples, n, 1) / 1000.0));
+        }
+        synchronized (SoakTest.class) {
+            if (!failures.isEmpty()) {
+                System.out.println(failures.size() + " failures");
+                System.exit(1);
+            }
+        }
+        System.out.println("OK");
+    }
+
+    // runs the commands still queued, and gives what they started time to finish; opening items
+    // and the focus calls take no time meanwhile, or a long queue would take a while
+    private static void settle(Harness harness) throws InterruptedException {
+        int openMillis = harness.engines.openMillis;
+        FakeAudioManager audioManager = harness.context.getAudioManager();
+        int callMillis = audioManager.callMillis;
+        harness.engines.openMillis = 0;
+        audioManager.callMillis = 0;
+        harness.advance(1000, 10);
+        for (int i = 0; i < 10 && harness.impl.getPlaybackState().getState() == State.PREPARING; i++) {
+            harness.advance(1000, 10);
+        }
+        harness.engines.openMillis = openMillis;
+        audioManager.callMillis = callMillis;
+    }
+
+    // once the service has settled
+    private static void check(Harness harness, String when) throws Exception {
+        FakeEngine.Factory engines = harness.engines;
+        for (String violation : engines.getViolations()) {
+            fail(when + ": " + violation);
+        }
+        if (engines.getLive() > MAX_LIVE) {
+            fail(when + ": " + engines.getLive() + " players alive");
+        }
+        IAudioPlayerServiceImpl service = harness.impl;
+        PlaybackState state = service.getPlaybackState();
+        int started = engines.getStarted();
+        if (started != (state.isPlaying() ? 1 : 0)) {
+            fail(when + ": " + started + " players playing while " + state.getState());
+        }
+        if (state.getState() == State.PREPARING) {
+            fail(when + ": still preparing");
+        }
+        if (state.getState() == State.STOPPED) {
+            FakeAudioManager audioManager = harness.context.getAudioManager();
+            if (audioManager.getFocusHolder() != null) {
+                fail(when + ": audio focus held while stopped");
+            }
+            if (audioManager.getMediaButtonReceiver() != null) {
+                fail(when + ": media buttons taken while stopped");
+            }
+            if (harness.context.getReceiverCount() != 0) {
+                fail(when + ": receivers registered while stopped");
+            }
+            if (harness.service.getForegroundNotification() != null) {
+                fail(when + ": in the foreground while stopped");
+            }
+        }
+        int size = service.getQueueSize();
+        int index = service.getQueueIndex();
+        if (size > 0 && (index < 0 || index >= size)) {
+            fail(when + ": at item " + index + " of " + size);
+        }
+    }
+}
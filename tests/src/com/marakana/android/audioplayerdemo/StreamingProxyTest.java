@@ -0,0 +1,343 @@
+
+package com.marakana.android.audioplayerdemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.net.Uri;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Plays remote items through a {@link StreamingProxy} in front of an HTTP server in this process,
+ * which honors ranges and If-Range. Checks that whole and partial reads return the right bytes and
+ * that a replay is served from the cache; that the local URLs cannot be guessed and only the most
+ * recently registered ones are served; and that once the item changes on the server, the proxy
+ * learns its new size and ETag and serves the new bytes, none of the old. Last, whole reads from
+ * several threads through a cache with room for one segment must return the item, although the
+ * segments are evicted while they are served.
+ * <p>
+ * Usage: {@code StreamingProxyTest}
+ */
+public class StreamingProxyTest {
+    private static final int SEGMENT_SIZE = HttpStream.SEGMENT_SIZE;
+
+    private static final int TIMEOUT = 10000;
+
+    private static final int EVICTING_READERS = 8;
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(System.getProperty("java.io.tmpdir"), "proxy-" + System.nanoTime());
+        Origin origin = new Origin(content(1, 8 * SEGMENT_SIZE), "\"v1\"");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", origin);
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        StreamingProxy proxy = new StreamingProxy(root, 64L << 20);
+        String failure;
+        try {
+            failure = run(proxy, origin, base);
+            if (failure == null) {
+                failure = runEvicting(origin, base);
+            }
+        } finally {
+            proxy.close();
+            server.stop(0);
+            delete(root);
+        }
+        if (failure != null) {
+            System.out.println("FAIL: " + failure);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static String run(StreamingProxy proxy, Origin origin, String base) throws Exception {
+        Uri item = Uri.parse(base + "/item.mp3");
+        Uri local = proxy.register(item);
+        if (!local.equals(proxy.register(item))) {
+            return "registering the same item again gave another URL";
+        }
+        String path = local.getPath();
+        if (path.length() < 33 || path.equals(proxy.register(Uri.parse(base + "/other.mp3"))
+                .getPath())) {
+            return "the local path " + path + " is not a token of its own";
+        }
+        String prefix = "http://127.0.0.1:" + local.getPort();
+        for (int i = 0; i < 4; i++) {
+            if (status(prefix + "/" + i) != HttpURLConnection.HTTP_NOT_FOUND) {
+                return "a guessed path /" + i + " was served";
+            }
+        }
+
+        // the first read probes the item, and the four segments after it are fetched ahead
+        byte[] v1 = origin.data;
+        String failure = check(local, 1000, 2000, v1);
+        if (failure != null) {
+            return failure;
+        }
+        if (!origin.awaitRequests(5)) {
+            return "expected the probe and 4 segments fetched ahead, got " + origin.requests.get()
+                    + " requests";
+        }
+        failure = check(local, 1000, 2000, v1);
+        if (failure == null) {
+            failure = check(local, SEGMENT_SIZE - 10, SEGMENT_SIZE + 10, v1);
+        }
+        if (failure != null) {
+            return failure;
+        }
+        // that read fetched the one segment after those ahead
+        if (!origin.awaitRequests(6) || proxy.getHitRatio() <= 0) {
+            return "reading cached segments made " + (origin.requests.get() - 5)
+                    + " more requests, hit ratio " + proxy.getHitRatio();
+        }
+        System.out.println(String.format("  range reads and replay: OK, hit ratio %.2f",
+                proxy.getHitRatio()));
+
+        // a segment not fetched yet finds the item changed: that read fails, and the next one
+        // probes it again
+        byte[] v2 = content(2, 9 * SEGMENT_SIZE + 1000);
+        origin.change(v2, "\"v2\"");
+        try {
+            byte[] stale = get(local, 7L * SEGMENT_SIZE, 7L * SEGMENT_SIZE + 99, null);
+            return "read " + stale.length + " bytes after the item changed, expected a failure";
+        } catch (IOException e) {
+            // expected: the proxy drops the connection
+        }
+        long[] total = new long[1];
+        failure = check(local, 7L * SEGMENT_SIZE, 7L * SEGMENT_SIZE + 99, v2, total);
+        if (failure != null) {
+            return failure;
+        }
+        if (total[0] != v2.length) {
+            return "the length after the change is " + total[0] + ", not " + v2.length;
+        }
+        byte[] whole = get(local, -1, -1, null);
+        if (!Arrays.equals(whole, v2)) {
+            return "a whole read after the change returned " + whole.length
+                    + " bytes, not the new content";
+        }
+        System.out.println("  item changed on the server: OK, new length " + total[0]);
+
+        // registering more items forgets the oldest
+        for (int i = 0; i < StreamingProxy.MAX_STREAMS; i++) {
+            proxy.register(Uri.parse(base + "/item" + i + ".mp3"));
+        }
+        if (status(local.toString()) != HttpURLConnection.HTTP_NOT_FOUND) {
+            return "the oldest of " + (StreamingProxy.MAX_STREAMS + 2) + " items is still served";
+        }
+        Uri again = proxy.register(item);
+        if (again.equals(local)) {
+            return "an item registered again got its old token";
+        }
+        failure = check(again, 0, 99, v2);
+        if (failure != null) {
+            return failure;
+        }
+        System.out.println("  " + StreamingProxy.MAX_STREAMS + " items served at most: OK");
+        return null;
+    }
+
+    // with room for one segment, each is evicted as soon as the next is fetched ahead, even while
+    // it is being served
+    private static String runEvicting(Origin origin, String base) throws Exception {
+        File root = new File(System.getProperty("java.io.tmpdir"), "proxy-" + System.nanoTime());
+        StreamingProxy proxy = new StreamingProxy(root, SEGMENT_SIZE);
+        try {
+            final Uri local = proxy.register(Uri.parse(base + "/evicted.mp3"));
+            final byte[] expected = origin.data;
+            final String[] failures = new String[EVICTING_READERS];
+            Thread[] readers = new Thread[EVICTING_READERS];
+            for (int r = 0; r < readers.length; r++) {
+                final int reader = r;
+                readers[r] = new Thread("reader " + r) {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 5 && failures[reader] == null; i++) {
+                                byte[] whole = get(local, -1, -1, null);
+                                if (!Arrays.equals(whole, expected)) {
+                                    failures[reader] = "a whole read through a cache of one "
+                                            + "segment returned " + whole.length
+                                            + " bytes, not the item";
+                                }
+                            }
+                        } catch (IOException e) {
+                            failures[reader] = "a whole read through a cache of one segment "
+                                    + "failed: " + e;
+                        }
+                    }
+                };
+                readers[r].start();
+            }
+            for (int r = 0; r < readers.length; r++) {
+                readers[r].join();
+                if (failures[r] != null) {
+                    return failures[r];
+                }
+            }
+        } finally {
+            proxy.close();
+            delete(root);
+        }
+        System.out.println("  a cache of one segment, evicting what it serves: OK");
+        return null;
+    }
+
+    private static String check(Uri local, long first, long last, byte[] expected)
+            throws IOException {
+        return check(local, first, last, expected, new long[1]);
+    }
+
+    private static String check(Uri local, long first, long last, byte[] expected, long[] total)
+            throws IOException {
+        byte[] data = get(local, first, last, total);
+        if (!Arrays.equals(data, Arrays.copyOfRange(expected, (int)first, (int)last + 1))) {
+            return "bytes " + first + "-" + last + " are not the ones on the server";
+        }
+        return null;
+    }
+
+    // reads the given range of the local URL, or all of it if first is negative
+    private static byte[] get(Uri local, long first, long last, long[] total) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(local.toString())
+                .openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        if (first >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+        }
+        try {
+            int code = connection.getResponseCode();
+            if (code != (first >= 0 ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK)) {
+                throw new IOException("Got " + code + " for " + local);
+            }
+            String range = connection.getHeaderField("Content-Range");
+            if (total != null && range != null) {
+                total[0] = Long.parseLong(range.substring(range.lastIndexOf('/') + 1));
+            }
+            long length = Long.parseLong(connection.getHeaderField("Content-Length"));
+            byte[] data = readAll(connection.getInputStream());
+            if (data.length != length) {
+                throw new IOException("Got " + data.length + " of " + length + " bytes");
+            }
+            return data;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int status(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] content(int seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Serves the same content at every path, with range requests and If-Range, and counts them
+    private static class Origin implements HttpHandler {
+        final AtomicInteger requests = new AtomicInteger();
+
+        volatile byte[] data;
+
+        volatile String etag;
+
+        Origin(byte[] data, String etag) {
+            this.data = data;
+            this.etag = etag;
+        }
+
+        synchronized void change(byte[] data, String etag) {
+            this.data = data;
+            this.etag = etag;
+        }
+
+        boolean awaitRequests(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (this.requests.get() < count && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            return this.requests.get() == count;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] data;
+            String etag;
+            synchronized (this) {
+                data = this.data;
+                etag = this.etag;
+            }
+            try {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+                int first = 0;
+                int last = data.length - 1;
+                if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                    int dash = range.indexOf('-');
+                    first = Integer.parseInt(range.substring(6, dash));
+                    last = Math.min(last, Integer.parseInt(range.substring(dash + 1)));
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-"
+                            + last + "/" + data.length);
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, last - first + 1);
+                } else {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, data.length);
+                }
+                OutputStream out = exchange.getResponseBody();
+                out.write(data, first, last - first + 1);
+                out.close();
+            } catch (IOException e) {
+                // the proxy stops reading once it has the part it wanted
+            } finally {
+                exchange.close();
+                this.requests.incrementAndGet();
+            }
+        }
+    }
+}